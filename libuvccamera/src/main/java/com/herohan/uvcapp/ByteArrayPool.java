@@ -0,0 +1,36 @@
+package com.herohan.uvcapp;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps byte arrays of the same size to reuse them, arrays of other size are discarded.
+ */
+final class ByteArrayPool {
+    private final int mMaxNum;
+    private final ArrayDeque<byte[]> mPool;
+    private int mSize;
+
+    ByteArrayPool(int maxNum) {
+        mMaxNum = maxNum;
+        mPool = new ArrayDeque<>(maxNum);
+    }
+
+    synchronized byte[] obtain(int size) {
+        if (size != mSize) {
+            mPool.clear();
+            mSize = size;
+        }
+        final byte[] array = mPool.poll();
+        return array != null ? array : new byte[size];
+    }
+
+    synchronized void recycle(byte[] array) {
+        if ((array.length == mSize) && (mPool.size() < mMaxNum)) {
+            mPool.offer(array);
+        }
+    }
+
+    synchronized void clear() {
+        mPool.clear();
+    }
+}
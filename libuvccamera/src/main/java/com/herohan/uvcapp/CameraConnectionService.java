@@ -12,19 +12,23 @@ import com.serenegiant.usb.DeviceFilter;
 import com.serenegiant.usb.Format;
 import com.serenegiant.usb.IButtonCallback;
 import com.serenegiant.usb.IFrameCallback;
+import com.serenegiant.usb.IFrameLeaseCallback;
 import com.serenegiant.usb.Size;
 import com.serenegiant.usb.USBMonitor;
 import com.serenegiant.usb.USBMonitor.OnDeviceConnectListener;
 import com.serenegiant.usb.USBMonitor.UsbControlBlock;
 import com.serenegiant.usb.UVCControl;
 import com.serenegiant.usb.UVCParam;
+import com.serenegiant.usb.UVCStatistics;
 import com.serenegiant.utils.UVCUtils;
 import com.serenegiant.uvccamera.BuildConfig;
 import com.serenegiant.uvccamera.R;
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 class CameraConnectionService {
     private static final boolean DEBUG = BuildConfig.DEBUG;
@@ -32,6 +36,9 @@ class CameraConnectionService {
 
     private static volatile CameraConnectionService mInstance;
 
+    // shared by all connections so that bring-up of all cameras in the process is scheduled together
+    private final CameraOpenScheduler mOpenScheduler = new CameraOpenScheduler();
+
     CameraConnectionService() {
     }
 
@@ -97,15 +104,16 @@ class CameraConnectionService {
         private void removeCamera(final UsbDevice device) {
             if (DEBUG) Log.d(TAG, "removeCamera:device=" + device.getDeviceName());
             final String key = getCameraKey(device);
+            final CameraInternal service;
             synchronized (mConnectionSync) {
                 mLastCameraKey = key;
-                final CameraInternal service = mCameras.get(key);
-                if (service != null) {
-                    service.release();
-                }
-                mCameras.remove(key);
+                service = mCameras.remove(key);
                 mConnectionSync.notifyAll();
             }
+            // release outside of mConnectionSync so that closing this camera does not block other cameras
+            if (service != null) {
+                service.release();
+            }
             checkExistCamera();
         }
 
@@ -300,15 +308,70 @@ class CameraConnectionService {
         }
 
         @Override
-        public void setFrameCallback(final UsbDevice device, final IFrameCallback callback, int pixelFormat) {
+        public void setFrameCallback(final UsbDevice device, final IFrameCallback callback, int pixelFormat, boolean manualRelease) {
             if (DEBUG)
                 Log.d(TAG, LOG_PREFIX + "setFrameCallback:pixelFormat=" + pixelFormat);
             final CameraInternal cameraInternal = getCamera(device);
             if (cameraInternal != null) {
-                cameraInternal.setFrameCallback(callback, pixelFormat);
+                cameraInternal.setFrameCallback(callback, pixelFormat, manualRelease);
+            }
+        }
+
+        @Override
+        public void setFrameLeaseCallback(final UsbDevice device, final IFrameLeaseCallback callback,
+                                          int pixelFormat, int maxInFlight, int dropPolicy,
+                                          final Executor executor) {
+            if (DEBUG)
+                Log.d(TAG, LOG_PREFIX + "setFrameLeaseCallback:pixelFormat=" + pixelFormat);
+            final CameraInternal cameraInternal = getCamera(device);
+            if (cameraInternal != null) {
+                cameraInternal.setFrameLeaseCallback(callback, pixelFormat, maxInFlight, dropPolicy, executor);
+            }
+        }
+
+        @Override
+        public void setAnalysisFrameCallback(final UsbDevice device, final IFrameCallback callback,
+                                             int width, int height, int pixelFormat) {
+            if (DEBUG)
+                Log.d(TAG, LOG_PREFIX + "setAnalysisFrameCallback:" + width + "x" + height);
+            final CameraInternal cameraInternal = getCamera(device);
+            if (cameraInternal != null) {
+                cameraInternal.setAnalysisFrameCallback(callback, width, height, pixelFormat);
+            }
+        }
+
+        @Override
+        public void addFrameCallback(final UsbDevice device, final IFrameCallback callback,
+                                     int pixelFormat, int width, int height, int maxFps) {
+            if (DEBUG)
+                Log.d(TAG, LOG_PREFIX + "addFrameCallback:" + pixelFormat + "," + width + "x" + height);
+            final CameraInternal cameraInternal = getCamera(device);
+            if (cameraInternal != null) {
+                cameraInternal.addFrameCallback(callback, pixelFormat, width, height, maxFps);
             }
         }
 
+        @Override
+        public void removeFrameCallback(final UsbDevice device, final IFrameCallback callback) {
+            if (DEBUG) Log.d(TAG, LOG_PREFIX + "removeFrameCallback:");
+            final CameraInternal cameraInternal = getCamera(device);
+            if (cameraInternal != null) {
+                cameraInternal.removeFrameCallback(callback);
+            }
+        }
+
+        @Override
+        public boolean releaseFrame(final UsbDevice device, final ByteBuffer frame) {
+            final CameraInternal cameraInternal = getCamera(device);
+            return cameraInternal != null && cameraInternal.releaseFrame(frame);
+        }
+
+        @Override
+        public UVCStatistics getStatistics(final UsbDevice device) {
+            final CameraInternal cameraInternal = getCamera(device);
+            return cameraInternal != null ? cameraInternal.getStatistics() : null;
+        }
+
         /**
          * open device once again, open camera and start streaming
          */
@@ -322,8 +385,9 @@ class CameraConnectionService {
             if (cameraInternal == null) {
                 throw new IllegalArgumentException("invalid device");
             }
-            cameraInternal.openCamera(param,
-                    previewConfig, imageCaptureConfig, videoCaptureConfig);
+            // run on the worker pool so that cameras on different USB buses open concurrently
+            mOpenScheduler.run(device, "openCamera", () -> cameraInternal.openCamera(param,
+                    previewConfig, imageCaptureConfig, videoCaptureConfig));
         }
 
         /**
@@ -353,7 +417,8 @@ class CameraConnectionService {
             if (cameraInternal == null) {
                 throw new IllegalArgumentException("invalid device");
             }
-            cameraInternal.startPreview();
+            // starting streams negotiates USB bandwidth, so serialize it per bus on the worker pool
+            mOpenScheduler.run(device, "startPreview", cameraInternal::startPreview);
         }
 
         /**
@@ -417,6 +482,15 @@ class CameraConnectionService {
             }
         }
 
+        @Override
+        public void prewarmRecording(final UsbDevice device) {
+            if (DEBUG) Log.d(TAG, LOG_PREFIX + "prewarmRecording:");
+            final CameraInternal cameraInternal = getCamera(device);
+            if (cameraInternal != null) {
+                cameraInternal.prewarmRecording();
+            }
+        }
+
         @Override
         public boolean isCameraOpened(final UsbDevice device) {
             final CameraInternal cameraInternal = getCamera(device, false);
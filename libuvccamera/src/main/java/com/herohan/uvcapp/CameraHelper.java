@@ -18,14 +18,18 @@ import com.herohan.uvcapp.utils.Watchdog;
 import com.serenegiant.usb.Format;
 import com.serenegiant.usb.IButtonCallback;
 import com.serenegiant.usb.IFrameCallback;
+import com.serenegiant.usb.IFrameLeaseCallback;
 import com.serenegiant.usb.Size;
 import com.serenegiant.usb.UVCControl;
 import com.serenegiant.usb.UVCParam;
+import com.serenegiant.usb.UVCStatistics;
 import com.serenegiant.utils.UVCUtils;
 import com.serenegiant.uvccamera.BuildConfig;
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.WeakHashMap;
 
 public class CameraHelper implements ICameraHelper {
@@ -232,11 +236,16 @@ public class CameraHelper implements ICameraHelper {
 
     @Override
     public void setFrameCallback(IFrameCallback callback, int pixelFormat) {
+        setFrameCallback(callback, pixelFormat, false);
+    }
+
+    @Override
+    public void setFrameCallback(IFrameCallback callback, int pixelFormat, boolean manualRelease) {
         if (DEBUG) Log.d(TAG, "setFrameCallback:" + pixelFormat);
         mAsyncHandler.post(() -> {
             if (mService != null && mUsbDevice != null) {
                 try {
-                    mService.setFrameCallback(mUsbDevice, callback, pixelFormat);
+                    mService.setFrameCallback(mUsbDevice, callback, pixelFormat, manualRelease);
                 } catch (final Exception e) {
                     if (DEBUG) Log.e(TAG, "setFrameCallback:", e);
                 }
@@ -244,6 +253,87 @@ public class CameraHelper implements ICameraHelper {
         });
     }
 
+    @Override
+    public void setFrameLeaseCallback(IFrameLeaseCallback callback, int pixelFormat,
+                                      int maxInFlight, int dropPolicy, Executor executor) {
+        if (DEBUG) Log.d(TAG, "setFrameLeaseCallback:" + pixelFormat);
+        mAsyncHandler.post(() -> {
+            if (mService != null && mUsbDevice != null) {
+                try {
+                    mService.setFrameLeaseCallback(mUsbDevice, callback, pixelFormat,
+                            maxInFlight, dropPolicy, executor);
+                } catch (final Exception e) {
+                    if (DEBUG) Log.e(TAG, "setFrameLeaseCallback:", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setAnalysisFrameCallback(IFrameCallback callback, int width, int height, int pixelFormat) {
+        if (DEBUG) Log.d(TAG, "setAnalysisFrameCallback:" + width + "x" + height + "," + pixelFormat);
+        mAsyncHandler.post(() -> {
+            if (mService != null && mUsbDevice != null) {
+                try {
+                    mService.setAnalysisFrameCallback(mUsbDevice, callback, width, height, pixelFormat);
+                } catch (final Exception e) {
+                    if (DEBUG) Log.e(TAG, "setAnalysisFrameCallback:", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void addFrameCallback(IFrameCallback callback, int pixelFormat, int width, int height, int maxFps) {
+        if (DEBUG) Log.d(TAG, "addFrameCallback:" + pixelFormat + "," + width + "x" + height + "@" + maxFps);
+        mAsyncHandler.post(() -> {
+            if (mService != null && mUsbDevice != null) {
+                try {
+                    mService.addFrameCallback(mUsbDevice, callback, pixelFormat, width, height, maxFps);
+                } catch (final Exception e) {
+                    if (DEBUG) Log.e(TAG, "addFrameCallback:", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void removeFrameCallback(IFrameCallback callback) {
+        if (DEBUG) Log.d(TAG, "removeFrameCallback:");
+        mAsyncHandler.post(() -> {
+            if (mService != null && mUsbDevice != null) {
+                try {
+                    mService.removeFrameCallback(mUsbDevice, callback);
+                } catch (final Exception e) {
+                    if (DEBUG) Log.e(TAG, "removeFrameCallback:", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * this is called directly on the caller thread so that buffers return to the camera as soon as possible
+     */
+    @Override
+    public boolean releaseFrame(ByteBuffer frame) {
+        final ICameraConnection service = mService;
+        final UsbDevice device = mUsbDevice;
+        if (service != null && device != null) {
+            return service.releaseFrame(device, frame);
+        }
+        return false;
+    }
+
+    @Override
+    public UVCStatistics getStatistics() {
+        final ICameraConnection service = mService;
+        final UsbDevice device = mUsbDevice;
+        if (service != null && device != null) {
+            return service.getStatistics(device);
+        }
+        return null;
+    }
+
     @Override
     public void openCamera() {
         openCamera(new UVCParam());
@@ -399,6 +489,20 @@ public class CameraHelper implements ICameraHelper {
         });
     }
 
+    @Override
+    public void prewarmRecording() {
+        if (DEBUG) Log.d(TAG, "prewarmRecording:");
+        mAsyncHandler.post(() -> {
+            if (mService != null && mUsbDevice != null) {
+                try {
+                    mService.prewarmRecording(mUsbDevice);
+                } catch (final Exception e) {
+                    if (DEBUG) Log.e(TAG, "prewarmRecording:", e);
+                }
+            }
+        });
+    }
+
     @Override
     public boolean isCameraOpened() {
         if (DEBUG) Log.d(TAG, "isCameraOpened:");
@@ -8,18 +8,22 @@ import com.serenegiant.opengl.renderer.RendererHolderCallback;
 import com.serenegiant.usb.Format;
 import com.serenegiant.usb.IButtonCallback;
 import com.serenegiant.usb.IFrameCallback;
+import com.serenegiant.usb.IFrameLeaseCallback;
 import com.serenegiant.usb.Size;
 import com.serenegiant.usb.USBMonitor.UsbControlBlock;
 import com.serenegiant.usb.UVCCamera;
 import com.serenegiant.usb.UVCControl;
 import com.serenegiant.usb.UVCParam;
+import com.serenegiant.usb.UVCStatistics;
 import com.serenegiant.utils.UVCUtils;
 import com.serenegiant.uvccamera.BuildConfig;
 import com.serenegiant.uvccamera.R;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 final class CameraInternal implements ICameraInternal {
     private static final boolean DEBUG = BuildConfig.DEBUG;
@@ -34,6 +38,11 @@ final class CameraInternal implements ICameraInternal {
     private int mFrameWidth = DEFAULT_WIDTH;
     private int mFrameHeight = DEFAULT_HEIGHT;
 
+    /**
+     * guards mUVCCamera and the renderer of this camera only, so that opening or
+     * reconfiguring one camera never blocks the other cameras.
+     * Native resources are not shared between cameras(each UVCCamera has its own libusb context).
+     */
     private final Object mSync = new Object();
 
     private final WeakReference<Context> mWeakContext;
@@ -47,10 +56,15 @@ final class CameraInternal implements ICameraInternal {
      */
     private volatile UVCCamera mUVCCamera;
 
-    private final List<StateCallback> mCallbacks = new ArrayList<>();
+    private final List<StateCallback> mCallbacks = new CopyOnWriteArrayList<>();
 
     private IImageCapture mImageCapture;
+    private CompressedImageCapture mCompressedImageCapture;
+    private ImageCaptureConfig mImageCaptureConfig;
+    private int mPreviewRotation = CameraPreviewConfig.DEFAULT_ROTATION;
+    private int mPreviewMirror = CameraPreviewConfig.DEFAULT_MIRROR;
     private VideoCapture mVideoCapture;
+    private PassthroughRecorder mPassthroughRecorder;
 
     public CameraInternal(final Context context, final UsbControlBlock ctrlBlock, final int vid, final int pid) {
         if (DEBUG) Log.d(TAG, "Constructor:");
@@ -124,8 +138,10 @@ final class CameraInternal implements ICameraInternal {
     public void setPreviewSize(Size size) {
         if (DEBUG) Log.d(TAG, "setPreviewSize:" + size);
         try {
-            if (mUVCCamera != null) {
-                mUVCCamera.setPreviewSize(size);
+            synchronized (mSync) {
+                if (mUVCCamera != null) {
+                    mUVCCamera.setPreviewSize(size);
+                }
             }
 
             // Preview size may changed, so set the resolution and reinitialize video encoder and audio encoder of VideoCapture
@@ -133,7 +149,7 @@ final class CameraInternal implements ICameraInternal {
         } catch (final Exception e) {
             Log.e(TAG, "setPreviewSize:", e);
             // unexpectedly #setPreviewSize failed
-            synchronized (CameraInternal.class) {
+            synchronized (mSync) {
                 if (mUVCCamera != null) {
                     mUVCCamera.destroy();
                     mUVCCamera = null;
@@ -180,17 +196,80 @@ final class CameraInternal implements ICameraInternal {
     }
 
     @Override
-    public void setFrameCallback(final IFrameCallback callback, final int pixelFormat) {
+    public void setFrameCallback(final IFrameCallback callback, final int pixelFormat, final boolean manualRelease) {
         if (DEBUG) Log.d(TAG, "setFrameCallback:surface=" + callback);
         try {
             if (mUVCCamera != null) {
-                mUVCCamera.setFrameCallback(callback, pixelFormat);
+                mUVCCamera.setFrameCallback(callback, pixelFormat, manualRelease);
             }
         } catch (final Exception e) {
             Log.e(TAG, "setFrameCallback:", e);
         }
     }
 
+    @Override
+    public void setFrameLeaseCallback(final IFrameLeaseCallback callback, final int pixelFormat,
+                                      final int maxInFlight, final int dropPolicy, final Executor executor) {
+        if (DEBUG) Log.d(TAG, "setFrameLeaseCallback:callback=" + callback);
+        try {
+            if (mUVCCamera != null) {
+                mUVCCamera.setFrameLeaseCallback(callback, pixelFormat, maxInFlight, dropPolicy, executor);
+            }
+        } catch (final Exception e) {
+            Log.e(TAG, "setFrameLeaseCallback:", e);
+        }
+    }
+
+    @Override
+    public void setAnalysisFrameCallback(final IFrameCallback callback,
+                                         final int width, final int height, final int pixelFormat) {
+        if (DEBUG) Log.d(TAG, "setAnalysisFrameCallback:callback=" + callback);
+        try {
+            if (mUVCCamera != null) {
+                mUVCCamera.setAnalysisFrameCallback(callback, width, height, pixelFormat);
+            }
+        } catch (final Exception e) {
+            Log.e(TAG, "setAnalysisFrameCallback:", e);
+        }
+    }
+
+    @Override
+    public void addFrameCallback(final IFrameCallback callback, final int pixelFormat,
+                                 final int width, final int height, final int maxFps) {
+        if (DEBUG) Log.d(TAG, "addFrameCallback:callback=" + callback);
+        try {
+            if (mUVCCamera != null) {
+                mUVCCamera.addFrameCallback(callback, pixelFormat, width, height, maxFps);
+            }
+        } catch (final Exception e) {
+            Log.e(TAG, "addFrameCallback:", e);
+        }
+    }
+
+    @Override
+    public void removeFrameCallback(final IFrameCallback callback) {
+        if (DEBUG) Log.d(TAG, "removeFrameCallback:callback=" + callback);
+        try {
+            if (mUVCCamera != null) {
+                mUVCCamera.removeFrameCallback(callback);
+            }
+        } catch (final Exception e) {
+            Log.e(TAG, "removeFrameCallback:", e);
+        }
+    }
+
+    @Override
+    public boolean releaseFrame(final ByteBuffer frame) {
+        final UVCCamera camera = mUVCCamera;
+        return camera != null && camera.releaseFrame(frame);
+    }
+
+    @Override
+    public UVCStatistics getStatistics() {
+        final UVCCamera camera = mUVCCamera;
+        return camera != null ? camera.getStatistics() : null;
+    }
+
     @Override
     public void openCamera(UVCParam param,
                            CameraPreviewConfig previewConfig,
@@ -209,12 +288,14 @@ final class CameraInternal implements ICameraInternal {
     private void resetUVCCamera() {
         if (DEBUG) Log.d(TAG, "resetUVCCamera: " + this);
         stopRecording();
-        synchronized (CameraInternal.class) {
+        synchronized (mSync) {
             if (mUVCCamera != null) {
                 mUVCCamera.stopPreview();
                 mUVCCamera.destroy(true);
                 mUVCCamera = null;
+                mPassthroughRecorder = null;
             }
+            releaseCompressedImageCapture();
             mRendererHolder.removeSlaveSurfaceAll();
         }
     }
@@ -227,9 +308,15 @@ final class CameraInternal implements ICameraInternal {
         if (DEBUG) Log.d(TAG, "openUVCCamera: " + this);
         try {
             int result = 0;
-            synchronized (CameraInternal.class) {
-                mUVCCamera = new UVCCamera(param);
-                result = mUVCCamera.open(mCtrlBlock);
+            synchronized (mSync) {
+                // publish the camera only after it was opened
+                final UVCCamera camera = new UVCCamera(param);
+                result = camera.open(mCtrlBlock);
+                if (result == 0) {
+                    mUVCCamera = camera;
+                } else {
+                    camera.destroy();
+                }
             }
             if (result != 0) {
                 Context context = UVCUtils.getApplication();
@@ -265,6 +352,10 @@ final class CameraInternal implements ICameraInternal {
             mImageCapture.release();
             mImageCapture = null;
         }
+        mImageCaptureConfig = (ImageCaptureConfig) config.clone();
+        if (mCompressedImageCapture != null) {
+            mCompressedImageCapture.setConfig(config);
+        }
         switch (config.getCaptureStrategy()) {
             case IImageCapture.CAPTURE_STRATEGY_IMAGE_READER:
                 mImageCapture = new ImageCapture2(this, config, getPreviewSize());
@@ -281,33 +372,42 @@ final class CameraInternal implements ICameraInternal {
         if (DEBUG) Log.d(TAG, "closeCamera: " + this);
         stopRecording();
         boolean closed = false;
-        synchronized (CameraInternal.class) {
+        synchronized (mSync) {
             if (mUVCCamera != null) {
                 mUVCCamera.stopPreview();
                 mUVCCamera.destroy();
                 mUVCCamera = null;
+                mPassthroughRecorder = null;
                 closed = true;
             }
-
-            if (closed) {
-                processOnCameraClose();
-            }
+        }
+        // call callbacks without holding the lock, they may call back into this camera
+        if (closed) {
+            processOnCameraClose();
         }
 
         if (mImageCapture != null) {
             mImageCapture.release();
             mImageCapture = null;
         }
+        releaseCompressedImageCapture();
         if (mVideoCapture != null) {
             mVideoCapture.release();
             mVideoCapture = null;
         }
     }
 
+    private void releaseCompressedImageCapture() {
+        if (mCompressedImageCapture != null) {
+            mCompressedImageCapture.release();
+            mCompressedImageCapture = null;
+        }
+    }
+
     @Override
     public void startPreview() {
         if (DEBUG) Log.d(TAG, "startPreview: " + this);
-        synchronized (CameraInternal.class) {
+        synchronized (mSync) {
             if (mUVCCamera == null) return;
 
 //				mUVCCamera.setFrameCallback(mIFrameCallback, UVCCamera.PIXEL_FORMAT_YUV);
@@ -327,7 +427,7 @@ final class CameraInternal implements ICameraInternal {
     @Override
     public void stopPreview() {
         if (DEBUG) Log.d(TAG, "stopPreview: " + this);
-        synchronized (CameraInternal.class) {
+        synchronized (mSync) {
             if (mUVCCamera != null) {
                 mUVCCamera.stopPreview();
             }
@@ -355,7 +455,17 @@ final class CameraInternal implements ICameraInternal {
     @Override
     public void takePicture(ImageCapture.OutputFileOptions options, ImageCapture.OnImageCaptureCallback callback) {
         if (isCameraOpened() && mImageCapture != null) {
-            mImageCapture.takePicture(options, callback);
+            final UVCCamera camera = mUVCCamera;
+            if (CompressedImageCapture.isSupported(camera,
+                    mPreviewRotation, mPreviewMirror, mImageCaptureConfig)) {
+                // save MJPEG frame as is, bypassing rendering and re-encoding
+                if (mCompressedImageCapture == null) {
+                    mCompressedImageCapture = new CompressedImageCapture(camera, mImageCaptureConfig);
+                }
+                mCompressedImageCapture.takePicture(options, callback);
+            } else {
+                mImageCapture.takePicture(options, callback);
+            }
         } else {
             String message = "Not bound to a Camera";
             callback.onError(ImageCapture.ERROR_INVALID_CAMERA, message, new IllegalStateException(message));
@@ -364,13 +474,25 @@ final class CameraInternal implements ICameraInternal {
 
     @Override
     public boolean isRecording() {
-        return mVideoCapture != null && mVideoCapture.isRecording();
+        final PassthroughRecorder recorder = mPassthroughRecorder;
+        return (mVideoCapture != null && mVideoCapture.isRecording())
+                || (recorder != null && recorder.isRecording());
     }
 
     @Override
     public void startRecording(VideoCapture.OutputFileOptions options, VideoCapture.OnVideoCaptureCallback callback) {
         if (isCameraOpened() && mVideoCapture != null) {
-            mVideoCapture.startRecording(options, callback);
+            final UVCCamera camera = mUVCCamera;
+            if (mVideoCapture.getConfig().getPassthroughEnable()
+                    && PassthroughRecorder.isSupported(camera)) {
+                // record compressed frames as is, bypassing the encoder
+                if (mPassthroughRecorder == null) {
+                    mPassthroughRecorder = new PassthroughRecorder(camera);
+                }
+                mPassthroughRecorder.startRecording(options, callback);
+            } else {
+                mVideoCapture.startRecording(options, callback);
+            }
         } else {
             String message = "Not bound to a Camera";
             callback.onError(VideoCapture.ERROR_INVALID_CAMERA, message, new IllegalStateException(message));
@@ -379,11 +501,21 @@ final class CameraInternal implements ICameraInternal {
 
     @Override
     public void stopRecording() {
+        if (mPassthroughRecorder != null) {
+            mPassthroughRecorder.stopRecording();
+        }
         if (mVideoCapture != null) {
             mVideoCapture.stopRecording();
         }
     }
 
+    @Override
+    public void prewarmRecording() {
+        if (isCameraOpened() && mVideoCapture != null) {
+            mVideoCapture.prewarm();
+        }
+    }
+
     @Override
     public boolean isCameraOpened() {
         return mUVCCamera != null;
@@ -403,12 +535,14 @@ final class CameraInternal implements ICameraInternal {
         if (DEBUG) Log.d(TAG, "setCameraPreviewConfig:");
 
         int rotation = config.getRotation();
+        mPreviewRotation = rotation;
         if (DEBUG) Log.d(TAG, "rotateTo:" + rotation);
         if (mRendererHolder != null) {
             mRendererHolder.rotateTo(rotation);
         }
 
         int mirror = config.getMirror();
+        mPreviewMirror = mirror;
         if (DEBUG) Log.d(TAG, "setMirrorMode:" + mirror);
         if (mRendererHolder != null) {
             mRendererHolder.setMirrorMode(mirror);
@@ -433,7 +567,7 @@ final class CameraInternal implements ICameraInternal {
 
     private void releaseResource() {
         if (DEBUG) Log.d(TAG, "releaseResource: " + this);
-        synchronized (CameraInternal.class) {
+        synchronized (mSync) {
             clearCallbacks();
 
             if (mRendererHolder != null) {
@@ -0,0 +1,157 @@
+package com.herohan.uvcapp;
+
+import android.hardware.usb.UsbDevice;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs bring-up of cameras(opening camera and starting preview) on a bounded worker pool
+ * so that multiple cameras come up concurrently.
+ * Tasks of devices on the same USB bus run one after another in submission order because
+ * they negotiate the isochronous bandwidth of the same bus, devices on different buses run in parallel.
+ */
+final class CameraOpenScheduler {
+    private static final String TAG = CameraOpenScheduler.class.getSimpleName();
+
+    private static final int MAX_WORKERS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    // serial executor for each USB bus
+    private final HashMap<Integer, SerialExecutor> mBusExecutors = new HashMap<>();
+
+    CameraOpenScheduler() {
+        mExecutor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(r, TAG + "#" + mCount.incrementAndGet());
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * run the task on the worker pool and wait for its completion,
+     * this must not be called from the task of this scheduler.
+     * The wait is not interruptible because callers go on to the next step of bring-up
+     * which needs this task done, the interrupt status is restored after the task finishes.
+     *
+     * @param device device which the task brings up
+     * @param name   name of the task for the latency report
+     * @param task   task to run
+     * @return time in milliseconds from submission to completion
+     */
+    long run(final UsbDevice device, final String name, final Runnable task) {
+        final long submitted = SystemClock.elapsedRealtime();
+        final long[] started = new long[1];
+        final FutureTask<Void> future = new FutureTask<>(() -> {
+            started[0] = SystemClock.elapsedRealtime();
+            task.run();
+            return null;
+        });
+        getBusExecutor(getBusNum(device)).execute(future);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final long latency = SystemClock.elapsedRealtime() - submitted;
+        Log.i(TAG, name + ":device=" + device.getDeviceName()
+                + ",latency=" + latency + "ms,waited=" + Math.max(0, started[0] - submitted) + "ms");
+        return latency;
+    }
+
+    private SerialExecutor getBusExecutor(final int busNum) {
+        synchronized (mBusExecutors) {
+            SerialExecutor executor = mBusExecutors.get(busNum);
+            if (executor == null) {
+                executor = new SerialExecutor(mExecutor);
+                mBusExecutors.put(busNum, executor);
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * @return bus number parsed from device name like /dev/bus/usb/001/002, 0 if unknown
+     */
+    private static int getBusNum(final UsbDevice device) {
+        final String name = device.getDeviceName();
+        final String[] v = !TextUtils.isEmpty(name) ? name.split("/") : null;
+        if (v != null && v.length >= 2) {
+            try {
+                return Integer.parseInt(v[v.length - 2]);
+            } catch (final NumberFormatException e) {
+                // fall through
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * runs tasks one at a time on the underlying executor
+     */
+    private static final class SerialExecutor implements Executor {
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private final Executor mExecutor;
+        private Runnable mActive;
+
+        SerialExecutor(final Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable r) {
+            mTasks.offer(() -> {
+                try {
+                    r.run();
+                } finally {
+                    scheduleNext();
+                }
+            });
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            if ((mActive = mTasks.poll()) != null) {
+                mExecutor.execute(mActive);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.herohan.uvcapp;
 
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.Matrix;
 import android.util.Log;
 import android.view.Surface;
@@ -57,15 +58,43 @@ class CameraRendererHolder extends RendererHolder implements ICameraRendererHold
         mRendererHandler.post(() -> {
             // Capture still image
             try {
-                ImageRawData data = mCaptureHolder.captureImageRawData();
-                callback.onCaptureSuccess(data);
+                mCaptureHolder.captureImageRawData(callback);
             } catch (Exception e) {
                 callback.onError(e);
             }
         });
     }
 
+    /**
+     * pending readback into a pixel buffer object
+     */
+    private static class Readback {
+        final long fence;
+        final int width;
+        final int height;
+        final OnImageCapturedCallback callback;
+
+        Readback(long fence, int width, int height, OnImageCapturedCallback callback) {
+            this.fence = fence;
+            this.width = width;
+            this.height = height;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Captures by drawing the texture offscreen and reading back its pixels.
+     * On GLES3 the pixels are read into one of double-buffered pixel buffer objects
+     * and mapped after its fence is signaled, so that capturing does not stall
+     * drawing of the preview and the recorder on the renderer thread.
+     * All methods must be called on the renderer thread.
+     */
     private class CaptureHolder {
+        // number of pixel buffer objects, at most this number of captures are read back in parallel
+        private static final int READBACK_BUFFER_NUM = 2;
+        private static final long READBACK_POLL_INTERVAL_MS = 2;
+        private static final long READBACK_TIMEOUT_NS = 1000000000L;
+
         EGLBase mCaptureEglBase;
         EGLBase.IEglSurface mCaptureSurface;
         GLDrawer2D mCaptureDrawer;
@@ -74,25 +103,38 @@ class CameraRendererHolder extends RendererHolder implements ICameraRendererHold
         int mHeight = -1;
         ByteBuffer mBuf = null;
 
+        final boolean mIsGLES3;
+        final int[] mPixelBuffers = new int[READBACK_BUFFER_NUM];
+        final Readback[] mReadbacks = new Readback[READBACK_BUFFER_NUM];
+        int mNextReadback;
+        // byte arrays for ImageRawData, returned by ImageRawData#release
+        final ByteArrayPool mPool = new ByteArrayPool(READBACK_BUFFER_NUM);
+
+        private final Runnable mPollTask = this::pollReadbacks;
+
         public CaptureHolder() {
             mCaptureEglBase = EGLBase.createFrom(getContext(), 3,
                     false, 0, false);
             mCaptureSurface = mCaptureEglBase.createOffscreen(
                     mVideoWidth, mVideoHeight);
             mCaptureDrawer = new GLDrawer2D(true);
+            mIsGLES3 = mCaptureEglBase.getGlVersion() > 2;
         }
 
-        public ImageRawData captureImageRawData() {
+        /**
+         * draw the texture and read back its pixels,
+         * the callback is called on the renderer thread when the pixels are available
+         */
+        public void captureImageRawData(OnImageCapturedCallback callback) {
             if (DEBUG) Log.v(TAG, "#captureImageData:start");
-            ImageRawData data = null;
-            if ((mBuf == null)
-                    || (mWidth != mVideoWidth)
+            if ((mWidth != mVideoWidth)
                     || (mHeight != mVideoHeight)) {
 
+                finishReadbacks();
+                deletePixelBuffers();
+                mBuf = null;
                 mWidth = mVideoWidth;
                 mHeight = mVideoHeight;
-                mBuf = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
-                mBuf.order(ByteOrder.LITTLE_ENDIAN);
                 if (mCaptureSurface != null) {
                     mCaptureSurface.release();
                     mCaptureSurface = null;
@@ -112,25 +154,145 @@ class CameraRendererHolder extends RendererHolder implements ICameraRendererHold
                 mCaptureSurface.makeCurrent();
                 mCaptureDrawer.draw(mTexId, mTexMatrix, 0);
                 mCaptureSurface.swap();
-                mBuf.clear();
-                GLES20.glReadPixels(0, 0, mWidth, mHeight,
-                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mBuf);
+                if (mIsGLES3) {
+                    startReadback(callback);
+                    makeCurrent();
+                } else {
+                    if (mBuf == null) {
+                        mBuf = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
+                        mBuf.order(ByteOrder.LITTLE_ENDIAN);
+                    }
+                    mBuf.clear();
+                    GLES20.glReadPixels(0, 0, mWidth, mHeight,
+                            GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mBuf);
 
-                makeCurrent();
+                    makeCurrent();
 
-                byte[] bytes = new byte[mBuf.capacity()];
-                mBuf.rewind();
-                mBuf.get(bytes);
+                    byte[] bytes = mPool.obtain(mBuf.capacity());
+                    mBuf.rewind();
+                    mBuf.get(bytes);
 
-                data = new ImageRawData(bytes, mWidth, mHeight);
+                    callback.onCaptureSuccess(new ImageRawData(bytes, mWidth, mHeight, mPool));
+                }
             } else {
                 Log.w(TAG, "#captureImageData:unexpectedly width/height is zero");
+                callback.onError(new IllegalStateException("width/height is zero"));
             }
             if (DEBUG) Log.i(TAG, "#captureImageData:end");
-            return data;
+        }
+
+        /**
+         * start reading pixels of the capture surface into next pixel buffer object without waiting,
+         * the capture surface should be current
+         */
+        private void startReadback(OnImageCapturedCallback callback) {
+            final int bytes = mWidth * mHeight * 4;
+            if (mPixelBuffers[0] == 0) {
+                GLES20.glGenBuffers(READBACK_BUFFER_NUM, mPixelBuffers, 0);
+                for (final int buffer : mPixelBuffers) {
+                    GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, buffer);
+                    GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, bytes, null, GLES30.GL_STREAM_READ);
+                }
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            }
+            final int index = mNextReadback;
+            mNextReadback = (index + 1) % READBACK_BUFFER_NUM;
+            if (mReadbacks[index] != null) {
+                // all buffers are in use, wait for the oldest one
+                finishReadback(index, true);
+                mCaptureSurface.makeCurrent();
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[index]);
+            GLES30.glReadPixels(0, 0, mWidth, mHeight,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            final long fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            GLES20.glFlush();
+            mReadbacks[index] = new Readback(fence, mWidth, mHeight, callback);
+            mRendererHandler.removeCallbacks(mPollTask);
+            mRendererHandler.postDelayed(mPollTask, READBACK_POLL_INTERVAL_MS);
+        }
+
+        /**
+         * deliver finished readbacks from the oldest one, keep polling while any is pending
+         */
+        private void pollReadbacks() {
+            for (int i = 0; i < READBACK_BUFFER_NUM; i++) {
+                final int index = (mNextReadback + i) % READBACK_BUFFER_NUM;
+                if ((mReadbacks[index] != null) && !finishReadback(index, false)) {
+                    mRendererHandler.postDelayed(mPollTask, READBACK_POLL_INTERVAL_MS);
+                    break;
+                }
+            }
+        }
+
+        /**
+         * @param wait true to block until the fence is signaled
+         * @return false if the readback is still in progress
+         */
+        private boolean finishReadback(final int index, final boolean wait) {
+            final Readback readback = mReadbacks[index];
+            final int status = GLES30.glClientWaitSync(readback.fence,
+                    GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, wait ? READBACK_TIMEOUT_NS : 0);
+            if ((status == GLES30.GL_TIMEOUT_EXPIRED) && !wait) {
+                return false;
+            }
+            mReadbacks[index] = null;
+            GLES30.glDeleteSync(readback.fence);
+            if ((status != GLES30.GL_ALREADY_SIGNALED) && (status != GLES30.GL_CONDITION_SATISFIED)) {
+                readback.callback.onError(new IllegalStateException("glClientWaitSync failed:" + status));
+                return true;
+            }
+            final int bytes = readback.width * readback.height * 4;
+            byte[] data = null;
+            mCaptureSurface.makeCurrent();
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[index]);
+            final ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(
+                    GLES30.GL_PIXEL_PACK_BUFFER, 0, bytes, GLES30.GL_MAP_READ_BIT);
+            if (mapped != null) {
+                data = mPool.obtain(bytes);
+                mapped.get(data);
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            makeCurrent();
+            if (data != null) {
+                readback.callback.onCaptureSuccess(
+                        new ImageRawData(data, readback.width, readback.height, mPool));
+            } else {
+                readback.callback.onError(new IllegalStateException("glMapBufferRange failed"));
+            }
+            return true;
+        }
+
+        /**
+         * wait and deliver all pending readbacks
+         */
+        private void finishReadbacks() {
+            mRendererHandler.removeCallbacks(mPollTask);
+            for (int i = 0; i < READBACK_BUFFER_NUM; i++) {
+                final int index = (mNextReadback + i) % READBACK_BUFFER_NUM;
+                if (mReadbacks[index] != null) {
+                    finishReadback(index, true);
+                }
+            }
+        }
+
+        private void deletePixelBuffers() {
+            if (mPixelBuffers[0] != 0) {
+                mCaptureSurface.makeCurrent();
+                GLES20.glDeleteBuffers(READBACK_BUFFER_NUM, mPixelBuffers, 0);
+                makeCurrent();
+                Arrays.fill(mPixelBuffers, 0);
+            }
         }
 
         public void release() {
+            if (mIsGLES3 && (mCaptureSurface != null)) {
+                finishReadbacks();
+                deletePixelBuffers();
+            }
+            mPool.clear();
             if (mCaptureDrawer != null) {
                 mCaptureDrawer.release();
                 mCaptureDrawer = null;
@@ -0,0 +1,327 @@
+package com.herohan.uvcapp;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.serenegiant.opengl.renderer.MirrorMode;
+import com.serenegiant.usb.Size;
+import com.serenegiant.usb.UVCCamera;
+import com.serenegiant.utils.UVCUtils;
+import com.serenegiant.utils.UriHelper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves the next MJPEG frame from camera as is, without rendering, reading back pixels
+ * and re-encoding, used instead of the capture strategy when {@link #isSupported} is true.
+ */
+final class CompressedImageCapture implements IImageCapture {
+
+    private static final String TAG = CompressedImageCapture.class.getSimpleName();
+
+    // maximum time to wait for next frame from camera
+    private static final int CAPTURE_TIMEOUT_MS = 1000;
+
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_DHT = 0xc4;
+    private static final int MARKER_SOS = 0xda;
+
+    /**
+     * ISO/IEC 10918-1:1993(E) K.3.3. Default Huffman tables,
+     * MJPEG frames from UVC devices usually omit them
+     */
+    private static final byte[] DEFAULT_DHT = createDefaultHuffmanTables();
+
+    private final UVCCamera mCamera;
+    private ImageCaptureConfig mConfig;
+
+    private final Handler mMainHandler;
+
+    private ExecutorService mExecutor;
+
+    CompressedImageCapture(@NonNull UVCCamera camera,
+                           ImageCaptureConfig config) {
+        this.mCamera = camera;
+        this.mConfig = (ImageCaptureConfig) config.clone();
+        this.mMainHandler = new Handler(Looper.getMainLooper());
+        this.mExecutor = Executors.newFixedThreadPool(1, new ThreadFactory() {
+            private final AtomicInteger mId = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, TAG + "image_capture" + mId.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * @return true if the frame from camera can be saved as is,
+     * that is the preview is MJPEG and neither rotation, mirror nor jpeg quality is requested
+     */
+    static boolean isSupported(UVCCamera camera, int rotation, @MirrorMode int mirror,
+                               @Nullable ImageCaptureConfig config) {
+        if (config == null || !config.getPassthroughEnable() || config.hasJpegCompressionQuality()) {
+            return false;
+        }
+        if (rotation != 0 || mirror != MirrorMode.MIRROR_NORMAL) {
+            return false;
+        }
+        final Size size = camera != null ? camera.getPreviewSize() : null;
+        return size != null && size.type == UVCCamera.UVC_VS_FRAME_MJPEG;
+    }
+
+    @Override
+    public void setConfig(ImageCaptureConfig config) {
+        this.mConfig = (ImageCaptureConfig) config.clone();
+    }
+
+    /**
+     * Captures next frame from camera and saves to a file.
+     *
+     * <p> The callback will be called only once for every invocation of this method.
+     *
+     * @param outputFileOptions  Options to store the newly captured image.
+     * @param imageSavedCallback Callback to be called for the newly captured image.
+     */
+    @Override
+    public void takePicture(
+            final @NonNull OutputFileOptions outputFileOptions,
+            final @NonNull OnImageCaptureCallback imageSavedCallback) {
+        // Convert the ImageSaver.OnImageSavedCallback to ImageCapture.OnImageSavedCallback
+        ImageSaver.OnImageSavedCallback imageSavedCallbackWrapper = new ImageSaver.OnImageSavedCallback() {
+            @Override
+            public void onImageSaved(@NonNull ImageCapture.OutputFileResults outputFileResults) {
+                scanMediaFile(outputFileResults.getSavedUri());
+
+                mMainHandler.post(() -> imageSavedCallback.onImageSaved(outputFileResults));
+            }
+
+            @Override
+            public void onError(@NonNull ImageSaver.SaveError error, @NonNull String message, @Nullable Throwable cause) {
+                mMainHandler.post(() -> {
+                    @ImageCapture.ImageCaptureError int imageCaptureError = ERROR_UNKNOWN;
+                    switch (error) {
+                        case FILE_IO_FAILED:
+                            imageCaptureError = ERROR_FILE_IO;
+                            break;
+                        default:
+                            // Keep the imageCaptureError as UNKNOWN_ERROR
+                            break;
+                    }
+
+                    imageSavedCallback.onError(imageCaptureError, message, cause);
+                });
+            }
+        };
+
+        final boolean exifEnable = mConfig.getExifEnable();
+        mExecutor.execute(() -> {
+            final byte[] frame = mCamera.captureStillImage(CAPTURE_TIMEOUT_MS);
+            if (frame == null) {
+                mMainHandler.post(() -> imageSavedCallback.onError(ERROR_CAPTURE_FAILED,
+                        "No MJPEG frame from camera", null));
+                return;
+            }
+            byte[] exif = null;
+            if (exifEnable) {
+                final Size size = mCamera.getPreviewSize();
+                if (size != null) {
+                    exif = createExifSegment(size.width, size.height, System.currentTimeMillis());
+                }
+            }
+            new ImageSaver(frame, exif, outputFileOptions, imageSavedCallbackWrapper).run();
+        });
+    }
+
+    private void scanMediaFile(final Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        final Context context = UVCUtils.getApplication();
+        String path = UriHelper.getPath(context, uri);
+
+        try {
+            // invoke scanFile to update size of media file in MediaStore
+            MediaScannerConnection.scanFile(context, new String[]{path}, null, null);
+        } catch (final Exception e) {
+            Log.e(TAG, "MediaScannerConnection:", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * write MJPEG frame as a JPEG file, inserting the default Huffman tables if the frame lacks them
+     * and EXIF segment if it is not null, without copying the frame.
+     */
+    static void writeJpeg(@NonNull OutputStream out, @NonNull byte[] frame,
+                          @Nullable byte[] exif) throws IOException {
+        if (frame.length < 4 || (frame[0] & 0xff) != 0xff || (frame[1] & 0xff) != MARKER_SOI) {
+            throw new IOException("Not a JPEG frame");
+        }
+        final int sos = findHuffmanTablesInsertPosition(frame);
+        out.write(frame, 0, 2);
+        if (exif != null) {
+            out.write(exif);
+        }
+        if (sos < 0) {
+            out.write(frame, 2, frame.length - 2);
+        } else {
+            out.write(frame, 2, sos - 2);
+            out.write(DEFAULT_DHT);
+            out.write(frame, sos, frame.length - sos);
+        }
+    }
+
+    /**
+     * @return position of SOS marker if there is no DHT before it, -1 otherwise
+     */
+    private static int findHuffmanTablesInsertPosition(@NonNull byte[] frame) {
+        int pos = 2;
+        while (pos + 4 <= frame.length) {
+            if ((frame[pos] & 0xff) != 0xff) {
+                // broken, leave it as is
+                return -1;
+            }
+            final int marker = frame[pos + 1] & 0xff;
+            if (marker == 0xff) {
+                // fill byte
+                pos++;
+            } else if (marker == MARKER_DHT) {
+                return -1;
+            } else if (marker == MARKER_SOS) {
+                return pos;
+            } else if (marker == 0x01 || (marker >= 0xd0 && marker <= MARKER_SOI)) {
+                // markers without length
+                pos += 2;
+            } else {
+                pos += 2 + (((frame[pos + 2] & 0xff) << 8) | (frame[pos + 3] & 0xff));
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] createDefaultHuffmanTables() {
+        final int[][] tables = {
+                // class/id, number of codes for each length 1-16, values
+                {0x00, 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0,
+                        0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11},
+                {0x10, 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d,
+                        0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21,
+                        0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07, 0x22, 0x71,
+                        0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1,
+                        0xc1, 0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72,
+                        0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25,
+                        0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37,
+                        0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+                        0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+                        0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+                        0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83,
+                        0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93,
+                        0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3,
+                        0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3,
+                        0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+                        0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3,
+                        0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+                        0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1,
+                        0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa},
+                {0x01, 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0,
+                        0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11},
+                {0x11, 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77,
+                        0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31,
+                        0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71, 0x13, 0x22,
+                        0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1,
+                        0x09, 0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1,
+                        0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18,
+                        0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36,
+                        0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47,
+                        0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+                        0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+                        0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a,
+                        0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a,
+                        0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a,
+                        0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa,
+                        0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+                        0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca,
+                        0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+                        0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+                        0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa},
+        };
+        int length = 2;
+        for (final int[] table : tables) {
+            length += table.length;
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(2 + length);
+        buf.put((byte) 0xff).put((byte) MARKER_DHT).putShort((short) length);
+        for (final int[] table : tables) {
+            for (final int value : table) {
+                buf.put((byte) value);
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * create APP1 segment with minimal EXIF, IFD0(Orientation, DateTime)
+     * and Exif IFD(DateTimeOriginal, PixelXDimension, PixelYDimension)
+     */
+    static byte[] createExifSegment(int width, int height, long timeMillis) {
+        final byte[] dateTime = (new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US)
+                .format(new Date(timeMillis)) + '\0').getBytes(StandardCharsets.US_ASCII);
+        // offsets from TIFF header
+        final int ifd0 = 8;
+        final int ifd0DateTime = ifd0 + 2 + 3 * 12 + 4;
+        final int exifIfd = ifd0DateTime + dateTime.length;
+        final int exifDateTime = exifIfd + 2 + 3 * 12 + 4;
+        final int tiffLength = exifDateTime + dateTime.length;
+
+        final ByteBuffer buf = ByteBuffer.allocate(2 + 2 + 6 + tiffLength).order(ByteOrder.BIG_ENDIAN);
+        buf.put((byte) 0xff).put((byte) 0xe1).putShort((short) (2 + 6 + tiffLength));
+        buf.put("Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+        // TIFF header, big endian
+        buf.put((byte) 'M').put((byte) 'M').putShort((short) 0x2a).putInt(ifd0);
+        // IFD0, tags in ascending order
+        buf.putShort((short) 3);
+        putIfdEntry(buf, 0x0112, 3, 1, 1 << 16);                    // Orientation, SHORT, normal
+        putIfdEntry(buf, 0x0132, 2, dateTime.length, ifd0DateTime); // DateTime, ASCII
+        putIfdEntry(buf, 0x8769, 4, 1, exifIfd);                    // ExifIFDPointer, LONG
+        buf.putInt(0);
+        buf.put(dateTime);
+        // Exif IFD
+        buf.putShort((short) 3);
+        putIfdEntry(buf, 0x9003, 2, dateTime.length, exifDateTime); // DateTimeOriginal, ASCII
+        putIfdEntry(buf, 0xa002, 4, 1, width);                      // PixelXDimension, LONG
+        putIfdEntry(buf, 0xa003, 4, 1, height);                     // PixelYDimension, LONG
+        buf.putInt(0);
+        buf.put(dateTime);
+        return buf.array();
+    }
+
+    private static void putIfdEntry(ByteBuffer buf, int tag, int type, int count, int value) {
+        buf.putShort((short) tag).putShort((short) type).putInt(count).putInt(value);
+    }
+}
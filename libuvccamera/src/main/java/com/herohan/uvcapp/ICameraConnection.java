@@ -3,13 +3,17 @@ package com.herohan.uvcapp;
 import com.serenegiant.usb.Format;
 import com.serenegiant.usb.IButtonCallback;
 import com.serenegiant.usb.IFrameCallback;
+import com.serenegiant.usb.IFrameLeaseCallback;
 import com.serenegiant.usb.Size;
 import com.serenegiant.usb.UVCControl;
 import com.serenegiant.usb.UVCParam;
+import com.serenegiant.usb.UVCStatistics;
 
 import android.hardware.usb.UsbDevice;
 
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * <selectDevice						check usb permission, open device
@@ -40,7 +44,22 @@ interface ICameraConnection {
 
     void setButtonCallback(UsbDevice device, IButtonCallback callback);
 
-    void setFrameCallback(UsbDevice device, IFrameCallback callback, int pixelFormat);
+    void setFrameCallback(UsbDevice device, IFrameCallback callback, int pixelFormat, boolean manualRelease);
+
+    boolean releaseFrame(UsbDevice device, ByteBuffer frame);
+
+    void setFrameLeaseCallback(UsbDevice device, IFrameLeaseCallback callback, int pixelFormat,
+                               int maxInFlight, int dropPolicy, Executor executor);
+
+    void setAnalysisFrameCallback(UsbDevice device, IFrameCallback callback,
+                                  int width, int height, int pixelFormat);
+
+    void addFrameCallback(UsbDevice device, IFrameCallback callback,
+                          int pixelFormat, int width, int height, int maxFps);
+
+    void removeFrameCallback(UsbDevice device, IFrameCallback callback);
+
+    UVCStatistics getStatistics(UsbDevice device);
 
     void openCamera(UsbDevice device, UVCParam param,
                     CameraPreviewConfig previewConfig,
@@ -67,6 +86,8 @@ interface ICameraConnection {
 
     void stopRecording(UsbDevice device);
 
+    void prewarmRecording(UsbDevice device);
+
     boolean isCameraOpened(UsbDevice device);
 
     void releaseCamera(UsbDevice device);
@@ -7,13 +7,17 @@ import android.widget.Toast;
 import com.serenegiant.usb.Format;
 import com.serenegiant.usb.IButtonCallback;
 import com.serenegiant.usb.IFrameCallback;
+import com.serenegiant.usb.IFrameLeaseCallback;
 import com.serenegiant.usb.Size;
 import com.serenegiant.usb.UVCControl;
 import com.serenegiant.usb.UVCParam;
+import com.serenegiant.usb.UVCStatistics;
 import com.serenegiant.utils.UVCUtils;
 import com.serenegiant.uvccamera.R;
 
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public interface ICameraHelper {
 
@@ -39,6 +43,46 @@ public interface ICameraHelper {
 
     void setFrameCallback(IFrameCallback callback, int pixelFormat);
 
+    /**
+     * @param manualRelease if true, ByteBuffer passed to IFrameCallback#onFrame is kept until #releaseFrame
+     */
+    void setFrameCallback(IFrameCallback callback, int pixelFormat, boolean manualRelease);
+
+    /**
+     * give back ByteBuffer passed to IFrameCallback#onFrame when the callback was set with manual release
+     */
+    boolean releaseFrame(ByteBuffer frame);
+
+    /**
+     * set callback which leases frames to process them on the executor, see UVCCamera#setFrameLeaseCallback
+     */
+    void setFrameLeaseCallback(IFrameLeaseCallback callback, int pixelFormat,
+                               int maxInFlight, int dropPolicy, Executor executor);
+
+    /**
+     * set secondary callback which receives frames scaled down to the specific size,
+     * see UVCCamera#setAnalysisFrameCallback
+     */
+    void setAnalysisFrameCallback(IFrameCallback callback, int width, int height, int pixelFormat);
+
+    /**
+     * add frame callback with its own pixel format, size and max frame rate,
+     * see UVCCamera#addFrameCallback
+     */
+    void addFrameCallback(IFrameCallback callback, int pixelFormat, int width, int height, int maxFps);
+
+    /**
+     * see UVCCamera#removeFrameCallback
+     */
+    void removeFrameCallback(IFrameCallback callback);
+
+    /**
+     * get statistics of the native frame pipeline, see UVCCamera#getStatistics
+     *
+     * @return null if the camera is not opened
+     */
+    UVCStatistics getStatistics();
+
     void openCamera();
 
     void openCamera(Size size);
@@ -63,6 +107,12 @@ public interface ICameraHelper {
 
     void stopRecording();
 
+    /**
+     * Start the video encoder before recording to shorten the start of the next recording,
+     * this only takes effect when {@link VideoCaptureConfig#setWarmEncoderEnable(boolean)} is enabled.
+     */
+    void prewarmRecording();
+
     boolean isCameraOpened();
 
     void release();
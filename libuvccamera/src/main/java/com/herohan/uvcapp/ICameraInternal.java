@@ -3,11 +3,15 @@ package com.herohan.uvcapp;
 import com.serenegiant.usb.Format;
 import com.serenegiant.usb.IButtonCallback;
 import com.serenegiant.usb.IFrameCallback;
+import com.serenegiant.usb.IFrameLeaseCallback;
 import com.serenegiant.usb.Size;
 import com.serenegiant.usb.UVCControl;
 import com.serenegiant.usb.UVCParam;
+import com.serenegiant.usb.UVCStatistics;
 
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 interface ICameraInternal {
 
@@ -31,7 +35,22 @@ interface ICameraInternal {
 
     void setButtonCallback(final IButtonCallback callback);
 
-    void setFrameCallback(final IFrameCallback callback, final int pixelFormat);
+    void setFrameCallback(final IFrameCallback callback, final int pixelFormat, final boolean manualRelease);
+
+    boolean releaseFrame(final ByteBuffer frame);
+
+    void setFrameLeaseCallback(final IFrameLeaseCallback callback, final int pixelFormat,
+                               final int maxInFlight, final int dropPolicy, final Executor executor);
+
+    void setAnalysisFrameCallback(final IFrameCallback callback,
+                                  final int width, final int height, final int pixelFormat);
+
+    void addFrameCallback(final IFrameCallback callback, final int pixelFormat,
+                          final int width, final int height, final int maxFps);
+
+    void removeFrameCallback(final IFrameCallback callback);
+
+    UVCStatistics getStatistics();
 
     void openCamera(UVCParam param,
                     CameraPreviewConfig previewConfig,
@@ -56,6 +75,8 @@ interface ICameraInternal {
 
     void stopRecording();
 
+    void prewarmRecording();
+
     boolean isCameraOpened();
 
     void release();
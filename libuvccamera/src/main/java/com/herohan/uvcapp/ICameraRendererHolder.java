@@ -6,7 +6,8 @@ interface ICameraRendererHolder extends IRendererHolder {
 
     /**
      * capture still picture
-     * blocking for capture to complete
+     * the callback is called on the renderer thread when the pixels are read back,
+     * call ImageRawData#release when the pixels are no longer needed
      */
     void captureImage(OnImageCapturedCallback callback);
 
@@ -19,12 +19,18 @@ public class ImageCaptureConfig implements Cloneable {
             "imageCapture.captureMode";
     private static final String OPTION_JPEG_COMPRESSION_QUALITY =
             "imageCapture.jpegCompressionQuality";
+    private static final String OPTION_PASSTHROUGH_ENABLE =
+            "imageCapture.passthroughEnable";
+    private static final String OPTION_EXIF_ENABLE =
+            "imageCapture.exifEnable";
 
     @CaptureStrategy
     private static final int DEFAULT_CAPTURE_STRATEGY = CAPTURE_STRATEGY_OPENGL_ES;
     @CaptureMode
     private static final int DEFAULT_CAPTURE_MODE = CAPTURE_MODE_MINIMIZE_LATENCY;
     private static final int DEFAULT_JPEG_COMPRESSION_QUALITY = JPEG_QUALITY_MINIMIZE_LATENCY_MODE;
+    private static final boolean DEFAULT_PASSTHROUGH_ENABLE = true;
+    private static final boolean DEFAULT_EXIF_ENABLE = false;
 
     private Bundle mMutableConfig = new Bundle();
 
@@ -102,6 +108,43 @@ public class ImageCaptureConfig implements Cloneable {
         return getMutableConfig().containsKey(OPTION_JPEG_COMPRESSION_QUALITY);
     }
 
+    /**
+     * Sets whether to save the compressed frame from camera as is.
+     *
+     * <p>When enabled, the preview format is MJPEG, no rotation or mirror is set by
+     * {@link CameraPreviewConfig} and no jpeg compression quality is set,
+     * the next MJPEG frame is written to the output without decoding and re-encoding.
+     * Otherwise the capture strategy is used.
+     *
+     * <p>If not set, passthrough is enabled.
+     *
+     * @param enable true to save MJPEG frames as is
+     * @return The current Builder.
+     */
+    public ImageCaptureConfig setPassthroughEnable(boolean enable) {
+        getMutableConfig().putBoolean(OPTION_PASSTHROUGH_ENABLE, enable);
+        return this;
+    }
+
+    public boolean getPassthroughEnable() {
+        return getMutableConfig().getBoolean(OPTION_PASSTHROUGH_ENABLE, DEFAULT_PASSTHROUGH_ENABLE);
+    }
+
+    /**
+     * Sets whether to insert EXIF(date time and pixel dimension) into images saved by passthrough.
+     *
+     * @param enable true to insert EXIF
+     * @return The current Builder.
+     */
+    public ImageCaptureConfig setExifEnable(boolean enable) {
+        getMutableConfig().putBoolean(OPTION_EXIF_ENABLE, enable);
+        return this;
+    }
+
+    public boolean getExifEnable() {
+        return getMutableConfig().getBoolean(OPTION_EXIF_ENABLE, DEFAULT_EXIF_ENABLE);
+    }
+
     @NonNull
     @Override
     protected Object clone() {
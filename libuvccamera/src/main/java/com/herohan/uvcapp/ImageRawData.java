@@ -4,11 +4,17 @@ class ImageRawData {
     private byte[] mData;
     private int mWidth;
     private int mHeight;
+    private ByteArrayPool mPool;
 
     public ImageRawData(byte[] data, int width, int height) {
+        this(data, width, height, null);
+    }
+
+    public ImageRawData(byte[] data, int width, int height, ByteArrayPool pool) {
         this.mData = data;
         this.mWidth = width;
         this.mHeight = height;
+        this.mPool = pool;
     }
 
     public byte[] getData() {
@@ -22,4 +28,14 @@ class ImageRawData {
     public int getHeight() {
         return mHeight;
     }
+
+    /**
+     * return the data to the pool, the data must not be accessed after this
+     */
+    public void release() {
+        if ((mPool != null) && (mData != null)) {
+            mPool.recycle(mData);
+        }
+        mData = null;
+    }
 }
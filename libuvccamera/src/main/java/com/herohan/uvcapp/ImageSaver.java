@@ -26,6 +26,12 @@ public class ImageSaver implements Runnable {
 
     // The image that was captured
     private final ImageRawData mImage;
+    // The compressed frame that was captured, saved as is instead of encoding mImage
+    @Nullable
+    private final byte[] mJpeg;
+    // EXIF segment to insert into mJpeg
+    @Nullable
+    private final byte[] mExif;
     // The compression quality level of the output JPEG image
     private final int mJpegQuality;
     // The target location to save the image to.
@@ -40,11 +46,31 @@ public class ImageSaver implements Runnable {
                       @NonNull ImageCapture.OutputFileOptions outputFileOptions,
                       @NonNull OnImageSavedCallback callback) {
         this.mImage = image;
+        this.mJpeg = null;
+        this.mExif = null;
         this.mJpegQuality = jpegQuality;
         this.mOutputFileOptions = outputFileOptions;
         this.mCallback = callback;
     }
 
+    /**
+     * save MJPEG frame from camera as is
+     *
+     * @param jpeg compressed frame, may lack Huffman tables
+     * @param exif APP1 segment to insert, may be null
+     */
+    public ImageSaver(@NonNull byte[] jpeg,
+                      @Nullable byte[] exif,
+                      @NonNull ImageCapture.OutputFileOptions outputFileOptions,
+                      @NonNull OnImageSavedCallback callback) {
+        this.mImage = null;
+        this.mJpeg = jpeg;
+        this.mExif = exif;
+        this.mJpegQuality = 0;
+        this.mOutputFileOptions = outputFileOptions;
+        this.mCallback = callback;
+    }
+
     @Override
     public void run() {
         SaveError saveError = null;
@@ -53,7 +79,7 @@ public class ImageSaver implements Runnable {
         Uri outputUri = null;
 
         try {
-            byte[] data = imageToJpegByteArray(mImage, mJpegQuality);
+            byte[] data = mJpeg != null ? mJpeg : imageToJpegByteArray(mImage, mJpegQuality);
             if (data == null) {
                 saveError = SaveError.ENCODE_FAILED;
                 errorMessage = "Failed to encode mImage";
@@ -77,7 +103,7 @@ public class ImageSaver implements Runnable {
                         setUriNotPending(outputUri);
                     }
                 } else if (isSaveToOutputStream()) {
-                    mOutputFileOptions.getOutputStream().write(data);
+                    writeData(mOutputFileOptions.getOutputStream(), data);
                 } else if (isSaveToFile()) {
                     File targetFile = mOutputFileOptions.getFile();
                     copyByteArrayToFile(data, targetFile);
@@ -102,6 +128,8 @@ public class ImageSaver implements Runnable {
             final Bitmap bmp = Bitmap.createBitmap(
                     image.getWidth(), image.getHeight(), Bitmap.Config.ARGB_8888);
             bmp.copyPixelsFromBuffer(ByteBuffer.wrap(image.getData()));
+            // pixels were copied into the bitmap, reuse the array for next capture
+            image.release();
             bmp.compress(Bitmap.CompressFormat.JPEG, jpegQuality, out);
             bmp.recycle();
             return out.toByteArray();
@@ -157,7 +185,7 @@ public class ImageSaver implements Runnable {
                 // The URI is not writable.
                 return false;
             }
-            outputStream.write(data);
+            writeData(outputStream, data);
         }
         return true;
     }
@@ -169,11 +197,19 @@ public class ImageSaver implements Runnable {
      */
     private boolean copyByteArrayToFile(@NonNull byte[] data, @NonNull File file) throws IOException {
         try (FileOutputStream outputStream = new FileOutputStream(file)) {
-            outputStream.write(data);
+            writeData(outputStream, data);
         }
         return true;
     }
 
+    private void writeData(@NonNull OutputStream outputStream, @NonNull byte[] data) throws IOException {
+        if (mJpeg != null) {
+            CompressedImageCapture.writeJpeg(outputStream, data, mExif);
+        } else {
+            outputStream.write(data);
+        }
+    }
+
     /**
      * Type of error that occurred during save
      */
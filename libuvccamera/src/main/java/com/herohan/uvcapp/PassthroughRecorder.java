@@ -0,0 +1,156 @@
+package com.herohan.uvcapp;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.serenegiant.usb.Size;
+import com.serenegiant.usb.UVCCamera;
+import com.serenegiant.utils.UVCUtils;
+import com.serenegiant.utils.UriHelper;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records MJPEG frames of the camera into a Matroska file without decoding and encoding,
+ * used instead of {@link VideoCapture} when passthrough is enabled by {@link VideoCaptureConfig}.
+ * Callbacks are called on the main thread same as {@link VideoCapture}.
+ */
+final class PassthroughRecorder {
+    private static final String TAG = PassthroughRecorder.class.getSimpleName();
+
+    static final String MIME_TYPE = "video/x-matroska";
+
+    private final UVCCamera mCamera;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private VideoCapture.OnVideoCaptureCallback mCallback;
+    private Uri mSavedUri;
+    private boolean mIsRecording;
+
+    PassthroughRecorder(@NonNull UVCCamera camera) {
+        mCamera = camera;
+    }
+
+    /**
+     * @return true if frames from the camera can be recorded as is
+     */
+    static boolean isSupported(UVCCamera camera) {
+        final Size size = camera != null ? camera.getPreviewSize() : null;
+        return size != null && size.type == UVCCamera.UVC_VS_FRAME_MJPEG;
+    }
+
+    synchronized boolean isRecording() {
+        return mIsRecording;
+    }
+
+    synchronized void startRecording(@NonNull VideoCapture.OutputFileOptions options,
+                                     @NonNull VideoCapture.OnVideoCaptureCallback callback) {
+        if (mIsRecording) {
+            mMainHandler.post(() -> callback.onError(VideoCapture.ERROR_RECORDING_IN_PROGRESS,
+                    "It is still in video recording!", null));
+            return;
+        }
+        Uri savedUri = null;
+        Uri insertedUri = null;
+        ParcelFileDescriptor pfd = null;
+        try {
+            if (options.isSavingToFile()) {
+                final File file = options.getFile();
+                pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_CREATE
+                        | ParcelFileDescriptor.MODE_TRUNCATE | ParcelFileDescriptor.MODE_READ_WRITE);
+                savedUri = Uri.fromFile(file);
+            } else if (options.isSavingToFileDescriptor()) {
+                pfd = ParcelFileDescriptor.dup(options.getFileDescriptor());
+            } else if (options.isSavingToMediaStore()) {
+                final ContentResolver contentResolver = options.getContentResolver();
+                final ContentValues values = new ContentValues(options.getContentValues());
+                // the file is Matroska whatever the caller expected for H.264
+                values.put(MediaStore.MediaColumns.MIME_TYPE, MIME_TYPE);
+                insertedUri = contentResolver.insert(options.getSaveCollection(), values);
+                if (insertedUri == null) {
+                    throw new IOException("Invalid Uri!");
+                }
+                pfd = contentResolver.openFileDescriptor(insertedUri, "rw");
+                if (pfd == null) {
+                    throw new IOException("Failed to open " + insertedUri);
+                }
+                savedUri = insertedUri;
+            } else {
+                throw new IllegalArgumentException(
+                        "The OutputFileOptions should assign before recording");
+            }
+            final int result = mCamera.startPassthroughRecording(pfd);
+            if (result != 0) {
+                throw new IOException("startPassthroughRecording failed:err=" + result);
+            }
+        } catch (final IOException | IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "startRecording:", e);
+            if (insertedUri != null) {
+                options.getContentResolver().delete(insertedUri, null, null);
+            }
+            mMainHandler.post(() -> callback.onError(VideoCapture.ERROR_FILE_IO,
+                    "Failed to start passthrough recording", e));
+            return;
+        } finally {
+            // native side keeps its own duplicate
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (final IOException e) {
+                    Log.w(TAG, e);
+                }
+            }
+        }
+        mIsRecording = true;
+        mCallback = callback;
+        mSavedUri = savedUri;
+        mMainHandler.post(callback::onStart);
+    }
+
+    /**
+     * stop recording, this blocks until the file is finished
+     */
+    synchronized void stopRecording() {
+        if (!mIsRecording) {
+            return;
+        }
+        mIsRecording = false;
+        final VideoCapture.OnVideoCaptureCallback callback = mCallback;
+        final Uri savedUri = mSavedUri;
+        mCallback = null;
+        mSavedUri = null;
+        final int result = mCamera.stopPassthroughRecording();
+        if (result == 0) {
+            scanMediaFile(savedUri);
+            mMainHandler.post(() -> callback.onVideoSaved(new VideoCapture.OutputFileResults(savedUri)));
+        } else {
+            mMainHandler.post(() -> callback.onError(VideoCapture.ERROR_FILE_IO,
+                    "Failed to write passthrough recording:err=" + result, null));
+        }
+    }
+
+    private static void scanMediaFile(final Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        final Context context = UVCUtils.getApplication();
+        try {
+            // invoke scanFile to update size of media file in MediaStore
+            final String path = UriHelper.getPath(context, uri);
+            MediaScannerConnection.scanFile(context, new String[]{path}, new String[]{MIME_TYPE}, null);
+        } catch (final Exception e) {
+            Log.e(TAG, "MediaScannerConnection:", e);
+        }
+    }
+}
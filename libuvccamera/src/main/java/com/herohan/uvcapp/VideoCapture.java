@@ -123,6 +123,30 @@ public class VideoCapture {
      */
     private HandlerThread mAudioHandlerThread;
     private Handler mAudioHandler;
+    /**
+     * Thread on which callbacks of encoders are called in asynchronous mode (API >= 23),
+     * null in synchronous mode.
+     */
+    private HandlerThread mCodecCallbackThread;
+    private Handler mCodecCallbackHandler;
+    /**
+     * Callback and output of current recording which encoder callbacks refer to in asynchronous mode.
+     */
+    private OnVideoCaptureCallback mRecordingCallback;
+    private OutputFileOptions mRecordingOutputFileOptions;
+    private final AtomicBoolean mVideoEncodeFinished = new AtomicBoolean(true);
+    private final AtomicBoolean mAudioEncodeFinished = new AtomicBoolean(true);
+    private volatile boolean mAudioInputEos;
+    private long mLastAudioTimestampUs;
+    /**
+     * True while the video encoder keeps running and attached to the renderer holder
+     * between recordings, see {@link VideoCaptureConfig#setWarmEncoderEnable(boolean)}.
+     */
+    private volatile boolean mVideoEncoderWarm;
+    /**
+     * Last output format of the video encoder, only accessed on mCodecCallbackThread.
+     */
+    private MediaFormat mVideoOutputFormat;
 
     MediaCodec mVideoEncoder;
     private MediaCodec mAudioEncoder;
@@ -204,6 +228,10 @@ public class VideoCapture {
         initVideoAudioEncoder();
     }
 
+    VideoCaptureConfig getConfig() {
+        return mConfig;
+    }
+
     void setConfig(VideoCaptureConfig config) {
         this.mConfig = (VideoCaptureConfig) config.clone();
         initVideoAudioEncoder();
@@ -225,6 +253,13 @@ public class VideoCapture {
         // audio thread start
         mAudioHandlerThread.start();
         mAudioHandler = new Handler(mAudioHandlerThread.getLooper());
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // encoded buffers are delivered by MediaCodec callbacks instead of polling
+            mCodecCallbackThread = new HandlerThread(TAG + "codec callback thread");
+            mCodecCallbackThread.start();
+            mCodecCallbackHandler = new Handler(mCodecCallbackThread.getLooper());
+        }
     }
 
     /**
@@ -244,6 +279,8 @@ public class VideoCapture {
     }
 
     private void initVideoAudioEncoder() {
+        final boolean videoEncoderWarm = mVideoEncoderWarm;
+        coolDownVideoEncoder();
         if (mCameraSurface != null) {
             if (mVideoEncoder != null) {
                 mVideoEncoder.stop();
@@ -269,6 +306,71 @@ public class VideoCapture {
         }
 
         setupEncoder();
+        if (videoEncoderWarm) {
+            prewarm();
+        }
+    }
+
+    /**
+     * Start the video encoder and attach its input Surface to the renderer holder before recording,
+     * so that {@link #startRecording(OutputFileOptions, OnVideoCaptureCallback)} only needs to wait
+     * for the next key frame. The video encoder stays warm between recordings until the config or
+     * the resolution is changed, or this is released.
+     * This only takes effect when {@link VideoCaptureConfig#getWarmEncoderEnable()} returns true
+     * on Android 6.0 and later.
+     *
+     * @return true if the video encoder is warm
+     */
+    public boolean prewarm() {
+        if (mVideoEncoderWarm) {
+            return true;
+        }
+        if (mIsRecording || !mEndOfAudioVideoSignal.get()
+                || (mRecordingFuture != null && !mRecordingFuture.isDone())) {
+            // encoder is in use
+            return false;
+        }
+        return startWarmVideoEncoder();
+    }
+
+    private boolean startWarmVideoEncoder() {
+        if (mCodecCallbackHandler == null || !mConfig.getWarmEncoderEnable()) {
+            return false;
+        }
+        final ICameraRendererHolder rendererHolder = mRendererHolderWeak.get();
+        if (rendererHolder == null || mCameraSurface == null
+                || mVideoEncoderInitStatus != VideoEncoderInitStatus.VIDEO_ENCODER_INIT_STATUS_UNINITIALIZED) {
+            // encoder is not configured
+            return false;
+        }
+
+        // forget the output format of the previous encoder session before it starts
+        mCodecCallbackHandler.post(() -> mVideoOutputFormat = null);
+        try {
+            Log.i(TAG, "videoEncoder prewarm");
+            mVideoEncoder.start();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Video encoder prewarm failed", e);
+            return false;
+        }
+        rendererHolder.addSlaveSurface(mCameraSurface.hashCode(), mCameraSurface, true);
+        mVideoEncoderWarm = true;
+        return true;
+    }
+
+    /**
+     * Detach the input Surface of the warm video encoder from the renderer holder,
+     * the encoder is left running until it is stopped, reset or released by the caller.
+     */
+    private void coolDownVideoEncoder() {
+        if (!mVideoEncoderWarm) {
+            return;
+        }
+        Log.i(TAG, "videoEncoder cool down");
+        mVideoEncoderWarm = false;
+        if (mRendererHolderWeak.get() != null && mCameraSurface != null) {
+            mRendererHolderWeak.get().removeSlaveSurface(mCameraSurface.hashCode());
+        }
     }
 
     public boolean isRecording() {
@@ -364,7 +466,7 @@ public class VideoCapture {
         mRecordingFuture = new FutureTask<>(new Callable<String>() {
             @Override
             public String call() throws Exception {
-                if (mRendererHolderWeak.get() != null && mCameraSurface != null) {
+                if (!mVideoEncoderWarm && mRendererHolderWeak.get() != null && mCameraSurface != null) {
                     mRendererHolderWeak.get().removeSlaveSurface(mCameraSurface.hashCode());
                 }
 
@@ -375,6 +477,13 @@ public class VideoCapture {
                     return "releaseResources";
                 }
 
+                if (mVideoEncoderWarm) {
+                    // The video encoder keeps running with its Surface attached,
+                    // only the audio encoder is set up again.
+                    setupAudioEncoder();
+                    return "startRecording";
+                }
+
                 // Do the setup of the videoEncoder at the end of video recording instead of at the
                 // start of recording because it requires attaching a new Surface. This causes a
                 // glitch so we don't want that to incur latency at the start of capture.
@@ -383,26 +492,14 @@ public class VideoCapture {
                 } else {
                     initVideoAudioEncoder();
                 }
+                // keep the new encoder warm for the next recording if enabled
+                startWarmVideoEncoder();
                 return "startRecording";
             }
         });
 
-        try {
-            // video encoder start
-            Log.i(TAG, "videoEncoder start");
-            mVideoEncoder.start();
-
-            // audio encoder start
-            if (mIsAudioEnabled.get()) {
-                Log.i(TAG, "audioEncoder start");
-                mAudioEncoder.start();
-            }
-        } catch (IllegalStateException e) {
-            mExecutor.execute(mRecordingFuture);
-            postListener.onError(ERROR_ENCODER, "Audio/Video encoder start fail", e);
-            return;
-        }
-
+        // The muxer is created before the encoders start,
+        // encoder callbacks may add tracks as soon as the encoders start.
         try {
             synchronized (mMuxerLock) {
                 mMuxer = initMediaMuxer(outputFileOptions);
@@ -419,13 +516,58 @@ public class VideoCapture {
 
         mEndOfVideoStreamSignal.set(false);
         mEndOfAudioStreamSignal.set(false);
+        mRecordingCallback = postListener;
+        mRecordingOutputFileOptions = outputFileOptions;
+        mVideoEncodeFinished.set(false);
+        mAudioEncodeFinished.set(false);
+        mAudioInputEos = false;
+        mLastAudioTimestampUs = 0;
+
+        final boolean videoEncoderWarm = mVideoEncoderWarm;
+        try {
+            if (videoEncoderWarm) {
+                // The output format of the running encoder has already been notified,
+                // add the video track on the callback thread where it is kept.
+                mCodecCallbackHandler.post(this::addWarmVideoTrack);
+            } else {
+                // video encoder start
+                Log.i(TAG, "videoEncoder start");
+                mVideoEncoder.start();
+            }
+
+            // audio encoder start
+            if (mIsAudioEnabled.get()) {
+                Log.i(TAG, "audioEncoder start");
+                mAudioEncoder.start();
+            }
+        } catch (IllegalStateException e) {
+            releaseMediaMuxer();
+            try {
+                closeParcelFileDescriptor();
+            } catch (IOException ex) {
+                Log.w(TAG, "File descriptor close failed!", ex);
+            }
+            // remove the empty file
+            removeRecordingResultIfNoVideoKeyFrameArrived(outputFileOptions);
+            mExecutor.execute(mRecordingFuture);
+            postListener.onError(ERROR_ENCODER, "Audio/Video encoder start fail", e);
+            return;
+        }
+
         mEndOfAudioVideoSignal.set(false);
         mIsRecording = true;
 
         postListener.onStart();
 
-        // Attach Surface to renderer holder.
-        mRendererHolderWeak.get().addSlaveSurface(mCameraSurface.hashCode(), mCameraSurface, true);
+        if (!videoEncoderWarm) {
+            // Attach Surface to renderer holder.
+            mRendererHolderWeak.get().addSlaveSurface(mCameraSurface.hashCode(), mCameraSurface, true);
+        }
+
+        if (mCodecCallbackHandler != null) {
+            // encoded buffers are written by mVideoEncoderCallback and mAudioEncoderCallback
+            return;
+        }
 
         if (mIsAudioEnabled.get()) {
             mAudioHandler.post(() -> audioEncode(postListener));
@@ -434,15 +576,23 @@ public class VideoCapture {
         mVideoHandler.post(
                 () -> {
                     boolean errorOccurred = videoEncode(postListener, outputFileOptions);
-                    if (!errorOccurred) {
-                        scanMediaFile(mSavedVideoUri);
-                        postListener.onVideoSaved(new OutputFileResults(mSavedVideoUri));
-                        mSavedVideoUri = null;
-                    }
-                    mExecutor.execute(mRecordingFuture);
+                    onVideoEncodeFinished(postListener, errorOccurred);
                 });
     }
 
+    /**
+     * Notify the result of recording and prepare the encoders for next recording.
+     */
+    private void onVideoEncodeFinished(@NonNull OnVideoCaptureCallback videoSavedCallback,
+                                       boolean errorOccurred) {
+        if (!errorOccurred) {
+            scanMediaFile(mSavedVideoUri);
+            videoSavedCallback.onVideoSaved(new OutputFileResults(mSavedVideoUri));
+            mSavedVideoUri = null;
+        }
+        mExecutor.execute(mRecordingFuture);
+    }
+
     /**
      * Stops recording video, this must be called after {@link
      * VideoCapture#startRecording(OutputFileOptions, OnVideoCaptureCallback)} is
@@ -462,7 +612,7 @@ public class VideoCapture {
                 mEndOfAudioStreamSignal.set(true);
             } else {
                 // Audio is disabled, stop video encoder thread directly.
-                mEndOfVideoStreamSignal.set(true);
+                signalEndOfVideoStream();
             }
         }
     }
@@ -478,6 +628,7 @@ public class VideoCapture {
     }
 
     private void releaseResources() {
+        coolDownVideoEncoder();
         mVideoHandlerThread.quitSafely();
 
         // audio encoder release
@@ -486,6 +637,10 @@ public class VideoCapture {
         if (mCameraSurface != null) {
             releaseCameraSurface(true);
         }
+
+        if (mCodecCallbackThread != null) {
+            mCodecCallbackThread.quitSafely();
+        }
     }
 
     private void releaseAudioInputResource() {
@@ -530,6 +685,10 @@ public class VideoCapture {
 
         // Configures a Video encoder, if there is any exception, will abort follow up actions
         try {
+            if (mCodecCallbackHandler != null) {
+                // callback should be set before configure
+                Api23Impl.setCallback(mVideoEncoder, mVideoEncoderCallback, mCodecCallbackHandler);
+            }
             mVideoEncoder.configure(
                     createVideoMediaFormat(), /*surface*/
                     null, /*crypto*/
@@ -546,6 +705,14 @@ public class VideoCapture {
         Surface cameraSurface = mVideoEncoder.createInputSurface();
         mCameraSurface = cameraSurface;
 
+        setupAudioEncoder();
+    }
+
+    /**
+     * Setup the {@link MediaCodec} for encoding audio from selected audio source.
+     */
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    private void setupAudioEncoder() {
         // audio encoder setup
         // reset audio inout flag
         mIsAudioEnabled.set(mConfig.getAudioCaptureEnable());
@@ -557,6 +724,9 @@ public class VideoCapture {
             }
             // Configures a Audio encoder, if there is any exception, will abort follow up actions
             try {
+                if (mCodecCallbackHandler != null) {
+                    Api23Impl.setCallback(mAudioEncoder, mAudioEncoderCallback, mCodecCallbackHandler);
+                }
                 mAudioEncoder.configure(
                         createAudioMediaFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             } catch (Exception e) {
@@ -636,9 +806,10 @@ public class VideoCapture {
      * Write a buffer that has been encoded to file.
      *
      * @param bufferIndex the index of the buffer in the videoEncoder that has available data
+     * @param info        the information of the buffer
      * @return returns true if this buffer is the end of the stream
      */
-    private boolean writeVideoEncodedBuffer(int bufferIndex) {
+    private boolean writeVideoEncodedBuffer(int bufferIndex, @NonNull MediaCodec.BufferInfo info) {
         if (bufferIndex < 0) {
             Log.e(TAG, "Output buffer should not have negative index: " + bufferIndex);
             return false;
@@ -654,17 +825,18 @@ public class VideoCapture {
 
         // Write data to mMuxer if available
         if (mMuxerStarted.get()) {
-            if (mVideoBufferInfo.size > 0) {
-                outputBuffer.position(mVideoBufferInfo.offset);
-                outputBuffer.limit(mVideoBufferInfo.offset + mVideoBufferInfo.size);
-                mVideoBufferInfo.presentationTimeUs = (System.nanoTime() / 1000);
+            if (info.size > 0) {
+                outputBuffer.position(info.offset);
+                outputBuffer.limit(info.offset + info.size);
+                // presentationTimeUs is the frame timestamp which RendererHolder passed to the input surface,
+                // it is on the same time base as audio(System#nanoTime)
 
                 synchronized (mMuxerLock) {
 
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                         if (!mIsFirstVideoKeyFrameWrite.get()) {
                             boolean isKeyFrame =
-                                    (mVideoBufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+                                    (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
                             if (isKeyFrame) {
                                 Log.i(TAG,
                                         "First video key frame written.");
@@ -674,11 +846,17 @@ public class VideoCapture {
                                 final Bundle syncFrame = new Bundle();
                                 syncFrame.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
                                 mVideoEncoder.setParameters(syncFrame);
+                                if (mVideoEncoderWarm) {
+                                    // The warm encoder is in the middle of a GOP,
+                                    // frames before the first key frame can not be decoded.
+                                    mVideoEncoder.releaseOutputBuffer(bufferIndex, false);
+                                    return (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                                }
                             }
                         }
                     }
 
-                    mMuxer.writeSampleData(mVideoTrackIndex, outputBuffer, mVideoBufferInfo);
+                    mMuxer.writeSampleData(mVideoTrackIndex, outputBuffer, info);
                 }
             } else {
                 Log.i(TAG, "mVideoBufferInfo.size <= 0, index " + bufferIndex);
@@ -689,40 +867,40 @@ public class VideoCapture {
         mVideoEncoder.releaseOutputBuffer(bufferIndex, false);
 
         // Return true if EOS is set
-        return (mVideoBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        return (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
     }
 
-    private boolean writeAudioEncodedBuffer(int bufferIndex) {
+    private boolean writeAudioEncodedBuffer(int bufferIndex, @NonNull MediaCodec.BufferInfo info) {
         ByteBuffer buffer = getOutputBuffer(mAudioEncoder, bufferIndex);
-        buffer.position(mAudioBufferInfo.offset);
+        buffer.position(info.offset);
         if (mMuxerStarted.get()) {
             try {
-                if (mAudioBufferInfo.size > 0 && mAudioBufferInfo.presentationTimeUs > 0) {
+                if (info.size > 0 && info.presentationTimeUs > 0) {
                     synchronized (mMuxerLock) {
                         if (!mIsFirstAudioSampleWrite.get()) {
                             Log.i(TAG, "First audio sample written.");
                             mIsFirstAudioSampleWrite.set(true);
                         }
-                        mMuxer.writeSampleData(mAudioTrackIndex, buffer, mAudioBufferInfo);
+                        mMuxer.writeSampleData(mAudioTrackIndex, buffer, info);
                     }
                 } else {
-                    Log.i(TAG, "mAudioBufferInfo size: " + mAudioBufferInfo.size + " "
-                            + "presentationTimeUs: " + mAudioBufferInfo.presentationTimeUs);
+                    Log.i(TAG, "mAudioBufferInfo size: " + info.size + " "
+                            + "presentationTimeUs: " + info.presentationTimeUs);
                 }
             } catch (Exception e) {
                 Log.e(
                         TAG,
                         "audio error:size="
-                                + mAudioBufferInfo.size
+                                + info.size
                                 + "/offset="
-                                + mAudioBufferInfo.offset
+                                + info.offset
                                 + "/timeUs="
-                                + mAudioBufferInfo.presentationTimeUs);
+                                + info.presentationTimeUs);
                 e.printStackTrace();
             }
         }
         mAudioEncoder.releaseOutputBuffer(bufferIndex, false);
-        return (mAudioBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        return (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
     }
 
     /**
@@ -757,24 +935,13 @@ public class VideoCapture {
                             errorOccurred = true;
                         }
 
-                        synchronized (mMuxerLock) {
-                            mVideoTrackIndex = mMuxer.addTrack(mVideoEncoder.getOutputFormat());
-
-                            if ((mIsAudioEnabled.get() && mAudioTrackIndex >= 0
-                                    && mVideoTrackIndex >= 0)
-                                    || (!mIsAudioEnabled.get() && mVideoTrackIndex >= 0)) {
-                                Log.i(TAG, "MediaMuxer started on video encode thread and audio "
-                                        + "enabled: " + mIsAudioEnabled);
-                                mMuxer.start();
-                                mMuxerStarted.set(true);
-                            }
-                        }
+                        addVideoTrack(mVideoEncoder.getOutputFormat());
                         break;
                     case MediaCodec.INFO_TRY_AGAIN_LATER:
                         // Timed out. Just wait until next attempt to deque.
                         break;
                     default:
-                        videoEos = writeVideoEncodedBuffer(outputBufferId);
+                        videoEos = writeVideoEncodedBuffer(outputBufferId, mVideoBufferInfo);
                 }
             }
         } catch (IllegalStateException e) {
@@ -783,27 +950,60 @@ public class VideoCapture {
             errorOccurred = true;
         }
 
-        try {
-            Log.i(TAG, "videoEncoder stop");
-            mVideoEncoder.stop();
-        } catch (IllegalStateException e) {
-            videoSavedCallback.onError(ERROR_ENCODER,
-                    "Video encoder stop failed!", e);
-            errorOccurred = true;
+        return stopVideoEncode(videoSavedCallback, outputFileOptions, errorOccurred);
+    }
+
+    private void addVideoTrack(@NonNull MediaFormat format) {
+        synchronized (mMuxerLock) {
+            mVideoTrackIndex = mMuxer.addTrack(format);
+
+            if ((mIsAudioEnabled.get() && mAudioTrackIndex >= 0
+                    && mVideoTrackIndex >= 0)
+                    || (!mIsAudioEnabled.get() && mVideoTrackIndex >= 0)) {
+                Log.i(TAG, "MediaMuxer started on video encode thread and audio "
+                        + "enabled: " + mIsAudioEnabled);
+                mMuxer.start();
+                mMuxerStarted.set(true);
+            }
         }
+    }
 
-        try {
-            // new MediaMuxer instance required for each new file written, and release current one.
-            synchronized (mMuxerLock) {
-                if (mMuxer != null) {
-                    if (mMuxerStarted.get()) {
-                        Log.i(TAG, "Muxer already started");
-                        mMuxer.stop();
-                    }
-                    mMuxer.release();
-                    mMuxer = null;
-                }
+    private void addAudioTrack(@NonNull MediaFormat format) {
+        synchronized (mMuxerLock) {
+            mAudioTrackIndex = mMuxer.addTrack(format);
+            if (mAudioTrackIndex >= 0 && mVideoTrackIndex >= 0) {
+                Log.i(TAG, "MediaMuxer start on audio encoder thread.");
+                mMuxer.start();
+                mMuxerStarted.set(true);
+            }
+        }
+    }
+
+    /**
+     * Stop the video encoder and finish the output file.
+     *
+     * @return returns {@code true} if an error condition occurred, otherwise returns {@code false}
+     */
+    private boolean stopVideoEncode(@NonNull OnVideoCaptureCallback videoSavedCallback,
+                                    @NonNull OutputFileOptions outputFileOptions,
+                                    boolean errorOccurred) {
+        if (mVideoEncoderWarm && errorOccurred) {
+            // The encoder may be broken, set it up again after this recording.
+            mVideoEncoderWarm = false;
+        }
+        if (!mVideoEncoderWarm) {
+            try {
+                Log.i(TAG, "videoEncoder stop");
+                mVideoEncoder.stop();
+            } catch (IllegalStateException e) {
+                videoSavedCallback.onError(ERROR_ENCODER,
+                        "Video encoder stop failed!", e);
+                errorOccurred = true;
             }
+        }
+
+        try {
+            releaseMediaMuxer();
 
             // A final checking for recording result, if the recorded file has no key
             // frame, then the video file is not playable, needs to call
@@ -834,14 +1034,11 @@ public class VideoCapture {
             errorOccurred = true;
         }
 
-        if (mParcelFileDescriptor != null) {
-            try {
-                mParcelFileDescriptor.close();
-                mParcelFileDescriptor = null;
-            } catch (IOException e) {
-                videoSavedCallback.onError(ERROR_MUXER, "File descriptor close failed!", e);
-                errorOccurred = true;
-            }
+        try {
+            closeParcelFileDescriptor();
+        } catch (IOException e) {
+            videoSavedCallback.onError(ERROR_MUXER, "File descriptor close failed!", e);
+            errorOccurred = true;
         }
 
         mMuxerStarted.set(false);
@@ -854,6 +1051,29 @@ public class VideoCapture {
         return errorOccurred;
     }
 
+    /**
+     * new MediaMuxer instance required for each new file written, and release current one.
+     */
+    private void releaseMediaMuxer() {
+        synchronized (mMuxerLock) {
+            if (mMuxer != null) {
+                if (mMuxerStarted.get()) {
+                    Log.i(TAG, "Muxer already started");
+                    mMuxer.stop();
+                }
+                mMuxer.release();
+                mMuxer = null;
+            }
+        }
+    }
+
+    private void closeParcelFileDescriptor() throws IOException {
+        if (mParcelFileDescriptor != null) {
+            mParcelFileDescriptor.close();
+            mParcelFileDescriptor = null;
+        }
+    }
+
     boolean audioEncode(OnVideoCaptureCallback videoSavedCallback) {
         // Audio encoding loop. Exits on end of stream.
         boolean audioEos = false;
@@ -900,14 +1120,7 @@ public class VideoCapture {
                     outIndex = mAudioEncoder.dequeueOutputBuffer(mAudioBufferInfo, 0);
                     switch (outIndex) {
                         case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                            synchronized (mMuxerLock) {
-                                mAudioTrackIndex = mMuxer.addTrack(mAudioEncoder.getOutputFormat());
-                                if (mAudioTrackIndex >= 0 && mVideoTrackIndex >= 0) {
-                                    Log.i(TAG, "MediaMuxer start on audio encoder thread.");
-                                    mMuxer.start();
-                                    mMuxerStarted.set(true);
-                                }
-                            }
+                            addAudioTrack(mAudioEncoder.getOutputFormat());
                             break;
                         case MediaCodec.INFO_TRY_AGAIN_LATER:
                             break;
@@ -915,7 +1128,7 @@ public class VideoCapture {
                             // Drops out of order audio frame if the frame's earlier than last
                             // frame.
                             if (mAudioBufferInfo.presentationTimeUs > lastAudioTimestamp) {
-                                audioEos = writeAudioEncodedBuffer(outIndex);
+                                audioEos = writeAudioEncodedBuffer(outIndex, mAudioBufferInfo);
                                 lastAudioTimestamp = mAudioBufferInfo.presentationTimeUs;
                             } else {
                                 Log.w(TAG,
@@ -931,6 +1144,18 @@ public class VideoCapture {
             }
         } // end of while loop
 
+        stopAudioEncode(videoSavedCallback);
+        // Use AtomicBoolean to signal because MediaCodec.signalEndOfInputStream() is not thread
+        // safe
+        mEndOfVideoStreamSignal.set(true);
+
+        return false;
+    }
+
+    /**
+     * Stop the audio recorder and the audio encoder.
+     */
+    private void stopAudioEncode(@NonNull OnVideoCaptureCallback videoSavedCallback) {
         // Audio Stop
         try {
             Log.i(TAG, "audioRecorder stop");
@@ -950,13 +1175,223 @@ public class VideoCapture {
         }
 
         Log.i(TAG, "Audio encode thread end");
-        // Use AtomicBoolean to signal because MediaCodec.signalEndOfInputStream() is not thread
-        // safe
-        mEndOfVideoStreamSignal.set(true);
+    }
 
-        return false;
+    /**
+     * Signal end of stream to the video encoder.
+     * In asynchronous mode this is done on the callback thread, because
+     * MediaCodec.signalEndOfInputStream() is not thread safe.
+     */
+    private void signalEndOfVideoStream() {
+        if (mCodecCallbackHandler == null) {
+            mEndOfVideoStreamSignal.set(true);
+            return;
+        }
+        mCodecCallbackHandler.post(() -> {
+            if (mVideoEncoder == null || mVideoEncodeFinished.get()) {
+                return;
+            }
+            if (mVideoEncoderWarm) {
+                // keep the encoder running, just finish the file
+                finishVideoEncode(false);
+                return;
+            }
+            try {
+                mVideoEncoder.signalEndOfInputStream();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "signalEndOfInputStream failed", e);
+                finishVideoEncode(true);
+            }
+        });
+    }
+
+    /**
+     * Add the video track with the output format of the warm video encoder,
+     * if it has not been notified yet, mVideoEncoderCallback adds the track.
+     */
+    private void addWarmVideoTrack() {
+        if (mVideoEncodeFinished.get() || mVideoOutputFormat == null) {
+            return;
+        }
+        synchronized (mMuxerLock) {
+            if (mVideoTrackIndex >= 0) {
+                return;
+            }
+        }
+        addVideoTrack(mVideoOutputFormat);
+    }
+
+    /**
+     * Finish the current recording once, on the video thread.
+     */
+    private void finishVideoEncode(boolean errorOccurred) {
+        if (!mVideoEncodeFinished.compareAndSet(false, true)) {
+            return;
+        }
+        final OnVideoCaptureCallback videoSavedCallback = mRecordingCallback;
+        final OutputFileOptions outputFileOptions = mRecordingOutputFileOptions;
+        mVideoHandler.post(() -> onVideoEncodeFinished(videoSavedCallback,
+                stopVideoEncode(videoSavedCallback, outputFileOptions, errorOccurred)));
     }
 
+    /**
+     * Stop audio once, and then signal end of stream to the video encoder.
+     */
+    private void finishAudioEncode() {
+        if (!mAudioEncodeFinished.compareAndSet(false, true)) {
+            return;
+        }
+        final OnVideoCaptureCallback videoSavedCallback = mRecordingCallback;
+        mAudioHandler.post(() -> {
+            stopAudioEncode(videoSavedCallback);
+            signalEndOfVideoStream();
+        });
+    }
+
+    /**
+     * Fill an input buffer of the audio encoder from the audio recorder,
+     * this runs on the audio thread because AudioRecord#read blocks.
+     */
+    private void queueAudioInputBuffer(@NonNull MediaCodec codec, int index) {
+        if (mAudioInputEos || mAudioRecorder == null) {
+            return;
+        }
+        // Check for end of stream from main thread
+        if (mEndOfAudioStreamSignal.get()) {
+            mEndOfAudioStreamSignal.set(false);
+            mIsRecording = false;
+        }
+        try {
+            final ByteBuffer buffer = getInputBuffer(codec, index);
+            buffer.clear();
+            int length = mAudioRecorder.read(buffer, mAudioBufferSize);
+            // the index is not offered again, so queue it even if nothing was read
+            codec.queueInputBuffer(
+                    index,
+                    0,
+                    Math.max(length, 0),
+                    (System.nanoTime() / 1000),
+                    mIsRecording ? 0 : MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            if (!mIsRecording) {
+                mAudioInputEos = true;
+            }
+        } catch (IllegalStateException e) {
+            Log.i(TAG, "audio queueInputBuffer IllegalStateException " + e.getMessage());
+        }
+    }
+
+    /**
+     * Callback of the video encoder in asynchronous mode, called on mCodecCallbackThread.
+     */
+    private final MediaCodec.Callback mVideoEncoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // input comes from the input surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            if (mVideoEncodeFinished.get()) {
+                // not recording, drop the output of the warm encoder
+                try {
+                    codec.releaseOutputBuffer(index, false);
+                } catch (IllegalStateException e) {
+                    // the encoder has been stopped
+                }
+                return;
+            }
+            try {
+                if (writeVideoEncodedBuffer(index, info)) {
+                    finishVideoEncode(false);
+                }
+            } catch (IllegalStateException e) {
+                mRecordingCallback.onError(ERROR_ENCODER, "Video encoder encode failed!", e);
+                finishVideoEncode(true);
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            if (mVideoEncodeFinished.get()) {
+                if (mVideoEncoderWarm) {
+                    Log.w(TAG, "Warm video encoder failed", e);
+                    mExecutor.execute(() -> {
+                        coolDownVideoEncoder();
+                        setupEncoder();
+                    });
+                }
+                return;
+            }
+            mRecordingCallback.onError(ERROR_ENCODER, "Video encoder encode failed!", e);
+            finishVideoEncode(true);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            mVideoOutputFormat = format;
+            if (mVideoEncodeFinished.get()) {
+                return;
+            }
+            if (mMuxerStarted.get()) {
+                mRecordingCallback.onError(ERROR_ENCODER,
+                        "Unexpected change in video encoding format.", null);
+                finishVideoEncode(true);
+                return;
+            }
+            addVideoTrack(format);
+        }
+    };
+
+    /**
+     * Callback of the audio encoder in asynchronous mode, called on mCodecCallbackThread.
+     */
+    private final MediaCodec.Callback mAudioEncoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            mAudioHandler.post(() -> queueAudioInputBuffer(codec, index));
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            if (mAudioEncodeFinished.get()) {
+                return;
+            }
+            final boolean audioEos;
+            // Drops out of order audio frame if the frame's earlier than last frame.
+            if (info.presentationTimeUs > mLastAudioTimestampUs) {
+                audioEos = writeAudioEncodedBuffer(index, info);
+                mLastAudioTimestampUs = info.presentationTimeUs;
+            } else {
+                Log.w(TAG,
+                        "Drops frame, current frame's timestamp "
+                                + info.presentationTimeUs
+                                + " is earlier that last frame "
+                                + mLastAudioTimestampUs);
+                audioEos = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                // Releases this frame from output buffer
+                codec.releaseOutputBuffer(index, false);
+            }
+            if (audioEos) {
+                finishAudioEncode();
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.i(TAG, "audio encoder CodecException " + e.getMessage());
+            finishAudioEncode();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            if (!mAudioEncodeFinished.get()) {
+                addAudioTrack(format);
+            }
+        }
+    };
+
     private ByteBuffer getInputBuffer(MediaCodec codec, int index) {
         return Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ?
                 codec.getInputBuffers()[index] : codec.getInputBuffer(index);
@@ -1469,5 +1904,11 @@ public class VideoCapture {
         static int getCodecExceptionErrorCode(MediaCodec.CodecException e) {
             return e.getErrorCode();
         }
+
+        @DoNotInline
+        static void setCallback(@NonNull MediaCodec codec, @NonNull MediaCodec.Callback callback,
+                                @NonNull Handler handler) {
+            codec.setCallback(callback, handler);
+        }
     }
 }
@@ -21,6 +21,10 @@ public class VideoCaptureConfig implements Cloneable {
             "imageCapture.audioChannelCount";
     private static final String OPTION_AUDIO_MIN_BUFFER_SIZE =
             "imageCapture.audioMinBufferSize";
+    private static final String OPTION_PASSTHROUGH_ENABLE =
+            "imageCapture.passthroughEnable";
+    private static final String OPTION_WARM_ENCODER_ENABLE =
+            "imageCapture.warmEncoderEnable";
 
     private static final int DEFAULT_VIDEO_FRAME_RATE = 30;
     /**
@@ -51,6 +55,14 @@ public class VideoCaptureConfig implements Cloneable {
      * audio default minimum buffer size
      */
     private static final int DEFAULT_AUDIO_MIN_BUFFER_SIZE = 1024;
+    /**
+     * passthrough recording disabled
+     */
+    private static final boolean DEFAULT_PASSTHROUGH_ENABLE = false;
+    /**
+     * video encoder is stopped between recordings
+     */
+    private static final boolean DEFAULT_WARM_ENCODER_ENABLE = false;
 
     private Bundle mMutableConfig = new Bundle();
 
@@ -220,6 +232,48 @@ public class VideoCaptureConfig implements Cloneable {
         return getMutableConfig().getInt(OPTION_AUDIO_MIN_BUFFER_SIZE, DEFAULT_AUDIO_MIN_BUFFER_SIZE);
     }
 
+    /**
+     * Enable passthrough recording, MJPEG frames from the camera are written into
+     * a Matroska(.mkv) file as is instead of being encoded to H.264.
+     * This only takes effect while the preview format is MJPEG, audio is not recorded.
+     *
+     * @param enable true to record MJPEG frames as is.
+     * @return The current Config.
+     */
+    @NonNull
+    public VideoCaptureConfig setPassthroughEnable(boolean enable) {
+        getMutableConfig().putBoolean(OPTION_PASSTHROUGH_ENABLE, enable);
+        return this;
+    }
+
+    /**
+     * Return true if passthrough recording is enabled.
+     */
+    public boolean getPassthroughEnable() {
+        return getMutableConfig().getBoolean(OPTION_PASSTHROUGH_ENABLE, DEFAULT_PASSTHROUGH_ENABLE);
+    }
+
+    /**
+     * Keep the video encoder running and attached to the preview between recordings,
+     * so that recording starts from the next key frame instead of waiting for the encoder setup.
+     * The encoder keeps consuming power while it is warm, this only takes effect on Android 6.0 and later.
+     *
+     * @param enable true to keep the video encoder warm.
+     * @return The current Config.
+     */
+    @NonNull
+    public VideoCaptureConfig setWarmEncoderEnable(boolean enable) {
+        getMutableConfig().putBoolean(OPTION_WARM_ENCODER_ENABLE, enable);
+        return this;
+    }
+
+    /**
+     * Return true if the video encoder is kept warm between recordings.
+     */
+    public boolean getWarmEncoderEnable() {
+        return getMutableConfig().getBoolean(OPTION_WARM_ENCODER_ENABLE, DEFAULT_WARM_ENCODER_ENABLE);
+    }
+
     @NonNull
     @Override
     protected Object clone() {
@@ -28,14 +28,20 @@ import static com.serenegiant.uvccamera.BuildConfig.DEBUG;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
 import android.util.Log;
 import android.view.Surface;
 
+import androidx.annotation.NonNull;
+
+import com.serenegiant.utils.HandlerThreadHandler;
 import com.serenegiant.uvccamera.BuildConfig;
 
 public abstract class MediaEncoder extends Thread {
@@ -101,6 +107,17 @@ public abstract class MediaEncoder extends Thread {
      */
     protected Surface mSurface;
 
+    /**
+     * Handler on which MediaCodec callbacks are called in asynchronous mode,
+     * null if the encoder runs in synchronous mode (API < 23)
+     */
+    private Handler mCallbackHandler;
+    /**
+     * indices of input buffers which MediaCodec passed in asynchronous mode
+     */
+    private final LinkedBlockingQueue<Integer> mInputBufferIndices = new LinkedBlockingQueue<>();
+    private final Object mSync = new Object();
+
     public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
         if (listener == null) throw new NullPointerException("MediaEncoderListener is null");
         if (muxer == null) throw new NullPointerException("MediaMuxerWrapper is null");
@@ -144,7 +161,12 @@ public abstract class MediaEncoder extends Thread {
     @Override
     public void run() {
         if (DEBUG) Log.v(TAG, "Encoder thread start:" + this.getClass().getCanonicalName());
-        drain();
+        if (mCallbackHandler != null) {
+            // encoded data is written by MediaCodec callbacks
+            waitForEndOfStream();
+        } else {
+            drain();
+        }
         if (DEBUG) Log.v(TAG, "release:" + this.getClass().getCanonicalName());
         // release all related objects
         release();
@@ -159,6 +181,25 @@ public abstract class MediaEncoder extends Thread {
     /*package*/
     abstract void prepare() throws IOException;
 
+    /**
+     * configure mMediaCodec as encoder, in asynchronous mode on API >= 23
+     * so that encoded data is written as soon as it is ready without polling.
+     * this should be called from #prepare instead of MediaCodec#configure
+     *
+     * @param format
+     */
+    protected void configureEncoder(final MediaFormat format) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            if (mCallbackHandler == null) {
+                mCallbackHandler = HandlerThreadHandler.createHandler(TAG);
+            }
+            mInputBufferIndices.clear();
+            // callback should be set before configure
+            mMediaCodec.setCallback(mCodecCallback, mCallbackHandler);    // API >= 23
+        }
+        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
     /*package*/ void startRecording() {
         if (DEBUG) Log.v(TAG, "startRecording");
         mIsCapturing = true;
@@ -244,6 +285,14 @@ public abstract class MediaEncoder extends Thread {
             mSurface.release();
             mSurface = null;
         }
+        if (mCallbackHandler != null) {
+            try {
+                mCallbackHandler.getLooper().quit();
+            } catch (final Exception e) {
+                Log.e(TAG, "failed quitting callback thread", e);
+            }
+            mCallbackHandler = null;
+        }
     }
 
     /**
@@ -280,7 +329,7 @@ public abstract class MediaEncoder extends Thread {
         try {
             if (length <= 0) {
                 while (mIsCapturing) {
-                    final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_US);
+                    final int inputBufferIndex = dequeueInputBuffer();
                     if (inputBufferIndex >= 0) {
                         if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
                         // send EOS
@@ -293,7 +342,7 @@ public abstract class MediaEncoder extends Thread {
                 int current = 0;
 //            final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
                 while (mIsCapturing && current < length) {
-                    final int inputBufferId = mMediaCodec.dequeueInputBuffer(TIMEOUT_US);
+                    final int inputBufferId = dequeueInputBuffer();
                     if (inputBufferId >= 0) {
                         final ByteBuffer inputBuffer = Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ?
                                 mMediaCodec.getInputBuffers()[inputBufferId] : mMediaCodec.getInputBuffer(inputBufferId);
@@ -321,6 +370,20 @@ public abstract class MediaEncoder extends Thread {
         }
     }
 
+    /**
+     * dequeue input buffer with maximum timeout duration of TIMEOUT_US
+     *
+     * @return index of input buffer, or MediaCodec.INFO_TRY_AGAIN_LATER
+     */
+    private int dequeueInputBuffer() throws InterruptedException {
+        if (mCallbackHandler == null) {
+            return mMediaCodec.dequeueInputBuffer(TIMEOUT_US);
+        }
+        // dequeueInputBuffer is not allowed in asynchronous mode, wait for onInputBufferAvailable instead
+        final Integer index = mInputBufferIndices.poll(TIMEOUT_US, TimeUnit.MICROSECONDS);
+        return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+
     /**
      * drain encoded data and write them to muxer
      */
@@ -334,7 +397,6 @@ public abstract class MediaEncoder extends Thread {
             return;
         }
 
-        LOOP:
         while (mIsCapturing) {
             try {
                 // get encoded data with maximum timeout duration of TIMEOUT_US(=10[msec])
@@ -347,73 +409,15 @@ public abstract class MediaEncoder extends Thread {
                     // this should not come when encoding
 //                encoderOutputBuffers = mMediaCodec.getOutputBuffers();
                 } else if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    if (DEBUG) Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
-                    // this status indicate the output format of codec is changed
-                    // this should come only once before actual encoded data
-                    // but this status never come on Android4.3 or less
-                    // and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
-                    if (mMuxerStarted) {    // second time request is error
-                        throw new RuntimeException("format changed twice");
-                    }
-                    // get output format from codec and pass them to muxer
-                    // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
-                    final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
-                    mTrackIndex = muxer.addTrack(format);
-                    mMuxerStarted = true;
-                    if (!muxer.start()) {
-                        // we should wait until muxer is ready
-                        synchronized (muxer) {
-                            while (!muxer.isStarted()) {
-                                try {
-                                    muxer.wait(100);
-                                } catch (final InterruptedException e) {
-                                    break LOOP;
-                                }
-                            }
-                        }
+                    if (!startMuxer(muxer, mMediaCodec.getOutputFormat())) {    // API >= 16
+                        break;
                     }
                 } else if (outputBufferId < 0) {
                     // unexpected status
                     if (DEBUG)
                         Log.w(TAG, "drain:unexpected result from encoder#dequeueOutputBuffer: " + outputBufferId);
                 } else {
-                    final ByteBuffer encodedData = Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ?
-                            mMediaCodec.getOutputBuffers()[outputBufferId] : mMediaCodec.getOutputBuffer(outputBufferId);
-                    if (encodedData == null) {
-                        // this never should come...may be a MediaCodec internal error
-                        throw new RuntimeException("encoderOutputBuffer " + outputBufferId + " was null");
-                    }
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // You should set output format to muxer here when you target Android4.3 or less
-                        // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
-                        // therefore we should expand and prepare output format from buffer data.
-                        // This sample is for API>=18(>=Android 4.3), just ignore this flag here
-                        if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
-                    }
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-                        if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_SYNC_FRAME");
-                    }
-
-                    // encoded data is ready, clear waiting counter
-                    if (!mMuxerStarted) {
-                        // muxer is not ready...this will programing failure.
-                        throw new RuntimeException("drain:muxer hasn't started");
-                    }
-
-                    //adjust presentationTimeUs
-                    mBufferInfo.presentationTimeUs = getPTSUs();
-                    if (DEBUG) Log.v(TAG, this +":presentationTimeUs:" +  mBufferInfo.presentationTimeUs);
-
-//                if (DEBUG) Log.v(TAG, "drain presentationTimeUs:" + mBufferInfo.presentationTimeUs);
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        // when EOS come.
-                        mIsCapturing = false;
-                    } else {
-                        //write encoded data to muxer
-                        muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    }
-                    // return buffer to encoder
-                    mMediaCodec.releaseOutputBuffer(outputBufferId, false);
+                    writeEncodedData(muxer, outputBufferId, mBufferInfo);
                 }
             } catch (Exception e) {
                 Log.e(TAG, e.getLocalizedMessage(), e);
@@ -423,6 +427,162 @@ public abstract class MediaEncoder extends Thread {
         if (DEBUG) Log.v(TAG, "drain end:");
     }
 
+    /**
+     * wait until end of stream comes in asynchronous mode
+     */
+    private void waitForEndOfStream() {
+        if (DEBUG) Log.v(TAG, "waitForEndOfStream start:");
+        synchronized (mSync) {
+            while (mIsCapturing) {
+                try {
+                    mSync.wait();
+                } catch (final InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        if (DEBUG) Log.v(TAG, "waitForEndOfStream end:");
+    }
+
+    /**
+     * finish capturing in asynchronous mode, encoder thread releases everything after this
+     */
+    private void finishCapturing() {
+        synchronized (mSync) {
+            mIsCapturing = false;
+            mSync.notifyAll();
+        }
+    }
+
+    /**
+     * pass output format to muxer and wait until the muxer starts
+     *
+     * @param muxer
+     * @param format output format of codec
+     * @return false if interrupted while waiting
+     */
+    private boolean startMuxer(@NonNull final MediaMuxerWrapper muxer, final MediaFormat format) {
+        if (DEBUG) Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
+        // this status indicate the output format of codec is changed
+        // this should come only once before actual encoded data
+        // but this status never come on Android4.3 or less
+        // and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
+        if (mMuxerStarted) {    // second time request is error
+            throw new RuntimeException("format changed twice");
+        }
+        // get output format from codec and pass them to muxer
+        // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
+        mTrackIndex = muxer.addTrack(format);
+        mMuxerStarted = true;
+        if (!muxer.start()) {
+            // we should wait until muxer is ready
+            synchronized (muxer) {
+                while (!muxer.isStarted()) {
+                    try {
+                        muxer.wait(100);
+                    } catch (final InterruptedException e) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * write encoded data to muxer and return the buffer to encoder
+     *
+     * @param muxer
+     * @param outputBufferId
+     * @param info
+     */
+    private void writeEncodedData(@NonNull final MediaMuxerWrapper muxer,
+                                  final int outputBufferId, final MediaCodec.BufferInfo info) {
+        final ByteBuffer encodedData = Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ?
+                mMediaCodec.getOutputBuffers()[outputBufferId] : mMediaCodec.getOutputBuffer(outputBufferId);
+        if (encodedData == null) {
+            // this never should come...may be a MediaCodec internal error
+            throw new RuntimeException("encoderOutputBuffer " + outputBufferId + " was null");
+        }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // You should set output format to muxer here when you target Android4.3 or less
+            // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
+            // therefore we should expand and prepare output format from buffer data.
+            // This sample is for API>=18(>=Android 4.3), just ignore this flag here
+            if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
+        }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_SYNC_FRAME");
+        }
+
+        // encoded data is ready, clear waiting counter
+        if (!mMuxerStarted) {
+            // muxer is not ready...this will programing failure.
+            throw new RuntimeException("drain:muxer hasn't started");
+        }
+
+        //adjust presentationTimeUs
+        info.presentationTimeUs = getOutputPTSUs(info.presentationTimeUs);
+        if (DEBUG) Log.v(TAG, this +":presentationTimeUs:" +  info.presentationTimeUs);
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            // when EOS come.
+            mIsCapturing = false;
+        } else {
+            //write encoded data to muxer
+            muxer.writeSampleData(mTrackIndex, encodedData, info);
+        }
+        // return buffer to encoder
+        mMediaCodec.releaseOutputBuffer(outputBufferId, false);
+    }
+
+    /**
+     * MediaCodec callbacks in asynchronous mode, called on mCallbackHandler
+     */
+    private final MediaCodec.Callback mCodecCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull final MediaCodec codec, final int index) {
+            mInputBufferIndices.offer(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull final MediaCodec codec, final int index,
+                                            @NonNull final MediaCodec.BufferInfo info) {
+            final MediaMuxerWrapper muxer = mWeakMuxer.get();
+            try {
+                if (muxer == null) {
+                    throw new IllegalStateException("muxer is unexpectedly null");
+                }
+                writeEncodedData(muxer, index, info);
+            } catch (final Exception e) {
+                Log.e(TAG, e.getLocalizedMessage(), e);
+                mIsCapturing = false;
+            }
+            if (!mIsCapturing) {
+                finishCapturing();
+            }
+        }
+
+        @Override
+        public void onError(@NonNull final MediaCodec codec, @NonNull final MediaCodec.CodecException e) {
+            Log.e(TAG, "onError:", e);
+            finishCapturing();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull final MediaCodec codec, @NonNull final MediaFormat format) {
+            final MediaMuxerWrapper muxer = mWeakMuxer.get();
+            try {
+                if ((muxer == null) || !startMuxer(muxer, format)) {
+                    finishCapturing();
+                }
+            } catch (final Exception e) {
+                Log.e(TAG, e.getLocalizedMessage(), e);
+                finishCapturing();
+            }
+        }
+    };
+
     /**
      * previous presentationTimeUs for writing
      */
@@ -437,10 +597,33 @@ public abstract class MediaEncoder extends Thread {
         long currentTime = System.nanoTime();
         // presentationTimeUs should be monotonic
         // otherwise muxer fail to write
-        long pts = (currentTime - mStartTime - mPauseTotalTime) / 1000L;
+        long pts = (currentTime - mStartTime) / 1000L - mPauseTotalTime;
+        if (pts < prevPTS) {
+            pts = prevPTS;
+        }
+        return pts;
+    }
+
+    /**
+     * get presentationTimeUs of encoded data for writing (micro second)
+     * Input buffers are already stamped by #getPTSUs when they are queued,
+     * frames drawn into input Surface are stamped with their own timestamp on System#nanoTime base
+     * so they are converted to the time from start of recording here.
+     *
+     * @param presentationTimeUs presentationTimeUs that encoder output
+     * @return
+     */
+    protected long getOutputPTSUs(final long presentationTimeUs) {
+        long pts = presentationTimeUs;
+        if (mSurface != null) {
+            pts = presentationTimeUs - mStartTime / 1000L - mPauseTotalTime;
+        }
+        // presentationTimeUs should be monotonic
+        // otherwise muxer fail to write
         if (pts < prevPTS) {
             pts = prevPTS;
         }
+        prevPTS = pts;
         return pts;
     }
 
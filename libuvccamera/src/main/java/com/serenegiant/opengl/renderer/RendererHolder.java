@@ -45,6 +45,7 @@ public class RendererHolder extends EGLTask implements IRendererHolder {
     protected static final int REQUEST_ADD_SLAVE_SURFACE = 4;
     protected static final int REQUEST_REMOVE_SLAVE_SURFACE = 5;
     protected static final int REQUEST_RECREATE_PRIMARY_SURFACE = 6;
+    protected static final int REQUEST_ADD_RECORDABLE_SLAVE_SURFACE = 7;
     protected static final int REQUEST_CLEAR_SLAVE_SURFACE = 11;
     protected static final int REQUEST_CLEAR_SLAVE_SURFACE_ALL = 12;
     protected static final int REQUEST_REMOVE_SLAVE_SURFACE_ALL = 13;
@@ -66,6 +67,13 @@ public class RendererHolder extends EGLTask implements IRendererHolder {
     protected final float[] mMvpMatrix = new float[16];
     protected final float[] mRotationMatrix = new float[16];
     protected final float[] mMirrorMatrix = new float[16];
+    /**
+     * timestamp of the frame currently on the texture[ns], same time base as System#nanoTime(CLOCK_MONOTONIC).
+     * This is the time when the frame was received from the camera, which the native preview stamps
+     * on the window buffer, or the time when the buffer was queued on devices that can not stamp it.
+     * It is passed to recordable surfaces as the presentation time.
+     */
+    protected long mFrameTimestampNs;
     private GLDrawer2D mDrawer;
 
     private SurfaceTexture mPrimaryTexture;
@@ -223,7 +231,9 @@ public class RendererHolder extends EGLTask implements IRendererHolder {
         }
         synchronized (mSlaveSurfaces) {
             if (mSlaveSurfaces.get(id) == null) {
-                mRendererHandler.sendMessage(mRendererHandler.obtainMessage(REQUEST_ADD_SLAVE_SURFACE, id, maxFps, surface));
+                mRendererHandler.sendMessage(mRendererHandler.obtainMessage(
+                        isRecordable ? REQUEST_ADD_RECORDABLE_SLAVE_SURFACE : REQUEST_ADD_SLAVE_SURFACE,
+                        id, maxFps, surface));
                 try {
                     mSlaveSurfaces.wait(1000);
                 } catch (InterruptedException e) {
@@ -384,7 +394,7 @@ public class RendererHolder extends EGLTask implements IRendererHolder {
     protected void onDrawSlaveSurface(
             @NonNull final RendererSurface surface,
             final int texId, final float[] texMatrix, final float[] mvpMatrix) {
-        surface.draw(mDrawer, texId, texMatrix, mvpMatrix);
+        surface.draw(mDrawer, texId, texMatrix, mvpMatrix, mFrameTimestampNs);
     }
 
     protected void onPrimarySurfaceCreate(Surface surface) {
@@ -440,7 +450,10 @@ public class RendererHolder extends EGLTask implements IRendererHolder {
                     handleUpdateSize(msg.arg1, msg.arg2);
                     break;
                 case REQUEST_ADD_SLAVE_SURFACE:
-                    handleAddSlaveSurface(msg.arg1, msg.obj, msg.arg2);
+                    handleAddSlaveSurface(msg.arg1, msg.obj, msg.arg2, false);
+                    break;
+                case REQUEST_ADD_RECORDABLE_SLAVE_SURFACE:
+                    handleAddSlaveSurface(msg.arg1, msg.obj, msg.arg2, true);
                     break;
                 case REQUEST_REMOVE_SLAVE_SURFACE:
                     handleRemoveSlaveSurface(msg.arg1);
@@ -503,6 +516,10 @@ public class RendererHolder extends EGLTask implements IRendererHolder {
 //                        makeCurrent();
                     mPrimaryTexture.updateTexImage();
                     mPrimaryTexture.getTransformMatrix(mTexMatrix);
+                    // frames from camera are stamped with the time when they were received, see #mFrameTimestampNs,
+                    // it may be 0 on some devices
+                    final long timestampNs = mPrimaryTexture.getTimestamp();
+                    mFrameTimestampNs = timestampNs != 0 ? timestampNs : System.nanoTime();
                 } catch (final Exception e) {
                     Log.e(TAG, "draw:thread id =" + Thread.currentThread().getId(), e);
                     sendEmptyMessage(REQUEST_RECREATE_PRIMARY_SURFACE);
@@ -539,7 +556,7 @@ public class RendererHolder extends EGLTask implements IRendererHolder {
         }
 
         protected void handleAddSlaveSurface(final int id,
-                                             final Object surface, final int maxFps) {
+                                             final Object surface, final int maxFps, final boolean isRecordable) {
 
             if (DEBUG) Log.v(TAG, "handleAddSurface:id=" + id);
             checkSurface();
@@ -547,7 +564,7 @@ public class RendererHolder extends EGLTask implements IRendererHolder {
                 RendererSurface slaveSurface = mSlaveSurfaces.get(id);
                 if (slaveSurface == null) {
                     try {
-                        slaveSurface = RendererSurface.newInstance(getEgl(), surface, maxFps);
+                        slaveSurface = RendererSurface.newInstance(getEgl(), surface, maxFps, isRecordable);
                         mSlaveSurfaces.append(id, slaveSurface);
                     } catch (final Exception e) {
                         Log.e(TAG, "invalid surface: surface=" + surface, e);
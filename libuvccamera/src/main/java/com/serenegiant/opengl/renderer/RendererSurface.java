@@ -15,14 +15,15 @@ class RendererSurface {
      * @param egl
      * @param surface
      * @param maxFps
+     * @param isRecordable true if the surface is input of encoder, frames are swapped with presentation time
      * @return
      */
     static RendererSurface newInstance(final EGLBase egl,
-                                       final Object surface, final int maxFps) {
+                                       final Object surface, final int maxFps, final boolean isRecordable) {
 
         return (maxFps > 0)
-                ? new RendererSurfaceHasWait(egl, surface, maxFps)
-                : new RendererSurface(egl, surface);    // no limitation of maxFps
+                ? new RendererSurfaceHasWait(egl, surface, maxFps, isRecordable)
+                : new RendererSurface(egl, surface, isRecordable);    // no limitation of maxFps
     }
 
     /**
@@ -35,16 +36,23 @@ class RendererSurface {
     private EGLBase.IEglSurface mEGLSurface;
     final float[] mMvpMatrix = new float[16];
     protected volatile boolean mEnable = true;
+    private final boolean mIsRecordable;
+    /**
+     * presentation time of last frame drawn into recordable surface[ns]
+     */
+    private long mLastPresentationTimeNs;
 
     /**
      * Making constructor private to enforce the use of  factory method
      *
      * @param egl
      * @param surface
+     * @param isRecordable
      */
-    private RendererSurface(final EGLBase egl, final Object surface) {
+    private RendererSurface(final EGLBase egl, final Object surface, final boolean isRecordable) {
         mSurface = surface;
         mEGLSurface = egl.createFromSurface(surface);
+        mIsRecordable = isRecordable;
         Matrix.setIdentityM(mMvpMatrix, 0);
     }
 
@@ -83,14 +91,35 @@ class RendererSurface {
     }
 
     public void draw(final GLDrawer2D drawer, final int textId, final float[] texMatrix, final float[] mvpMatrix) {
+        draw(drawer, textId, texMatrix, mvpMatrix, 0);
+    }
+
+    /**
+     * @param presentationTimeNs timestamp of the frame, recordable surface passes it to the encoder
+     *                           so that recorded timing does not depend on drawing and encoding delay.
+     *                           0 if unknown
+     */
+    public void draw(final GLDrawer2D drawer, final int textId, final float[] texMatrix, final float[] mvpMatrix,
+                     final long presentationTimeNs) {
         if (drawer != null && mEGLSurface != null) {
+            if (mIsRecordable && (presentationTimeNs > 0)) {
+                if (presentationTimeNs <= mLastPresentationTimeNs) {
+                    // same frame is requested to draw again, encoder needs increasing timestamp
+                    return;
+                }
+                mLastPresentationTimeNs = presentationTimeNs;
+            }
             mEGLSurface.makeCurrent();
             // 本来は映像が全面に描画されるので#glClearでクリアする必要はないけど
             // ハングアップする機種があるのでクリアしとく
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
             drawer.setMvpMatrix(mvpMatrix, 0);
             drawer.draw(textId, texMatrix, 0);
-            mEGLSurface.swap();
+            if (mIsRecordable && (presentationTimeNs > 0)) {
+                mEGLSurface.swap(presentationTimeNs);
+            } else {
+                mEGLSurface.swap();
+            }
         }
     }
 
@@ -123,11 +152,12 @@ class RendererSurface {
          * @param egl
          * @param surface
          * @param maxFps  >= 0
+         * @param isRecordable
          */
         private RendererSurfaceHasWait(final EGLBase egl,
-                                       final Object surface, final int maxFps) {
+                                       final Object surface, final int maxFps, final boolean isRecordable) {
 
-            super(egl, surface);
+            super(egl, surface, isRecordable);
             mIntervalsNs = 1000000000L / maxFps;
             mNextDraw = Time.nanoTime() + mIntervalsNs;
         }
@@ -138,11 +168,11 @@ class RendererSurface {
         }
 
         @Override
-        public void draw(final GLDrawer2D drawer,
-                         final int textId, final float[] texMatrix) {
+        public void draw(final GLDrawer2D drawer, final int textId, final float[] texMatrix, final float[] mvpMatrix,
+                         final long presentationTimeNs) {
 
             mNextDraw = Time.nanoTime() + mIntervalsNs;
-            super.draw(drawer, textId, texMatrix);
+            super.draw(drawer, textId, texMatrix, mvpMatrix, presentationTimeNs);
         }
     }
 
@@ -0,0 +1,103 @@
+package com.serenegiant.usb;
+
+/**
+ * Per frame metadata passed to IFrameInfoCallback with the frame.
+ * This object is reused with the ByteBuffer of the frame, so it is only valid
+ * as long as the ByteBuffer is valid. Times on host side are CLOCK_MONOTONIC,
+ * same time base as System#nanoTime and SurfaceTexture#getTimestamp.
+ */
+public final class FrameInfo {
+
+    private int mWidth;
+    private int mHeight;
+    private int mPixelFormat;
+    private int mSequence;
+    private int mDroppedFrames;
+    private long mPresentationTime;
+    private long mSourceClock;
+    private long mReceiveTimeNanos;
+    private long mDecodeTimeNanos;
+
+    /**
+     * called from native library
+     */
+    FrameInfo() {
+    }
+
+    /**
+     * called from native library before passing this to IFrameInfoCallback
+     */
+    void set(final int width, final int height, final int pixelFormat,
+             final int sequence, final int droppedFrames,
+             final long presentationTime, final long sourceClock,
+             final long receiveTimeNanos, final long decodeTimeNanos) {
+        mWidth = width;
+        mHeight = height;
+        mPixelFormat = pixelFormat;
+        mSequence = sequence;
+        mDroppedFrames = droppedFrames;
+        mPresentationTime = presentationTime;
+        mSourceClock = sourceClock;
+        mReceiveTimeNanos = receiveTimeNanos;
+        mDecodeTimeNanos = decodeTimeNanos;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return one of UVCCamera#PIXEL_FORMAT_XXX
+     */
+    public int getPixelFormat() {
+        return mPixelFormat;
+    }
+
+    /**
+     * @return frame number assigned by the library, this may skip but strictly increases
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return number of frames received from the camera but dropped since the last frame passed to the callback
+     */
+    public int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return dwPresentationTime of the UVC payload header in device clock(unsigned 32 bit),
+     * 0 if the camera does not send it
+     */
+    public long getPresentationTime() {
+        return mPresentationTime;
+    }
+
+    /**
+     * @return source time clock(STC) of the UVC payload header in device clock(unsigned 32 bit),
+     * 0 if the camera does not send it
+     */
+    public long getSourceClock() {
+        return mSourceClock;
+    }
+
+    /**
+     * @return time when the last payload of the frame was received
+     */
+    public long getReceiveTimeNanos() {
+        return mReceiveTimeNanos;
+    }
+
+    /**
+     * @return time when the frame was decoded/converted for the preview, 0 if the frame was not decoded
+     */
+    public long getDecodeTimeNanos() {
+        return mDecodeTimeNanos;
+    }
+}
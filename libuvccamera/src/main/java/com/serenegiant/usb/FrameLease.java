@@ -0,0 +1,82 @@
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame leased to IFrameLeaseCallback, a new lease is created for each delivered frame.
+ * The buffer is a direct ByteBuffer owned by the native library and reused after #release,
+ * so you must not access the buffer nor this object after calling #release.
+ * The buffer stays valid even if the preview stops or the callback is changed until #release,
+ * but it is leaked if UVCCamera is destroyed before #release.
+ */
+public final class FrameLease {
+
+    private final FrameLeaseDispatcher mDispatcher;
+    private final ByteBuffer mBuffer;
+    private int mPixelFormat;
+    private FrameInfo mInfo;
+    // guarded by FrameLeaseDispatcher
+    boolean mReleased = true;
+
+    FrameLease(final FrameLeaseDispatcher dispatcher, final ByteBuffer buffer) {
+        mDispatcher = dispatcher;
+        mBuffer = buffer;
+    }
+
+    void set(final int pixelFormat, final FrameInfo info) {
+        mPixelFormat = pixelFormat;
+        mInfo = info;
+    }
+
+    /**
+     * @return direct ByteBuffer that holds the frame data in #getPixelFormat
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int getWidth() {
+        return mInfo != null ? mInfo.getWidth() : 0;
+    }
+
+    public int getHeight() {
+        return mInfo != null ? mInfo.getHeight() : 0;
+    }
+
+    /**
+     * @return one of UVCCamera#PIXEL_FORMAT_XXX
+     */
+    public int getPixelFormat() {
+        return mPixelFormat;
+    }
+
+    /**
+     * @return frame number assigned by the library, this may skip but strictly increases
+     */
+    public int getSequence() {
+        return mInfo != null ? mInfo.getSequence() : 0;
+    }
+
+    /**
+     * @return time when the frame was received, same time base as System#nanoTime
+     */
+    public long getTimestampNanos() {
+        return mInfo != null ? mInfo.getReceiveTimeNanos() : 0;
+    }
+
+    /**
+     * @return metadata of the frame, null if the native library could not provide it.
+     * This is only valid until #release.
+     */
+    public FrameInfo getFrameInfo() {
+        return mInfo;
+    }
+
+    /**
+     * give back the frame to the library, this can be called from any thread.
+     * Calling this more than once has no effect.
+     */
+    public void release() {
+        mDispatcher.release(this);
+    }
+}
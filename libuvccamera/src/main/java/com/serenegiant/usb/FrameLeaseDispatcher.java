@@ -0,0 +1,170 @@
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * IFrameCallback registered to native library with manual release on behalf of IFrameLeaseCallback.
+ * This wraps each ByteBuffer with a FrameLease, limits the number of leased frames
+ * and applies the drop policy when the limit is reached.
+ */
+final class FrameLeaseDispatcher implements IFrameInfoCallback {
+
+    // interval to check whether this dispatcher was closed while blocking with backpressure
+    private static final long BACKPRESSURE_WAIT_MS = 100;
+
+    private final UVCCamera mCamera;
+    private final IFrameLeaseCallback mCallback;
+    private final int mPixelFormat;
+    private final int mMaxInFlight;
+    private final int mDropPolicy;
+    private final Executor mExecutor;
+
+    private final Object mSync = new Object();
+    // leases waiting to be delivered on the executor
+    private final ArrayDeque<FrameLease> mPending = new ArrayDeque<>();
+    private int mInFlight;
+    private boolean mClosed;
+    // while suspended, frames are dropped instead of blocking with backpressure
+    private boolean mSuspended;
+
+    private final Runnable mDeliverTask = new Runnable() {
+        @Override
+        public void run() {
+            final FrameLease lease;
+            synchronized (mSync) {
+                lease = mPending.pollFirst();
+            }
+            // lease is null when it was dropped while waiting
+            if (lease != null) {
+                deliver(lease);
+            }
+        }
+    };
+
+    FrameLeaseDispatcher(final UVCCamera camera, final IFrameLeaseCallback callback,
+                         final int pixelFormat, final int maxInFlight, final int dropPolicy,
+                         final Executor executor) {
+        mCamera = camera;
+        mCallback = callback;
+        mPixelFormat = pixelFormat;
+        mMaxInFlight = Math.max(1, maxInFlight);
+        mDropPolicy = dropPolicy;
+        mExecutor = executor;
+    }
+
+    /**
+     * @return number of native buffers needed, one more than max in flight to receive a frame to judge
+     */
+    int getBufferNum() {
+        return mMaxInFlight + 1;
+    }
+
+    /**
+     * this is only called when native library could not create FrameInfo
+     */
+    @Override
+    public void onFrame(final ByteBuffer frame) {
+        onFrame(frame, null);
+    }
+
+    /**
+     * called from native library on the capture thread
+     */
+    @Override
+    public void onFrame(final ByteBuffer frame, final FrameInfo info) {
+
+        final FrameLease lease;
+        synchronized (mSync) {
+            if (!mClosed && (mInFlight >= mMaxInFlight)) {
+                switch (mDropPolicy) {
+                    case UVCCamera.FRAME_DROP_OLDEST:
+                        final FrameLease oldest = mPending.pollFirst();
+                        if (oldest != null) {
+                            releaseLocked(oldest);
+                        }
+                        break;
+                    case UVCCamera.FRAME_DROP_BACKPRESSURE:
+                        while (!mClosed && !mSuspended && (mInFlight >= mMaxInFlight)) {
+                            try {
+                                mSync.wait(BACKPRESSURE_WAIT_MS);
+                            } catch (final InterruptedException e) {
+                                break;
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (mClosed || (mInFlight >= mMaxInFlight)) {
+                // drop this frame
+                mCamera.releaseFrame(frame);
+                return;
+            }
+            // new lease for each delivery, so that a late #release of the previous holder
+            // never releases the next frame delivered in the same buffer
+            lease = new FrameLease(this, frame);
+            lease.set(mPixelFormat, info);
+            lease.mReleased = false;
+            mInFlight++;
+            if (mExecutor != null) {
+                mPending.addLast(lease);
+            }
+        }
+        if (mExecutor != null) {
+            mExecutor.execute(mDeliverTask);
+        } else {
+            deliver(lease);
+        }
+    }
+
+    void release(final FrameLease lease) {
+        synchronized (mSync) {
+            releaseLocked(lease);
+        }
+    }
+
+    void setSuspended(final boolean suspended) {
+        synchronized (mSync) {
+            mSuspended = suspended;
+            mSync.notifyAll();
+        }
+    }
+
+    /**
+     * stop delivering frames and give back frames that are not delivered yet,
+     * frames already delivered are still valid until they are released
+     * because the native library keeps buffers held with manual release even after the capture thread finished
+     */
+    void close() {
+        synchronized (mSync) {
+            mClosed = true;
+            FrameLease lease;
+            while ((lease = mPending.pollFirst()) != null) {
+                releaseLocked(lease);
+            }
+            mSync.notifyAll();
+        }
+    }
+
+    private void deliver(final FrameLease lease) {
+        try {
+            mCallback.onFrame(lease);
+        } catch (final RuntimeException e) {
+            // the callback failed, make sure the frame returns to the library
+            lease.release();
+            throw e;
+        }
+    }
+
+    private void releaseLocked(final FrameLease lease) {
+        if (!lease.mReleased) {
+            lease.mReleased = true;
+            mInFlight--;
+            mCamera.releaseFrame(lease.getBuffer());
+            mSync.notifyAll();
+        }
+    }
+}
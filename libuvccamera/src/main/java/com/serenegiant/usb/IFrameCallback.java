@@ -41,6 +41,12 @@ public interface IFrameCallback {
      * consider to get images via texture(SurfaceTexture) and read pixel buffer from it using OpenGL|ES2/3
      * instead of using IFrameCallback(this way is much efficient in most case than using IFrameCallback).
      *
+     * The ByteBuffer is one of a few buffers reused for every frame, its position and limit are reset
+     * before each call. Unless the callback was set with manual release, the content is only valid
+     * until this method returns. With manual release, the buffer is kept for you until you pass it to
+     * UVCCamera#releaseFrame, so you can process it on another thread without copying.
+     * Implement IFrameInfoCallback instead if you also need timestamps and sequence number of the frame.
+     *
      * @param frame this is direct ByteBuffer from JNI layer and you should handle it's byte order and limitation.
      */
     void onFrame(ByteBuffer frame);
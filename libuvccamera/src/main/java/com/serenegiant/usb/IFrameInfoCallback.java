@@ -0,0 +1,18 @@
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * IFrameCallback which also receives per frame metadata.
+ * If the callback passed to UVCCamera#setFrameCallback implements this interface,
+ * #onFrame(ByteBuffer, FrameInfo) is called instead of IFrameCallback#onFrame(ByteBuffer).
+ */
+public interface IFrameInfoCallback extends IFrameCallback {
+    /**
+     * Same as IFrameCallback#onFrame(ByteBuffer) except it receives metadata of the frame.
+     *
+     * @param frame direct ByteBuffer from JNI layer
+     * @param info metadata of the frame, valid as long as the frame is valid
+     */
+    void onFrame(ByteBuffer frame, FrameInfo info);
+}
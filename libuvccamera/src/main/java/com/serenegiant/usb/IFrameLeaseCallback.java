@@ -0,0 +1,18 @@
+package com.serenegiant.usb;
+
+/**
+ * Callback interface for UVCCamera#setFrameLeaseCallback
+ * Unlike IFrameCallback, the frame is leased to you and stays valid until you call FrameLease#release,
+ * so you can process it on your own thread(s) while capturing continues.
+ */
+public interface IFrameLeaseCallback {
+    /**
+     * This method is called on the Executor passed to UVCCamera#setFrameLeaseCallback,
+     * or on the capture thread if the Executor is null.
+     * You must call FrameLease#release exactly once when you finished using the frame,
+     * otherwise no more frames are delivered once max in flight frames are leased.
+     *
+     * @param frame leased frame
+     */
+    void onFrame(FrameLease frame);
+}
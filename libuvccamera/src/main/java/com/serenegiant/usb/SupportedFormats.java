@@ -0,0 +1,154 @@
+package com.serenegiant.usb;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Supported formats and sizes of a camera decoded from the int array of
+ * {@code UVCCamera#nativeGetSupportedFormatArray}.
+ * Instances are shared between cameras and threads, so {@link Format}s and {@link Size}s
+ * held by this class and their lists must not be modified, clone them if needed.
+ */
+final class SupportedFormats {
+    private static final String TAG = SupportedFormats.class.getSimpleName();
+
+    /**
+     * version of the array, this value should be same as SUPPORTED_FORMAT_ARRAY_VERSION on native side
+     */
+    static final int VERSION = 1;
+
+    private final int[] mArray;
+    private final List<Format> mFormatList;
+    private final List<Size> mSizeList;
+    // index of mSizeList by frame type, width and height
+    private final HashMap<Long, Size> mSizeIndex = new HashMap<>();
+
+    private SupportedFormats(final int[] array, final List<Format> formatList) {
+        mArray = array;
+        mFormatList = Collections.unmodifiableList(formatList);
+        final List<Size> sizeList = new ArrayList<>();
+        for (final Format format : formatList) {
+            for (final Format.Descriptor descriptor : format.frameDescriptors) {
+                final Integer[] fpsArray = new Integer[descriptor.intervals.size()];
+                for (int i = 0; i < fpsArray.length; i++) {
+                    fpsArray[i] = descriptor.intervals.get(i).fps;
+                }
+                final Size size = new Size(descriptor.type, descriptor.width, descriptor.height,
+                        descriptor.fps, Collections.unmodifiableList(Arrays.asList(fpsArray)));
+                sizeList.add(size);
+                final long key = key(size.type, size.width, size.height);
+                if (!mSizeIndex.containsKey(key)) {
+                    mSizeIndex.put(key, size);
+                }
+            }
+        }
+        mSizeList = Collections.unmodifiableList(sizeList);
+    }
+
+    /**
+     * decode the int array
+     *
+     * @return null if the array is broken or made by other version
+     */
+    static SupportedFormats fromArray(final int[] array) {
+        if (array == null || array.length < 2 || array[0] != VERSION) {
+            return null;
+        }
+        try {
+            int pos = 1;
+            final int formatNum = array[pos++];
+            final List<Format> formatList = new ArrayList<>(formatNum);
+            for (int i = 0; i < formatNum; i++) {
+                final int index = array[pos++];
+                final int formatType = array[pos++];
+                final int frameNum = array[pos++];
+                final List<Format.Descriptor> descriptorList = new ArrayList<>(frameNum);
+                for (int j = 0; j < frameNum; j++) {
+                    final int frameType = array[pos++];
+                    final int width = array[pos++];
+                    final int height = array[pos++];
+                    int defaultFrameInterval = array[pos++];
+                    int defaultFps = defaultFrameInterval > 0 ? 10000000 / defaultFrameInterval : 0;
+                    final int intervalNum = array[pos++];
+                    final Format.Interval[] intervals = new Format.Interval[intervalNum];
+                    int maxFps = 0;
+                    for (int k = 0; k < intervalNum; k++) {
+                        final int value = array[pos++];
+                        final Format.Interval interval = new Format.Interval(k, value, value > 0 ? 10000000 / value : 0);
+                        intervals[k] = interval;
+                        if (maxFps < interval.fps) {
+                            maxFps = interval.fps;
+                            defaultFrameInterval = interval.value;
+                        }
+                    }
+                    if (maxFps > 0) {
+                        defaultFps = maxFps;
+                    }
+                    // Descriptor#index has been the index of the format
+                    descriptorList.add(new Format.Descriptor(index, frameType, width, height,
+                            defaultFps, defaultFrameInterval, Collections.unmodifiableList(Arrays.asList(intervals))));
+                }
+                formatList.add(new Format(index, formatType, Collections.unmodifiableList(descriptorList)));
+            }
+            return new SupportedFormats(array, formatList);
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            Log.w(TAG, "broken format array", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the int array this was decoded from, must not be modified
+     */
+    int[] getArray() {
+        return mArray;
+    }
+
+    /**
+     * @return unmodifiable list of supported formats
+     */
+    List<Format> getFormatList() {
+        return mFormatList;
+    }
+
+    /**
+     * @return unmodifiable list of supported sizes
+     */
+    List<Size> getSizeList() {
+        return mSizeList;
+    }
+
+    /**
+     * find the size which matches with the arguments
+     *
+     * @return null if not supported
+     */
+    Size find(final int frameType, final int width, final int height, final int fps) {
+        final Size size = mSizeIndex.get(key(frameType, width, height));
+        if (size != null && (size.fps == fps || size.fpsList.contains(fps))) {
+            return size;
+        } else if (size != null) {
+            // same size may be listed more than once with different frame intervals
+            for (final Size s : mSizeList) {
+                if (s.type == frameType && s.width == width && s.height == height
+                        && (s.fps == fps || s.fpsList.contains(fps))) {
+                    return s;
+                }
+            }
+        }
+        return null;
+    }
+
+    boolean isEmpty() {
+        return mFormatList.isEmpty();
+    }
+
+    private static long key(final int frameType, final int width, final int height) {
+        return ((long) (frameType & 0xff) << 48) | ((long) (width & 0xffff) << 32) | (height & 0xffffffffL);
+    }
+}
@@ -64,9 +64,10 @@ public final class USBMonitor {
     public static int USB_OPEN_ERROR_UNKNOWN = 1;
 
     /**
-     * check device interval 150ms
+     * default interval of fallback device check in milliseconds,
+     * attach/detach are detected by broadcasts and this only catches what they miss
      */
-    private static final int CHECK_DEVICE_RUNNABLE_DELAY = 150;
+    public static final long DEFAULT_CHECK_DEVICE_INTERVAL = 3000;
 
     private static final String ACTION_USB_PERMISSION_BASE = "com.serenegiant.USB_PERMISSION.";
     private final String ACTION_USB_PERMISSION = ACTION_USB_PERMISSION_BASE + hashCode();
@@ -81,17 +82,26 @@ public final class USBMonitor {
     /**
      * all keys of device that has permission
      */
-    private HashSet<String> mHasPermissionDeviceKeys = new HashSet<>();
+    private final HashSet<String> mHasPermissionDeviceKeys = new HashSet<>();
     /**
      * all keys of detected devices
      */
-    private HashSet<String> mDetectedDeviceKeys = new HashSet<>();
+    private final HashSet<String> mDetectedDeviceKeys = new HashSet<>();
+    /**
+     * keys of devices found by the last device check, reused to avoid allocation
+     */
+    private final HashSet<String> mCheckedDeviceKeys = new HashSet<>();
+    /**
+     * device key of each attached device, generating the key every time is not cheap
+     */
+    private final HashMap<UsbDevice, String> mDeviceKeys = new HashMap<>();
 
     private final WeakReference<Context> mWeakContext;
     private final UsbManager mUsbManager;
     private final OnDeviceConnectListener mOnDeviceConnectListener;
     private PendingIntent mPermissionIntent = null;
     private List<DeviceFilter> mDeviceFilters = new ArrayList<DeviceFilter>();
+    private long mCheckDeviceInterval = DEFAULT_CHECK_DEVICE_INTERVAL;
 
     /**
      * Handler that is used for OnDeviceConnectListener
@@ -230,7 +240,8 @@ public final class USBMonitor {
                 }
                 mPermissionIntent = PendingIntent.getBroadcast(context, 0, new Intent(ACTION_USB_PERMISSION), flags);
                 final IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
-                // ACTION_USB_DEVICE_ATTACHED never comes on some devices so it should not be added here
+                // ACTION_USB_DEVICE_ATTACHED never comes on some devices, the fallback device check covers them
+                filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
                 filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
                     context.registerReceiver(mUsbReceiver, filter, Context.RECEIVER_EXPORTED);
@@ -238,9 +249,9 @@ public final class USBMonitor {
                     context.registerReceiver(mUsbReceiver, filter);
                 }
             }
-            // start connection check
-            mDetectedDeviceKeys.clear();
-            mAsyncHandler.postDelayed(mDeviceCheckRunnable, CHECK_DEVICE_RUNNABLE_DELAY);
+            // notify devices already attached, then check periodically if fallback is enabled
+            clearDeviceKeys();
+            mAsyncHandler.post(mDeviceCheckRunnable);
         }
     }
 
@@ -249,7 +260,7 @@ public final class USBMonitor {
      */
     public synchronized void unregister() {
         // remove Runnable of connection check
-        mDetectedDeviceKeys.clear();
+        clearDeviceKeys();
         if (!mDestroyed) {
             mAsyncHandler.removeCallbacks(mDeviceCheckRunnable);
         }
@@ -271,6 +282,30 @@ public final class USBMonitor {
         return !mDestroyed && (mPermissionIntent != null);
     }
 
+    /**
+     * set interval of fallback device check which finds devices
+     * whose ACTION_USB_DEVICE_ATTACHED does not come and permissions granted without request,
+     * default is {@link #DEFAULT_CHECK_DEVICE_INTERVAL}
+     *
+     * @param intervalMs interval in milliseconds, 0 to rely only on broadcasts
+     */
+    public synchronized void setDeviceCheckInterval(final long intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("intervalMs should not be negative.");
+        }
+        mCheckDeviceInterval = intervalMs;
+        if (!mDestroyed && (mPermissionIntent != null)) {
+            mAsyncHandler.removeCallbacks(mDeviceCheckRunnable);
+            if (intervalMs > 0) {
+                mAsyncHandler.postDelayed(mDeviceCheckRunnable, intervalMs);
+            }
+        }
+    }
+
+    public synchronized long getDeviceCheckInterval() {
+        return mCheckDeviceInterval;
+    }
+
     /**
      * set device filter
      *
@@ -497,15 +532,31 @@ public final class USBMonitor {
         return device != null && mUsbManager.hasPermission(device);
     }
 
+    /**
+     * get device key from cache, generate it if the device is not cached yet
+     *
+     * @param device
+     */
+    private String getCachedDeviceKey(final UsbDevice device) {
+        synchronized (mDeviceKeys) {
+            String deviceKey = mDeviceKeys.get(device);
+            if (deviceKey == null) {
+                deviceKey = getDeviceKey(device);
+                mDeviceKeys.put(device, deviceKey);
+            }
+            return deviceKey;
+        }
+    }
+
     /**
      * update device key and retained permission state
      *
      * @param device
      * @param hasPermission
+     * @return true if the device is detected or gets permission just now
      */
-    private void updateDeviceKeys(final UsbDevice device, final boolean hasPermission) {
-        String deviceKey = getDeviceKey(device);
-        updateDeviceKeys(deviceKey, hasPermission);
+    private boolean updateDeviceKeys(final UsbDevice device, final boolean hasPermission) {
+        return updateDeviceKeys(getCachedDeviceKey(device), hasPermission);
     }
 
     /**
@@ -513,15 +564,45 @@ public final class USBMonitor {
      *
      * @param deviceKey
      * @param hasPermission
+     * @return true if the device is detected or gets permission just now
      */
-    private void updateDeviceKeys(final String deviceKey, final boolean hasPermission) {
+    private boolean updateDeviceKeys(final String deviceKey, final boolean hasPermission) {
         synchronized (this) {
-            mDetectedDeviceKeys.add(deviceKey);
+            boolean changed = mDetectedDeviceKeys.add(deviceKey);
             if (hasPermission) {
-                mHasPermissionDeviceKeys.add(deviceKey);
+                changed |= mHasPermissionDeviceKeys.add(deviceKey);
             } else {
                 mHasPermissionDeviceKeys.remove(deviceKey);
             }
+            return changed;
+        }
+    }
+
+    /**
+     * forget detached device so that it is notified again when attached
+     *
+     * @param device
+     */
+    private void removeDeviceKeys(final UsbDevice device) {
+        final String deviceKey;
+        synchronized (mDeviceKeys) {
+            deviceKey = mDeviceKeys.remove(device);
+        }
+        if (deviceKey != null) {
+            synchronized (this) {
+                mDetectedDeviceKeys.remove(deviceKey);
+                mHasPermissionDeviceKeys.remove(deviceKey);
+            }
+        }
+    }
+
+    private void clearDeviceKeys() {
+        synchronized (this) {
+            mDetectedDeviceKeys.clear();
+            mHasPermissionDeviceKeys.clear();
+        }
+        synchronized (mDeviceKeys) {
+            mDeviceKeys.clear();
         }
     }
 
@@ -583,8 +664,8 @@ public final class USBMonitor {
                     }
                 } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
                     final UsbDevice device = getExtraDevice(intent);
-                    if (device != null) {
-                        updateDeviceKeys(device, hasPermission(device));
+                    // the device check may have found it already
+                    if ((device != null) && updateDeviceKeys(device, hasPermission(device))) {
                         processAttach(device);
                     }
                 } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
@@ -598,6 +679,7 @@ public final class USBMonitor {
                                 ctrlBlock.close();
                             }
                         }
+                        removeDeviceKeys(device);
                         processDetach(device);
                     }
                 }
@@ -611,42 +693,49 @@ public final class USBMonitor {
     }
 
     /**
-     * periodically check connected devices and if it changed, call onAttach
+     * check connected devices once on register and then every mCheckDeviceInterval as fallback of broadcasts,
+     * if it changed, call onAttach
      */
     private final Runnable mDeviceCheckRunnable = new Runnable() {
         @Override
         public void run() {
             if (mDestroyed) return;
             final List<UsbDevice> devices = getDeviceList();
-            final HashSet<UsbDevice> needNotifyDevices = new HashSet<>();
-            synchronized (this) {
-                final HashSet<String> oldHasPermissionKeys = mHasPermissionDeviceKeys;
-                final HashSet<String> oldDetectedKeys = mDetectedDeviceKeys;
-                mHasPermissionDeviceKeys = new HashSet<>();
-                mDetectedDeviceKeys = new HashSet<>();
-                for (UsbDevice device : devices) {
-                    boolean hasPermission = hasPermission(device);
-                    String deviceKey = getDeviceKey(device);
+            List<UsbDevice> needNotifyDevices = null;
+            synchronized (mDeviceKeys) {
+                // drop keys of devices which were detached without broadcast
+                mDeviceKeys.keySet().retainAll(devices);
+            }
+            synchronized (USBMonitor.this) {
+                mCheckedDeviceKeys.clear();
+                for (final UsbDevice device : devices) {
+                    final String deviceKey = getCachedDeviceKey(device);
+                    mCheckedDeviceKeys.add(deviceKey);
                     // if this device a new device or a old device that get permission just now
-                    if (!oldDetectedKeys.contains(deviceKey)
-                            || (hasPermission && !oldHasPermissionKeys.contains(deviceKey))) {
+                    if (updateDeviceKeys(deviceKey, hasPermission(device))) {
                         // need to notify user
+                        if (needNotifyDevices == null) {
+                            needNotifyDevices = new ArrayList<>();
+                        }
                         needNotifyDevices.add(device);
                     }
-
-                    updateDeviceKeys(deviceKey, hasPermission);
+                }
+                mDetectedDeviceKeys.retainAll(mCheckedDeviceKeys);
+                mHasPermissionDeviceKeys.retainAll(mCheckedDeviceKeys);
+                if ((mCheckDeviceInterval > 0) && (mPermissionIntent != null)) {
+                    mAsyncHandler.postDelayed(this, mCheckDeviceInterval);
                 }
             }
-            if (mOnDeviceConnectListener != null && needNotifyDevices.size() > 0) {
+            if (mOnDeviceConnectListener != null && needNotifyDevices != null) {
+                final List<UsbDevice> notifyDevices = needNotifyDevices;
                 mListenerHandler.post(() -> {
-                    for (final UsbDevice device : needNotifyDevices) {
+                    for (final UsbDevice device : notifyDevices) {
                         if (DEBUG)
                             Log.d(TAG, "DeviceCheckRunnable onAttach:device=" + device.getDeviceName());
                         mOnDeviceConnectListener.onAttach(device);
                     }
                 });
             }
-            mAsyncHandler.postDelayed(this, CHECK_DEVICE_RUNNABLE_DELAY);
         }
     };
 
@@ -23,18 +23,17 @@
 
 package com.serenegiant.usb;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.concurrent.Executor;
 
 import android.graphics.SurfaceTexture;
 import android.hardware.usb.UsbDevice;
 import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.Surface;
@@ -52,6 +51,10 @@ public class UVCCamera {
      * Resource busy
      */
     public static final int UVC_ERROR_BUSY = -6;
+    /**
+     * Operation not supported
+     */
+    public static final int UVC_ERROR_NOT_SUPPORTED = -12;
 
     public static final int UVC_VS_FORMAT_UNCOMPRESSED = 0x04;
     public static final int UVC_VS_FRAME_UNCOMPRESSED = 0x05;
@@ -75,6 +78,26 @@ public class UVCCamera {
     public static final int PIXEL_FORMAT_RGBX = 6;
     public static final int PIXEL_FORMAT_BGR = 7;
 
+    // buckets of the native frame pool, see #getFramePoolCounters
+    public static final int FRAME_POOL_BUCKET_COMPRESSED = 0;    // frames received from the camera
+    public static final int FRAME_POOL_BUCKET_DECODED = 1;       // frames decoded for preview/capture
+    public static final int FRAME_POOL_BUCKET_CALLBACK = 2;      // frames converted for IFrameCallback
+    public static final int FRAME_POOL_BUCKET_NUM = 3;
+
+    // counters of each bucket of the native frame pool, see #getFramePoolCounters
+    public static final int FRAME_POOL_COUNTER_ALLOCATED = 0;    // frames currently allocated
+    public static final int FRAME_POOL_COUNTER_POOLED = 1;       // frames currently in the free list
+    public static final int FRAME_POOL_COUNTER_IN_USE = 2;       // frames currently in use
+    public static final int FRAME_POOL_COUNTER_HIGH_WATER = 3;   // max frames in use at once
+    public static final int FRAME_POOL_COUNTER_ALLOCATIONS = 4;  // total heap allocations
+    public static final int FRAME_POOL_COUNTER_RELEASES = 5;     // total frames released to heap
+    public static final int FRAME_POOL_COUNTER_NUM = 6;
+
+    // drop policies of #setFrameLeaseCallback when max in flight frames are leased
+    public static final int FRAME_DROP_NEWEST = 0;          // drop the incoming frame
+    public static final int FRAME_DROP_OLDEST = 1;          // drop the oldest frame not delivered yet
+    public static final int FRAME_DROP_BACKPRESSURE = 2;    // block capture thread until a frame is released
+
     /**
      * This quirk makes the assumption that the device calculated bandwidth is wrong
      * and instead the library calculates its own value based off the frame size, frame rate and bits per pixel.
@@ -105,6 +128,12 @@ public class UVCCamera {
 
     private UsbControlBlock mCtrlBlock;
     private UVCControl mControl = null;
+    private FrameLeaseDispatcher mFrameLeaseDispatcher;
+    // number of #captureStillImage waiting in native code without holding the lock of this object
+    private final Object mStillCaptureSync = new Object();
+    private int mStillCaptureCount;
+    // key of UVCDescriptorCache, null if the cache is disabled
+    private String mCacheKey;
 
     // these fields from here are accessed from native code and do not change name and remove
     protected long mNativePtr;
@@ -114,6 +143,7 @@ public class UVCCamera {
     protected Size mCurrentSize;
     protected UVCParam mParam;
     // until here
+    private SupportedFormats mFormats;
 
     /**
      * the constructor of this class should be call within the thread that has a looper
@@ -145,8 +175,36 @@ public class UVCCamera {
             return result;
         }
 
+        nativeSetDecodeThreadNum(mNativePtr, mParam.getDecodeThreadNum());
+
+        mCacheKey = mParam.isDescriptorCacheEnabled() ? UVCDescriptorCache.getKey(mCtrlBlock) : null;
+        if (mCacheKey != null) {
+            nativeSetStreamCtrl(mNativePtr, UVCDescriptorCache.getStreamCtrl(mCacheKey));
+        }
+
         updateSupportedFormats();
 
+        Size size = getInitialPreviewSize();
+        int r = nativeSetPreviewSize(mNativePtr, size.width, size.height, size.type, size.fps);
+        if (r != 0 && mCacheKey != null) {
+            // cached entry may be stale, enumerate descriptors and negotiate again
+            Log.w(TAG, "setPreviewSize failed with cached descriptors:" + r);
+            UVCDescriptorCache.remove(mCacheKey);
+            nativeSetStreamCtrl(mNativePtr, null);
+            updateSupportedFormats();
+            size = getInitialPreviewSize();
+            r = nativeSetPreviewSize(mNativePtr, size.width, size.height, size.type, size.fps);
+        }
+        if (DEBUG) Log.d(TAG, "setPreviewSize:" + r + ":" + size);
+
+        mCurrentSize = size;
+
+        mControl = new UVCControl(nativeGetControl(mNativePtr));
+
+        return result;
+    }
+
+    private Size getInitialPreviewSize() {
         Size size = mParam.getPreviewSize();
         if (size == null || !checkSizeValid(size.width, size.height, size.type, size.fps)) {
             size = getSupportedSizeOne();
@@ -159,15 +217,7 @@ public class UVCCamera {
                         new ArrayList<>(DEFAULT_PREVIEW_FPS));
             }
         }
-
-        int r = nativeSetPreviewSize(mNativePtr, size.width, size.height, size.type, size.fps);
-        if (DEBUG) Log.d(TAG, "setPreviewSize:" + r + ":" + size);
-
-        mCurrentSize = size;
-
-        mControl = new UVCControl(nativeGetControl(mNativePtr));
-
-        return result;
+        return size;
     }
 
     /**
@@ -216,7 +266,12 @@ public class UVCCamera {
     public synchronized void close(boolean isSilent) {
         if (DEBUG) Log.v(TAG, "close");
         stopPreview();
+        // stopPreview wakes up #captureStillImage, wait for them before releasing native objects
+        waitStillCaptureFinished();
         if (mNativePtr != 0) {
+            nativeSetAnalysisFrameCallback(mNativePtr, null, 0, 0, 0);
+            nativeRemoveFrameCallback(mNativePtr, null);
+            nativeStopPassthroughRecording(mNativePtr);
             nativeRelease(mNativePtr);
 //    		mNativePtr = 0;	// nativeDestroyを呼ぶのでここでクリアしちゃダメ
         }
@@ -225,7 +280,9 @@ public class UVCCamera {
             mCtrlBlock = null;
         }
 
+        mCacheKey = null;
         mSupportedFormats = null;
+        mFormats = null;
         mSupportedFormatList = null;
         mSupportedSizeList = null;
         mCurrentSize = null;
@@ -250,39 +307,54 @@ public class UVCCamera {
 
     private void updateSupportedFormats() {
         if (mNativePtr != 0) {
-            mSupportedFormats = nativeGetSupportedFormats(mNativePtr);
-            mSupportedFormatList = parseSupportedFormats(mSupportedFormats);
-            mSupportedSizeList = fetchSupportedSizeList(mSupportedFormatList);
+            SupportedFormats formats = UVCDescriptorCache.getFormats(mCacheKey);
+            if (formats == null || formats.isEmpty()) {
+                formats = SupportedFormats.fromArray(nativeGetSupportedFormatArray(mNativePtr));
+                if (formats != null) {
+                    UVCDescriptorCache.putFormats(mCacheKey, formats);
+                }
+            }
+            mFormats = formats;
+            mSupportedFormatList = formats != null ? formats.getFormatList() : null;
+            mSupportedSizeList = formats != null ? formats.getSizeList() : null;
+        }
+    }
+
+    /**
+     * save the last committed stream control to UVCDescriptorCache
+     */
+    private void saveStreamCtrl() {
+        if (mCacheKey != null && mNativePtr != 0) {
+            UVCDescriptorCache.putStreamCtrl(mCacheKey, nativeGetStreamCtrl(mNativePtr));
         }
     }
 
+    /**
+     * get supported formats as JSON string, descriptors are enumerated on the first call after opening
+     */
     public synchronized String getSupportedSize() {
-        if (TextUtils.isEmpty(mSupportedFormats)) {
-            updateSupportedFormats();
+        if (TextUtils.isEmpty(mSupportedFormats) && mNativePtr != 0) {
+            mSupportedFormats = nativeGetSupportedFormats(mNativePtr);
         }
         return mSupportedFormats;
     }
 
+    /**
+     * get supported formats,
+     * the returned list and its elements are shared and must not be modified, clone them if needed
+     */
     public List<Format> getSupportedFormatList() {
-        List<Format> list = new ArrayList<>();
-        if (mSupportedFormatList != null) {
-            for (Format format :
-                    mSupportedFormatList) {
-                list.add(format.clone());
-            }
-        }
-        return list;
+        final List<Format> list = mSupportedFormatList;
+        return list != null ? list : Collections.emptyList();
     }
 
+    /**
+     * get supported sizes,
+     * the returned list and its elements are shared and must not be modified, clone them if needed
+     */
     public List<Size> getSupportedSizeList() {
-        List<Size> list = new ArrayList<>();
-        if (mSupportedSizeList != null) {
-            for (Size size :
-                    mSupportedSizeList) {
-                list.add(size.clone());
-            }
-        }
-        return list;
+        final List<Size> list = mSupportedSizeList;
+        return list != null ? list : Collections.emptyList();
     }
 
     /**
@@ -292,109 +364,21 @@ public class UVCCamera {
      */
     public Size getSupportedSizeOne() {
         Size maxSize = null;
-        List<Size> sizeList = getSupportedSizeList();
-        if (sizeList != null && sizeList.size() > 0) {
-            Collections.sort(sizeList, (o1, o2) -> {
-                return o2.width * o2.height - o1.width * o1.height;
-            });
-            for (Size size : sizeList) {
-                if (size.type == DEFAULT_PREVIEW_FRAME_FORMAT) {
-                    maxSize = size;
-                    break;
-                }
-            }
-            if (maxSize == null) {
-                maxSize = sizeList.get(0);
+        Size maxDefaultSize = null;
+        for (Size size : getSupportedSizeList()) {
+            final int pixels = size.width * size.height;
+            if (maxSize == null || pixels > maxSize.width * maxSize.height) {
+                maxSize = size;
             }
-//            return sizeList.get(sizeList.size() - 1);
-//            return sizeList.get(0);
-        }
-        return maxSize;
-    }
-
-    private List<Format> parseSupportedFormats(final String supportedFormats) {
-        List<Format> formatList = new ArrayList<>();
-        if (!TextUtils.isEmpty(supportedFormats)) {
-            try {
-                final JSONObject json = new JSONObject(supportedFormats);
-                final JSONArray formatsJSON = json.getJSONArray("formats");
-                for (int i = 0; i < formatsJSON.length(); i++) {
-                    final JSONObject formatJSON = formatsJSON.getJSONObject(i);
-                    if (formatJSON.has("subType") && formatJSON.has("frameDescriptors")) {
-                        final int index = formatJSON.getInt("index");
-                        final int formatType = formatJSON.getInt("subType");
-                        // this uvc library support for mjpeg and uncompressed format
-                        if (formatType == UVC_VS_FORMAT_MJPEG
-                                || formatType == UVC_VS_FORMAT_UNCOMPRESSED) {
-                            List<Format.Descriptor> descriptorList = parseFrameDescriptors(formatJSON, index);
-                            formatList.add(new Format(index, formatType, descriptorList));
-                        }
-                    }
-                }
-            } catch (final JSONException e) {
-                e.printStackTrace();
+            if (size.type == DEFAULT_PREVIEW_FRAME_FORMAT
+                    && (maxDefaultSize == null || pixels > maxDefaultSize.width * maxDefaultSize.height)) {
+                maxDefaultSize = size;
             }
         }
-        return formatList;
-    }
-
-    private List<Format.Descriptor> parseFrameDescriptors(final JSONObject format, final int index) throws JSONException {
-        List<Format.Descriptor> descriptorList = new ArrayList<>();
-        final JSONArray frameDescs = format.getJSONArray("frameDescriptors");
-        for (int j = 0; j < frameDescs.length(); j++) {
-            JSONObject frameDesc = frameDescs.getJSONObject(j);
-            int width = frameDesc.getInt("width");
-            int height = frameDesc.getInt("height");
-            int formatType = frameDesc.getInt("subType");
-            int defaultFps = frameDesc.getInt("defaultFps");
-            int defaultFrameInterval = frameDesc.getInt("defaultFrameInterval");
-            List<Format.Interval> intervals = new ArrayList<>();
-            JSONArray intervalJSONArray = frameDesc.getJSONArray("intervals");
-
-            if (intervalJSONArray.length() > 0) {
-                int maxFrameInterval = 0;
-                int maxFps = 0;
-                for (int k = 0; k < intervalJSONArray.length(); k++) {
-                    JSONObject jsonObject = intervalJSONArray.getJSONObject(k);
-
-                    Format.Interval interval = new Format.Interval(
-                            jsonObject.getInt("index"),
-                            jsonObject.getInt("value"),
-                            jsonObject.getInt("fps"));
-                    intervals.add(interval);
-
-                    if (maxFps < interval.fps) {
-                        maxFrameInterval = interval.value;
-                        maxFps = interval.fps;
-                    }
-                }
-                if (maxFps > 0) {
-                    defaultFrameInterval = maxFrameInterval;
-                    defaultFps = maxFps;
-                }
-            }
-
-            try {
-                descriptorList.add(new Format.Descriptor(index, formatType, width, height, defaultFps, defaultFrameInterval, intervals));
-            } catch (final Exception e) {
-                e.printStackTrace();
-            }
+        if (maxDefaultSize != null) {
+            maxSize = maxDefaultSize;
         }
-        return descriptorList;
-    }
-
-    private List<Size> fetchSupportedSizeList(List<Format> formatList) {
-        List<Size> sizeList = new ArrayList<>();
-        for (Format format : formatList) {
-            for (Format.Descriptor descriptor : format.frameDescriptors) {
-                List<Integer> fpsList = new ArrayList<>();
-                for (Format.Interval interval : descriptor.intervals) {
-                    fpsList.add(interval.fps);
-                }
-                sizeList.add(new Size(descriptor.type, descriptor.width, descriptor.height, descriptor.fps, fpsList));
-            }
-        }
-        return sizeList;
+        return maxSize != null ? maxSize.clone() : null;
     }
 
     /**
@@ -407,17 +391,9 @@ public class UVCCamera {
      * @return
      */
     private boolean checkSizeValid(final int width, final int height, final int frameType, final int fps) {
-        if (mNativePtr != 0) {
-            List<Size> sizeList = getSupportedSizeList();
-            for (Size size : sizeList) {
-                if (size.width == width && size.height == height
-                        && size.type == frameType
-                        && (size.fps == fps || size.fpsList.contains(fps))) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        final SupportedFormats formats = mFormats;
+        return mNativePtr != 0 && formats != null
+                && formats.find(frameType, width, height, fps) != null;
     }
 
     public Size getPreviewSize() {
@@ -524,10 +500,219 @@ public class UVCCamera {
      * @param callback    The callback that receive frame data in pixelFormat
      * @param pixelFormat The frame format of callback.
      *                    Can be {@link #PIXEL_FORMAT_RAW}, {@link #PIXEL_FORMAT_YUV}, {@link #PIXEL_FORMAT_NV12}, {@link #PIXEL_FORMAT_NV21}, {@link #PIXEL_FORMAT_RGB}, {@link #PIXEL_FORMAT_RGB565}, {@link #PIXEL_FORMAT_BGR}.
+     *                    YUV formats are limited range(BT.601) even if the camera sends MJPEG.
      */
     public void setFrameCallback(final IFrameCallback callback, final int pixelFormat) {
+        setFrameCallback(callback, pixelFormat, false);
+    }
+
+    /**
+     * set frame callback
+     *
+     * @param callback      The callback that receive frame data in pixelFormat
+     * @param pixelFormat   The frame format of callback.
+     * @param manualRelease If true, the ByteBuffer passed to {@link IFrameCallback#onFrame} is not reused
+     *                      until it is given back with {@link #releaseFrame}, even after the preview stops
+     *                      or the callback is changed. Frames are dropped while all buffers are held.
+     *                      Buffers which are not released before {@link #destroy} are leaked.
+     */
+    public void setFrameCallback(final IFrameCallback callback, final int pixelFormat, final boolean manualRelease) {
+        if (mNativePtr != 0) {
+            closeFrameLeaseDispatcher();
+            nativeSetFrameCallback(mNativePtr, callback, pixelFormat, manualRelease, 0);
+        }
+    }
+
+    /**
+     * set secondary frame callback which receives frames scaled down to the specific size,
+     * e.g. for motion detection or machine learning, alongside the preview and #setFrameCallback.
+     * MJPEG frames are decoded at reduced scale(1/2, 1/4 or 1/8) on a dedicated thread and then
+     * scaled to the exact size, this is much cheaper than scaling full resolution frames in Java.
+     * Frames are dropped while the callback is busy and the ByteBuffer is reused after the callback returns.
+     *
+     * @param callback    The callback that receive frames, null to remove the callback
+     * @param width       Width of frames passed to the callback
+     * @param height      Height of frames passed to the callback
+     * @param pixelFormat The frame format of callback, same as #setFrameCallback
+     */
+    public void setAnalysisFrameCallback(final IFrameCallback callback,
+                                         final int width, final int height, final int pixelFormat) {
+        if (callback != null && (width <= 0 || height <= 0)) {
+            throw new IllegalArgumentException("invalid analysis frame size");
+        }
         if (mNativePtr != 0) {
-            nativeSetFrameCallback(mNativePtr, callback, pixelFormat);
+            nativeSetAnalysisFrameCallback(mNativePtr, callback, width, height, pixelFormat);
+        }
+    }
+
+    /**
+     * add frame callback which receives frames in its own pixel format, size and max frame rate,
+     * in addition to the callback set by #setFrameCallback. Up to 8 callbacks can be added.
+     * Each frame is converted only once for each combination of pixel format and size,
+     * and the ByteBuffer is shared by the callbacks which request the same one, so it must not be modified.
+     * The ByteBuffer is reused after the callback returns.
+     * If the callback was already added, its pixel format, size and max frame rate are updated.
+     *
+     * @param callback    The callback that receive frames
+     * @param pixelFormat The frame format of callback, same as #setFrameCallback
+     * @param width       Width of frames passed to the callback, 0 to use the preview size
+     * @param height      Height of frames passed to the callback, 0 to use the preview size
+     * @param maxFps      Max frame rate of the callback, 0 if not limited
+     * @return true if the callback was added or updated
+     */
+    public boolean addFrameCallback(final IFrameCallback callback, final int pixelFormat,
+                                    final int width, final int height, final int maxFps) {
+        if (callback == null || width < 0 || height < 0 || (width == 0) != (height == 0) || maxFps < 0) {
+            throw new IllegalArgumentException("invalid frame callback parameters");
+        }
+        if (mNativePtr != 0) {
+            return nativeAddFrameCallback(mNativePtr, callback, pixelFormat, width, height, maxFps) == 0;
+        }
+        return false;
+    }
+
+    /**
+     * remove frame callback added by #addFrameCallback,
+     * the callback may be called once more if it is being called at the moment.
+     *
+     * @param callback The callback to remove
+     * @return true if the callback was removed
+     */
+    public boolean removeFrameCallback(final IFrameCallback callback) {
+        if (mNativePtr != 0 && callback != null) {
+            return nativeRemoveFrameCallback(mNativePtr, callback) == 0;
+        }
+        return false;
+    }
+
+    /**
+     * set frame callback which leases frames, this replaces the callback set by #setFrameCallback.
+     *
+     * @param callback    The callback that receive leased frames in pixelFormat, null to remove the callback
+     * @param pixelFormat The frame format of callback, same as #setFrameCallback
+     * @param maxInFlight Max number of frames leased and not released at the same time
+     * @param dropPolicy  What to do when a frame arrives while maxInFlight frames are leased,
+     *                    {@link #FRAME_DROP_NEWEST}, {@link #FRAME_DROP_OLDEST} or {@link #FRAME_DROP_BACKPRESSURE}.
+     *                    {@link #FRAME_DROP_OLDEST} needs executor because frames are never waiting to be
+     *                    delivered when the callback is called on the capture thread.
+     * @param executor    Executor to call the callback on, the callback is called on the capture thread if null
+     * @throws IllegalArgumentException if dropPolicy is {@link #FRAME_DROP_OLDEST} and executor is null
+     */
+    public void setFrameLeaseCallback(final IFrameLeaseCallback callback, final int pixelFormat,
+                                      final int maxInFlight, final int dropPolicy, final Executor executor) {
+        if ((callback != null) && (dropPolicy == FRAME_DROP_OLDEST) && (executor == null)) {
+            throw new IllegalArgumentException("FRAME_DROP_OLDEST needs executor");
+        }
+        if (mNativePtr != 0) {
+            // unblock the capture thread first, otherwise changing callback waits for it forever
+            closeFrameLeaseDispatcher();
+            if (callback != null) {
+                final FrameLeaseDispatcher dispatcher = new FrameLeaseDispatcher(
+                        this, callback, pixelFormat, maxInFlight, dropPolicy, executor);
+                synchronized (this) {
+                    mFrameLeaseDispatcher = dispatcher;
+                }
+                nativeSetFrameCallback(mNativePtr, dispatcher, pixelFormat, true, dispatcher.getBufferNum());
+            } else {
+                nativeSetFrameCallback(mNativePtr, null, pixelFormat, false, 0);
+            }
+        }
+    }
+
+    private void closeFrameLeaseDispatcher() {
+        final FrameLeaseDispatcher dispatcher;
+        synchronized (this) {
+            dispatcher = mFrameLeaseDispatcher;
+            mFrameLeaseDispatcher = null;
+        }
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+    }
+
+    /**
+     * give back the ByteBuffer passed to {@link IFrameCallback#onFrame} when manual release is enabled.
+     * The buffer must not be accessed after this call.
+     * Buffers delivered before the preview stopped or the callback was changed can also be released.
+     *
+     * @param frame ByteBuffer passed to {@link IFrameCallback#onFrame}
+     * @return true if the buffer was released
+     */
+    public boolean releaseFrame(final ByteBuffer frame) {
+        if (mNativePtr != 0 && frame != null) {
+            return nativeReleaseFrame(mNativePtr, frame) == 0;
+        }
+        return false;
+    }
+
+    /**
+     * start recording compressed MJPEG frames from the camera as is into a Matroska(.mkv) file,
+     * frames are neither decoded nor encoded so this needs little CPU and no hardware encoder.
+     * Audio is not recorded. Recording continues until #stopPassthroughRecording even if preview stops.
+     *
+     * @param fd file to write to, this can be closed after this call
+     * @return 0 if started, {@link #UVC_ERROR_NOT_SUPPORTED} if the preview format is not MJPEG,
+     * {@link #UVC_ERROR_BUSY} if already recording
+     */
+    public synchronized int startPassthroughRecording(final ParcelFileDescriptor fd) {
+        if (mNativePtr != 0 && fd != null) {
+            return nativeStartPassthroughRecording(mNativePtr, fd.getFd());
+        }
+        return -1;
+    }
+
+    /**
+     * stop recording started by #startPassthroughRecording, this blocks until the file is finished
+     *
+     * @return 0 if the file was written successfully
+     */
+    public synchronized int stopPassthroughRecording() {
+        if (mNativePtr != 0) {
+            return nativeStopPassthroughRecording(mNativePtr);
+        }
+        return -1;
+    }
+
+    /**
+     * wait for next MJPEG frame from camera and return it as is, without decoding and re-encoding.
+     * The frame may omit Huffman tables(DHT) as MJPEG allows.
+     * Usually this returns within one frame interval.
+     *
+     * This waits without holding the lock of this object, so other methods are not blocked meanwhile.
+     *
+     * @param timeoutMs maximum time to wait in milliseconds
+     * @return compressed frame, null if the preview is not MJPEG or no frame arrived in time
+     */
+    public byte[] captureStillImage(final int timeoutMs) {
+        final long nativePtr;
+        synchronized (this) {
+            nativePtr = mNativePtr;
+            if (nativePtr == 0) {
+                return null;
+            }
+            synchronized (mStillCaptureSync) {
+                mStillCaptureCount++;
+            }
+        }
+        try {
+            return nativeCaptureStillImage(nativePtr, timeoutMs);
+        } finally {
+            synchronized (mStillCaptureSync) {
+                mStillCaptureCount--;
+                mStillCaptureSync.notifyAll();
+            }
+        }
+    }
+
+    private void waitStillCaptureFinished() {
+        synchronized (mStillCaptureSync) {
+            while (mStillCaptureCount > 0) {
+                try {
+                    mStillCaptureSync.wait();
+                } catch (final InterruptedException e) {
+                    break;
+                }
+            }
         }
     }
 
@@ -536,6 +721,10 @@ public class UVCCamera {
      */
     public synchronized void startPreview() {
         if (mCtrlBlock != null) {
+            final FrameLeaseDispatcher dispatcher = mFrameLeaseDispatcher;
+            if (dispatcher != null) {
+                dispatcher.setSuspended(false);
+            }
             nativeStartPreview(mNativePtr);
         }
     }
@@ -546,7 +735,13 @@ public class UVCCamera {
     public synchronized void stopPreview() {
 //        setFrameCallback(null, 0);
         if (mCtrlBlock != null) {
+            final FrameLeaseDispatcher dispatcher = mFrameLeaseDispatcher;
+            if (dispatcher != null) {
+                // unblock the capture thread if it waits for frames released
+                dispatcher.setSuspended(true);
+            }
             nativeStopPreview(mNativePtr);
+            saveStreamCtrl();
         }
     }
 
@@ -572,6 +767,37 @@ public class UVCCamera {
         }
     }
 
+    /**
+     * get counters of the native frame pool.
+     * The value of counter C of bucket B is at index {@code B * FRAME_POOL_COUNTER_NUM + C},
+     * e.g. {@code counters[FRAME_POOL_BUCKET_DECODED * FRAME_POOL_COUNTER_NUM + FRAME_POOL_COUNTER_ALLOCATIONS]}.
+     * {@link #FRAME_POOL_COUNTER_ALLOCATIONS} stops increasing once streaming reaches steady state.
+     *
+     * @return counters, or null if the camera is already destroyed
+     */
+    public int[] getFramePoolCounters() {
+        if (mNativePtr != 0) {
+            return nativeGetFramePoolCounters(mNativePtr);
+        }
+        return null;
+    }
+
+    /**
+     * get statistics of the native frame pipeline, from USB transfer to preview, capture and IFrameCallback.
+     * Counters are accumulated while the camera is opened.
+     *
+     * @return snapshot of statistics, or null if the camera is already destroyed
+     */
+    public UVCStatistics getStatistics() {
+        if (mNativePtr != 0) {
+            final long[] values = nativeGetStatistics(mNativePtr);
+            if (values != null) {
+                return new UVCStatistics(values);
+            }
+        }
+        return null;
+    }
+
     /**
      * destroy UVCCamera object
      */
@@ -619,13 +845,39 @@ public class UVCCamera {
 
     private native String nativeGetSupportedFormats(final long id_camera);
 
+    private native int[] nativeGetSupportedFormatArray(final long id_camera);
+
     private native int nativeStartPreview(final long id_camera);
 
     private native int nativeStopPreview(final long id_camera);
 
     private native int nativeSetPreviewDisplay(final long id_camera, final Surface surface);
 
-    private native int nativeSetFrameCallback(final long id_camera, final IFrameCallback callback, final int pixelFormat);
+    private native int nativeSetFrameCallback(final long id_camera, final IFrameCallback callback, final int pixelFormat, final boolean manualRelease, final int bufferNum);
+
+    private native int nativeReleaseFrame(final long id_camera, final ByteBuffer frame);
+
+    private native int nativeSetAnalysisFrameCallback(final long id_camera, final IFrameCallback callback, final int width, final int height, final int pixelFormat);
+
+    private native int nativeAddFrameCallback(final long id_camera, final IFrameCallback callback, final int pixelFormat, final int width, final int height, final int maxFps);
+
+    private native int nativeRemoveFrameCallback(final long id_camera, final IFrameCallback callback);
+
+    private native int nativeStartPassthroughRecording(final long id_camera, final int fd);
+
+    private native int nativeStopPassthroughRecording(final long id_camera);
+
+    private native byte[] nativeCaptureStillImage(final long id_camera, final int timeoutMs);
+
+    private native int nativeSetDecodeThreadNum(final long id_camera, final int threadNum);
+
+    private native int[] nativeGetFramePoolCounters(final long id_camera);
+
+    private native long[] nativeGetStatistics(final long id_camera);
+
+    private native byte[] nativeGetStreamCtrl(final long id_camera);
+
+    private native int nativeSetStreamCtrl(final long id_camera, final byte[] ctrl);
 
     private native int nativeSetCaptureDisplay(final long id_camera, final Surface surface);
 
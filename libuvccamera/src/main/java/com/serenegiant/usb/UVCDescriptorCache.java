@@ -0,0 +1,184 @@
+package com.serenegiant.usb;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.usb.UsbDevice;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+import com.serenegiant.usb.USBMonitor.UsbControlBlock;
+import com.serenegiant.utils.UVCUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+
+/**
+ * Persistent cache of supported formats and the last committed stream control of UVC cameras.
+ * Entries are keyed by {@link USBMonitor#getProductKey(UsbDevice)}(vendor id, product id, bcdDevice and so on)
+ * and the serial number, so a known camera can be opened without enumerating descriptors
+ * and start streaming with a single commit instead of probing.
+ * Entries are dropped when they do not work with the camera anymore.
+ */
+public final class UVCDescriptorCache {
+    private static final String TAG = UVCDescriptorCache.class.getSimpleName();
+
+    private static final String PREF_NAME = "uvccamera_descriptor_cache";
+    private static final String SUFFIX_FORMATS = "#formats";
+    private static final String SUFFIX_STREAM_CTRL = "#ctrl";
+
+    private static final Object sSync = new Object();
+    // decoded formats of the cameras opened in this process
+    private static final HashMap<String, SupportedFormats> sFormats = new HashMap<>();
+
+    private UVCDescriptorCache() {
+        throw new UnsupportedOperationException("u can't instantiate me...");
+    }
+
+    /**
+     * remove all cached entries
+     */
+    public static void clear() {
+        synchronized (sSync) {
+            sFormats.clear();
+            final SharedPreferences pref = getPreferences();
+            if (pref != null) {
+                pref.edit().clear().apply();
+            }
+        }
+    }
+
+    /**
+     * @return key of the camera, null if the camera can not be identified
+     */
+    static String getKey(final UsbControlBlock ctrlBlock) {
+        final UsbDevice device = ctrlBlock != null ? ctrlBlock.getDevice() : null;
+        if (device == null) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder(USBMonitor.getProductKey(device));
+        // getProductKey does not contain serial number on API>=29
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            final String serial = ctrlBlock.getSerial();
+            if (!TextUtils.isEmpty(serial)) {
+                sb.append("#").append(serial);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return supported formats, null if not cached
+     */
+    static SupportedFormats getFormats(final String key) {
+        if (key == null) return null;
+        synchronized (sSync) {
+            SupportedFormats formats = sFormats.get(key);
+            if (formats == null) {
+                final SharedPreferences pref = getPreferences();
+                final String value = pref != null ? pref.getString(key + SUFFIX_FORMATS, null) : null;
+                formats = !TextUtils.isEmpty(value) ? SupportedFormats.fromArray(decodeIntArray(value)) : null;
+                if (formats != null) {
+                    sFormats.put(key, formats);
+                }
+            }
+            return formats;
+        }
+    }
+
+    static void putFormats(final String key, final SupportedFormats formats) {
+        if (key == null || formats == null) return;
+        synchronized (sSync) {
+            sFormats.put(key, formats);
+            final SharedPreferences pref = getPreferences();
+            final String value = encodeIntArray(formats.getArray());
+            if (pref != null && !value.equals(pref.getString(key + SUFFIX_FORMATS, null))) {
+                pref.edit().putString(key + SUFFIX_FORMATS, value).apply();
+            }
+        }
+    }
+
+    /**
+     * @return opaque bytes of the last committed stream control, null if not cached
+     */
+    static byte[] getStreamCtrl(final String key) {
+        if (key == null) return null;
+        synchronized (sSync) {
+            final SharedPreferences pref = getPreferences();
+            final String value = pref != null ? pref.getString(key + SUFFIX_STREAM_CTRL, null) : null;
+            if (!TextUtils.isEmpty(value)) {
+                try {
+                    return Base64.decode(value, Base64.NO_WRAP);
+                } catch (final IllegalArgumentException e) {
+                    Log.w(TAG, e);
+                }
+            }
+            return null;
+        }
+    }
+
+    static void putStreamCtrl(final String key, final byte[] ctrl) {
+        if (key == null) return;
+        synchronized (sSync) {
+            final SharedPreferences pref = getPreferences();
+            if (pref == null) return;
+            if (ctrl != null && ctrl.length > 0) {
+                final String value = Base64.encodeToString(ctrl, Base64.NO_WRAP);
+                if (!value.equals(pref.getString(key + SUFFIX_STREAM_CTRL, null))) {
+                    pref.edit().putString(key + SUFFIX_STREAM_CTRL, value).apply();
+                }
+            } else if (pref.contains(key + SUFFIX_STREAM_CTRL)) {
+                pref.edit().remove(key + SUFFIX_STREAM_CTRL).apply();
+            }
+        }
+    }
+
+    /**
+     * remove the cached entry of the camera
+     */
+    static void remove(final String key) {
+        if (key == null) return;
+        synchronized (sSync) {
+            sFormats.remove(key);
+            final SharedPreferences pref = getPreferences();
+            if (pref != null) {
+                pref.edit()
+                        .remove(key + SUFFIX_FORMATS)
+                        .remove(key + SUFFIX_STREAM_CTRL)
+                        .apply();
+            }
+        }
+    }
+
+    private static String encodeIntArray(final int[] array) {
+        final ByteBuffer buf = ByteBuffer.allocate(array.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buf.asIntBuffer().put(array);
+        return Base64.encodeToString(buf.array(), Base64.NO_WRAP);
+    }
+
+    private static int[] decodeIntArray(final String value) {
+        try {
+            final IntBuffer buf = ByteBuffer.wrap(Base64.decode(value, Base64.NO_WRAP))
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            final int[] array = new int[buf.remaining()];
+            buf.get(array);
+            return array;
+        } catch (final IllegalArgumentException e) {
+            Log.w(TAG, e);
+            return null;
+        }
+    }
+
+    private static SharedPreferences getPreferences() {
+        try {
+            final Context context = UVCUtils.getApplication();
+            return context != null ? context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE) : null;
+        } catch (final Exception e) {
+            Log.w(TAG, e);
+            return null;
+        }
+    }
+}
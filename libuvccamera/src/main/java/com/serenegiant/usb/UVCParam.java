@@ -12,6 +12,17 @@ public class UVCParam implements Cloneable {
      * Enable some quirks to resolve specific issues
      */
     private int quirks;
+    /**
+     * Number of threads to decode MJPEG frames.
+     * Frames are decoded on the preview thread if this is less than 2,
+     * otherwise they are decoded in parallel and still delivered in order.
+     */
+    private int decodeThreadNum = 1;
+    /**
+     * Whether supported formats and the last committed stream control are cached per camera
+     * by {@link UVCDescriptorCache} to shorten opening the camera next time.
+     */
+    private boolean descriptorCacheEnabled = true;
 
     public UVCParam() {
     }
@@ -37,13 +48,32 @@ public class UVCParam implements Cloneable {
         this.quirks = quirks;
     }
 
+    public int getDecodeThreadNum() {
+        return decodeThreadNum;
+    }
+
+    public void setDecodeThreadNum(int decodeThreadNum) {
+        this.decodeThreadNum = decodeThreadNum;
+    }
+
+    public boolean isDescriptorCacheEnabled() {
+        return descriptorCacheEnabled;
+    }
+
+    public void setDescriptorCacheEnabled(boolean descriptorCacheEnabled) {
+        this.descriptorCacheEnabled = descriptorCacheEnabled;
+    }
+
     @NonNull
     @Override
     protected Object clone() {
         try {
             return super.clone();
         } catch (CloneNotSupportedException e) {
-            return new UVCParam(previewSize, quirks);
+            UVCParam param = new UVCParam(previewSize, quirks);
+            param.decodeThreadNum = decodeThreadNum;
+            param.descriptorCacheEnabled = descriptorCacheEnabled;
+            return param;
         }
     }
 }
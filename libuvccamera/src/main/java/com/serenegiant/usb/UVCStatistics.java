@@ -0,0 +1,148 @@
+package com.serenegiant.usb;
+
+/**
+ * Snapshot of the native frame pipeline statistics of UVCCamera, see UVCCamera#getStatistics.
+ * Counters are accumulated while the camera is opened, so take two snapshots and
+ * use #diff to get the values of a specific period.
+ */
+public final class UVCStatistics {
+
+    // indexes of values, these should be same as STAT_XXX in UVCPreview.h
+    // frames received completely from USB
+    public static final int FRAMES_RECEIVED = 0;
+    // frames without EOF, the camera started next frame before finishing the previous one
+    public static final int FRAMES_INCOMPLETE = 1;
+    // frames dropped because the native frame pool was exhausted
+    public static final int FRAMES_NO_BUFFER = 2;
+    // frames overwritten before handed over to the preview thread
+    public static final int FRAMES_OVERWRITTEN = 3;
+    // payloads dropped because of error bit or broken header
+    public static final int PAYLOAD_ERRORS = 4;
+    // failed isochronous packets or transfers
+    public static final int TRANSFER_ERRORS = 5;
+    // current number of frames waiting for decoding
+    public static final int PREVIEW_QUEUE_DEPTH = 6;
+    // max number of frames waiting for decoding
+    public static final int PREVIEW_QUEUE_MAX_DEPTH = 7;
+    // frames dropped because decoding could not keep up
+    public static final int PREVIEW_QUEUE_DROPS = 8;
+    // frames decoded(converted) for preview, YUYV frames passed as is are counted with zero decode time
+    public static final int FRAMES_DECODED = 9;
+    public static final int DECODE_ERRORS = 10;
+    public static final int DECODE_TIME_TOTAL_US = 11;
+    public static final int DECODE_TIME_MAX_US = 12;
+    // frames drawn to the preview surface
+    public static final int FRAMES_RENDERED = 13;
+    public static final int RENDER_FAILURES = 14;
+    // frames overwritten before the capture thread took them
+    public static final int CAPTURE_QUEUE_DROPS = 15;
+    // frames written to the capture surface(e.g. input surface of encoder)
+    public static final int FRAMES_CAPTURED = 16;
+    // frames passed to IFrameCallback
+    public static final int FRAMES_CALLBACK = 17;
+    // frames dropped because no callback buffer was available
+    public static final int CALLBACK_DROPS = 18;
+    // histogram of decode time, <1ms, <2ms, <4ms, <8ms, <16ms, <32ms, <64ms, >=64ms
+    public static final int DECODE_HISTOGRAM = 19;
+    public static final int DECODE_HISTOGRAM_NUM = 8;
+    public static final int NUM = DECODE_HISTOGRAM + DECODE_HISTOGRAM_NUM;
+
+    private static final String[] NAMES = {
+            "received", "incomplete", "noBuffer", "overwritten", "payloadErrors", "transferErrors",
+            "queueDepth", "queueMaxDepth", "queueDrops",
+            "decoded", "decodeErrors", "decodeTotalUs", "decodeMaxUs",
+            "rendered", "renderFailures",
+            "captureDrops", "captured", "callback", "callbackDrops",
+    };
+
+    private final long[] mValues;
+    private final long mTimestampNanos;
+
+    UVCStatistics(final long[] values) {
+        this(values, System.nanoTime());
+    }
+
+    private UVCStatistics(final long[] values, final long timestampNanos) {
+        mValues = new long[NUM];
+        if (values != null) {
+            System.arraycopy(values, 0, mValues, 0, Math.min(values.length, NUM));
+        }
+        mTimestampNanos = timestampNanos;
+    }
+
+    /**
+     * @param index one of the index constants of this class
+     */
+    public long get(final int index) {
+        return (index >= 0) && (index < NUM) ? mValues[index] : 0;
+    }
+
+    /**
+     * @return time when this snapshot was taken, same time base as System#nanoTime
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * @return number of frames dropped anywhere in the native pipeline
+     */
+    public long getDroppedFrames() {
+        return mValues[FRAMES_INCOMPLETE] + mValues[FRAMES_NO_BUFFER] + mValues[FRAMES_OVERWRITTEN]
+                + mValues[PREVIEW_QUEUE_DROPS] + mValues[DECODE_ERRORS];
+    }
+
+    /**
+     * @return average decode time in microseconds
+     */
+    public long getAverageDecodeTimeUs() {
+        final long decoded = mValues[FRAMES_DECODED];
+        return decoded > 0 ? mValues[DECODE_TIME_TOTAL_US] / decoded : 0;
+    }
+
+    /**
+     * @param index 0 to DECODE_HISTOGRAM_NUM - 1
+     * @return number of frames whose decode time was in the bucket
+     */
+    public long getDecodeHistogram(final int index) {
+        return (index >= 0) && (index < DECODE_HISTOGRAM_NUM) ? mValues[DECODE_HISTOGRAM + index] : 0;
+    }
+
+    /**
+     * calculate counters since the previous snapshot,
+     * gauges(queue depth and max values) are kept as this snapshot
+     *
+     * @param prev snapshot taken before this one
+     * @return new snapshot with the differences
+     */
+    public UVCStatistics diff(final UVCStatistics prev) {
+        final long[] values = mValues.clone();
+        for (int i = 0; i < NUM; i++) {
+            switch (i) {
+                case PREVIEW_QUEUE_DEPTH:
+                case PREVIEW_QUEUE_MAX_DEPTH:
+                case DECODE_TIME_MAX_US:
+                    break;
+                default:
+                    values[i] -= prev.mValues[i];
+                    break;
+            }
+        }
+        return new UVCStatistics(values, mTimestampNanos);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("UVCStatistics{");
+        for (int i = 0; i < NAMES.length; i++) {
+            sb.append(NAMES[i]).append('=').append(mValues[i]).append(',');
+        }
+        sb.append("decodeAvgUs=").append(getAverageDecodeTimeUs());
+        sb.append(",decodeHistogram=[");
+        for (int i = 0; i < DECODE_HISTOGRAM_NUM; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(mValues[DECODE_HISTOGRAM + i]);
+        }
+        return sb.append("]}").toString();
+    }
+}
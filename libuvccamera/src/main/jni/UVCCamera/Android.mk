@@ -60,6 +60,8 @@ LOCAL_SRC_FILES := \
 		UVCCamera.cpp \
 		UVCControl.cpp \
 		UVCPreview.cpp \
+		FramePool.cpp \
+		PassthroughRecorder.cpp \
 		UVCButtonCallback.cpp \
 		UVCStatusCallback.cpp \
 		Parameters.cpp \
@@ -1,3 +1,5 @@
+#include <string.h>
+#include <pthread.h>
 #include "ConvertHelper.h"
 
 #define THROW(action, message) { \
@@ -25,6 +27,76 @@ const char *colorspaceName[TJ_NUMCS] = {
         "RGB", "YCbCr", "GRAY", "CMYK", "YCCK"
 };
 
+//======================================================================
+// I420 frames in this library are always full range(JFIF) same as JPEG,
+// they are converted to limited range(BT.601) only when they are repacked to YUYV/NV12/NV21.
+
+typedef struct range_table {
+    uint8_t luma[256];
+    uint8_t chroma[256];
+} range_table_t;
+
+static inline uint8_t clamp_u8(const int v) {
+    return (uint8_t) (v < 0 ? 0 : (v > 255 ? 255 : v));
+}
+
+// [0] limited range to full range, [1] full range to limited range
+static range_table_t s_range_tables[2];
+static pthread_once_t s_range_tables_once = PTHREAD_ONCE_INIT;
+
+static void init_range_tables() {
+    for (int i = 0; i < 256; i++) {
+        // rounded to nearest
+        s_range_tables[1].luma[i] = clamp_u8(16 + (i * 219 + 127) / 255);
+        s_range_tables[1].chroma[i] = clamp_u8(128 + ((i - 128) * 224 + (i >= 128 ? 127 : -127)) / 255);
+        s_range_tables[0].luma[i] = clamp_u8(((i - 16) * 255 + (i >= 16 ? 109 : -109)) / 219);
+        s_range_tables[0].chroma[i] = clamp_u8(128 + ((i - 128) * 255 + (i >= 128 ? 112 : -112)) / 224);
+    }
+}
+
+/**
+ * lookup tables to convert full range to limited range(to_limited=true) or vice versa
+ */
+static const range_table_t *get_range_table(const bool to_limited) {
+    pthread_once(&s_range_tables_once, init_range_tables);
+    return &s_range_tables[to_limited ? 1 : 0];
+}
+
+static void convert_plane_range(uint8_t *plane, const int stride,
+    const int width, const int height, const uint8_t *lut) {
+
+    for (int y = 0; y < height; y++) {
+        uint8_t *row = plane + y * stride;
+        for (int x = 0; x < width; x++) {
+            row[x] = lut[row[x]];
+        }
+    }
+}
+
+/**
+ * convert YUYV frame from full range to limited range in place
+ */
+static void convert_yuyv_range(uint8_t *data, const int stride, const int width, const int height) {
+    const range_table_t *table = get_range_table(true);
+    const int bytes = ((width + 1) / 2) * 4;
+    for (int y = 0; y < height; y++) {
+        uint8_t *row = data + y * stride;
+        for (int x = 0; x < bytes; x += 2) {
+            row[x] = table->luma[row[x]];
+            row[x + 1] = table->chroma[row[x + 1]];
+        }
+    }
+}
+
+/**
+ * convert NV12/NV21 frame from full range to limited range in place
+ */
+static void convert_nv_range(uint8_t *y, uint8_t *uv, const int stride, const int width, const int height) {
+    const range_table_t *table = get_range_table(true);
+    convert_plane_range(y, stride, width, height, table->luma);
+    convert_plane_range(uv, stride, ((width + 1) / 2) * 2, (height + 1) / 2, table->chroma);
+}
+
 int convert_mjpeg_to_rgbx_tj(void *in, int inSize, void *out, int width, int height) {
     int retval = UVC_SUCCESS;
     int flags = 0;
@@ -76,6 +148,367 @@ int convert_mjpeg_to_rgbx_tj(void *in, int inSize, void *out, int width, int hei
     return retval;
 }
 
+MJPEGDecoder::MJPEGDecoder()
+        : mTjInstance(NULL),
+          mWidth(0),
+          mHeight(0),
+          mSubsamp(-1),
+          mColorspace(-1),
+          mPlaneBuf(NULL),
+          mPlaneBufBytes(0),
+          mScaleBuf(NULL),
+          mScaleBufBytes(0) {
+}
+
+MJPEGDecoder::~MJPEGDecoder() {
+    if (mTjInstance) {
+        tjDestroy(mTjInstance);
+        mTjInstance = NULL;
+    }
+    SAFE_FREE(mPlaneBuf);
+    mPlaneBufBytes = 0;
+    SAFE_FREE(mScaleBuf);
+    mScaleBufBytes = 0;
+}
+
+/**
+ * initialize decompressor if it does not exist yet,
+ * call this beforehand to find out failure before decoding frames
+ * @return 0 if success, negative value if failed
+ */
+int MJPEGDecoder::init() {
+    if (UNLIKELY(!mTjInstance)) {
+        if ((mTjInstance = tjInitDecompress()) == NULL) {
+            LOGW("ERROR while initializing decompressor:\n%s\n", tjGetErrorStr2(NULL));
+            return UVC_ERROR_NO_MEM;
+        }
+    }
+    return UVC_SUCCESS;
+}
+
+/**
+ * read JPEG header and keep it, decompressor is initialized only when it does not exist yet
+ * @return 0 if success, negative value if failed
+ */
+int MJPEGDecoder::readHeader(const unsigned char *jpegBuf, unsigned long jpegSize) {
+    int width, height, subsamp, colorspace;
+
+    const int ret = init();
+    if (UNLIKELY(ret)) {
+        return ret;
+    }
+
+    if (tjDecompressHeader3(mTjInstance, jpegBuf, jpegSize, &width, &height,
+                            &subsamp, &colorspace) < 0) {
+        LOGD("ERROR while reading JPEG header failed:\n%s\n", tjGetErrorStr2(mTjInstance));
+        return UVC_ERROR_INVALID_PARAM;
+    }
+
+    if (UNLIKELY(width != mWidth || height != mHeight
+                 || subsamp != mSubsamp || colorspace != mColorspace)) {
+        LOGI("Image:  %d x %d pixels, %s subsampling, %s colorspace",
+             width, height,
+             subsamp >= 0 ? subsampName[subsamp] : "unknown",
+             colorspace >= 0 ? colorspaceName[colorspace] : "unknown");
+        mWidth = width;
+        mHeight = height;
+        mSubsamp = subsamp;
+        mColorspace = colorspace;
+    }
+
+    return UVC_SUCCESS;
+}
+
+/** @brief Convert an MJPEG frame to RGBX with the decompressor kept in this instance
+ * @ingroup frame
+ *
+ * @param in MJPEG frame
+ * @param out RGBX frame
+ */
+int MJPEGDecoder::decodeToRGBX(uvc_frame_t *in, uvc_frame_t *out) {
+    if (in->frame_format != UVC_FRAME_FORMAT_MJPEG)
+        return UVC_ERROR_INVALID_PARAM;
+
+    const int pixel_byte = 4;
+
+    if (uvc_ensure_frame_size(out, in->width * in->height * pixel_byte) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = in->width;
+    out->height = in->height;
+    out->frame_format = UVC_FRAME_FORMAT_RGBX;
+    out->step = in->width * pixel_byte;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    const unsigned char *jpegBuf = (const unsigned char *) in->data;
+    int retval = readHeader(jpegBuf, in->data_bytes);
+    if (UNLIKELY(retval)) {
+        return retval;
+    }
+
+    if (mWidth != (int) out->width || mHeight != (int) out->height) {
+        LOGD("ERROR while reading JPEG header error size");
+        return UVC_ERROR_INVALID_PARAM;
+    }
+
+    if (tjDecompress2(mTjInstance, jpegBuf, in->data_bytes, (unsigned char *) out->data,
+                      out->width, 0, out->height, TJPF_RGBX, 0) < 0) {
+        LOGD("ERROR while decompressing JPEG image:\n%s\n", tjGetErrorStr2(mTjInstance));
+        return UVC_ERROR_INVALID_PARAM;
+    }
+
+    return UVC_SUCCESS;
+}
+
+/** @brief Convert an MJPEG frame to RGBX directly into external memory
+ * @ingroup frame
+ * This is used to decode into a locked window buffer whose stride may differ from the width.
+ * The JPEG header is checked before writing anything into dst.
+ *
+ * @param in MJPEG frame
+ * @param dst buffer which has at least dst_stride * in->height bytes
+ * @param dst_stride number of bytes per row of dst
+ */
+int MJPEGDecoder::decodeToRGBX(uvc_frame_t *in, uint8_t *dst, int dst_stride) {
+    if (in->frame_format != UVC_FRAME_FORMAT_MJPEG)
+        return UVC_ERROR_INVALID_PARAM;
+
+    if (UNLIKELY(dst_stride < (int) in->width * 4))
+        return UVC_ERROR_INVALID_PARAM;
+
+    const unsigned char *jpegBuf = (const unsigned char *) in->data;
+    int retval = readHeader(jpegBuf, in->data_bytes);
+    if (UNLIKELY(retval)) {
+        return retval;
+    }
+
+    if (mWidth != (int) in->width || mHeight != (int) in->height) {
+        LOGD("ERROR while reading JPEG header error size");
+        return UVC_ERROR_INVALID_PARAM;
+    }
+
+    if (tjDecompress2(mTjInstance, jpegBuf, in->data_bytes, dst,
+                      in->width, dst_stride, in->height, TJPF_RGBX, 0) < 0) {
+        LOGD("ERROR while decompressing JPEG image:\n%s\n", tjGetErrorStr2(mTjInstance));
+        return UVC_ERROR_INVALID_PARAM;
+    }
+
+    return UVC_SUCCESS;
+}
+
+/** @brief Convert an MJPEG frame to I420 without color space conversion
+ * @ingroup frame
+ * JPEG is decoded to YCbCr planes directly, so the output is full range(JFIF) YUV.
+ * Only 4:2:0, 4:2:2, 4:4:4 and grayscale JPEG are supported,
+ * UVC_ERROR_NOT_SUPPORTED is returned for other subsampling.
+ *
+ * @param in MJPEG frame
+ * @param out I420 frame
+ */
+int MJPEGDecoder::decodeToI420(uvc_frame_t *in, uvc_frame_t *out) {
+    if (in->frame_format != UVC_FRAME_FORMAT_MJPEG)
+        return UVC_ERROR_INVALID_PARAM;
+
+    const unsigned char *jpegBuf = (const unsigned char *) in->data;
+    int retval = readHeader(jpegBuf, in->data_bytes);
+    if (UNLIKELY(retval)) {
+        return retval;
+    }
+
+    const int width = in->width;
+    const int height = in->height;
+    if (mWidth != width || mHeight != height) {
+        LOGD("ERROR while reading JPEG header error size");
+        return UVC_ERROR_INVALID_PARAM;
+    }
+
+    const int chroma_width = (width + 1) / 2;
+    const int chroma_height = (height + 1) / 2;
+    const size_t y_bytes = width * height;
+    const size_t chroma_bytes = chroma_width * chroma_height;
+
+    if (uvc_ensure_frame_size(out, y_bytes + chroma_bytes * 2) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = width;
+    out->height = height;
+    out->frame_format = UVC_FRAME_FORMAT_I420;
+    out->step = width;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    uint8_t *dst_y = (uint8_t *) out->data;
+    uint8_t *dst_u = dst_y + y_bytes;
+    uint8_t *dst_v = dst_u + chroma_bytes;
+    return decodeToI420Planes(jpegBuf, in->data_bytes, width, height, dst_y, dst_u, dst_v);
+}
+
+/**
+ * decode JPEG whose header was already read into I420 planes,
+ * JPEG is scaled in DCT domain if width and height are one of scaled size of the JPEG image
+ * @param dst_y Y plane with width stride
+ * @param dst_u U plane with (width + 1) / 2 stride
+ * @param dst_v V plane with (width + 1) / 2 stride
+ */
+int MJPEGDecoder::decodeToI420Planes(const unsigned char *jpegBuf, unsigned long jpegSize,
+    int width, int height, uint8_t *dst_y, uint8_t *dst_u, uint8_t *dst_v) {
+
+    if (mSubsamp != TJSAMP_420 && mSubsamp != TJSAMP_422
+        && mSubsamp != TJSAMP_444 && mSubsamp != TJSAMP_GRAY) {
+        return UVC_ERROR_NOT_SUPPORTED;
+    }
+
+    int retval = UVC_SUCCESS;
+    const int chroma_width = (width + 1) / 2;
+    const size_t chroma_bytes = chroma_width * ((height + 1) / 2);
+    unsigned char *planes[3] = {dst_y, dst_u, dst_v};
+    int strides[3] = {width, chroma_width, chroma_width};
+
+    if (mSubsamp != TJSAMP_420 && mSubsamp != TJSAMP_GRAY) {
+        // decode chroma planes into work buffer and then subsample them
+        const int src_chroma_width = tjPlaneWidth(1, width, mSubsamp);
+        const int src_chroma_height = tjPlaneHeight(1, height, mSubsamp);
+        const size_t bytes = src_chroma_width * src_chroma_height * 2;
+        if (UNLIKELY(mPlaneBufBytes < bytes)) {
+            unsigned char *buf = (unsigned char *) realloc(mPlaneBuf, bytes);
+            if (UNLIKELY(!buf)) {
+                return UVC_ERROR_NO_MEM;
+            }
+            mPlaneBuf = buf;
+            mPlaneBufBytes = bytes;
+        }
+        planes[1] = mPlaneBuf;
+        planes[2] = mPlaneBuf + bytes / 2;
+        strides[1] = strides[2] = src_chroma_width;
+    }
+
+    if (tjDecompressToYUVPlanes(mTjInstance, jpegBuf, jpegSize, planes,
+                                width, strides, height, 0) < 0) {
+        LOGD("ERROR while decompressing JPEG image:\n%s\n", tjGetErrorStr2(mTjInstance));
+        return UVC_ERROR_INVALID_PARAM;
+    }
+
+    switch (mSubsamp) {
+        case TJSAMP_422:
+            retval = libyuv::I422ToI420(dst_y, width, planes[1], strides[1], planes[2], strides[2],
+                                        dst_y, width, dst_u, chroma_width, dst_v, chroma_width,
+                                        width, height);
+            break;
+        case TJSAMP_444:
+            retval = libyuv::I444ToI420(dst_y, width, planes[1], strides[1], planes[2], strides[2],
+                                        dst_y, width, dst_u, chroma_width, dst_v, chroma_width,
+                                        width, height);
+            break;
+        case TJSAMP_GRAY:
+            memset(dst_u, 128, chroma_bytes * 2);
+            break;
+        default:
+            break;
+    }
+
+    return retval;
+}
+
+/** @brief Convert an MJPEG frame to I420 of specific size
+ * @ingroup frame
+ * JPEG is decoded with the smallest DCT scaling factor(1/8, 1/4, 1/2) whose output is not smaller
+ * than the requested size, and then scaled to the exact size with libyuv if they differ.
+ * This is much cheaper than decoding in full resolution and scaling down.
+ *
+ * @param in MJPEG frame
+ * @param width width of output frame
+ * @param height height of output frame
+ * @param out I420 frame
+ */
+int MJPEGDecoder::decodeToI420Scaled(uvc_frame_t *in, int width, int height, uvc_frame_t *out) {
+    if (in->frame_format != UVC_FRAME_FORMAT_MJPEG || width <= 0 || height <= 0)
+        return UVC_ERROR_INVALID_PARAM;
+
+    const unsigned char *jpegBuf = (const unsigned char *) in->data;
+    int retval = readHeader(jpegBuf, in->data_bytes);
+    if (UNLIKELY(retval)) {
+        return retval;
+    }
+    if (mWidth != (int) in->width || mHeight != (int) in->height) {
+        LOGD("ERROR while reading JPEG header error size");
+        return UVC_ERROR_INVALID_PARAM;
+    }
+
+    tjscalingfactor factor = {1, 1};
+    int num_factors = 0;
+    const tjscalingfactor *factors = tjGetScalingFactors(&num_factors);
+    for (int i = 0; factors && (i < num_factors); i++) {
+        // only 1/N because they are the cheapest to decode
+        if ((factors[i].num == 1) && (factors[i].denom > factor.denom)
+            && (TJSCALED(mWidth, factors[i]) >= width)
+            && (TJSCALED(mHeight, factors[i]) >= height)) {
+            factor = factors[i];
+        }
+    }
+    const int scaled_width = TJSCALED(mWidth, factor);
+    const int scaled_height = TJSCALED(mHeight, factor);
+
+    const int chroma_width = (width + 1) / 2;
+    const size_t y_bytes = width * height;
+    const size_t chroma_bytes = chroma_width * ((height + 1) / 2);
+    if (uvc_ensure_frame_size(out, y_bytes + chroma_bytes * 2) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = width;
+    out->height = height;
+    out->frame_format = UVC_FRAME_FORMAT_I420;
+    out->step = width;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    uint8_t *dst_y = (uint8_t *) out->data;
+    uint8_t *dst_u = dst_y + y_bytes;
+    uint8_t *dst_v = dst_u + chroma_bytes;
+    if ((scaled_width == width) && (scaled_height == height)) {
+        return decodeToI420Planes(jpegBuf, in->data_bytes, width, height, dst_y, dst_u, dst_v);
+    }
+
+    const int scaled_chroma_width = (scaled_width + 1) / 2;
+    const size_t scaled_y_bytes = scaled_width * scaled_height;
+    const size_t scaled_chroma_bytes = scaled_chroma_width * ((scaled_height + 1) / 2);
+    const size_t bytes = scaled_y_bytes + scaled_chroma_bytes * 2;
+    if (UNLIKELY(mScaleBufBytes < bytes)) {
+        unsigned char *buf = (unsigned char *) realloc(mScaleBuf, bytes);
+        if (UNLIKELY(!buf)) {
+            return UVC_ERROR_NO_MEM;
+        }
+        mScaleBuf = buf;
+        mScaleBufBytes = bytes;
+    }
+    uint8_t *src_y = mScaleBuf;
+    uint8_t *src_u = src_y + scaled_y_bytes;
+    uint8_t *src_v = src_u + scaled_chroma_bytes;
+    retval = decodeToI420Planes(jpegBuf, in->data_bytes, scaled_width, scaled_height, src_y, src_u, src_v);
+    if (LIKELY(!retval)) {
+        retval = libyuv::I420Scale(src_y, scaled_width, src_u, scaled_chroma_width, src_v, scaled_chroma_width,
+                                   scaled_width, scaled_height,
+                                   dst_y, width, dst_u, chroma_width, dst_v, chroma_width,
+                                   width, height, libyuv::kFilterBilinear);
+    }
+    return retval;
+}
+
 /** @brief Convert an MJPEG frame to RGBX
  * @ingroup frame
  *
@@ -98,6 +531,9 @@ int uvc_mjpeg2rgbx_tj(uvc_frame_t *in, uvc_frame_t *out) {
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
     out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     return convert_mjpeg_to_rgbx_tj(in->data, in->data_bytes, out->data, out->width, out->height);
@@ -128,6 +564,9 @@ int uvc_mjpeg2rgbx_new(uvc_frame_t *in, uvc_frame_t *out) {
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
     out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     int width = in->width;
@@ -172,6 +611,10 @@ int uvc_rgbx_to_yuyv(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_YUYV;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     int ret = UVC_SUCCESS;
@@ -204,6 +647,10 @@ int uvc_rgbx_to_yuyv(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     int ret = UVC_SUCCESS;
@@ -237,6 +684,10 @@ int uvc_rgbx_to_yuyv(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     int ret = UVC_SUCCESS;
@@ -270,6 +721,10 @@ int uvc_rgbx_to_yuyv(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_RGB;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     int ret = UVC_SUCCESS;
@@ -302,6 +757,10 @@ int uvc_rgbx_to_yuyv(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_RGB565;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     int ret = UVC_SUCCESS;
@@ -334,6 +793,10 @@ int uvc_rgbx_to_yuyv(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_BGR;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     int ret = UVC_SUCCESS;
@@ -342,4 +805,468 @@ int uvc_rgbx_to_yuyv(uvc_frame_t *in, uvc_frame_t *out) {
                               out->width, out->height);
 
     return  ret;
-}
\ No newline at end of file
+}
+
+/** @brief Convert a frame from I420 to YUYV
+* @ingroup frame
+* @param ini I420 frame
+* @param out YUYV frame
+*/
+int uvc_i420_to_yuyv(uvc_frame_t *in, uvc_frame_t *out) {
+    uint8_t *in_data = (uint8_t *) in->data;
+    uint8_t *out_data = (uint8_t *) out->data;
+
+    if (in->frame_format != UVC_FRAME_FORMAT_I420)
+        return UVC_ERROR_INVALID_PARAM;
+
+    if (uvc_ensure_frame_size(out, in->width * in->height * PIXEL_YUYV) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = in->width;
+    out->height = in->height;
+    out->frame_format = UVC_FRAME_FORMAT_YUYV;
+    if (out->library_owns_data)
+        out->step = in->width * PIXEL_YUYV;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    const int chroma_stride = (in->width + 1) / 2;
+    const uint8_t *in_u = in_data + in->width * in->height;
+    const uint8_t *in_v = in_u + chroma_stride * ((in->height + 1) / 2);
+
+    int ret = UVC_SUCCESS;
+
+    ret = libyuv::I420ToYUY2(in_data, in->step, in_u, chroma_stride, in_v, chroma_stride,
+                             out_data, out->step, out->width, out->height);
+    if (LIKELY(!ret)) {
+        // YUYV for IFrameCallback is limited range as it was before decoding MJPEG into I420
+        convert_yuyv_range(out_data, out->step, out->width, out->height);
+    }
+
+    return  ret;
+}
+
+/** @brief Convert a frame from I420 to NV12
+* @ingroup frame
+* @param ini I420 frame
+* @param out NV12 frame
+*/
+int uvc_i420_to_nv12(uvc_frame_t *in, uvc_frame_t *out) {
+    uint8_t *in_data = (uint8_t *) in->data;
+    uint8_t *out_data = (uint8_t *) out->data;
+
+    if (in->frame_format != UVC_FRAME_FORMAT_I420)
+        return UVC_ERROR_INVALID_PARAM;
+
+    if (uvc_ensure_frame_size(out, (in->width * in->height * 3) / 2) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = in->width;
+    out->height = in->height;
+    out->frame_format = UVC_FRAME_FORMAT_NV12;
+    if (out->library_owns_data)
+        out->step = in->width;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    const int chroma_stride = (in->width + 1) / 2;
+    const uint8_t *in_u = in_data + in->width * in->height;
+    const uint8_t *in_v = in_u + chroma_stride * ((in->height + 1) / 2);
+
+    int ret = UVC_SUCCESS;
+
+    ret = libyuv::I420ToNV12(in_data, in->step, in_u, chroma_stride, in_v, chroma_stride,
+                             out_data, out->step,
+                             out_data + out->width * out->height, out->step,
+                             out->width, out->height);
+    if (LIKELY(!ret)) {
+        // NV12 for IFrameCallback is limited range as it was before decoding MJPEG into I420
+        convert_nv_range(out_data, out_data + out->width * out->height, out->step, out->width, out->height);
+    }
+
+    return  ret;
+}
+
+/** @brief Convert a frame from I420 to NV21
+* @ingroup frame
+* @param ini I420 frame
+* @param out NV21 frame
+*/
+int uvc_i420_to_nv21(uvc_frame_t *in, uvc_frame_t *out) {
+    uint8_t *in_data = (uint8_t *) in->data;
+    uint8_t *out_data = (uint8_t *) out->data;
+
+    if (in->frame_format != UVC_FRAME_FORMAT_I420)
+        return UVC_ERROR_INVALID_PARAM;
+
+    if (uvc_ensure_frame_size(out, (in->width * in->height * 3) / 2) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = in->width;
+    out->height = in->height;
+    out->frame_format = UVC_FRAME_FORMAT_NV21;
+    if (out->library_owns_data)
+        out->step = in->width;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    const int chroma_stride = (in->width + 1) / 2;
+    const uint8_t *in_u = in_data + in->width * in->height;
+    const uint8_t *in_v = in_u + chroma_stride * ((in->height + 1) / 2);
+
+    int ret = UVC_SUCCESS;
+
+    ret = libyuv::I420ToNV21(in_data, in->step, in_u, chroma_stride, in_v, chroma_stride,
+                             out_data, out->step,
+                             out_data + out->width * out->height, out->step,
+                             out->width, out->height);
+    if (LIKELY(!ret)) {
+        // NV21 for IFrameCallback is limited range as it was before decoding MJPEG into I420
+        convert_nv_range(out_data, out_data + out->width * out->height, out->step, out->width, out->height);
+    }
+
+    return  ret;
+}
+
+/** @brief Convert a frame from I420(full range) to RGB
+* @ingroup frame
+* @param ini I420 frame
+* @param out RGB frame
+*/
+int uvc_i420_to_rgb(uvc_frame_t *in, uvc_frame_t *out) {
+    uint8_t *in_data = (uint8_t *) in->data;
+    uint8_t *out_data = (uint8_t *) out->data;
+
+    if (in->frame_format != UVC_FRAME_FORMAT_I420)
+        return UVC_ERROR_INVALID_PARAM;
+
+    if (uvc_ensure_frame_size(out, in->width * in->height * PIXEL_RGB) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = in->width;
+    out->height = in->height;
+    out->frame_format = UVC_FRAME_FORMAT_RGB;
+    if (out->library_owns_data)
+        out->step = in->width * PIXEL_RGB;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    const int chroma_stride = (in->width + 1) / 2;
+    const uint8_t *in_u = in_data + in->width * in->height;
+    const uint8_t *in_v = in_u + chroma_stride * ((in->height + 1) / 2);
+
+    int ret = UVC_SUCCESS;
+
+    ret = libyuv::J420ToRAW(in_data, in->step, in_u, chroma_stride, in_v, chroma_stride,
+                            out_data, out->step, out->width, out->height);
+
+    return  ret;
+}
+
+/** @brief Convert a frame from I420(full range) to RGB565
+* @ingroup frame
+* @param ini I420 frame
+* @param out RGB565 frame
+*/
+int uvc_i420_to_rgb565(uvc_frame_t *in, uvc_frame_t *out) {
+    uint8_t *in_data = (uint8_t *) in->data;
+    uint8_t *out_data = (uint8_t *) out->data;
+
+    if (in->frame_format != UVC_FRAME_FORMAT_I420)
+        return UVC_ERROR_INVALID_PARAM;
+
+    if (uvc_ensure_frame_size(out, in->width * in->height * PIXEL_RGB565) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = in->width;
+    out->height = in->height;
+    out->frame_format = UVC_FRAME_FORMAT_RGB565;
+    if (out->library_owns_data)
+        out->step = in->width * PIXEL_RGB565;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    const int chroma_stride = (in->width + 1) / 2;
+    const uint8_t *in_u = in_data + in->width * in->height;
+    const uint8_t *in_v = in_u + chroma_stride * ((in->height + 1) / 2);
+
+    int ret = UVC_SUCCESS;
+
+    ret = libyuv::J420ToRGB565(in_data, in->step, in_u, chroma_stride, in_v, chroma_stride,
+                               out_data, out->step, out->width, out->height);
+
+    return  ret;
+}
+
+/** @brief Convert a frame from I420(full range) to RGBX8888
+* @ingroup frame
+* @param ini I420 frame
+* @param out RGBX8888 frame
+*/
+int uvc_i420_to_rgbx(uvc_frame_t *in, uvc_frame_t *out) {
+    uint8_t *in_data = (uint8_t *) in->data;
+    uint8_t *out_data = (uint8_t *) out->data;
+
+    if (in->frame_format != UVC_FRAME_FORMAT_I420)
+        return UVC_ERROR_INVALID_PARAM;
+
+    if (uvc_ensure_frame_size(out, in->width * in->height * PIXEL_RGBX) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = in->width;
+    out->height = in->height;
+    out->frame_format = UVC_FRAME_FORMAT_RGBX;
+    if (out->library_owns_data)
+        out->step = in->width * PIXEL_RGBX;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    const int chroma_stride = (in->width + 1) / 2;
+    const uint8_t *in_u = in_data + in->width * in->height;
+    const uint8_t *in_v = in_u + chroma_stride * ((in->height + 1) / 2);
+
+    int ret = UVC_SUCCESS;
+
+    ret = libyuv::J420ToABGR(in_data, in->step, in_u, chroma_stride, in_v, chroma_stride,
+                             out_data, out->step, out->width, out->height);
+
+    return  ret;
+}
+
+/** @brief Convert a frame from I420(full range) to BGR
+* @ingroup frame
+* @param ini I420 frame
+* @param out BGR frame
+*/
+int uvc_i420_to_bgr(uvc_frame_t *in, uvc_frame_t *out) {
+    uint8_t *in_data = (uint8_t *) in->data;
+    uint8_t *out_data = (uint8_t *) out->data;
+
+    if (in->frame_format != UVC_FRAME_FORMAT_I420)
+        return UVC_ERROR_INVALID_PARAM;
+
+    if (uvc_ensure_frame_size(out, in->width * in->height * PIXEL_BGR) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = in->width;
+    out->height = in->height;
+    out->frame_format = UVC_FRAME_FORMAT_BGR;
+    if (out->library_owns_data)
+        out->step = in->width * PIXEL_BGR;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    const int chroma_stride = (in->width + 1) / 2;
+    const uint8_t *in_u = in_data + in->width * in->height;
+    const uint8_t *in_v = in_u + chroma_stride * ((in->height + 1) / 2);
+
+    int ret = UVC_SUCCESS;
+
+    ret = libyuv::J420ToRGB24(in_data, in->step, in_u, chroma_stride, in_v, chroma_stride,
+                              out_data, out->step, out->width, out->height);
+
+    return  ret;
+}
+/** @brief Convert a frame from YUYV to I420
+* @ingroup frame
+* Y, U and V values are expanded to full range, same as I420 decoded from MJPEG.
+* @param in YUYV frame
+* @param out I420 frame
+*/
+int uvc_yuyv_to_i420(uvc_frame_t *in, uvc_frame_t *out) {
+    if (in->frame_format != UVC_FRAME_FORMAT_YUYV)
+        return UVC_ERROR_INVALID_PARAM;
+
+    const int width = in->width;
+    const int height = in->height;
+    const int chroma_width = (width + 1) / 2;
+    const size_t y_bytes = width * height;
+    const size_t chroma_bytes = chroma_width * ((height + 1) / 2);
+    if (uvc_ensure_frame_size(out, y_bytes + chroma_bytes * 2) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = width;
+    out->height = height;
+    out->frame_format = UVC_FRAME_FORMAT_I420;
+    out->step = width;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    uint8_t *dst_y = (uint8_t *) out->data;
+    uint8_t *dst_u = dst_y + y_bytes;
+    uint8_t *dst_v = dst_u + chroma_bytes;
+    const int ret = libyuv::YUY2ToI420((const uint8_t *) in->data, in->step ? in->step : width * 2,
+                              dst_y, width, dst_u, chroma_width, dst_v, chroma_width,
+                              width, height);
+    if (LIKELY(!ret)) {
+        const range_table_t *table = get_range_table(false);
+        convert_plane_range(dst_y, width, width, height, table->luma);
+        convert_plane_range(dst_u, chroma_width, chroma_width, (height + 1) / 2, table->chroma);
+        convert_plane_range(dst_v, chroma_width, chroma_width, (height + 1) / 2, table->chroma);
+    }
+    return ret;
+}
+
+/** @brief Convert a frame from YUYV to NV12 without going through RGB
+* @ingroup frame
+* @param in YUYV frame
+* @param out NV12 frame
+*/
+int uvc_yuyv_to_nv12(uvc_frame_t *in, uvc_frame_t *out) {
+    if (in->frame_format != UVC_FRAME_FORMAT_YUYV)
+        return UVC_ERROR_INVALID_PARAM;
+
+    if (uvc_ensure_frame_size(out, (in->width * in->height * 3) / 2) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = in->width;
+    out->height = in->height;
+    out->frame_format = UVC_FRAME_FORMAT_NV12;
+    if (out->library_owns_data)
+        out->step = in->width;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    uint8_t *out_data = (uint8_t *) out->data;
+    return libyuv::YUY2ToNV12((const uint8_t *) in->data, in->step ? in->step : in->width * 2,
+                              out_data, out->step,
+                              out_data + out->width * out->height, out->step,
+                              out->width, out->height);
+}
+
+/** @brief Convert a frame from YUYV to NV21 without going through RGB
+* @ingroup frame
+* @param in YUYV frame
+* @param out NV21 frame
+*/
+int uvc_yuyv_to_nv21(uvc_frame_t *in, uvc_frame_t *out) {
+    int ret = uvc_yuyv_to_nv12(in, out);
+    if (ret)
+        return ret;
+
+    out->frame_format = UVC_FRAME_FORMAT_NV21;
+    // swap U and V in place, each pair is read before it is written
+    uint8_t *out_uv = (uint8_t *) out->data + out->width * out->height;
+    libyuv::SwapUVPlane(out_uv, out->step, out_uv, out->step,
+                        (out->width + 1) / 2, (out->height + 1) / 2);
+    return UVC_SUCCESS;
+}
+
+/** @brief Scale I420 frame to specific size
+* @ingroup frame
+* @param in I420 frame
+* @param out I420 frame
+* @param width width of output frame
+* @param height height of output frame
+*/
+int uvc_i420_scale(uvc_frame_t *in, uvc_frame_t *out, int width, int height) {
+    if (in->frame_format != UVC_FRAME_FORMAT_I420 || width <= 0 || height <= 0)
+        return UVC_ERROR_INVALID_PARAM;
+
+    const int chroma_width = (width + 1) / 2;
+    const size_t y_bytes = width * height;
+    const size_t chroma_bytes = chroma_width * ((height + 1) / 2);
+    if (uvc_ensure_frame_size(out, y_bytes + chroma_bytes * 2) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = width;
+    out->height = height;
+    out->frame_format = UVC_FRAME_FORMAT_I420;
+    out->step = width;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    const int in_chroma_width = (in->width + 1) / 2;
+    const uint8_t *in_y = (const uint8_t *) in->data;
+    const uint8_t *in_u = in_y + in->width * in->height;
+    const uint8_t *in_v = in_u + in_chroma_width * ((in->height + 1) / 2);
+    uint8_t *dst_y = (uint8_t *) out->data;
+    uint8_t *dst_u = dst_y + y_bytes;
+    uint8_t *dst_v = dst_u + chroma_bytes;
+    return libyuv::I420Scale(in_y, in->width, in_u, in_chroma_width, in_v, in_chroma_width,
+                             in->width, in->height,
+                             dst_y, width, dst_u, chroma_width, dst_v, chroma_width,
+                             width, height, libyuv::kFilterBilinear);
+}
+
+/** @brief Scale RGBX8888 frame to specific size
+* @ingroup frame
+* @param in RGBX8888 frame
+* @param out RGBX8888 frame
+* @param width width of output frame
+* @param height height of output frame
+*/
+int uvc_rgbx_scale(uvc_frame_t *in, uvc_frame_t *out, int width, int height) {
+    if (in->frame_format != UVC_FRAME_FORMAT_RGBX || width <= 0 || height <= 0)
+        return UVC_ERROR_INVALID_PARAM;
+
+    if (uvc_ensure_frame_size(out, width * height * 4) < 0)
+        return UVC_ERROR_NO_MEM;
+
+    out->width = width;
+    out->height = height;
+    out->frame_format = UVC_FRAME_FORMAT_RGBX;
+    out->step = width * 4;
+    out->sequence = in->sequence;
+    out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
+    out->source = in->source;
+
+    // ARGBScale does not care the order of 4 channels
+    return libyuv::ARGBScale((const uint8_t *) in->data, in->step ? in->step : in->width * 4,
+                             in->width, in->height,
+                             (uint8_t *) out->data, out->step, width, height, libyuv::kFilterBilinear);
+}
@@ -13,6 +13,49 @@
 #define PIXEL_BGR            3
 #define PIXEL_RGBX            4
 
+/**
+ * MJPEG decoder that keeps TurboJPEG decompressor and the last parsed JPEG header
+ * between frames, so consecutive frames never initialize decompressor again.
+ * This class is not thread safe, each decoding thread should own its instance.
+ */
+class MJPEGDecoder {
+private:
+    tjhandle mTjInstance;
+    // last parsed JPEG header
+    int mWidth, mHeight;
+    int mSubsamp, mColorspace;
+    // work buffer for chroma planes when JPEG is not 4:2:0 subsampling
+    unsigned char *mPlaneBuf;
+    size_t mPlaneBufBytes;
+    // work buffer for I420 image decoded at reduced scale before scaling to the requested size
+    unsigned char *mScaleBuf;
+    size_t mScaleBufBytes;
+
+    int readHeader(const unsigned char *jpegBuf, unsigned long jpegSize);
+
+    int decodeToI420Planes(const unsigned char *jpegBuf, unsigned long jpegSize,
+        int width, int height, uint8_t *dst_y, uint8_t *dst_u, uint8_t *dst_v);
+
+public:
+    MJPEGDecoder();
+
+    ~MJPEGDecoder();
+
+    int init();
+
+    inline const int getSubsamp() const { return mSubsamp; }
+
+    inline const int getColorspace() const { return mColorspace; }
+
+    int decodeToRGBX(uvc_frame_t *in, uvc_frame_t *out);
+
+    int decodeToRGBX(uvc_frame_t *in, uint8_t *dst, int dst_stride);
+
+    int decodeToI420(uvc_frame_t *in, uvc_frame_t *out);
+
+    int decodeToI420Scaled(uvc_frame_t *in, int width, int height, uvc_frame_t *out);
+};
+
 int uvc_mjpeg2rgbx_tj(uvc_frame_t *in, uvc_frame_t *out);
 
 int uvc_mjpeg2rgbx_new(uvc_frame_t *in, uvc_frame_t *out);
@@ -30,4 +73,28 @@ int uvc_rgbx_to_rgb565(uvc_frame_t *in, uvc_frame_t *out);
 
 int uvc_rgbx_to_bgr(uvc_frame_t *in, uvc_frame_t *out);
 
+int uvc_i420_to_yuyv(uvc_frame_t *in, uvc_frame_t *out);
+
+int uvc_i420_to_nv12(uvc_frame_t *in, uvc_frame_t *out);
+
+int uvc_i420_to_nv21(uvc_frame_t *in, uvc_frame_t *out);
+
+int uvc_i420_to_rgb(uvc_frame_t *in, uvc_frame_t *out);
+
+int uvc_i420_to_rgb565(uvc_frame_t *in, uvc_frame_t *out);
+
+int uvc_i420_to_rgbx(uvc_frame_t *in, uvc_frame_t *out);
+
+int uvc_i420_to_bgr(uvc_frame_t *in, uvc_frame_t *out);
+
+int uvc_yuyv_to_i420(uvc_frame_t *in, uvc_frame_t *out);
+
+int uvc_yuyv_to_nv12(uvc_frame_t *in, uvc_frame_t *out);
+
+int uvc_yuyv_to_nv21(uvc_frame_t *in, uvc_frame_t *out);
+
+int uvc_i420_scale(uvc_frame_t *in, uvc_frame_t *out, int width, int height);
+
+int uvc_rgbx_scale(uvc_frame_t *in, uvc_frame_t *out, int width, int height);
+
 #endif //UVC_CAMERA_CONVERTHELPER_H
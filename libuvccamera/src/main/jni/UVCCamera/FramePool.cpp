@@ -0,0 +1,210 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: FramePool.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+#if 1    // set 0 if you need debug log, otherwise set 1
+#ifndef LOG_NDEBUG
+#define LOG_NDEBUG
+#endif
+#undef USE_LOGALL
+#else
+#define USE_LOGALL
+#undef LOG_NDEBUG
+#undef NDEBUG
+#endif
+
+#include <time.h>
+#include "utilbase.h"
+#include "FramePool.h"
+
+// max number of frames kept in the free list of each bucket
+#define FRAME_POOL_MAX_FRAMES 32
+// number of spare frames kept on top of the peak usage when trimming
+#define FRAME_POOL_SPARE_FRAMES 2
+// interval to release frames that were not used
+#define FRAME_POOL_TRIM_INTERVAL_MS 10000
+
+static inline int64_t now_ms() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t) ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
+FramePool::FramePool()
+        : mLastTrimMs(now_ms()) {
+    for (int i = 0; i < FRAME_BUCKET_NUM; i++) {
+        bucket_t &bucket = mBuckets[i];
+        bucket.frames = new MPMCRingBuffer<uvc_frame_t *>(FRAME_POOL_MAX_FRAMES);
+        bucket.allocated = bucket.inUse = bucket.windowPeak = bucket.highWater = 0;
+        bucket.allocations = bucket.releases = 0;
+    }
+}
+
+FramePool::~FramePool() {
+    clear();
+    for (int i = 0; i < FRAME_BUCKET_NUM; i++) {
+        SAFE_DELETE(mBuckets[i].frames);
+    }
+}
+
+/*public*/
+uvc_frame_t *FramePool::obtain(const frame_bucket_t which, const size_t data_bytes) {
+    bucket_t &bucket = mBuckets[which];
+    uvc_frame_t *frame = bucket.frames->poll();
+    if (UNLIKELY(!frame)) {
+        frame = uvc_allocate_frame(data_bytes);
+        if (UNLIKELY(!frame)) {
+            LOGE("failed to allocate frame");
+            return NULL;
+        }
+        frame->user_tag = which;
+        __atomic_add_fetch(&bucket.allocated, 1, __ATOMIC_RELAXED);
+        __atomic_add_fetch(&bucket.allocations, 1, __ATOMIC_RELAXED);
+        LOGD("allocate new frame:bucket=%d,allocated=%d", which, bucket.allocated);
+    } else if (UNLIKELY(frame->capacity_bytes < data_bytes)) {
+        __atomic_add_fetch(&bucket.allocations, 1, __ATOMIC_RELAXED);
+    }
+    if (UNLIKELY(uvc_ensure_frame_size(frame, data_bytes))) {
+        releaseFrame(bucket, frame);
+        return NULL;
+    }
+    // update high water marks
+    const int32_t in_use = __atomic_add_fetch(&bucket.inUse, 1, __ATOMIC_RELAXED);
+    int32_t peak = __atomic_load_n(&bucket.windowPeak, __ATOMIC_RELAXED);
+    while ((in_use > peak)
+        && !__atomic_compare_exchange_n(&bucket.windowPeak, &peak, in_use, true, __ATOMIC_RELAXED, __ATOMIC_RELAXED)) {}
+    peak = __atomic_load_n(&bucket.highWater, __ATOMIC_RELAXED);
+    while ((in_use > peak)
+        && !__atomic_compare_exchange_n(&bucket.highWater, &peak, in_use, true, __ATOMIC_RELAXED, __ATOMIC_RELAXED)) {}
+
+    return frame;
+}
+
+/*public*/
+void FramePool::recycle(uvc_frame_t *frame) {
+    if (UNLIKELY(!frame)) return;
+    const int which = frame->user_tag < FRAME_BUCKET_NUM ? frame->user_tag : FRAME_BUCKET_DECODED;
+    bucket_t &bucket = mBuckets[which];
+    __atomic_sub_fetch(&bucket.inUse, 1, __ATOMIC_RELAXED);
+    if (UNLIKELY(!bucket.frames->offer(frame))) {
+        releaseFrame(bucket, frame);
+    }
+}
+
+/**
+ * allocate frames beforehand so that streaming does not need to allocate them
+ */
+/*public*/
+void FramePool::prepare(const frame_bucket_t which, const int num_frames, const size_t data_bytes) {
+    ENTER();
+
+    bucket_t &bucket = mBuckets[which];
+    for (int i = bucket.allocated; i < num_frames; i++) {
+        uvc_frame_t *frame = uvc_allocate_frame(data_bytes);
+        if (UNLIKELY(!frame)) break;
+        frame->user_tag = which;
+        __atomic_add_fetch(&bucket.allocated, 1, __ATOMIC_RELAXED);
+        __atomic_add_fetch(&bucket.allocations, 1, __ATOMIC_RELAXED);
+        if (UNLIKELY(!bucket.frames->offer(frame))) {
+            releaseFrame(bucket, frame);
+            break;
+        }
+    }
+
+    EXIT();
+}
+
+/**
+ * release all pooled frames, frames in use are returned to the pool when they are recycled
+ */
+/*public*/
+void FramePool::clear() {
+    ENTER();
+
+    uvc_frame_t *frame;
+    for (int i = 0; i < FRAME_BUCKET_NUM; i++) {
+        bucket_t &bucket = mBuckets[i];
+        while ((frame = bucket.frames->poll()) != NULL) {
+            releaseFrame(bucket, frame);
+        }
+    }
+
+    EXIT();
+}
+
+/**
+ * copy counters of all buckets
+ * @param counters array with FRAME_BUCKET_NUM * FRAME_POOL_COUNTER_NUM elements
+ * @return number of elements copied
+ */
+/*public*/
+int FramePool::getCounters(int *counters, const int num) {
+    int n = 0;
+    for (int i = 0; i < FRAME_BUCKET_NUM; i++) {
+        const bucket_t &bucket = mBuckets[i];
+        const int values[FRAME_POOL_COUNTER_NUM] = {
+            __atomic_load_n(&bucket.allocated, __ATOMIC_RELAXED),
+            (int) bucket.frames->size(),
+            __atomic_load_n(&bucket.inUse, __ATOMIC_RELAXED),
+            __atomic_load_n(&bucket.highWater, __ATOMIC_RELAXED),
+            __atomic_load_n(&bucket.allocations, __ATOMIC_RELAXED),
+            __atomic_load_n(&bucket.releases, __ATOMIC_RELAXED),
+        };
+        for (int j = 0; (j < FRAME_POOL_COUNTER_NUM) && (n < num); j++) {
+            counters[n++] = values[j];
+        }
+    }
+    return n;
+}
+
+/*private*/
+void FramePool::releaseFrame(bucket_t &bucket, uvc_frame_t *frame) {
+    uvc_free_frame(frame);
+    __atomic_sub_fetch(&bucket.allocated, 1, __ATOMIC_RELAXED);
+    __atomic_add_fetch(&bucket.releases, 1, __ATOMIC_RELAXED);
+}
+
+/**
+ * release frames more than the peak usage during the last trim interval,
+ * only one caller actually trims even if this is called from multiple threads
+ */
+/*public*/
+void FramePool::trimIfIdle() {
+    const int64_t now = now_ms();
+    int64_t last = __atomic_load_n(&mLastTrimMs, __ATOMIC_RELAXED);
+    if (LIKELY(now - last < FRAME_POOL_TRIM_INTERVAL_MS)
+        || !__atomic_compare_exchange_n(&mLastTrimMs, &last, now, false, __ATOMIC_RELAXED, __ATOMIC_RELAXED)) {
+        return;
+    }
+    for (int i = 0; i < FRAME_BUCKET_NUM; i++) {
+        trim(mBuckets[i]);
+    }
+}
+
+/*private*/
+void FramePool::trim(bucket_t &bucket) {
+    // start new interval
+    const int32_t peak = __atomic_exchange_n(&bucket.windowPeak,
+        __atomic_load_n(&bucket.inUse, __ATOMIC_RELAXED), __ATOMIC_RELAXED);
+    const int32_t keep = peak + FRAME_POOL_SPARE_FRAMES;
+    uvc_frame_t *frame;
+    while ((__atomic_load_n(&bucket.allocated, __ATOMIC_RELAXED) > keep)
+        && ((frame = bucket.frames->poll()) != NULL)) {
+        releaseFrame(bucket, frame);
+    }
+}
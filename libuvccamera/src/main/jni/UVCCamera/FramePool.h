@@ -0,0 +1,97 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: FramePool.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+#ifndef FRAMEPOOL_H_
+#define FRAMEPOOL_H_
+
+#include "libUVCCamera.h"
+#include "ringbuffer.h"
+
+/**
+ * frame buckets, frames of different usage(and size) never share the same free list
+ * these values should be same as UVCCamera#FRAME_POOL_BUCKET_XXX on Java side
+ */
+typedef enum frame_bucket {
+    // frames assembled from payloads, MJPEG/YUYV etc. as is
+    FRAME_BUCKET_COMPRESSED = 0,
+    // frames decoded/converted for preview and capture
+    FRAME_BUCKET_DECODED,
+    // frames converted for IFrameCallback
+    FRAME_BUCKET_CALLBACK,
+    FRAME_BUCKET_NUM,
+} frame_bucket_t;
+
+/**
+ * counters of each bucket,
+ * these values should be same as UVCCamera#FRAME_POOL_COUNTER_XXX on Java side
+ */
+enum {
+    // number of frames currently allocated(in use + pooled)
+    FRAME_POOL_COUNTER_ALLOCATED = 0,
+    // number of frames currently in the free list
+    FRAME_POOL_COUNTER_POOLED,
+    // number of frames currently in use
+    FRAME_POOL_COUNTER_IN_USE,
+    // max number of frames in use at once since the pool was created
+    FRAME_POOL_COUNTER_HIGH_WATER,
+    // total number of heap allocations(including reallocation to grow frame)
+    FRAME_POOL_COUNTER_ALLOCATIONS,
+    // total number of frames released to heap
+    FRAME_POOL_COUNTER_RELEASES,
+    FRAME_POOL_COUNTER_NUM,
+};
+
+/**
+ * size bucketed pool of uvc_frame_t
+ * The free list of each bucket grows up to its high water mark on demand and
+ * frames which were not used during the last trim interval are released to heap.
+ * obtain/recycle are lock free and can be called from any thread,
+ * trimIfIdle frees memory and should be called from a thread that is allowed to block a while.
+ */
+class FramePool {
+private:
+    typedef struct bucket {
+        MPMCRingBuffer<uvc_frame_t *> *frames;
+        volatile int32_t allocated;
+        volatile int32_t inUse;
+        // max number of frames in use during current trim interval
+        volatile int32_t windowPeak;
+        volatile int32_t highWater;
+        volatile int32_t allocations;
+        volatile int32_t releases;
+    } bucket_t;
+
+    bucket_t mBuckets[FRAME_BUCKET_NUM];
+    volatile int64_t mLastTrimMs;
+
+    void releaseFrame(bucket_t &bucket, uvc_frame_t *frame);
+    void trim(bucket_t &bucket);
+public:
+    FramePool();
+    ~FramePool();
+
+    uvc_frame_t *obtain(const frame_bucket_t bucket, const size_t data_bytes);
+    void recycle(uvc_frame_t *frame);
+    void prepare(const frame_bucket_t bucket, const int num_frames, const size_t data_bytes);
+    void clear();
+    void trimIfIdle();
+    int getCounters(int *counters, const int num);
+};
+
+#endif // FRAMEPOOL_H_
@@ -446,3 +446,88 @@ char *UVCDiags::getSupportedFormats(const uvc_device_handle_t *deviceHandle) {
 	writer.EndObject();
 	RETURN(strdup(buffer.GetString()), char *);
 }
+
+/**
+ * put value into the array if it is not NULL, and return next position
+ */
+static inline int put(int32_t *array, int pos, int32_t value) {
+	if (array) {
+		array[pos] = value;
+	}
+	return pos + 1;
+}
+
+/**
+ * pack supported formats(MJPEG and uncompressed) into the array,
+ * count only if array is NULL
+ * @return number of values
+ */
+static int packSupportedFormats(const uvc_device_handle_t *deviceHandle, int32_t *array) {
+	uvc_streaming_interface_t *stream_if;
+	uvc_format_desc_t *fmt_desc;
+	uvc_frame_desc_t *frame_desc;
+	uint32_t *interval_ptr;
+	int pos = 0, format_num_pos, frame_num_pos, interval_num_pos;
+	int32_t format_num = 0, frame_num, interval_num;
+
+	pos = put(array, pos, SUPPORTED_FORMAT_ARRAY_VERSION);
+	format_num_pos = pos++;
+	DL_FOREACH(deviceHandle->info->stream_ifs, stream_if)
+	{
+		DL_FOREACH(stream_if->format_descs, fmt_desc)
+		{
+			switch (fmt_desc->bDescriptorSubtype) {
+			case UVC_VS_FORMAT_UNCOMPRESSED:
+			case UVC_VS_FORMAT_MJPEG:
+				format_num++;
+				pos = put(array, pos, fmt_desc->bFormatIndex);
+				pos = put(array, pos, fmt_desc->bDescriptorSubtype);
+				frame_num_pos = pos++;
+				frame_num = 0;
+				DL_FOREACH(fmt_desc->frame_descs, frame_desc)
+				{
+					frame_num++;
+					pos = put(array, pos, frame_desc->bDescriptorSubtype);
+					pos = put(array, pos, frame_desc->wWidth);
+					pos = put(array, pos, frame_desc->wHeight);
+					pos = put(array, pos, frame_desc->dwDefaultFrameInterval);
+					interval_num_pos = pos++;
+					interval_num = 0;
+					// continuous frame intervals are not listed, default frame interval is used
+					if (frame_desc->bFrameIntervalType && frame_desc->intervals) {
+						for (interval_ptr = frame_desc->intervals; *interval_ptr; ++interval_ptr) {
+							interval_num++;
+							pos = put(array, pos, *interval_ptr);
+						}
+					}
+					put(array, interval_num_pos, interval_num);
+				}
+				put(array, frame_num_pos, frame_num);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+	put(array, format_num_pos, format_num);
+	return pos;
+}
+
+/**
+ * get supported formats as a compact int array instead of JSON string
+ * @param num number of values in the returned array
+ * @return array allocated with malloc, caller should free it, NULL on error
+ */
+int32_t *UVCDiags::getSupportedFormatArray(const uvc_device_handle_t *deviceHandle, int *num) {
+	ENTER();
+	int32_t *result = NULL;
+	*num = 0;
+	if (deviceHandle->info->stream_ifs) {
+		const int n = packSupportedFormats(deviceHandle, NULL);
+		result = (int32_t *) malloc(sizeof(int32_t) * n);
+		if (LIKELY(result)) {
+			*num = packSupportedFormats(deviceHandle, result);
+		}
+	}
+	RETURN(result, int32_t *);
+}
@@ -28,6 +28,15 @@
 
 #include "libUVCCamera.h"
 
+/**
+ * version of the array made by UVCDiags::getSupportedFormatArray,
+ * this value should be same as SupportedFormats#VERSION on Java side
+ * [version, format_num,
+ *   {format_index, format_subtype, frame_num,
+ *     {frame_subtype, width, height, default_frame_interval, interval_num, {interval}...}...}...]
+ */
+#define SUPPORTED_FORMAT_ARRAY_VERSION 1
+
 class UVCDiags {
 private:
 public:
@@ -36,6 +45,7 @@ public:
 	char *getDescriptions(const uvc_device_handle_t *deviceHandle);
 	char *getCurrentStream(const uvc_stream_ctrl_t *ctrl);
 	char *getSupportedFormats(const uvc_device_handle_t *deviceHandle);
+	int32_t *getSupportedFormatArray(const uvc_device_handle_t *deviceHandle, int *num);
 };
 
 #endif /* PARAMETERS_H_ */
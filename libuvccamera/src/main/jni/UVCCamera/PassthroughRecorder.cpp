@@ -0,0 +1,631 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: PassthroughRecorder.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+#if 1    // set 0 if you need debug log, otherwise set 1
+#ifndef LOG_NDEBUG
+#define LOG_NDEBUG
+#endif
+#undef USE_LOGALL
+#else
+#define USE_LOGALL
+#undef LOG_NDEBUG
+#undef NDEBUG
+#endif
+
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <time.h>
+#include <sys/uio.h>
+#include "utilbase.h"
+#include "PassthroughRecorder.h"
+
+// EBML/Matroska element IDs
+#define EBML_ID_HEADER              0x1A45DFA3
+#define EBML_ID_VERSION             0x4286
+#define EBML_ID_READ_VERSION        0x42F7
+#define EBML_ID_MAX_ID_LENGTH       0x42F2
+#define EBML_ID_MAX_SIZE_LENGTH     0x42F3
+#define EBML_ID_DOCTYPE             0x4282
+#define EBML_ID_DOCTYPE_VERSION     0x4287
+#define EBML_ID_DOCTYPE_READ_VERSION 0x4285
+#define EBML_ID_VOID                0xEC
+#define MKV_ID_SEGMENT              0x18538067
+#define MKV_ID_SEEKHEAD             0x114D9B74
+#define MKV_ID_SEEK                 0x4DBB
+#define MKV_ID_SEEK_ID              0x53AB
+#define MKV_ID_SEEK_POSITION        0x53AC
+#define MKV_ID_INFO                 0x1549A966
+#define MKV_ID_TIMECODE_SCALE       0x2AD7B1
+#define MKV_ID_DURATION             0x4489
+#define MKV_ID_MUXING_APP           0x4D80
+#define MKV_ID_WRITING_APP          0x5741
+#define MKV_ID_TRACKS               0x1654AE6B
+#define MKV_ID_TRACK_ENTRY          0xAE
+#define MKV_ID_TRACK_NUMBER         0xD7
+#define MKV_ID_TRACK_UID            0x73C5
+#define MKV_ID_TRACK_TYPE           0x83
+#define MKV_ID_FLAG_LACING          0x9C
+#define MKV_ID_CODEC_ID             0x86
+#define MKV_ID_DEFAULT_DURATION     0x23E383
+#define MKV_ID_VIDEO                0xE0
+#define MKV_ID_PIXEL_WIDTH          0xB0
+#define MKV_ID_PIXEL_HEIGHT         0xBA
+#define MKV_ID_CLUSTER              0x1F43B675
+#define MKV_ID_TIMECODE             0xE7
+#define MKV_ID_SIMPLE_BLOCK         0xA3
+#define MKV_ID_CUES                 0x1C53BB6B
+#define MKV_ID_CUE_POINT            0xBB
+#define MKV_ID_CUE_TIME             0xB3
+#define MKV_ID_CUE_TRACK_POSITIONS  0xB7
+#define MKV_ID_CUE_TRACK            0xF7
+#define MKV_ID_CUE_CLUSTER_POSITION 0xF1
+
+// 1 timecode = 1 millisecond
+#define TIMECODE_SCALE 1000000
+// a new cluster starts every this interval, this is also granularity of seeking
+#define CLUSTER_DURATION_MS 1000
+// space reserved for SeekHead which is written when the recording finishes
+#define SEEKHEAD_RESERVED_BYTES 96
+// all value bits 1 means unknown size, used until the actual size is patched
+#define EBML_UNKNOWN_SIZE 0x00FFFFFFFFFFFFFFULL
+#define HEADER_BUF_SZ 512
+
+/**
+ * small buffer to build EBML elements
+ */
+typedef struct ebml_buf {
+    uint8_t data[HEADER_BUF_SZ];
+    size_t pos;
+} ebml_buf_t;
+
+static void ebml_put_id(ebml_buf_t *buf, uint32_t id) {
+    int len = id >= 0x1000000 ? 4 : (id >= 0x10000 ? 3 : (id >= 0x100 ? 2 : 1));
+    for (int i = len - 1; i >= 0; i--) {
+        buf->data[buf->pos++] = (uint8_t) (id >> (i * 8));
+    }
+}
+
+static int ebml_size_len(uint64_t size) {
+    int len = 1;
+    // all bits 1 is reserved for unknown size
+    while ((len < 8) && (size >= (1ULL << (7 * len)) - 1)) {
+        len++;
+    }
+    return len;
+}
+
+static void ebml_put_size(ebml_buf_t *buf, uint64_t size, int len) {
+    size |= 1ULL << (7 * len);
+    for (int i = len - 1; i >= 0; i--) {
+        buf->data[buf->pos++] = (uint8_t) (size >> (i * 8));
+    }
+}
+
+static void ebml_put_uint(ebml_buf_t *buf, uint32_t id, uint64_t value) {
+    int len = 1;
+    while ((len < 8) && (value >> (len * 8))) {
+        len++;
+    }
+    ebml_put_id(buf, id);
+    ebml_put_size(buf, len, 1);
+    for (int i = len - 1; i >= 0; i--) {
+        buf->data[buf->pos++] = (uint8_t) (value >> (i * 8));
+    }
+}
+
+// unsigned integer with fixed 8 bytes so that it can be patched later
+static void ebml_put_uint64(ebml_buf_t *buf, uint32_t id, uint64_t value) {
+    ebml_put_id(buf, id);
+    ebml_put_size(buf, 8, 1);
+    for (int i = 7; i >= 0; i--) {
+        buf->data[buf->pos++] = (uint8_t) (value >> (i * 8));
+    }
+}
+
+static void ebml_put_double(ebml_buf_t *buf, uint32_t id, double value) {
+    uint64_t v;
+    memcpy(&v, &value, sizeof(v));
+    ebml_put_uint64(buf, id, v);
+}
+
+static void ebml_put_string(ebml_buf_t *buf, uint32_t id, const char *value) {
+    const size_t len = strlen(value);
+    ebml_put_id(buf, id);
+    ebml_put_size(buf, len, ebml_size_len(len));
+    memcpy(buf->data + buf->pos, value, len);
+    buf->pos += len;
+}
+
+/**
+ * start master element whose size is patched by ebml_end_master
+ * @return position of the size field
+ */
+static size_t ebml_start_master(ebml_buf_t *buf, uint32_t id) {
+    ebml_put_id(buf, id);
+    const size_t pos = buf->pos;
+    buf->pos += 8;
+    return pos;
+}
+
+static void ebml_end_master(ebml_buf_t *buf, size_t size_pos) {
+    const size_t pos = buf->pos;
+    buf->pos = size_pos;
+    ebml_put_size(buf, pos - size_pos - 8, 8);
+    buf->pos = pos;
+}
+
+// Void element which fills exactly bytes(>= 9)
+static void ebml_put_void(ebml_buf_t *buf, size_t bytes) {
+    ebml_put_id(buf, EBML_ID_VOID);
+    ebml_put_size(buf, bytes - 9, 8);
+    memset(buf->data + buf->pos, 0, bytes - 9);
+    buf->pos += bytes - 9;
+}
+
+static inline int64_t timespec_to_ns(const struct timespec &ts) {
+    return (int64_t) ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+PassthroughRecorder::PassthroughRecorder(FramePool *pool)
+    :   mFramePool(pool),
+        mIsRecording(false),
+        mThread(0),
+        mQueue(RECORDER_QUEUE_SZ),
+        mFd(-1),
+        mError(0),
+        mWidth(0), mHeight(0), mFps(0),
+        mPos(0),
+        mSegmentPos(0),
+        mSeekHeadPos(0),
+        mInfoPos(0), mTracksPos(0),
+        mDurationPos(0),
+        mClusterPos(0),
+        mClusterTime(0),
+        mFirstTimeNs(-1),
+        mLastTime(0),
+        mFrames(0),
+        mDropped(0),
+        mCues(NULL),
+        mCueNum(0), mCueCapacity(0) {
+
+    ENTER();
+    pthread_mutex_init(&mLock, NULL);
+    EXIT();
+}
+
+PassthroughRecorder::~PassthroughRecorder() {
+    ENTER();
+    stop();
+    pthread_mutex_destroy(&mLock);
+    EXIT();
+}
+
+/**
+ * start recording
+ * @param fd file descriptor to write to, this is duplicated and the caller keeps the original one
+ * @param width width of frames
+ * @param height height of frames
+ * @param fps nominal frame rate, only used as a hint for players
+ */
+int PassthroughRecorder::start(int fd, int width, int height, int fps) {
+    ENTER();
+    int result = UVC_ERROR_BUSY;
+    pthread_mutex_lock(&mLock);
+    if (!mIsRecording) {
+        mFd = fcntl(fd, F_DUPFD_CLOEXEC, 0);
+        if (LIKELY(mFd >= 0)) {
+            mError = 0;
+            mWidth = width;
+            mHeight = height;
+            mFps = fps;
+            mClusterPos = 0;
+            mClusterTime = 0;
+            mFirstTimeNs = -1;
+            mLastTime = 0;
+            mFrames = mDropped = 0;
+            mCueNum = 0;
+            // write from the current position, the file may not be seekable to the start
+            const off64_t pos = lseek64(mFd, 0, SEEK_CUR);
+            mPos = pos > 0 ? (uint64_t) pos : 0;
+            result = write_header();
+            if (LIKELY(!result)) {
+                mSignal.reset();
+                mIsRecording = true;
+                if (UNLIKELY(pthread_create(&mThread, NULL, writer_thread_func, (void *) this))) {
+                    mIsRecording = false;
+                    mThread = 0;
+                    result = UVC_ERROR_OTHER;
+                } else {
+                    pthread_setname_np(mThread, "recorder_thread");
+                }
+            }
+            if (UNLIKELY(result)) {
+                close(mFd);
+                mFd = -1;
+            }
+        } else {
+            LOGE("failed to duplicate fd:errno=%d", errno);
+            result = UVC_ERROR_INVALID_PARAM;
+        }
+    }
+    pthread_mutex_unlock(&mLock);
+    RETURN(result, int);
+}
+
+/**
+ * stop recording, frames already queued are written before the file is finished
+ * @return 0 if the file was written successfully
+ */
+int PassthroughRecorder::stop() {
+    ENTER();
+    int result = 0;
+    pthread_mutex_lock(&mLock);
+    const bool recording = mIsRecording;
+    // addFrame never queues frames after this
+    mIsRecording = false;
+    pthread_mutex_unlock(&mLock);
+    if (recording) {
+        mSignal.close();
+        if (mThread && pthread_join(mThread, NULL) != EXIT_SUCCESS) {
+            LOGW("PassthroughRecorder::terminate writer thread: pthread_join failed");
+        }
+        mThread = 0;
+        // write frames which were queued after the writer thread finished
+        for (uvc_frame_t *frame = mQueue.poll(); frame; frame = mQueue.poll()) {
+            if (LIKELY(!mError)) {
+                mError = write_frame(frame);
+            }
+            mFramePool->recycle(frame);
+        }
+        if (LIKELY(!mError)) {
+            mError = finish();
+        }
+        if (fdatasync(mFd) && (errno != EINVAL) && (errno != EROFS)) {
+            LOGW("fdatasync failed:errno=%d", errno);
+        }
+        close(mFd);
+        mFd = -1;
+        LOGI("recording finished:frames=%u,dropped=%u,err=%d", mFrames, mDropped, mError);
+        result = mError;
+    }
+    release_queue();
+    SAFE_FREE(mCues);
+    mCueNum = mCueCapacity = 0;
+    RETURN(result, int);
+}
+
+/**
+ * queue copy of MJPEG frame to write, the frame is dropped if the writer thread is behind.
+ * this is called from the preview thread
+ */
+void PassthroughRecorder::addFrame(uvc_frame_t *frame) {
+    if (LIKELY(!mIsRecording)) {
+        return;
+    }
+    pthread_mutex_lock(&mLock);
+    if (LIKELY(mIsRecording)) {
+        bool queued = false;
+        uvc_frame_t *copy = mFramePool->obtain(FRAME_BUCKET_COMPRESSED, frame->data_bytes);
+        if (LIKELY(copy)) {
+            queued = !uvc_duplicate_frame(frame, copy) && mQueue.offer(copy);
+            if (LIKELY(queued)) {
+                mSignal.signal();
+            } else {
+                mFramePool->recycle(copy);
+            }
+        }
+        if (UNLIKELY(!queued)) {
+            mDropped++;
+        }
+    }
+    pthread_mutex_unlock(&mLock);
+}
+
+void PassthroughRecorder::release_queue() {
+    for (uvc_frame_t *frame = mQueue.poll(); frame; frame = mQueue.poll()) {
+        mFramePool->recycle(frame);
+    }
+}
+
+// static
+void *PassthroughRecorder::writer_thread_func(void *vptr_args) {
+    ENTER();
+    PassthroughRecorder *recorder = reinterpret_cast<PassthroughRecorder *>(vptr_args);
+    if (LIKELY(recorder)) {
+        recorder->do_write();
+    }
+    PRE_EXIT();
+    pthread_exit(NULL);
+}
+
+void PassthroughRecorder::do_write() {
+    ENTER();
+
+    for (; LIKELY(mIsRecording);) {
+        uvc_frame_t *frame = mQueue.poll();
+        if (!frame) {
+            mSignal.wait();
+            continue;
+        }
+        if (LIKELY(!mError)) {
+            mError = write_frame(frame);
+            if (UNLIKELY(mError)) {
+                LOGE("failed to write frame:err=%d", mError);
+            }
+        }
+        mFramePool->recycle(frame);
+    }
+
+    EXIT();
+}
+
+int PassthroughRecorder::write_bytes(const void *data, size_t bytes) {
+    const uint8_t *p = (const uint8_t *) data;
+    while (bytes > 0) {
+        const ssize_t n = write(mFd, p, bytes);
+        if (UNLIKELY(n < 0)) {
+            if (errno == EINTR) continue;
+            LOGE("write failed:errno=%d", errno);
+            return UVC_ERROR_IO;
+        }
+        p += n;
+        bytes -= n;
+        mPos += n;
+    }
+    return 0;
+}
+
+int PassthroughRecorder::pwrite_bytes(const void *data, size_t bytes, uint64_t pos) {
+    const uint8_t *p = (const uint8_t *) data;
+    while (bytes > 0) {
+        const ssize_t n = pwrite64(mFd, p, bytes, (off64_t) pos);
+        if (UNLIKELY(n < 0)) {
+            if (errno == EINTR) continue;
+            LOGE("pwrite failed:errno=%d", errno);
+            return UVC_ERROR_IO;
+        }
+        p += n;
+        bytes -= n;
+        pos += n;
+    }
+    return 0;
+}
+
+/**
+ * write EBML header, start of segment, space for SeekHead, Info and Tracks
+ */
+int PassthroughRecorder::write_header() {
+    ebml_buf_t buf;
+    buf.pos = 0;
+    size_t master = ebml_start_master(&buf, EBML_ID_HEADER);
+    ebml_put_uint(&buf, EBML_ID_VERSION, 1);
+    ebml_put_uint(&buf, EBML_ID_READ_VERSION, 1);
+    ebml_put_uint(&buf, EBML_ID_MAX_ID_LENGTH, 4);
+    ebml_put_uint(&buf, EBML_ID_MAX_SIZE_LENGTH, 8);
+    ebml_put_string(&buf, EBML_ID_DOCTYPE, "matroska");
+    ebml_put_uint(&buf, EBML_ID_DOCTYPE_VERSION, 4);
+    ebml_put_uint(&buf, EBML_ID_DOCTYPE_READ_VERSION, 2);
+    ebml_end_master(&buf, master);
+    // size of the segment is patched when finished
+    ebml_put_id(&buf, MKV_ID_SEGMENT);
+    ebml_put_size(&buf, EBML_UNKNOWN_SIZE, 8);
+    mSegmentPos = mPos + buf.pos;
+    mSeekHeadPos = mSegmentPos;
+    ebml_put_void(&buf, SEEKHEAD_RESERVED_BYTES);
+    // Info
+    mInfoPos = mPos + buf.pos;
+    master = ebml_start_master(&buf, MKV_ID_INFO);
+    ebml_put_uint(&buf, MKV_ID_TIMECODE_SCALE, TIMECODE_SCALE);
+    ebml_put_string(&buf, MKV_ID_MUXING_APP, "UVCCamera");
+    ebml_put_string(&buf, MKV_ID_WRITING_APP, "UVCCamera");
+    mDurationPos = mPos + buf.pos + 3;  // ID(2 bytes) + size(1 byte)
+    ebml_put_double(&buf, MKV_ID_DURATION, 0.0);
+    ebml_end_master(&buf, master);
+    // Tracks
+    mTracksPos = mPos + buf.pos;
+    master = ebml_start_master(&buf, MKV_ID_TRACKS);
+    const size_t entry = ebml_start_master(&buf, MKV_ID_TRACK_ENTRY);
+    ebml_put_uint(&buf, MKV_ID_TRACK_NUMBER, 1);
+    ebml_put_uint(&buf, MKV_ID_TRACK_UID, 1);
+    ebml_put_uint(&buf, MKV_ID_TRACK_TYPE, 1);   // video
+    ebml_put_uint(&buf, MKV_ID_FLAG_LACING, 0);
+    ebml_put_string(&buf, MKV_ID_CODEC_ID, "V_MJPEG");
+    if (mFps > 0) {
+        ebml_put_uint(&buf, MKV_ID_DEFAULT_DURATION, 1000000000ULL / mFps);
+    }
+    const size_t video = ebml_start_master(&buf, MKV_ID_VIDEO);
+    ebml_put_uint(&buf, MKV_ID_PIXEL_WIDTH, mWidth);
+    ebml_put_uint(&buf, MKV_ID_PIXEL_HEIGHT, mHeight);
+    ebml_end_master(&buf, video);
+    ebml_end_master(&buf, entry);
+    ebml_end_master(&buf, master);
+    return write_bytes(buf.data, buf.pos);
+}
+
+/**
+ * write a frame as SimpleBlock, new cluster starts every CLUSTER_DURATION_MS
+ */
+int PassthroughRecorder::write_frame(uvc_frame_t *frame) {
+    if (UNLIKELY(!frame->data_bytes)) {
+        return 0;
+    }
+    int64_t ns = timespec_to_ns(frame->capture_time_finished);
+    if (UNLIKELY(!ns)) {
+        struct timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        ns = timespec_to_ns(now);
+    }
+    if (mFirstTimeNs < 0) {
+        mFirstTimeNs = ns;
+    }
+    uint64_t time = ns > mFirstTimeNs ? (uint64_t) (ns - mFirstTimeNs) / TIMECODE_SCALE : 0;
+    if (time < mLastTime) {
+        // keep timecodes monotonic
+        time = mLastTime;
+    }
+    int result;
+    if (!mClusterPos || (time - mClusterTime >= CLUSTER_DURATION_MS)) {
+        result = close_cluster();
+        if (UNLIKELY(result)) return result;
+        ebml_buf_t buf;
+        buf.pos = 0;
+        mClusterPos = mPos;
+        mClusterTime = time;
+        add_cue(time, mClusterPos - mSegmentPos);
+        ebml_put_id(&buf, MKV_ID_CLUSTER);
+        ebml_put_size(&buf, EBML_UNKNOWN_SIZE, 8);
+        ebml_put_uint(&buf, MKV_ID_TIMECODE, time);
+        result = write_bytes(buf.data, buf.pos);
+        if (UNLIKELY(result)) return result;
+    }
+    // SimpleBlock header, track number(1), relative timecode(int16) and flags(keyframe)
+    ebml_buf_t buf;
+    buf.pos = 0;
+    const uint64_t block_bytes = 4 + frame->data_bytes;
+    ebml_put_id(&buf, MKV_ID_SIMPLE_BLOCK);
+    ebml_put_size(&buf, block_bytes, ebml_size_len(block_bytes));
+    const int16_t relative = (int16_t) (time - mClusterTime);
+    buf.data[buf.pos++] = 0x81;
+    buf.data[buf.pos++] = (uint8_t) (relative >> 8);
+    buf.data[buf.pos++] = (uint8_t) relative;
+    buf.data[buf.pos++] = 0x80;
+    struct iovec iov[2];
+    iov[0].iov_base = buf.data;
+    iov[0].iov_len = buf.pos;
+    iov[1].iov_base = frame->data;
+    iov[1].iov_len = frame->data_bytes;
+    const size_t total = buf.pos + frame->data_bytes;
+    ssize_t n;
+    do {
+        n = writev(mFd, iov, 2);
+    } while ((n < 0) && (errno == EINTR));
+    if (UNLIKELY(n < 0)) {
+        LOGE("writev failed:errno=%d", errno);
+        return UVC_ERROR_IO;
+    }
+    mPos += n;
+    if (UNLIKELY((size_t) n < total)) {
+        // write the rest
+        if ((size_t) n < buf.pos) {
+            result = write_bytes(buf.data + n, buf.pos - n);
+            if (UNLIKELY(result)) return result;
+            n = buf.pos;
+        }
+        result = write_bytes((uint8_t *) frame->data + (n - buf.pos), total - n);
+        if (UNLIKELY(result)) return result;
+    }
+    mLastTime = time;
+    mFrames++;
+    return 0;
+}
+
+/**
+ * patch the size of current cluster
+ */
+int PassthroughRecorder::close_cluster() {
+    int result = 0;
+    if (mClusterPos) {
+        ebml_buf_t buf;
+        buf.pos = 0;
+        ebml_put_size(&buf, mPos - mClusterPos - 12, 8);    // ID(4 bytes) + size(8 bytes)
+        result = pwrite_bytes(buf.data, buf.pos, mClusterPos + 4);
+        mClusterPos = 0;
+    }
+    return result;
+}
+
+void PassthroughRecorder::add_cue(uint64_t time, uint64_t position) {
+    if (mCueNum >= mCueCapacity) {
+        const uint32_t capacity = mCueCapacity ? mCueCapacity * 2 : 64;
+        recorder_cue_t *cues = (recorder_cue_t *) realloc(mCues, capacity * sizeof(recorder_cue_t));
+        if (UNLIKELY(!cues)) {
+            // the file is still playable without cue
+            return;
+        }
+        mCues = cues;
+        mCueCapacity = capacity;
+    }
+    mCues[mCueNum].time = time;
+    mCues[mCueNum].position = position;
+    mCueNum++;
+}
+
+/**
+ * write Cues and SeekHead, patch Duration and the size of segment
+ */
+int PassthroughRecorder::finish() {
+    int result = close_cluster();
+    if (UNLIKELY(result)) return result;
+    // Cues
+    const uint64_t cues_pos = mPos;
+    ebml_buf_t buf;
+    buf.pos = 0;
+    ebml_put_id(&buf, MKV_ID_CUES);
+    uint64_t cues_bytes = 0;
+    for (uint32_t i = 0; i < mCueNum; i++) {
+        // CuePoint(1 + 1) + CueTime(1 + 1 + 8) + CueTrackPositions(1 + 1 + CueTrack(3) + CueClusterPosition(10))
+        cues_bytes += 2 + 10 + 2 + 3 + 10;
+    }
+    ebml_put_size(&buf, cues_bytes, 8);
+    result = write_bytes(buf.data, buf.pos);
+    for (uint32_t i = 0; !result && (i < mCueNum); i++) {
+        buf.pos = 0;
+        ebml_put_id(&buf, MKV_ID_CUE_POINT);
+        ebml_put_size(&buf, 10 + 2 + 3 + 10, 1);
+        ebml_put_uint64(&buf, MKV_ID_CUE_TIME, mCues[i].time);
+        ebml_put_id(&buf, MKV_ID_CUE_TRACK_POSITIONS);
+        ebml_put_size(&buf, 3 + 10, 1);
+        ebml_put_uint(&buf, MKV_ID_CUE_TRACK, 1);
+        ebml_put_uint64(&buf, MKV_ID_CUE_CLUSTER_POSITION, mCues[i].position);
+        result = write_bytes(buf.data, buf.pos);
+    }
+    if (UNLIKELY(result)) return result;
+    // SeekHead into the reserved space
+    buf.pos = 0;
+    const size_t master = ebml_start_master(&buf, MKV_ID_SEEKHEAD);
+    const uint32_t ids[] = {MKV_ID_INFO, MKV_ID_TRACKS, MKV_ID_CUES};
+    const uint64_t positions[] = {mInfoPos, mTracksPos, cues_pos};
+    for (int i = 0; i < 3; i++) {
+        ebml_put_id(&buf, MKV_ID_SEEK);
+        ebml_put_size(&buf, 7 + 11, 1);
+        ebml_put_id(&buf, MKV_ID_SEEK_ID);
+        ebml_put_size(&buf, 4, 1);
+        ebml_put_id(&buf, ids[i]);
+        ebml_put_uint64(&buf, MKV_ID_SEEK_POSITION, positions[i] - mSegmentPos);
+    }
+    ebml_end_master(&buf, master);
+    ebml_put_void(&buf, SEEKHEAD_RESERVED_BYTES - buf.pos);
+    result = pwrite_bytes(buf.data, buf.pos, mSeekHeadPos);
+    if (UNLIKELY(result)) return result;
+    // Duration, the last frame lasts as long as the average frame interval
+    double duration = (double) mLastTime;
+    if (mFrames > 1) {
+        duration += (double) mLastTime / (mFrames - 1);
+    }
+    buf.pos = 0;
+    ebml_put_double(&buf, MKV_ID_DURATION, duration);
+    result = pwrite_bytes(buf.data + 3, 8, mDurationPos);
+    if (UNLIKELY(result)) return result;
+    // size of the segment
+    buf.pos = 0;
+    ebml_put_size(&buf, mPos - mSegmentPos, 8);
+    return pwrite_bytes(buf.data, buf.pos, mSegmentPos - 8);
+}
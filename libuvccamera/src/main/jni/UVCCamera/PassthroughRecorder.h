@@ -0,0 +1,101 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: PassthroughRecorder.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+#ifndef PASSTHROUGHRECORDER_H_
+#define PASSTHROUGHRECORDER_H_
+
+#include <pthread.h>
+#include "libUVCCamera.h"
+#include "ringbuffer.h"
+#include "FramePool.h"
+
+// max number of frames waiting to be written
+#define RECORDER_QUEUE_SZ 32
+
+typedef struct recorder_cue {
+    uint64_t time;          // timecode of the cluster in milliseconds
+    uint64_t position;      // position of the cluster relative to the segment data
+} recorder_cue_t;
+
+/**
+ * writes compressed MJPEG frames from the camera as is into a Matroska(V_MJPEG) file
+ * on its own thread, so recording needs neither decoding nor encoding.
+ * the capture time of each frame is kept as its timecode.
+ */
+class PassthroughRecorder {
+private:
+    FramePool *mFramePool;
+    pthread_mutex_t mLock;
+    volatile bool mIsRecording;
+    pthread_t mThread;
+    FutexSignal mSignal;
+    SPSCRingBuffer<uvc_frame_t *> mQueue;
+    int mFd;
+    int mError;
+    int mWidth, mHeight, mFps;
+    // file position, only accessed from writer thread while recording
+    uint64_t mPos;
+    uint64_t mSegmentPos;       // position of segment data
+    uint64_t mSeekHeadPos;      // position of space reserved for SeekHead
+    uint64_t mInfoPos, mTracksPos;
+    uint64_t mDurationPos;      // position of the value of Duration
+    uint64_t mClusterPos;       // position of current cluster, 0 if no cluster
+    uint64_t mClusterTime;
+    int64_t mFirstTimeNs;
+    uint64_t mLastTime;
+    uint32_t mFrames;
+    uint32_t mDropped;
+    recorder_cue_t *mCues;
+    uint32_t mCueNum, mCueCapacity;
+
+    static void *writer_thread_func(void *vptr_args);
+
+    void do_write();
+
+    int write_header();
+
+    int write_frame(uvc_frame_t *frame);
+
+    int close_cluster();
+
+    int finish();
+
+    int write_bytes(const void *data, size_t bytes);
+
+    int pwrite_bytes(const void *data, size_t bytes, uint64_t pos);
+
+    void add_cue(uint64_t time, uint64_t position);
+
+    void release_queue();
+
+public:
+    PassthroughRecorder(FramePool *pool);
+
+    ~PassthroughRecorder();
+
+    inline bool isRecording() const { return mIsRecording; }
+
+    int start(int fd, int width, int height, int fps);
+
+    int stop();
+
+    void addFrame(uvc_frame_t *frame);
+};
+
+#endif // PASSTHROUGHRECORDER_H_
@@ -174,6 +174,16 @@ char *UVCCamera::getSupportedFormats() {
     RETURN(NULL, char *);
 }
 
+int32_t *UVCCamera::getSupportedFormatArray(int *num) {
+    ENTER();
+    *num = 0;
+    if (mDeviceHandle) {
+        UVCDiags params;
+        RETURN(params.getSupportedFormatArray(mDeviceHandle, num), int32_t *)
+    }
+    RETURN(NULL, int32_t *);
+}
+
 int UVCCamera::setPreviewSize(int width, int height, jint frameType, jint fps) {
     ENTER();
     int result = EXIT_FAILURE;
@@ -192,11 +202,128 @@ int UVCCamera::setPreviewDisplay(ANativeWindow *preview_window) {
     RETURN(result, int);
 }
 
-int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
+int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format,
+    bool manual_release, int buffer_num) {
+    ENTER();
+    int result = EXIT_FAILURE;
+    if (mPreview) {
+        result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format, manual_release, buffer_num);
+    }
+    RETURN(result, int);
+}
+
+int UVCCamera::setAnalysisFrameCallback(JNIEnv *env, jobject frame_callback_obj,
+    int width, int height, int pixel_format) {
+    ENTER();
+    int result = EXIT_FAILURE;
+    if (mPreview) {
+        result = mPreview->setAnalysisFrameCallback(env, frame_callback_obj, width, height, pixel_format);
+    } else if (frame_callback_obj) {
+        env->DeleteGlobalRef(frame_callback_obj);
+    }
+    RETURN(result, int);
+}
+
+int UVCCamera::addFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format,
+    int width, int height, int max_fps) {
+    ENTER();
+    int result = EXIT_FAILURE;
+    if (mPreview) {
+        result = mPreview->addFrameCallback(env, frame_callback_obj, pixel_format, width, height, max_fps);
+    } else if (frame_callback_obj) {
+        env->DeleteGlobalRef(frame_callback_obj);
+    }
+    RETURN(result, int);
+}
+
+int UVCCamera::removeFrameCallback(JNIEnv *env, jobject frame_callback_obj) {
+    ENTER();
+    int result = EXIT_FAILURE;
+    if (mPreview) {
+        result = mPreview->removeFrameCallback(env, frame_callback_obj);
+    }
+    RETURN(result, int);
+}
+
+int UVCCamera::releaseFrame(JNIEnv *env, jobject frame) {
+    int result = EXIT_FAILURE;
+    if (mPreview) {
+        result = mPreview->releaseFrame(env, frame);
+    }
+    return result;
+}
+
+int UVCCamera::startPassthroughRecording(int fd) {
+    ENTER();
+    int result = EXIT_FAILURE;
+    if (mPreview) {
+        result = mPreview->startPassthroughRecording(fd);
+    }
+    RETURN(result, int);
+}
+
+int UVCCamera::stopPassthroughRecording() {
     ENTER();
     int result = EXIT_FAILURE;
     if (mPreview) {
-        result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format);
+        result = mPreview->stopPassthroughRecording();
+    }
+    RETURN(result, int);
+}
+
+jbyteArray UVCCamera::captureStillImage(JNIEnv *env, int timeout_ms) {
+    ENTER();
+    jbyteArray result = NULL;
+    if (mPreview) {
+        result = mPreview->captureStillImage(env, timeout_ms);
+    }
+    RETURN(result, jbyteArray);
+}
+
+int UVCCamera::setDecodeThreadNum(int thread_num) {
+    ENTER();
+    int result = EXIT_FAILURE;
+    if (mPreview) {
+        result = mPreview->setDecodeThreadNum(thread_num);
+    }
+    RETURN(result, int);
+}
+
+/**
+ * @return number of counters copied, or negative value on error
+ */
+int UVCCamera::getFramePoolCounters(int *counters, const int num) {
+    ENTER();
+    int result = -1;
+    if (mPreview) {
+        result = mPreview->getFramePoolCounters(counters, num);
+    }
+    RETURN(result, int);
+}
+
+int UVCCamera::getStatistics(int64_t *values, const int num) {
+    ENTER();
+    int result = -1;
+    if (mPreview) {
+        result = mPreview->getStatistics(values, num);
+    }
+    RETURN(result, int);
+}
+
+int UVCCamera::getStreamCtrl(uint8_t *buf, const size_t bytes) {
+    ENTER();
+    int result = -1;
+    if (mPreview) {
+        result = mPreview->getStreamCtrl(buf, bytes);
+    }
+    RETURN(result, int);
+}
+
+int UVCCamera::setStreamCtrl(const uint8_t *data, const size_t bytes) {
+    ENTER();
+    int result = -1;
+    if (mPreview) {
+        result = mPreview->setStreamCtrl(data, bytes);
     }
     RETURN(result, int);
 }
@@ -62,11 +62,40 @@ public:
 
     char *getSupportedFormats();
 
+    int32_t *getSupportedFormatArray(int *num);
+
     int setPreviewSize(int width, int height, int frameType, int fps);
 
     int setPreviewDisplay(ANativeWindow *preview_window);
 
-    int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+    int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format,
+        bool manual_release, int buffer_num);
+
+    int releaseFrame(JNIEnv *env, jobject frame);
+
+    int setAnalysisFrameCallback(JNIEnv *env, jobject frame_callback_obj,
+        int width, int height, int pixel_format);
+
+    int addFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format,
+        int width, int height, int max_fps);
+
+    int removeFrameCallback(JNIEnv *env, jobject frame_callback_obj);
+
+    int setDecodeThreadNum(int thread_num);
+
+    int startPassthroughRecording(int fd);
+
+    int stopPassthroughRecording();
+
+    jbyteArray captureStillImage(JNIEnv *env, int timeout_ms);
+
+    int getFramePoolCounters(int *counters, const int num);
+
+    int getStatistics(int64_t *values, const int num);
+
+    int getStreamCtrl(uint8_t *buf, const size_t bytes);
+
+    int setStreamCtrl(const uint8_t *data, const size_t bytes);
 
     int startPreview();
 
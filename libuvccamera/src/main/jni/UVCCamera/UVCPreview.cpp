@@ -23,8 +23,10 @@
 */
 
 #include <stdlib.h>
+#include <errno.h>
 #include <linux/time.h>
 #include <unistd.h>
+#include <dlfcn.h>
 
 #ifndef LOG_NDEBUG
 #define  LOCAL_DEBUG 1
@@ -38,8 +40,58 @@
 // RGBA_8888/RGBX_8888:4
 // RGB_565:2
 #define PREVIEW_PIXEL_BYTES 4
+// number of frames allocated beforehand for each bucket
 #define FRAME_POOL_SZ MAX_FRAME + 2
 
+static inline jlong timespec_to_ns(const struct timespec &ts) {
+    return (jlong) ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static convFunc_t get_i420_conv_func(const int pixel_format, const int width, const int height, size_t *bytes);
+
+// record the time when the frame was decoded/converted for the preview
+static inline void stamp_decode_time(uvc_frame_t *frame) {
+    clock_gettime(CLOCK_MONOTONIC, &frame->decode_time_finished);
+}
+
+typedef int32_t (*set_buffers_timestamp_t)(ANativeWindow *window, int64_t timestamp);
+static set_buffers_timestamp_t s_set_buffers_timestamp = NULL;
+static pthread_once_t s_set_buffers_timestamp_once = PTHREAD_ONCE_INIT;
+
+static void load_set_buffers_timestamp() {
+    // ANativeWindow_setBuffersTimestamp is not exposed by NDK headers, so look it up at runtime
+    void *sym = dlsym(RTLD_DEFAULT, "ANativeWindow_setBuffersTimestamp");
+    if (!sym) {
+        void *lib = dlopen("libnativewindow.so", RTLD_NOW);
+        if (lib) {
+            sym = dlsym(lib, "ANativeWindow_setBuffersTimestamp");
+        }
+    }
+    s_set_buffers_timestamp = (set_buffers_timestamp_t) sym;
+    LOGI("ANativeWindow_setBuffersTimestamp:%s", sym ? "available" : "not available");
+}
+
+// same as NATIVE_WINDOW_TIMESTAMP_AUTO, the window stamps the buffer with the time of queueing it
+#define WINDOW_TIMESTAMP_AUTO INT64_MIN
+
+/**
+ * stamp the next buffer queued to the window with the time when the frame was received(CLOCK_MONOTONIC),
+ * so that SurfaceTexture#getTimestamp on the consumer side returns the same time base as System#nanoTime.
+ * This is the presentation time of recorded video, see RendererHolder#mFrameTimestampNs.
+ * The consumer uses the time of queueing the buffer(also CLOCK_MONOTONIC)
+ * if this is not available on the device or the frame has no capture time.
+ */
+static void set_window_timestamp(ANativeWindow *window, uvc_frame_t *frame) {
+    pthread_once(&s_set_buffers_timestamp_once, load_set_buffers_timestamp);
+    if (s_set_buffers_timestamp) {
+        // the window keeps the last timestamp, so go back to auto explicitly
+        // otherwise frames without capture time get the same timestamp as the previous one
+        s_set_buffers_timestamp(window,
+            (frame->capture_time_finished.tv_sec || frame->capture_time_finished.tv_nsec)
+                ? timespec_to_ns(frame->capture_time_finished) : WINDOW_TIMESTAMP_AUTO);
+    }
+}
+
 UVCPreview::UVCPreview(uvc_device_handle_t *devh)
         : mPreviewWindow(NULL),
           mCaptureWindow(NULL),
@@ -52,25 +104,70 @@ UVCPreview::UVCPreview(uvc_device_handle_t *devh)
           frameHeight(DEFAULT_PREVIEW_HEIGHT),
           frameBytes(DEFAULT_PREVIEW_WIDTH * DEFAULT_PREVIEW_HEIGHT * 2),    // YUYV
           frameFormatType(DEFAULT_PREVIEW_FRAME_TYPE),
+          mHasCtrlCache(false),
+          mCtrlFromCache(false),
           previewBytes(DEFAULT_PREVIEW_WIDTH * DEFAULT_PREVIEW_HEIGHT * PREVIEW_PIXEL_BYTES),
           previewFormat(WINDOW_FORMAT_RGBA_8888),
+          mMJPEGDecoder(NULL),
+          mDecodeThreadNum(1),
+          decodeWorkerNum(0),
+          decodeSlotNum(0),
+          decodeHead(0),
+          decodeNext(0),
+          decodeTail(0),
+          mDelivering(false),
           mIsRunning(false),
           mIsCapturing(false),
           captureQueu(NULL),
+          previewFrames(MAX_FRAME),
           mFrameCallbackObj(NULL),
           mFrameCallbackFunc(NULL),
+          mFrameCallbackI420Func(NULL),
+          mFrameCallbackYUYVFunc(NULL),
           callbackPixelBytes(2),
+          mCallbackBufferNum(CALLBACK_BUFFER_NUM),
+          mCallbackBufferIx(0),
+          mDetachedCallbackBuffers(NULL),
+          mManualRelease(false),
+          mLastCallbackSequence(-1),
+          mSubscriberNum(0),
+          mHasYUVSubscriber(false),
+          mHasRGBSubscriber(false),
+          mSubscriberFrameCount(0),
           preview_thread(0),
-          capture_thread(0) {
+          capture_thread(0),
+          analysis_thread(0),
+          analysisQueue(NULL),
+          mAnalysisCallbackObj(NULL),
+          mAnalysisOnFrame(NULL),
+          mAnalysisWidth(0),
+          mAnalysisHeight(0),
+          mAnalysisPixelFormat(PIXEL_FORMAT_NV21),
+          mStillRequests(0),
+          stillFrame(NULL) {
 
     ENTER();
-    pthread_cond_init(&preview_sync, NULL);
     pthread_mutex_init(&preview_mutex, NULL);
 //
     pthread_cond_init(&capture_sync, NULL);
     pthread_mutex_init(&capture_mutex, NULL);
-//	
-    pthread_mutex_init(&pool_mutex, NULL);
+//
+    pthread_cond_init(&decode_sync, NULL);
+    pthread_mutex_init(&decode_mutex, NULL);
+//
+    pthread_mutex_init(&callback_buffer_mutex, NULL);
+    pthread_mutex_init(&analysis_mutex, NULL);
+    pthread_mutex_init(&subscriber_mutex, NULL);
+    pthread_mutex_init(&still_mutex, NULL);
+    pthread_cond_init(&still_sync, NULL);
+    memset(mCallbackBuffers, 0, sizeof(mCallbackBuffers));
+    memset(mSubscribers, 0, sizeof(mSubscribers));
+    memset(mConversions, 0, sizeof(mConversions));
+    memset(&iframecallback_fields, 0, sizeof(iframecallback_fields));
+    memset(&mStreamStats, 0, sizeof(mStreamStats));
+    memset((void *) mStats, 0, sizeof(mStats));
+    memset(&mCtrlCache, 0, sizeof(mCtrlCache));
+    mRecorder = new PassthroughRecorder(&mFramePool);
     EXIT();
 }
 
@@ -87,80 +184,231 @@ UVCPreview::~UVCPreview() {
     iframecallback_fields.onFrame = NULL;
     clearPreviewFrame();
     clearCaptureFrame();
+    clearAnalysisFrame();
+    clearStillFrame();
+    if (mDetachedCallbackBuffers) {
+        // Java side may still read them, so they are intentionally leaked instead of being freed
+        LOGW("callback buffers are not released yet");
+        mDetachedCallbackBuffers = NULL;
+    }
+    // this finishes the file if still recording
+    SAFE_DELETE(mRecorder);
     clear_pool();
+    SAFE_DELETE(mMJPEGDecoder);
     pthread_mutex_destroy(&preview_mutex);
-    pthread_cond_destroy(&preview_sync);
     pthread_mutex_destroy(&capture_mutex);
     pthread_cond_destroy(&capture_sync);
-    pthread_mutex_destroy(&pool_mutex);
+    pthread_mutex_destroy(&decode_mutex);
+    pthread_cond_destroy(&decode_sync);
+    pthread_mutex_destroy(&callback_buffer_mutex);
+    pthread_mutex_destroy(&analysis_mutex);
+    pthread_mutex_destroy(&subscriber_mutex);
+    pthread_mutex_destroy(&still_mutex);
+    pthread_cond_destroy(&still_sync);
     EXIT();
 }
 
 /**
- * get uvc_frame_t from frame pool
- * if pool is empty, create new frame
- * this function does not confirm the frame size
- * and you may need to confirm the size
+ * get uvc_frame_t from the bucket of frame pool
+ * if the bucket is empty, create new frame
+ * the frame is ensured to have data_bytes capacity
  */
-uvc_frame_t *UVCPreview::get_frame(size_t data_bytes) {
-    uvc_frame_t *frame = NULL;
-    pthread_mutex_lock(&pool_mutex);
-    {
-        if (!mFramePool.isEmpty()) {
-            frame = mFramePool.last();
-        }
-    }
-    pthread_mutex_unlock(&pool_mutex);
-    if UNLIKELY(!frame) {
-        LOGI("allocate new frame");
-        frame = uvc_allocate_frame(data_bytes);
-    } else {
-        uvc_ensure_frame_size(frame, data_bytes);
-    }
-    return frame;
+uvc_frame_t *UVCPreview::get_frame(size_t data_bytes, const frame_bucket_t bucket) {
+    return mFramePool.obtain(bucket, data_bytes);
 }
 
+/**
+ * return the frame to the bucket where it came from
+ */
 void UVCPreview::recycle_frame(uvc_frame_t *frame) {
-    pthread_mutex_lock(&pool_mutex);
-    if (LIKELY(mFramePool.size() < FRAME_POOL_SZ)) {
-        mFramePool.put(frame);
-        frame = NULL;
-    }
-    pthread_mutex_unlock(&pool_mutex);
-    if (UNLIKELY(frame)) {
-        uvc_free_frame(frame);
+    mFramePool.recycle(frame);
+}
+
+/**
+ * allocate frames beforehand so that streaming does not allocate them on the fly
+ */
+void UVCPreview::init_pool(size_t compressed_bytes, size_t decoded_bytes) {
+    ENTER();
+
+    mFramePool.prepare(FRAME_BUCKET_COMPRESSED, FRAME_POOL_SZ, compressed_bytes);
+    mFramePool.prepare(FRAME_BUCKET_DECODED, FRAME_POOL_SZ, decoded_bytes);
+
+    EXIT();
+}
+
+void UVCPreview::clear_pool() {
+    ENTER();
+
+    mFramePool.clear();
+
+    EXIT();
+}
+
+/**
+ * copy counters of the frame pool
+ * @param counters array with FRAME_BUCKET_NUM * FRAME_POOL_COUNTER_NUM elements
+ * @return number of elements copied
+ */
+int UVCPreview::getFramePoolCounters(int *counters, const int num) {
+    return mFramePool.getCounters(counters, num);
+}
+
+inline void UVCPreview::add_stat(const int ix, const int64_t value) {
+    __atomic_add_fetch(&mStats[ix], value, __ATOMIC_RELAXED);
+}
+
+inline void UVCPreview::max_stat(const int ix, const int64_t value) {
+    int64_t current = __atomic_load_n(&mStats[ix], __ATOMIC_RELAXED);
+    while ((value > current)
+        && !__atomic_compare_exchange_n(&mStats[ix], &current, value, true, __ATOMIC_RELAXED, __ATOMIC_RELAXED)) {}
+}
+
+/**
+ * count a decoded frame and its decode time
+ * @param start time when decoding started(CLOCK_MONOTONIC)
+ */
+void UVCPreview::add_decode_time(const struct timespec &start) {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    const int64_t us = (timespec_to_ns(now) - timespec_to_ns(start)) / 1000;
+    add_stat(STAT_FRAMES_DECODED);
+    add_stat(STAT_DECODE_TIME_TOTAL_US, us);
+    max_stat(STAT_DECODE_TIME_MAX_US, us);
+    int bucket = 0;
+    for (int64_t limit = 1000; (us >= limit) && (bucket < STAT_DECODE_HISTOGRAM_NUM - 1); limit <<= 1) {
+        bucket++;
     }
+    add_stat(STAT_DECODE_HISTOGRAM + bucket);
 }
 
+/**
+ * copy statistics, counters are accumulated while this instance is alive
+ * @param values array with STAT_NUM elements
+ * @return number of elements copied
+ */
+int UVCPreview::getStatistics(int64_t *values, const int num) {
+    // libuvc updates these counters on the libusb event thread
+    const uvc_stream_stats_t &stream = mStreamStats;
+    const int64_t stream_values[] = {
+        __atomic_load_n(&stream.frames_received, __ATOMIC_RELAXED),
+        __atomic_load_n(&stream.frames_incomplete, __ATOMIC_RELAXED),
+        __atomic_load_n(&stream.frames_no_buffer, __ATOMIC_RELAXED),
+        __atomic_load_n(&stream.frames_overwritten, __ATOMIC_RELAXED),
+        __atomic_load_n(&stream.payload_errors, __ATOMIC_RELAXED),
+        __atomic_load_n(&stream.transfer_errors, __ATOMIC_RELAXED),
+    };
+    int n = 0;
+    for (; (n < STAT_NUM) && (n < num); n++) {
+        values[n] = n < STAT_PREVIEW_QUEUE_DEPTH
+            ? stream_values[n] : __atomic_load_n(&mStats[n], __ATOMIC_RELAXED);
+    }
+    if (n > STAT_PREVIEW_QUEUE_DEPTH) {
+        values[STAT_PREVIEW_QUEUE_DEPTH] = previewFrames.size();
+    }
+    return n;
+}
 
-void UVCPreview::init_pool(size_t data_bytes) {
+/**
+ * copy the last committed stream control(stream_ctrl_cache_t) to buf
+ * @return number of bytes copied, 0 if there is no stream control, negative on error
+ */
+int UVCPreview::getStreamCtrl(uint8_t *buf, const size_t bytes) {
     ENTER();
+    int result = UVC_ERROR_INVALID_PARAM;
+    if (LIKELY(buf && (bytes >= sizeof(stream_ctrl_cache_t)))) {
+        pthread_mutex_lock(&preview_mutex);
+        {
+            if (mHasCtrlCache) {
+                memcpy(buf, &mCtrlCache, sizeof(stream_ctrl_cache_t));
+                result = sizeof(stream_ctrl_cache_t);
+            } else {
+                result = 0;
+            }
+        }
+        pthread_mutex_unlock(&preview_mutex);
+    }
+    RETURN(result, int);
+}
 
-    clear_pool();
-    pthread_mutex_lock(&pool_mutex);
+/**
+ * restore the stream control previously got with getStreamCtrl,
+ * it is committed without probing if following request matches it
+ * @param data stream_ctrl_cache_t, NULL to clear
+ */
+int UVCPreview::setStreamCtrl(const uint8_t *data, const size_t bytes) {
+    ENTER();
+    int result = 0;
+    stream_ctrl_cache_t cache;
+    if (data && (bytes == sizeof(stream_ctrl_cache_t))) {
+        memcpy(&cache, data, sizeof(stream_ctrl_cache_t));
+        if ((cache.version != STREAM_CTRL_CACHE_VERSION)
+            || (cache.bytes != sizeof(stream_ctrl_cache_t))) {
+            result = UVC_ERROR_INVALID_PARAM;
+        }
+    } else if (data) {
+        // saved by other version of this library
+        result = UVC_ERROR_INVALID_PARAM;
+    }
+    pthread_mutex_lock(&preview_mutex);
     {
-        for (int i = 0; i < FRAME_POOL_SZ; i++) {
-            mFramePool.put(uvc_allocate_frame(data_bytes));
+        mHasCtrlCache = data && !result;
+        if (mHasCtrlCache) {
+            mCtrlCache = cache;
         }
     }
-    pthread_mutex_unlock(&pool_mutex);
+    pthread_mutex_unlock(&preview_mutex);
+    RETURN(result, int);
+}
 
-    EXIT();
+/**
+ * get the cached stream control if it was negotiated for current request
+ * @param ctrl NULL if only checking
+ */
+bool UVCPreview::find_cached_ctrl(uvc_stream_ctrl_t *ctrl) {
+    bool result = false;
+    pthread_mutex_lock(&preview_mutex);
+    if (mHasCtrlCache
+        && (mCtrlCache.width == requestWidth) && (mCtrlCache.height == requestHeight)
+        && (mCtrlCache.frameType == requestFormatType) && (mCtrlCache.fps == requestFps)) {
+        // check the descriptors still match with the stream control
+        const uvc_frame_desc_t *frame_desc = uvc_find_frame_desc(mDeviceHandle,
+            mCtrlCache.ctrl.bFormatIndex, mCtrlCache.ctrl.bFrameIndex);
+        if (frame_desc && (frame_desc->wWidth == requestWidth)
+            && (frame_desc->wHeight == requestHeight)
+            && (frame_desc->bDescriptorSubtype == requestFormatType)) {
+            if (ctrl) {
+                *ctrl = mCtrlCache.ctrl;
+            }
+            result = true;
+        } else {
+            mHasCtrlCache = false;
+        }
+    }
+    pthread_mutex_unlock(&preview_mutex);
+    return result;
 }
 
-void UVCPreview::clear_pool() {
-    ENTER();
+void UVCPreview::update_cached_ctrl(const uvc_stream_ctrl_t *ctrl) {
+    pthread_mutex_lock(&preview_mutex);
+    {
+        mCtrlCache.version = STREAM_CTRL_CACHE_VERSION;
+        mCtrlCache.bytes = sizeof(stream_ctrl_cache_t);
+        mCtrlCache.width = requestWidth;
+        mCtrlCache.height = requestHeight;
+        mCtrlCache.frameType = requestFormatType;
+        mCtrlCache.fps = requestFps;
+        mCtrlCache.ctrl = *ctrl;
+        mHasCtrlCache = true;
+    }
+    pthread_mutex_unlock(&preview_mutex);
+}
 
-    pthread_mutex_lock(&pool_mutex);
+void UVCPreview::invalidate_cached_ctrl() {
+    pthread_mutex_lock(&preview_mutex);
     {
-        const int n = mFramePool.size();
-        for (int i = 0; i < n; i++) {
-            uvc_free_frame(mFramePool[i]);
-        }
-        mFramePool.clear();
+        mHasCtrlCache = false;
     }
-    pthread_mutex_unlock(&pool_mutex);
-    EXIT();
+    pthread_mutex_unlock(&preview_mutex);
 }
 
 inline const bool UVCPreview::isRunning() const { return mIsRunning; }
@@ -198,6 +446,11 @@ int UVCPreview::setPreviewSize(int width, int height, int frameType, int fps) {
     requestFps = fps;
     requestFormatType = frameType;
 
+    if (find_cached_ctrl(NULL)) {
+        // this request was committed before, skip probing
+        RETURN(result, int);
+    }
+
     uvc_stream_ctrl_t ctrl;
     result = uvc_get_stream_ctrl_format_size(
             mDeviceHandle, &ctrl,
@@ -229,7 +482,16 @@ int UVCPreview::setPreviewDisplay(ANativeWindow *preview_window) {
     RETURN(0, int);
 }
 
-int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
+/**
+ * set IFrameCallback
+ * @param manual_release if true, ByteBuffer passed to IFrameCallback#onFrame is kept
+ *        until Java side calls UVCCamera#releaseFrame so that it can be processed on other thread,
+ *        otherwise the ByteBuffer is reused after returning from IFrameCallback#onFrame.
+ * @param buffer_num number of ByteBuffers to rotate, this limits frames held by Java side with manual release,
+ *        CALLBACK_BUFFER_NUM is used if this is not positive
+ */
+int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format,
+    bool manual_release, int buffer_num) {
 
     ENTER();
     pthread_mutex_lock(&capture_mutex);
@@ -237,12 +499,14 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
         if (isRunning() && isCapturing()) {
             mIsCapturing = false;
             if (mFrameCallbackObj) {
-                pthread_cond_signal(&capture_sync);
+                capture_frame_sync.signal();
                 pthread_cond_wait(&capture_sync, &capture_mutex);    // wait finishing capturing
             }
         }
         if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj)) {
             iframecallback_fields.onFrame = NULL;
+            iframecallback_fields.onFrameWithInfo = NULL;
+            release_frame_info_class(env);
             if (mFrameCallbackObj) {
                 env->DeleteGlobalRef(mFrameCallbackObj);
             }
@@ -254,10 +518,44 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
                     iframecallback_fields.onFrame = env->GetMethodID(clazz,
                                                                      "onFrame",
                                                                      "(Ljava/nio/ByteBuffer;)V");
+                    env->ExceptionClear();
+                    // IFrameInfoCallback also receives frame info, this is optional
+                    iframecallback_fields.onFrameWithInfo = env->GetMethodID(clazz,
+                                                                     "onFrame",
+                                                                     "(Ljava/nio/ByteBuffer;Lcom/serenegiant/usb/FrameInfo;)V");
+                    env->ExceptionClear();
+                    if (iframecallback_fields.onFrameWithInfo) {
+                        // FrameInfo is created on the capture thread which can not find application classes
+                        jclass info_clazz = env->FindClass("com/serenegiant/usb/FrameInfo");
+                        if (LIKELY(info_clazz)) {
+                            iframecallback_fields.frameInfoInit = env->GetMethodID(info_clazz, "<init>", "()V");
+                            iframecallback_fields.frameInfoSet = env->GetMethodID(info_clazz, "set", "(IIIIIJJJJ)V");
+                            if (LIKELY(iframecallback_fields.frameInfoInit && iframecallback_fields.frameInfoSet)) {
+                                iframecallback_fields.frameInfoClass = (jclass) env->NewGlobalRef(info_clazz);
+                            }
+                            env->DeleteLocalRef(info_clazz);
+                        }
+                        env->ExceptionClear();
+                        if (UNLIKELY(!iframecallback_fields.frameInfoClass)) {
+                            LOGW("Can't find FrameInfo, frame info is not delivered");
+                            iframecallback_fields.onFrameWithInfo = NULL;
+                        }
+                    }
+                    env->DeleteLocalRef(clazz);
                 } else {
                     LOGW("failed to get object class");
                 }
                 env->ExceptionClear();
+                if (!iframecallback_fields.clear) {
+                    jclass buffer_clazz = env->FindClass("java/nio/Buffer");
+                    if (LIKELY(buffer_clazz)) {
+                        iframecallback_fields.clear = env->GetMethodID(buffer_clazz,
+                                                                       "clear",
+                                                                       "()Ljava/nio/Buffer;");
+                        env->DeleteLocalRef(buffer_clazz);
+                    }
+                    env->ExceptionClear();
+                }
                 if (!iframecallback_fields.onFrame) {
                     LOGE("Can't find IFrameCallback#onFrame");
                     env->DeleteGlobalRef(frame_callback_obj);
@@ -267,6 +565,14 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
         }
         if (frame_callback_obj) {
             mPixelFormat = pixel_format;
+            mManualRelease = manual_release;
+            if (buffer_num <= 0) {
+                buffer_num = CALLBACK_BUFFER_NUM;
+            } else if (buffer_num > MAX_CALLBACK_BUFFER_NUM) {
+                buffer_num = MAX_CALLBACK_BUFFER_NUM;
+            }
+            mCallbackBufferNum = buffer_num;
+            mLastCallbackSequence = -1;
             callbackPixelFormatChanged();
         }
     }
@@ -274,52 +580,349 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
     RETURN(0, int);
 }
 
+/**
+ * set secondary IFrameCallback which receives frames of reduced size,
+ * MJPEG frames are decoded with DCT scaling for it on the analysis thread independently from preview
+ * @param frame_callback_obj global reference of IFrameCallback, NULL to remove
+ * @param width width of frames passed to the callback
+ * @param height height of frames passed to the callback
+ * @param pixel_format PIXEL_FORMAT_XXX except PIXEL_FORMAT_SCALED_SOURCE
+ */
+int UVCPreview::setAnalysisFrameCallback(JNIEnv *env, jobject frame_callback_obj,
+    int width, int height, int pixel_format) {
+
+    ENTER();
+    size_t bytes;
+    if (frame_callback_obj && ((width <= 0) || (height <= 0)
+        || !get_i420_conv_func(pixel_format, 1, 1, &bytes))) {
+        env->DeleteGlobalRef(frame_callback_obj);
+        RETURN(UVC_ERROR_INVALID_PARAM, int);
+    }
+    jmethodID on_frame = NULL;
+    if (frame_callback_obj) {
+        jclass clazz = env->GetObjectClass(frame_callback_obj);
+        if (LIKELY(clazz)) {
+            on_frame = env->GetMethodID(clazz, "onFrame", "(Ljava/nio/ByteBuffer;)V");
+            env->DeleteLocalRef(clazz);
+        }
+        env->ExceptionClear();
+        if (UNLIKELY(!on_frame)) {
+            LOGE("Can't find IFrameCallback#onFrame");
+            env->DeleteGlobalRef(frame_callback_obj);
+            RETURN(UVC_ERROR_INVALID_PARAM, int);
+        }
+    }
+    pthread_mutex_lock(&analysis_mutex);
+    {
+        // the analysis thread keeps its own local reference while calling back
+        if (mAnalysisCallbackObj) {
+            env->DeleteGlobalRef(mAnalysisCallbackObj);
+        }
+        mAnalysisCallbackObj = frame_callback_obj;
+        mAnalysisOnFrame = on_frame;
+        mAnalysisWidth = width;
+        mAnalysisHeight = height;
+        mAnalysisPixelFormat = pixel_format;
+        if (frame_callback_obj) {
+            start_analysis_thread();
+        }
+    }
+    pthread_mutex_unlock(&analysis_mutex);
+    if (!frame_callback_obj) {
+        clearAnalysisFrame();
+    }
+    RETURN(0, int);
+}
+
+/**
+ * add IFrameCallback which receives frames in its own pixel format, size and max frame rate
+ * in addition to the callback set by #setFrameCallback.
+ * frames are converted on the capture thread only once for each pixel format and size,
+ * and the converted frame is shared by the callbacks which request same pixel format and size.
+ * if the callback was already added, its pixel format, size and frame rate are updated.
+ * @param frame_callback_obj global reference of IFrameCallback, this is deleted if not added
+ * @param width width of frames, 0 to use size of frames from camera
+ * @param height height of frames, 0 to use size of frames from camera
+ * @param max_fps max frame rate of the callback, 0 if not limited
+ */
+int UVCPreview::addFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format,
+    int width, int height, int max_fps) {
+
+    ENTER();
+    if (UNLIKELY(!frame_callback_obj)) {
+        RETURN(UVC_ERROR_INVALID_PARAM, int);
+    }
+    size_t bytes;
+    if (UNLIKELY((width < 0) || (height < 0) || ((width == 0) != (height == 0)) || (max_fps < 0)
+        || !get_i420_conv_func(pixel_format, 1, 1, &bytes))) {
+        env->DeleteGlobalRef(frame_callback_obj);
+        RETURN(UVC_ERROR_INVALID_PARAM, int);
+    }
+    jmethodID on_frame = NULL;
+    jclass clazz = env->GetObjectClass(frame_callback_obj);
+    if (LIKELY(clazz)) {
+        on_frame = env->GetMethodID(clazz, "onFrame", "(Ljava/nio/ByteBuffer;)V");
+        env->DeleteLocalRef(clazz);
+    }
+    env->ExceptionClear();
+    if (UNLIKELY(!on_frame)) {
+        LOGE("Can't find IFrameCallback#onFrame");
+        env->DeleteGlobalRef(frame_callback_obj);
+        RETURN(UVC_ERROR_INVALID_PARAM, int);
+    }
+    int result = UVC_ERROR_NO_MEM;
+    pthread_mutex_lock(&subscriber_mutex);
+    {
+        if (!iframecallback_fields.clear) {
+            jclass buffer_clazz = env->FindClass("java/nio/Buffer");
+            if (LIKELY(buffer_clazz)) {
+                iframecallback_fields.clear = env->GetMethodID(buffer_clazz,
+                                                               "clear",
+                                                               "()Ljava/nio/Buffer;");
+                env->DeleteLocalRef(buffer_clazz);
+            }
+            env->ExceptionClear();
+        }
+        int ix = -1;
+        for (int i = 0; i < mSubscriberNum; i++) {
+            if (env->IsSameObject(mSubscribers[i].callback, frame_callback_obj)) {
+                ix = i;
+                break;
+            }
+        }
+        if (ix >= 0) {
+            // already added, update it
+            env->DeleteGlobalRef(frame_callback_obj);
+            frame_callback_obj = mSubscribers[ix].callback;
+        } else if (mSubscriberNum < MAX_FRAME_SUBSCRIBERS) {
+            ix = mSubscriberNum;
+        }
+        if (LIKELY(ix >= 0)) {
+            frame_subscriber_t *subscriber = &mSubscribers[ix];
+            subscriber->callback = frame_callback_obj;
+            subscriber->onFrame = on_frame;
+            subscriber->pixel_format = pixel_format;
+            subscriber->width = width;
+            subscriber->height = height;
+            subscriber->interval_ns = max_fps > 0 ? 1000000000LL / max_fps : 0;
+            subscriber->next_time_ns = 0;
+            if (ix == mSubscriberNum) {
+                mSubscriberNum = ix + 1;
+            }
+            subscribersChanged();
+            result = 0;
+        } else {
+            LOGW("too many frame callbacks");
+            env->DeleteGlobalRef(frame_callback_obj);
+        }
+    }
+    pthread_mutex_unlock(&subscriber_mutex);
+    RETURN(result, int);
+}
+
+/**
+ * remove IFrameCallback added by #addFrameCallback,
+ * the callback may be called once more if the capture thread is calling back it at the moment.
+ * @param frame_callback_obj IFrameCallback to remove, NULL to remove all
+ * @return 0 if removed
+ */
+int UVCPreview::removeFrameCallback(JNIEnv *env, jobject frame_callback_obj) {
+    ENTER();
+    int result = UVC_ERROR_NOT_FOUND;
+    pthread_mutex_lock(&subscriber_mutex);
+    {
+        int n = mSubscriberNum;
+        for (int i = n - 1; i >= 0; i--) {
+            if (!frame_callback_obj || env->IsSameObject(mSubscribers[i].callback, frame_callback_obj)) {
+                env->DeleteGlobalRef(mSubscribers[i].callback);
+                // keep order of the rest of subscribers
+                memmove(&mSubscribers[i], &mSubscribers[i + 1], (n - i - 1) * sizeof(frame_subscriber_t));
+                n--;
+                memset(&mSubscribers[n], 0, sizeof(frame_subscriber_t));
+                result = 0;
+            }
+        }
+        mSubscriberNum = n;
+        subscribersChanged();
+    }
+    pthread_mutex_unlock(&subscriber_mutex);
+    RETURN(result, int);
+}
+
+/**
+ * update state which depends on subscribers, this should be called while holding subscriber_mutex
+ */
+void UVCPreview::subscribersChanged() {
+    bool yuv = false;
+    bool rgb = false;
+    for (int i = 0; i < mSubscriberNum; i++) {
+        switch (mSubscribers[i].pixel_format) {
+            case PIXEL_FORMAT_RAW:
+            case PIXEL_FORMAT_YUV:
+            case PIXEL_FORMAT_NV12:
+            case PIXEL_FORMAT_NV21:
+                yuv = true;
+                break;
+            default:
+                rgb = true;
+                break;
+        }
+    }
+    mHasYUVSubscriber = yuv;
+    mHasRGBSubscriber = rgb;
+}
+
+/**
+ * release global reference of FrameInfo class,
+ * FrameInfo objects which were already created are still valid
+ */
+void UVCPreview::release_frame_info_class(JNIEnv *env) {
+    if (iframecallback_fields.frameInfoClass) {
+        env->DeleteGlobalRef(iframecallback_fields.frameInfoClass);
+    }
+    iframecallback_fields.frameInfoClass = NULL;
+    iframecallback_fields.frameInfoInit = NULL;
+    iframecallback_fields.frameInfoSet = NULL;
+}
+
+/**
+ * set number of threads for decoding MJPEG frames,
+ * MJPEG frames are decoded on the preview thread if thread_num is less than 2.
+ * This is applied when preview starts next time.
+ */
+int UVCPreview::setDecodeThreadNum(int thread_num) {
+    ENTER();
+    if (thread_num < 1) {
+        thread_num = 1;
+    } else if (thread_num > MAX_DECODE_THREADS) {
+        thread_num = MAX_DECODE_THREADS;
+    }
+    mDecodeThreadNum = thread_num;
+    RETURN(0, int);
+}
+
+/**
+ * start writing MJPEG frames from camera into Matroska file as is, without decoding and encoding.
+ * recording continues across stop/start of preview until #stopPassthroughRecording
+ * @param fd file descriptor to write, this is duplicated so the caller can close it after this call
+ * @return UVC_ERROR_NOT_SUPPORTED if the preview format is not MJPEG
+ */
+int UVCPreview::startPassthroughRecording(int fd) {
+    ENTER();
+    int result = UVC_ERROR_NOT_SUPPORTED;
+    if (LIKELY(frameFormatType == UVC_VS_FRAME_MJPEG)) {
+        result = mRecorder->start(fd, frameWidth, frameHeight, requestFps);
+    }
+    RETURN(result, int);
+}
+
+/**
+ * stop recording started by #startPassthroughRecording and finish the file
+ * @return 0 if the file was written successfully
+ */
+int UVCPreview::stopPassthroughRecording() {
+    ENTER();
+    const int result = mRecorder->stop();
+    RETURN(result, int);
+}
+
 void UVCPreview::callbackPixelFormatChanged() {
     mFrameCallbackFunc = NULL;
+    mFrameCallbackI420Func = NULL;
+    mFrameCallbackYUYVFunc = NULL;
     const size_t sz = requestWidth * requestHeight;
     switch (mPixelFormat) {
         case PIXEL_FORMAT_RAW:
             LOGI("PIXEL_FORMAT_RAW:");
             callbackPixelBytes = sz * 2;
             mFrameCallbackFunc = uvc_rgbx_to_yuyv;
+            mFrameCallbackI420Func = uvc_i420_to_yuyv;
             break;
         case PIXEL_FORMAT_YUV:
             LOGI("PIXEL_FORMAT_YUV:");
             callbackPixelBytes = sz * 2;
             mFrameCallbackFunc = uvc_rgbx_to_yuyv;
+            mFrameCallbackI420Func = uvc_i420_to_yuyv;
             break;
         case PIXEL_FORMAT_NV12:
             LOGI("PIXEL_FORMAT_NV12:");
             mFrameCallbackFunc = uvc_rgbx_to_nv12;
+            mFrameCallbackI420Func = uvc_i420_to_nv12;
+            mFrameCallbackYUYVFunc = uvc_yuyv_to_nv12;
             callbackPixelBytes = (sz * 3) / 2;
             break;
         case PIXEL_FORMAT_NV21:
             LOGI("PIXEL_FORMAT_NV21:");
             mFrameCallbackFunc = uvc_rgbx_to_nv21;
+            mFrameCallbackI420Func = uvc_i420_to_nv21;
+            mFrameCallbackYUYVFunc = uvc_yuyv_to_nv21;
             callbackPixelBytes = (sz * 3) / 2;
             break;
         case PIXEL_FORMAT_RGB:
             LOGI("PIXEL_FORMAT_RGB:");
             mFrameCallbackFunc = uvc_rgbx_to_rgb;
+            mFrameCallbackI420Func = uvc_i420_to_rgb;
             callbackPixelBytes = sz * 3;
             break;
         case PIXEL_FORMAT_RGB565:
             LOGI("PIXEL_FORMAT_RGB565:");
             mFrameCallbackFunc = uvc_rgbx_to_rgb565;
+            mFrameCallbackI420Func = uvc_i420_to_rgb565;
             callbackPixelBytes = sz * 2;
             break;
         case PIXEL_FORMAT_RGBX:
             LOGI("PIXEL_FORMAT_RGBX:");
+            mFrameCallbackI420Func = uvc_i420_to_rgbx;
             callbackPixelBytes = sz * 4;
             break;
         case PIXEL_FORMAT_BGR:
             LOGI("PIXEL_FORMAT_BGR:");
             mFrameCallbackFunc = uvc_rgbx_to_bgr;
+            mFrameCallbackI420Func = uvc_i420_to_bgr;
             callbackPixelBytes = sz * 3;
             break;
     }
 }
 
+/**
+ * whether IFrameCallback is set and it requests YUV pixel format,
+ * or IFrameCallback is not set and one of the callbacks added by #addFrameCallback requests YUV pixel format.
+ * MJPEG frames are decoded to I420 directly instead of RGBX in that case
+ */
+bool UVCPreview::isYUVCallback() const {
+    if (mFrameCallbackObj) {
+        switch (mPixelFormat) {
+            case PIXEL_FORMAT_RAW:
+            case PIXEL_FORMAT_YUV:
+            case PIXEL_FORMAT_NV12:
+            case PIXEL_FORMAT_NV21:
+                return true;
+            default:
+                return false;
+        }
+    }
+    return mSubscriberNum && mHasYUVSubscriber;
+}
+
+/**
+ * whether IFrameCallback requests RGB pixel format or one of the callbacks added by #addFrameCallback does.
+ * YUYV frames are converted to RGBX for the capture thread only in that case
+ */
+bool UVCPreview::hasRGBCallback() const {
+    if (mFrameCallbackObj) {
+        switch (mPixelFormat) {
+            case PIXEL_FORMAT_RAW:
+            case PIXEL_FORMAT_YUV:
+            case PIXEL_FORMAT_NV12:
+            case PIXEL_FORMAT_NV21:
+                break;
+            default:
+                return true;
+        }
+    }
+    return mSubscriberNum && mHasRGBSubscriber;
+}
+
 void UVCPreview::clearDisplay() {
     ENTER();
 
@@ -366,6 +969,9 @@ int UVCPreview::startPreview() {
     int result = EXIT_FAILURE;
     if (!isRunning()) {
         mIsRunning = true;
+        preview_sync.reset();
+        capture_frame_sync.reset();
+        analysis_sync.reset();
         pthread_mutex_lock(&preview_mutex);
         {
             if (LIKELY(mPreviewWindow)) {
@@ -377,11 +983,7 @@ int UVCPreview::startPreview() {
         if (UNLIKELY(result != EXIT_SUCCESS)) {
             LOGW("UVCCamera::window does not exist/already running/could not create thread etc.");
             mIsRunning = false;
-            pthread_mutex_lock(&preview_mutex);
-            {
-                pthread_cond_signal(&preview_sync);
-            }
-            pthread_mutex_unlock(&preview_mutex);
+            preview_sync.close();
         }
     }
     RETURN(result, int);
@@ -392,11 +994,26 @@ int UVCPreview::stopPreview() {
     bool b = isRunning();
     if (LIKELY(b)) {
         mIsRunning = false;
-        pthread_cond_signal(&preview_sync);
-        pthread_cond_signal(&capture_sync);
+        preview_sync.close();
+        capture_frame_sync.close();
+        analysis_sync.close();
+        pthread_mutex_lock(&decode_mutex);
+        pthread_cond_broadcast(&decode_sync);
+        pthread_mutex_unlock(&decode_mutex);
+        pthread_mutex_lock(&still_mutex);
+        pthread_cond_broadcast(&still_sync);
+        pthread_mutex_unlock(&still_mutex);
         if (capture_thread && pthread_join(capture_thread, NULL) != EXIT_SUCCESS) {
             LOGW("UVCPreview::terminate capture thread: pthread_join failed");
         }
+        // no analysis thread is started after this because mIsRunning is already cleared
+        pthread_mutex_lock(&analysis_mutex);
+        const pthread_t thread = analysis_thread;
+        analysis_thread = 0;
+        pthread_mutex_unlock(&analysis_mutex);
+        if (thread && pthread_join(thread, NULL) != EXIT_SUCCESS) {
+            LOGW("UVCPreview::terminate analysis thread: pthread_join failed");
+        }
         if (preview_thread && pthread_join(preview_thread, NULL) != EXIT_SUCCESS) {
             LOGW("UVCPreview::terminate preview thread: pthread_join failed");
         }
@@ -404,6 +1021,10 @@ int UVCPreview::stopPreview() {
     }
     clearPreviewFrame();
     clearCaptureFrame();
+    clearAnalysisFrame();
+    clearStillFrame();
+    // preview thread already finished, so we can release the decoder safely
+    SAFE_DELETE(mMJPEGDecoder);
     pthread_mutex_lock(&preview_mutex);
     if (mPreviewWindow) {
         ANativeWindow_release(mPreviewWindow);
@@ -422,11 +1043,42 @@ int UVCPreview::stopPreview() {
 //**********************************************************************
 //
 //**********************************************************************
+/**
+ * lend a pooled frame to libuvc so that payloads are assembled into it directly,
+ * called from the libusb event thread
+ */
+uvc_frame_t *UVCPreview::uvc_preview_acquire_frame(size_t data_bytes, void *vptr_args) {
+    UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+    uvc_frame_t *frame = preview->get_frame(data_bytes, FRAME_BUCKET_COMPRESSED);
+#if LOCAL_DEBUG
+    if (UNLIKELY(!frame)) {
+        LOGE("uvc_callback:unable to allocate frame!");
+    }
+#endif
+    return frame;
+}
+
+/**
+ * give back a lent frame which was not handed over to the frame callback
+ */
+void UVCPreview::uvc_preview_release_frame(uvc_frame_t *frame, void *vptr_args) {
+    UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+    preview->recycle_frame(frame);
+}
+
+/**
+ * frame callback from libuvc, the frame was assembled into a pooled frame
+ * and its ownership is handed over to this preview
+ */
 void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args) {
     UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
-    if UNLIKELY(!preview->isRunning() || !frame || !frame->frame_format || !frame->data ||
-                !frame->data_bytes)
+    if UNLIKELY(!frame)
         return;
+    if UNLIKELY(!preview->isRunning() || !frame->frame_format || !frame->data ||
+                !frame->data_bytes) {
+        preview->recycle_frame(frame);
+        return;
+    }
 //    if (UNLIKELY(
 //            ((frame->frame_format != UVC_FRAME_FORMAT_MJPEG)
 //             && (frame->data_bytes < preview->frameBytes))
@@ -439,60 +1091,54 @@ void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args)
 //#endif
 //        return;
 //    }
-    if (LIKELY(preview->isRunning())) {
-        uvc_frame_t *copy = preview->get_frame(frame->data_bytes);
-        if (UNLIKELY(!copy)) {
-#if LOCAL_DEBUG
-            LOGE("uvc_callback:unable to allocate duplicate frame!");
-#endif
-            return;
-        }
-        uvc_error_t ret = uvc_duplicate_frame(frame, copy);
-        if (UNLIKELY(ret)) {
-            preview->recycle_frame(copy);
-            return;
-        }
-        preview->addPreviewFrame(copy);
-    }
+    preview->addPreviewFrame(frame);
 }
 
+/**
+ * called from the libuvc callback thread(producer),
+ * this never blocks so the event thread can not be stalled by the preview thread
+ */
 void UVCPreview::addPreviewFrame(uvc_frame_t *frame) {
 
-    pthread_mutex_lock(&preview_mutex);
-    if (isRunning() && (previewFrames.size() < MAX_FRAME)) {
-        previewFrames.put(frame);
+    if (isRunning() && previewFrames.offer(frame)) {
         frame = NULL;
-        pthread_cond_signal(&preview_sync);
+        preview_sync.signal();
+        max_stat(STAT_PREVIEW_QUEUE_MAX_DEPTH, previewFrames.size());
     }
-    pthread_mutex_unlock(&preview_mutex);
     if (frame) {
+        if (isRunning()) {
+            add_stat(STAT_PREVIEW_QUEUE_DROPS);
+        }
         recycle_frame(frame);
     }
 }
 
+/**
+ * called from the preview thread(consumer)
+ */
 uvc_frame_t *UVCPreview::waitPreviewFrame() {
-    uvc_frame_t *frame = NULL;
-    pthread_mutex_lock(&preview_mutex);
-    {
-        if (!previewFrames.size()) {
-            pthread_cond_wait(&preview_sync, &preview_mutex);
-        }
-        if (LIKELY(isRunning() && previewFrames.size() > 0)) {
-            frame = previewFrames.remove(0);
-        }
+    // trim on the preview thread so that the transfer callback never frees frames
+    mFramePool.trimIfIdle();
+    uvc_frame_t *frame = previewFrames.poll();
+    if (!frame && isRunning()) {
+        preview_sync.wait();
+        frame = previewFrames.poll();
+    }
+    if (UNLIKELY(frame && !isRunning())) {
+        recycle_frame(frame);
+        frame = NULL;
     }
-    pthread_mutex_unlock(&preview_mutex);
     return frame;
 }
 
+/**
+ * this should be called from the consumer or while the producer is not running
+ */
 void UVCPreview::clearPreviewFrame() {
-    pthread_mutex_lock(&preview_mutex);
-    {
-        for (int i = 0; i < previewFrames.size(); i++)
-            recycle_frame(previewFrames[i]);
-        previewFrames.clear();
+    uvc_frame_t *frame;
+    while ((frame = previewFrames.poll()) != NULL) {
+        recycle_frame(frame);
     }
-    pthread_mutex_unlock(&preview_mutex);
 }
 
 void *UVCPreview::preview_thread_func(void *vptr_args) {
@@ -515,11 +1161,18 @@ int UVCPreview::prepare_preview(uvc_stream_ctrl_t *ctrl) {
     uvc_error_t result;
 
     ENTER();
-    result = uvc_get_stream_ctrl_format_size(mDeviceHandle, ctrl,
-                                             getFrameFormatByType(requestFormatType),
-                                             requestWidth, requestHeight,
-                                             requestFps
-    );
+    mCtrlFromCache = find_cached_ctrl(ctrl);
+    if (mCtrlFromCache) {
+        // commit the stream control negotiated last time without probing
+        LOGI("use cached stream control");
+        result = UVC_SUCCESS;
+    } else {
+        result = uvc_get_stream_ctrl_format_size(mDeviceHandle, ctrl,
+                                                 getFrameFormatByType(requestFormatType),
+                                                 requestWidth, requestHeight,
+                                                 requestFps
+        );
+    }
     if (LIKELY(!result)) {
 #if LOCAL_DEBUG
         uvc_print_stream_ctrl(ctrl, stderr);
@@ -545,12 +1198,50 @@ int UVCPreview::prepare_preview(uvc_stream_ctrl_t *ctrl) {
         }
         frameBytes = frameWidth * frameHeight * (frameFormatType == UVC_VS_FRAME_MJPEG ? 4 : 2);
         previewBytes = frameWidth * frameHeight * PREVIEW_PIXEL_BYTES;
+        if (frameFormatType == UVC_VS_FRAME_MJPEG) {
+            // keep the decoder while previewing to avoid initializing TurboJPEG on every frame
+            if (!mMJPEGDecoder) {
+                mMJPEGDecoder = new MJPEGDecoder();
+            }
+            result = (uvc_error_t) mMJPEGDecoder->init();
+            if (UNLIKELY(result)) {
+                // MJPEG frames can not be shown without the decoder, so fail the preview
+                LOGE("could not initialize MJPEG decoder:err=%d", result);
+                SAFE_DELETE(mMJPEGDecoder);
+            }
+        }
     } else {
         LOGE("could not negotiate with camera:err=%d", result);
     }
     RETURN(result, int);
 }
 
+/**
+ * commit the stream control and start streaming
+ * @param strmhp stream handle is set if succeeded
+ */
+int UVCPreview::start_stream(uvc_stream_ctrl_t *ctrl, uvc_stream_handle_t **strmhp) {
+    ENTER();
+    uvc_stream_handle_t *strmh = NULL;
+    int result = uvc_stream_open_ctrl(mDeviceHandle, &strmh, ctrl);
+    if (LIKELY(!result)) {
+        init_pool(ctrl->dwMaxVideoFrameSize, frameWidth * frameHeight * PREVIEW_PIXEL_BYTES);
+        // assemble frames directly into pooled frames to avoid copying each frame
+        result = uvc_stream_set_frame_pool(strmh,
+            uvc_preview_acquire_frame, uvc_preview_release_frame, (void *) this);
+        if (LIKELY(!result)) {
+            uvc_stream_set_stats(strmh, &mStreamStats);
+            result = uvc_stream_start(strmh, uvc_preview_frame_callback, (void *) this, 0);
+        }
+        if (UNLIKELY(result)) {
+            uvc_stream_close(strmh);
+            strmh = NULL;
+        }
+    }
+    *strmhp = strmh;
+    RETURN(result, int);
+}
+
 void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
     ENTER();
 
@@ -559,64 +1250,107 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
     uvc_frame_t *frame = NULL;
     uvc_frame_t *frame_yuv = NULL;
     uvc_frame_t *frame_mjpeg = NULL;
-    int result = uvc_start_streaming(
-            mDeviceHandle, ctrl, uvc_preview_frame_callback, (void *) this, 0);
+    uvc_stream_handle_t *strmh = NULL;
+    int result = start_stream(ctrl, &strmh);
+    if (UNLIKELY(result && mCtrlFromCache)) {
+        // the camera did not accept the cached stream control, negotiate again
+        LOGW("failed to start with cached stream control:err=%d", result);
+        invalidate_cached_ctrl();
+        result = prepare_preview(ctrl);
+        if (LIKELY(!result)) {
+            result = start_stream(ctrl, &strmh);
+        }
+    }
+    if (LIKELY(!result)) {
+        update_cached_ctrl(ctrl);
+    }
 
     if (LIKELY(!result)) {
         clearPreviewFrame();
         pthread_create(&capture_thread, NULL, capture_thread_func, (void *) this);
         pthread_setname_np(capture_thread, "capture_thread");
+        pthread_mutex_lock(&analysis_mutex);
+        {
+            if (mAnalysisCallbackObj) {
+                start_analysis_thread();
+            }
+        }
+        pthread_mutex_unlock(&analysis_mutex);
 
 #if LOCAL_DEBUG
         LOGI("Streaming...");
 #endif
         if (frameFormatType == UVC_VS_FRAME_MJPEG) {
-            // MJPEG mode
+            // MJPEG mode, prepare_preview fails if the decoder is not available
+            const bool parallel = (mDecodeThreadNum > 1) && !start_decode_workers();
             for (; LIKELY(isRunning());) {
                 frame_mjpeg = waitPreviewFrame();
                 if (LIKELY(frame_mjpeg)) {
-//                    frame = get_frame(frame_mjpeg->width * frame_mjpeg->height * 2);
-                    frame = get_frame(
-                            frame_mjpeg->width * frame_mjpeg->height * PREVIEW_PIXEL_BYTES);
-//                    c_start = clock();
-                    result = uvc_mjpeg2rgbx_tj(frame_mjpeg, frame);   // MJPEG => yuyv
-//                    c_end = clock();
-//                    LOGI("uvc_mjpeg2yuyv time: %f", (double) (c_end - c_start) / CLOCKS_PER_SEC);
-                    if (LIKELY(!result)) {
-                        draw_preview_one(frame, &mPreviewWindow);
-                        if (!addCaptureFrame(frame)) {
-                            recycle_frame(frame);
-                        }
+                    addAnalysisFrame(frame_mjpeg);
+                    addStillFrame(frame_mjpeg);
+                    mRecorder->addFrame(frame_mjpeg);
+                    if (parallel) {
+                        // decode on the decode threads, they deliver frames in order
+                        submit_decode_frame(frame_mjpeg);
+                    } else if (canRenderDirect() && (render_mjpeg_direct(frame_mjpeg) >= 0)) {
+                        // decoded into the preview window, nobody else needs the decoded frame
+                        recycle_frame(frame_mjpeg);
                     } else {
-                        recycle_frame(frame);
+//                        c_start = clock();
+                        frame = decode_mjpeg_frame(mMJPEGDecoder, frame_mjpeg);
+//                        c_end = clock();
+//                        LOGI("uvc_mjpeg2yuyv time: %f", (double) (c_end - c_start) / CLOCKS_PER_SEC);
+                        recycle_frame(frame_mjpeg);
+                        if (LIKELY(frame)) {
+                            deliver_frame(frame);
+                        }
                     }
-                    recycle_frame(frame_mjpeg);
                 }
             }
+            if (parallel) {
+                stop_decode_workers();
+            }
         } else {
             // yuvyv mode
             for (; LIKELY(isRunning());) {
                 frame_yuv = waitPreviewFrame();
                 if (LIKELY(frame_yuv)) {
-                    frame = get_frame(frame_yuv->width * frame_yuv->height * PREVIEW_PIXEL_BYTES);
+                    addAnalysisFrame(frame_yuv);
+                    if (!hasRGBCallback()) {
+                        // pass YUYV as is, callbacks derive their YUV formats from it
+                        // and the windows convert it while drawing, so no RGBX frame is needed
+                        struct timespec start;
+                        clock_gettime(CLOCK_MONOTONIC, &start);
+                        stamp_decode_time(frame_yuv);
+                        // count it as decoded in no time so that decoded keeps up with received
+                        add_decode_time(start);
+                        deliver_frame(frame_yuv);
+                        continue;
+                    }
+                    frame = get_frame(frame_yuv->width * frame_yuv->height * PREVIEW_PIXEL_BYTES, FRAME_BUCKET_DECODED);
+                    struct timespec start;
+                    clock_gettime(CLOCK_MONOTONIC, &start);
 //                    c_start = clock();
                     result = uvc_yuyv2rgbx(frame_yuv, frame);   // YUYV => RGBX
 //                    c_end = clock();
 //                    LOGI("uvc_yuyv2rgbx time: %f", (double) (c_end - c_start) / CLOCKS_PER_SEC);
 
                     if (LIKELY(!result)) {
+                        stamp_decode_time(frame);
+                        add_decode_time(start);
                         draw_preview_one(frame, &mPreviewWindow);
                         if (!addCaptureFrame(frame)) {
                             recycle_frame(frame);
                         }
                     } else {
+                        add_stat(STAT_DECODE_ERRORS);
                         recycle_frame(frame);
                     }
                     recycle_frame(frame_yuv);
                 }
             }
         }
-        pthread_cond_signal(&capture_sync);
+        capture_frame_sync.close();
 #if LOCAL_DEBUG
         LOGI("preview_thread_func:wait for all callbacks complete");
 #endif
@@ -631,6 +1365,269 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
     EXIT();
 }
 
+/**
+ * decode MJPEG frame with specific decoder,
+ * MJPEG frame is not recycled in this function
+ * @return decoded frame, NULL if failed
+ */
+uvc_frame_t *UVCPreview::decode_mjpeg_frame(MJPEGDecoder *decoder, uvc_frame_t *frame_mjpeg) {
+    int result;
+    uvc_frame_t *frame = get_frame(frame_mjpeg->width * frame_mjpeg->height * PREVIEW_PIXEL_BYTES, FRAME_BUCKET_DECODED);
+    if (UNLIKELY(!frame)) {
+        return NULL;
+    }
+    struct timespec start;
+    clock_gettime(CLOCK_MONOTONIC, &start);
+    if (isYUVCallback()) {
+        // MJPEG => I420, skip RGBX because the callback needs YUV
+        result = decoder->decodeToI420(frame_mjpeg, frame);
+        if (UNLIKELY(result == UVC_ERROR_NOT_SUPPORTED)) {
+            result = decoder->decodeToRGBX(frame_mjpeg, frame);
+        }
+    } else {
+        result = decoder->decodeToRGBX(frame_mjpeg, frame);   // MJPEG => RGBX
+    }
+    if (UNLIKELY(result)) {
+        add_stat(STAT_DECODE_ERRORS);
+        recycle_frame(frame);
+        frame = NULL;
+    } else {
+        stamp_decode_time(frame);
+        add_decode_time(start);
+    }
+    return frame;
+}
+
+/**
+ * whether MJPEG frames can be decoded directly into the preview window,
+ * this is only possible when neither the capture surface nor IFrameCallbacks need decoded frames
+ */
+bool UVCPreview::canRenderDirect() const {
+    return !mCaptureWindow && !mFrameCallbackObj && !mSubscriberNum && (previewFormat != WINDOW_FORMAT_RGB_565);
+}
+
+/**
+ * decode MJPEG frame straight into the locked buffer of the preview window to avoid copying a whole frame,
+ * this should be called only from the preview thread
+ * @return 0 if rendered, 1 if the frame was dropped due to decode error,
+ *         negative value if the frame could not be rendered directly and should take the usual path
+ */
+int UVCPreview::render_mjpeg_direct(uvc_frame_t *frame_mjpeg) {
+    int result = -1;
+    pthread_mutex_lock(&preview_mutex);
+    // check geometry before locking because a locked buffer can not be given back without posting
+    if (LIKELY(mPreviewWindow
+        && (ANativeWindow_getWidth(mPreviewWindow) == (int32_t) frame_mjpeg->width)
+        && (ANativeWindow_getHeight(mPreviewWindow) == (int32_t) frame_mjpeg->height)
+        && (ANativeWindow_getFormat(mPreviewWindow) != WINDOW_FORMAT_RGB_565))) {
+
+        ANativeWindow_Buffer buffer;
+        if (LIKELY(ANativeWindow_lock(mPreviewWindow, &buffer, NULL) == 0)) {
+            if (LIKELY((buffer.width >= (int32_t) frame_mjpeg->width)
+                && (buffer.height >= (int32_t) frame_mjpeg->height))) {
+
+                struct timespec start;
+                clock_gettime(CLOCK_MONOTONIC, &start);
+                if (LIKELY(!mMJPEGDecoder->decodeToRGBX(frame_mjpeg,
+                    (uint8_t *) buffer.bits, buffer.stride * PREVIEW_PIXEL_BYTES))) {
+                    add_decode_time(start);
+                    add_stat(STAT_FRAMES_RENDERED);
+                    result = 0;
+                } else {
+                    // the buffer may be partially written, but it can not be cancelled with NDK API
+                    add_stat(STAT_DECODE_ERRORS);
+                    result = 1;
+                }
+            } else {
+                LOGW("window buffer(%dx%d) is smaller than the frame", buffer.width, buffer.height);
+                result = 1;
+            }
+            set_window_timestamp(mPreviewWindow, frame_mjpeg);
+            ANativeWindow_unlockAndPost(mPreviewWindow);
+        } else {
+            add_stat(STAT_RENDER_FAILURES);
+            result = 1;
+        }
+    }
+    pthread_mutex_unlock(&preview_mutex);
+    return result;
+}
+
+/**
+ * draw decoded frame to the preview window and pass it to the capture thread
+ */
+void UVCPreview::deliver_frame(uvc_frame_t *frame) {
+    draw_preview_one(frame, &mPreviewWindow);
+    if (!addCaptureFrame(frame)) {
+        recycle_frame(frame);
+    }
+}
+
+//======================================================================
+//
+//======================================================================
+/**
+ * start decode threads for MJPEG frames
+ * @return 0 if at least one decode thread started
+ */
+int UVCPreview::start_decode_workers() {
+    ENTER();
+
+    pthread_mutex_lock(&decode_mutex);
+    {
+        decodeHead = decodeNext = decodeTail = 0;
+        decodeSlotNum = mDecodeThreadNum * 2;
+        mDelivering = false;
+        decodeWorkerNum = 0;
+        for (int i = 0; i < mDecodeThreadNum; i++) {
+            if (LIKELY(!pthread_create(&decode_threads[i], NULL, decode_thread_func, (void *) this))) {
+                pthread_setname_np(decode_threads[i], "decode_thread");
+                decodeWorkerNum++;
+            } else {
+                LOGW("failed to create decode thread");
+                break;
+            }
+        }
+    }
+    pthread_mutex_unlock(&decode_mutex);
+    LOGI("decode threads=%d", decodeWorkerNum);
+
+    RETURN(decodeWorkerNum > 0 ? 0 : -1, int);
+}
+
+/**
+ * wait for decode threads finishing and recycle frames that were not delivered
+ */
+void UVCPreview::stop_decode_workers() {
+    ENTER();
+
+    pthread_mutex_lock(&decode_mutex);
+    {
+        pthread_cond_broadcast(&decode_sync);
+    }
+    pthread_mutex_unlock(&decode_mutex);
+    for (int i = 0; i < decodeWorkerNum; i++) {
+        if (pthread_join(decode_threads[i], NULL) != EXIT_SUCCESS) {
+            LOGW("UVCPreview::terminate decode thread: pthread_join failed");
+        }
+    }
+    decodeWorkerNum = 0;
+    pthread_mutex_lock(&decode_mutex);
+    {
+        for (; decodeHead != decodeTail; decodeHead++) {
+            decode_slot_t *slot = &decodeSlots[decodeHead % decodeSlotNum];
+            if (slot->in) {
+                recycle_frame(slot->in);
+            }
+            if (slot->out) {
+                recycle_frame(slot->out);
+            }
+            slot->in = slot->out = NULL;
+            slot->done = false;
+        }
+        decodeNext = decodeTail;
+    }
+    pthread_mutex_unlock(&decode_mutex);
+
+    EXIT();
+}
+
+/**
+ * pass MJPEG frame to decode threads,
+ * block until a slot of the reorder buffer becomes free
+ */
+void UVCPreview::submit_decode_frame(uvc_frame_t *frame) {
+    pthread_mutex_lock(&decode_mutex);
+    {
+        while (isRunning() && (decodeTail - decodeHead >= (uint64_t) decodeSlotNum)) {
+            pthread_cond_wait(&decode_sync, &decode_mutex);
+        }
+        if (LIKELY(isRunning())) {
+            decode_slot_t *slot = &decodeSlots[decodeTail % decodeSlotNum];
+            slot->in = frame;
+            slot->out = NULL;
+            slot->done = false;
+            decodeTail++;
+            frame = NULL;
+            pthread_cond_broadcast(&decode_sync);
+        }
+    }
+    pthread_mutex_unlock(&decode_mutex);
+    if (UNLIKELY(frame)) {
+        recycle_frame(frame);
+    }
+}
+
+/*
+ * thread function
+ * @param vptr_args pointer to UVCPreview instance
+ */
+// static
+void *UVCPreview::decode_thread_func(void *vptr_args) {
+    ENTER();
+    UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+    if (LIKELY(preview)) {
+        preview->do_decode();
+    }
+    PRE_EXIT();
+    pthread_exit(NULL);
+}
+
+/**
+ * the actual function for decoding on decode thread.
+ * Frames can finish decoding out of order, so whoever finishes the oldest frame
+ * delivers all frames that are ready in order while the others keep decoding.
+ */
+void UVCPreview::do_decode() {
+    ENTER();
+
+    // each decode thread owns its TurboJPEG handle
+    MJPEGDecoder decoder;
+    pthread_mutex_lock(&decode_mutex);
+    for (;;) {
+        while (isRunning() && (decodeNext == decodeTail)) {
+            pthread_cond_wait(&decode_sync, &decode_mutex);
+        }
+        if (UNLIKELY(!isRunning())) {
+            break;
+        }
+        decode_slot_t *slot = &decodeSlots[decodeNext % decodeSlotNum];
+        decodeNext++;
+        pthread_mutex_unlock(&decode_mutex);
+
+        uvc_frame_t *decoded = decode_mjpeg_frame(&decoder, slot->in);
+
+        pthread_mutex_lock(&decode_mutex);
+        slot->out = decoded;
+        slot->done = true;
+        if (!mDelivering) {
+            mDelivering = true;
+            for (;;) {
+                decode_slot_t *head = &decodeSlots[decodeHead % decodeSlotNum];
+                if ((decodeHead == decodeNext) || !head->done) {
+                    break;
+                }
+                uvc_frame_t *frame_mjpeg = head->in;
+                uvc_frame_t *frame = head->out;
+                head->in = head->out = NULL;
+                head->done = false;
+                decodeHead++;
+                pthread_cond_broadcast(&decode_sync);
+                pthread_mutex_unlock(&decode_mutex);
+                recycle_frame(frame_mjpeg);
+                if (LIKELY(frame)) {
+                    deliver_frame(frame);
+                }
+                pthread_mutex_lock(&decode_mutex);
+            }
+            mDelivering = false;
+        }
+    }
+    pthread_mutex_unlock(&decode_mutex);
+
+    EXIT();
+}
+
 // transfer specific frame data to the Surface(ANativeWindow)
 int copyToSurface(uvc_frame_t *frame, ANativeWindow **window) {
     // ENTER();
@@ -639,7 +1636,30 @@ int copyToSurface(uvc_frame_t *frame, ANativeWindow **window) {
         ANativeWindow_Buffer buffer;
         if (LIKELY(ANativeWindow_lock(*window, &buffer, NULL) == 0)) {
 
-            if (frame->width >= buffer.stride) {
+            if (frame->frame_format == UVC_FRAME_FORMAT_I420) {
+                // convert I420 to RGBX while writing into the window buffer
+                const int width = (int) frame->width < buffer.width ? frame->width : buffer.width;
+                const int height = (int) frame->height < buffer.height ? frame->height : buffer.height;
+                const int chroma_stride = (frame->width + 1) / 2;
+                const uint8_t *src_y = (const uint8_t *) frame->data;
+                const uint8_t *src_u = src_y + frame->width * frame->height;
+                const uint8_t *src_v = src_u + chroma_stride * ((frame->height + 1) / 2);
+                if (UNLIKELY(libyuv::J420ToABGR(src_y, frame->step, src_u, chroma_stride, src_v, chroma_stride,
+                                   (uint8_t *) buffer.bits, buffer.stride * PREVIEW_PIXEL_BYTES,
+                                   width, height))) {
+                    result = -1;
+                }
+            } else if (frame->frame_format == UVC_FRAME_FORMAT_YUYV) {
+                // convert YUYV to RGBX(ABGR in libyuv word order) while writing into the window buffer,
+                // the window buffer has its own stride
+                const int width = (int) frame->width < buffer.width ? frame->width : buffer.width;
+                const int height = (int) frame->height < buffer.height ? frame->height : buffer.height;
+                if (UNLIKELY(libyuv::YUY2ToABGR((const uint8_t *) frame->data, frame->step,
+                                   (uint8_t *) buffer.bits, buffer.stride * PREVIEW_PIXEL_BYTES,
+                                   width, height))) {
+                    result = -1;
+                }
+            } else if (frame->width >= buffer.stride) {
                 memcpy(buffer.bits, frame->data,
                        buffer.width * buffer.height * PREVIEW_PIXEL_BYTES);
             } else {
@@ -650,6 +1670,7 @@ int copyToSurface(uvc_frame_t *frame, ANativeWindow **window) {
                 }
             }
 
+            set_window_timestamp(*window, frame);
             ANativeWindow_unlockAndPost(*window);
         } else {
             result = -1;
@@ -666,7 +1687,7 @@ void UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **window) {
     pthread_mutex_lock(&preview_mutex);
     {
         if (LIKELY(*window != NULL)) {
-            copyToSurface(frame, window);
+            add_stat(copyToSurface(frame, window) ? STAT_RENDER_FAILURES : STAT_FRAMES_RENDERED);
         }
     }
     pthread_mutex_unlock(&preview_mutex);
@@ -686,7 +1707,7 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
         if (isRunning() && isCapturing()) {
             mIsCapturing = false;
             if (mCaptureWindow) {
-                pthread_cond_signal(&capture_sync);
+                capture_frame_sync.signal();
                 pthread_cond_wait(&capture_sync, &capture_mutex);    // wait finishing capturing
             }
         }
@@ -717,17 +1738,16 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
 
 bool UVCPreview::addCaptureFrame(uvc_frame_t *frame) {
     bool result = false;
-    pthread_mutex_lock(&capture_mutex);
     if (LIKELY(isRunning())) {
         // keep only latest one
-        if (captureQueu) {
-            recycle_frame(captureQueu);
+        uvc_frame_t *prev = __atomic_exchange_n(&captureQueu, frame, __ATOMIC_ACQ_REL);
+        if (prev) {
+            add_stat(STAT_CAPTURE_QUEUE_DROPS);
+            recycle_frame(prev);
         }
-        captureQueu = frame;
-        pthread_cond_broadcast(&capture_sync);
+        capture_frame_sync.signal();
         result = true;
     }
-    pthread_mutex_unlock(&capture_mutex);
     return result;
 }
 
@@ -735,18 +1755,15 @@ bool UVCPreview::addCaptureFrame(uvc_frame_t *frame) {
  * get frame data for capturing, if not exist, block and wait
  */
 uvc_frame_t *UVCPreview::waitCaptureFrame() {
-    uvc_frame_t *frame = NULL;
-    pthread_mutex_lock(&capture_mutex);
-    {
-        if (!captureQueu) {
-            pthread_cond_wait(&capture_sync, &capture_mutex);
-        }
-        if (LIKELY(isRunning() && captureQueu)) {
-            frame = captureQueu;
-            captureQueu = NULL;
-        }
+    uvc_frame_t *frame = __atomic_exchange_n(&captureQueu, (uvc_frame_t *) NULL, __ATOMIC_ACQ_REL);
+    if (!frame && isRunning()) {
+        capture_frame_sync.wait();
+        frame = __atomic_exchange_n(&captureQueu, (uvc_frame_t *) NULL, __ATOMIC_ACQ_REL);
+    }
+    if (UNLIKELY(frame && !isRunning())) {
+        recycle_frame(frame);
+        frame = NULL;
     }
-    pthread_mutex_unlock(&capture_mutex);
     return frame;
 }
 
@@ -754,13 +1771,296 @@ uvc_frame_t *UVCPreview::waitCaptureFrame() {
  * clear drame data for capturing
  */
 void UVCPreview::clearCaptureFrame() {
-    pthread_mutex_lock(&capture_mutex);
-    {
-        if (captureQueu)
-            recycle_frame(captureQueu);
-        captureQueu = NULL;
+    uvc_frame_t *frame = __atomic_exchange_n(&captureQueu, (uvc_frame_t *) NULL, __ATOMIC_ACQ_REL);
+    if (frame) {
+        recycle_frame(frame);
     }
-    pthread_mutex_unlock(&capture_mutex);
+}
+
+//======================================================================
+/**
+ * conversion function from I420 for the pixel format of IFrameCallback
+ * @param bytes number of bytes of converted frame
+ * @return NULL if the pixel format is unknown
+ */
+static convFunc_t get_i420_conv_func(const int pixel_format, const int width, const int height, size_t *bytes) {
+    const size_t sz = width * height;
+    switch (pixel_format) {
+        case PIXEL_FORMAT_RAW:
+        case PIXEL_FORMAT_YUV:
+            *bytes = sz * 2;
+            return uvc_i420_to_yuyv;
+        case PIXEL_FORMAT_NV12:
+            *bytes = (sz * 3) / 2;
+            return uvc_i420_to_nv12;
+        case PIXEL_FORMAT_NV21:
+            *bytes = (sz * 3) / 2;
+            return uvc_i420_to_nv21;
+        case PIXEL_FORMAT_RGB:
+            *bytes = sz * 3;
+            return uvc_i420_to_rgb;
+        case PIXEL_FORMAT_RGB565:
+            *bytes = sz * 2;
+            return uvc_i420_to_rgb565;
+        case PIXEL_FORMAT_RGBX:
+            *bytes = sz * 4;
+            return uvc_i420_to_rgbx;
+        case PIXEL_FORMAT_BGR:
+            *bytes = sz * 3;
+            return uvc_i420_to_bgr;
+        default:
+            *bytes = 0;
+            return NULL;
+    }
+}
+
+/**
+ * pass a copy of the frame from camera to the analysis thread if the analysis callback is set,
+ * only the latest frame is kept so that slow analysis never stalls preview.
+ * this is called from the preview thread
+ */
+void UVCPreview::addAnalysisFrame(uvc_frame_t *frame) {
+    if (LIKELY(!mAnalysisCallbackObj || !isRunning())) {
+        return;
+    }
+    uvc_frame_t *copy = get_frame(frame->data_bytes, FRAME_BUCKET_COMPRESSED);
+    if (UNLIKELY(!copy)) {
+        return;
+    }
+    if (UNLIKELY(uvc_duplicate_frame(frame, copy))) {
+        recycle_frame(copy);
+        return;
+    }
+    uvc_frame_t *prev = __atomic_exchange_n(&analysisQueue, copy, __ATOMIC_ACQ_REL);
+    if (prev) {
+        recycle_frame(prev);
+    }
+    analysis_sync.signal();
+}
+
+uvc_frame_t *UVCPreview::waitAnalysisFrame() {
+    uvc_frame_t *frame = __atomic_exchange_n(&analysisQueue, (uvc_frame_t *) NULL, __ATOMIC_ACQ_REL);
+    if (!frame && isRunning()) {
+        analysis_sync.wait();
+        frame = __atomic_exchange_n(&analysisQueue, (uvc_frame_t *) NULL, __ATOMIC_ACQ_REL);
+    }
+    if (UNLIKELY(frame && !isRunning())) {
+        recycle_frame(frame);
+        frame = NULL;
+    }
+    return frame;
+}
+
+void UVCPreview::clearAnalysisFrame() {
+    uvc_frame_t *frame = __atomic_exchange_n(&analysisQueue, (uvc_frame_t *) NULL, __ATOMIC_ACQ_REL);
+    if (frame) {
+        recycle_frame(frame);
+    }
+}
+
+/**
+ * hand over a copy of the frame from camera to the threads waiting in #captureStillImage.
+ * this is called from the preview thread
+ */
+void UVCPreview::addStillFrame(uvc_frame_t *frame) {
+    if (LIKELY(!__atomic_load_n(&mStillRequests, __ATOMIC_RELAXED))) {
+        return;
+    }
+    pthread_mutex_lock(&still_mutex);
+    if (mStillRequests && !stillFrame) {
+        uvc_frame_t *copy = get_frame(frame->data_bytes, FRAME_BUCKET_COMPRESSED);
+        if (LIKELY(copy)) {
+            if (LIKELY(!uvc_duplicate_frame(frame, copy))) {
+                stillFrame = copy;
+                pthread_cond_broadcast(&still_sync);
+            } else {
+                recycle_frame(copy);
+            }
+        }
+    }
+    pthread_mutex_unlock(&still_mutex);
+}
+
+void UVCPreview::clearStillFrame() {
+    pthread_mutex_lock(&still_mutex);
+    uvc_frame_t *frame = stillFrame;
+    stillFrame = NULL;
+    pthread_mutex_unlock(&still_mutex);
+    if (frame) {
+        recycle_frame(frame);
+    }
+}
+
+/**
+ * wait for next MJPEG frame from camera and return it as is, without decoding and re-encoding.
+ * the frame may lack Huffman tables(DHT) as MJPEG allows, the caller should supply the default ones.
+ * @param timeout_ms
+ * @return byte array of the compressed frame, NULL if the stream is not MJPEG or on timeout
+ */
+jbyteArray UVCPreview::captureStillImage(JNIEnv *env, int timeout_ms) {
+    ENTER();
+    if (UNLIKELY((frameFormatType != UVC_VS_FRAME_MJPEG) || !isRunning())) {
+        RETURN(NULL, jbyteArray);
+    }
+    struct timespec ts;
+    clock_gettime(CLOCK_REALTIME, &ts);
+    ts.tv_sec += timeout_ms / 1000;
+    ts.tv_nsec += (timeout_ms % 1000) * 1000000L;
+    if (ts.tv_nsec >= 1000000000L) {
+        ts.tv_sec++;
+        ts.tv_nsec -= 1000000000L;
+    }
+    pthread_mutex_lock(&still_mutex);
+    __atomic_add_fetch(&mStillRequests, 1, __ATOMIC_RELAXED);
+    while (!stillFrame && isRunning()) {
+        if (pthread_cond_timedwait(&still_sync, &still_mutex, &ts) == ETIMEDOUT) {
+            break;
+        }
+    }
+    uvc_frame_t *frame = stillFrame;
+    stillFrame = NULL;
+    __atomic_sub_fetch(&mStillRequests, 1, __ATOMIC_RELAXED);
+    pthread_mutex_unlock(&still_mutex);
+
+    jbyteArray result = NULL;
+    if (LIKELY(frame)) {
+        result = env->NewByteArray(frame->data_bytes);
+        if (LIKELY(result)) {
+            env->SetByteArrayRegion(result, 0, frame->data_bytes, (const jbyte *) frame->data);
+        }
+        recycle_frame(frame);
+    } else {
+        LOGW("captureStillImage:no frame within %d ms", timeout_ms);
+    }
+    RETURN(result, jbyteArray);
+}
+
+/**
+ * start the analysis thread if it is not running yet while previewing,
+ * it keeps running until the preview stops even if the analysis callback is removed.
+ * this should be called while holding analysis_mutex
+ */
+void UVCPreview::start_analysis_thread() {
+    if (isRunning() && !analysis_thread) {
+        if (pthread_create(&analysis_thread, NULL, analysis_thread_func, (void *) this) == 0) {
+            pthread_setname_np(analysis_thread, "analysis_thread");
+        } else {
+            LOGW("failed to create analysis thread");
+            analysis_thread = 0;
+        }
+    }
+}
+
+// static
+void *UVCPreview::analysis_thread_func(void *vptr_args) {
+    ENTER();
+    UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+    if (LIKELY(preview)) {
+        JavaVM *vm = getVM();
+        JNIEnv *env;
+        vm->AttachCurrentThread(&env, NULL);
+        preview->do_analysis(env);
+        vm->DetachCurrentThread();
+    }
+    PRE_EXIT();
+    pthread_exit(NULL);
+}
+
+/**
+ * decode/scale frames for the analysis callback,
+ * MJPEG frames are decoded at reduced scale with their own decoder so the preview is not affected
+ */
+void UVCPreview::do_analysis(JNIEnv *env) {
+    ENTER();
+
+    MJPEGDecoder *decoder = NULL;
+    uvc_frame_t *yuv = uvc_allocate_frame(0);       // I420 frame in original size(only for YUYV)
+    uvc_frame_t *scaled = uvc_allocate_frame(0);    // I420 frame in requested size
+    uvc_frame_t *out = uvc_allocate_frame(0);       // frame in requested pixel format, wrapped by buffer
+    jobject buffer = NULL;
+    void *buffer_data = NULL;
+    size_t buffer_bytes = 0;
+    jmethodID clear = NULL;
+    jclass buffer_clazz = env->FindClass("java/nio/Buffer");
+    if (LIKELY(buffer_clazz)) {
+        clear = env->GetMethodID(buffer_clazz, "clear", "()Ljava/nio/Buffer;");
+        env->DeleteLocalRef(buffer_clazz);
+    }
+    env->ExceptionClear();
+
+    for (; LIKELY(isRunning() && yuv && scaled && out);) {
+        uvc_frame_t *frame = waitAnalysisFrame();
+        if (UNLIKELY(!frame)) continue;
+
+        pthread_mutex_lock(&analysis_mutex);
+        jobject callback = mAnalysisCallbackObj ? env->NewLocalRef(mAnalysisCallbackObj) : NULL;
+        const jmethodID on_frame = mAnalysisOnFrame;
+        const int width = mAnalysisWidth;
+        const int height = mAnalysisHeight;
+        const int pixel_format = mAnalysisPixelFormat;
+        pthread_mutex_unlock(&analysis_mutex);
+
+        if (LIKELY(callback)) {
+            int result;
+            if (frame->frame_format == UVC_FRAME_FORMAT_MJPEG) {
+                if (UNLIKELY(!decoder)) {
+                    decoder = new MJPEGDecoder();
+                }
+                result = decoder->decodeToI420Scaled(frame, width, height, scaled);
+            } else {
+                result = uvc_yuyv_to_i420(frame, yuv);
+                if (LIKELY(!result)) {
+                    result = uvc_i420_scale(yuv, scaled, width, height);
+                }
+            }
+            size_t bytes = 0;
+            const convFunc_t func = get_i420_conv_func(pixel_format, width, height, &bytes);
+            if (LIKELY(!result && func)) {
+                // keep the buffer unless its size changes because ByteBuffer wraps it
+                if (UNLIKELY(!buffer || (buffer_bytes != bytes))) {
+                    if (buffer) {
+                        env->DeleteGlobalRef(buffer);
+                        buffer = NULL;
+                    }
+                    if (!uvc_ensure_frame_size(out, bytes)) {
+                        jobject buf = env->NewDirectByteBuffer(out->data, bytes);
+                        if (LIKELY(buf)) {
+                            buffer = env->NewGlobalRef(buf);
+                            env->DeleteLocalRef(buf);
+                        }
+                        env->ExceptionClear();
+                        buffer_data = out->data;
+                        buffer_bytes = bytes;
+                    }
+                }
+                result = buffer ? func(scaled, out) : UVC_ERROR_NO_MEM;
+                if (LIKELY(!result && (out->data == buffer_data))) {
+                    if (LIKELY(clear)) {
+                        jobject ret = env->CallObjectMethod(buffer, clear);
+                        env->ExceptionClear();
+                        if (ret) env->DeleteLocalRef(ret);
+                    }
+                    env->CallVoidMethod(callback, on_frame, buffer);
+                    env->ExceptionClear();
+                }
+            } else {
+                LOGD("failed to decode frame for analysis:err=%d", result);
+            }
+            env->DeleteLocalRef(callback);
+        }
+        recycle_frame(frame);
+    }
+
+    if (buffer) {
+        env->DeleteGlobalRef(buffer);
+    }
+    if (yuv) uvc_free_frame(yuv);
+    if (scaled) uvc_free_frame(scaled);
+    if (out) uvc_free_frame(out);
+    SAFE_DELETE(decoder);
+    clearAnalysisFrame();
+
+    EXIT();
 }
 
 //======================================================================
@@ -804,8 +2104,12 @@ void UVCPreview::do_capture(JNIEnv *env) {
         } else {
             do_capture_idle_loop(env);
         }
+        pthread_mutex_lock(&capture_mutex);
         pthread_cond_broadcast(&capture_sync);
+        pthread_mutex_unlock(&capture_mutex);
     }    // end of for (; isRunning() ;)
+    release_callback_buffers(env);
+    release_conversions(env);
     EXIT();
 }
 
@@ -831,10 +2135,10 @@ void UVCPreview::do_capture_surface(JNIEnv *env) {
     for (; isRunning() && isCapturing();) {
         frame = waitCaptureFrame();
         if (LIKELY(frame)) {
-            // frame data is always YUYV format.
+            // frame data is RGBX, I420 or YUYV format.
             if LIKELY(isCapturing()) {
-                if (LIKELY(mCaptureWindow)) {
-                    copyToSurface(frame, &mCaptureWindow);
+                if (LIKELY(mCaptureWindow) && !copyToSurface(frame, &mCaptureWindow)) {
+                    add_stat(STAT_FRAMES_CAPTURED);
                 }
             }
             do_capture_callback(env, frame);
@@ -851,35 +2155,524 @@ void UVCPreview::do_capture_surface(JNIEnv *env) {
 
 /**
 * call IFrameCallback#onFrame if needs
+* the frame is converted into one of reused direct ByteBuffers so that no Java object is created per frame
  */
 void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame) {
 //    ENTER();
 
     if (LIKELY(frame)) {
-        uvc_frame_t *callback_frame = frame;
         if (mFrameCallbackObj && iframecallback_fields.onFrame) {
-            if (mFrameCallbackFunc) {
-                callback_frame = get_frame(callbackPixelBytes);
-                if (LIKELY(callback_frame)) {
-                    int b = mFrameCallbackFunc(frame, callback_frame);
-                    recycle_frame(frame);
-                    if (UNLIKELY(b)) {
-                        LOGW("failed to convert for callback frame");
-                        goto SKIP;
-                    }
+            convFunc_t func;
+            switch (frame->frame_format) {
+                case UVC_FRAME_FORMAT_I420:
+                    func = mFrameCallbackI420Func;
+                    break;
+                case UVC_FRAME_FORMAT_YUYV:
+                    func = mFrameCallbackYUYVFunc;
+                    break;
+                default:
+                    func = mFrameCallbackFunc;
+                    break;
+            }
+            // YUYV frame is passed only while no RGB pixel format is requested,
+            // but the pixel format may be changed just now
+            const bool convertible = func || (frame->frame_format != UVC_FRAME_FORMAT_YUYV)
+                                     || (mPixelFormat == PIXEL_FORMAT_RAW) || (mPixelFormat == PIXEL_FORMAT_YUV);
+            callback_buffer_t *slot = LIKELY(convertible) ? obtain_callback_buffer(env) : NULL;
+            int b = -1;
+            if (UNLIKELY(!convertible)) {
+                add_stat(STAT_CALLBACK_DROPS);
+            } else if (LIKELY(slot)) {
+                if (func) {
+                    b = func(frame, slot->frame);
+                } else if (LIKELY(frame->data_bytes >= callbackPixelBytes)) {
+                    // pixel format is same as the frame
+                    memcpy(slot->frame->data, frame->data, callbackPixelBytes);
+                    b = 0;
+                }
+                // conversion function may reallocate the frame
+                if (UNLIKELY(b || (slot->frame->data != slot->data))) {
+                    LOGW("failed to convert for callback frame");
+                    add_stat(STAT_CALLBACK_DROPS);
+                    b = -1;
+                }
+            } else {
+                // all buffers are still held by Java side, drop this frame
+                LOGD("no callback buffer available");
+                add_stat(STAT_CALLBACK_DROPS);
+            }
+            if (LIKELY(!b)) {
+                const bool manual_release = mManualRelease;
+                if (manual_release) {
+                    __atomic_store_n(&slot->inUse, 1, __ATOMIC_RELEASE);
+                }
+                if (LIKELY(iframecallback_fields.clear)) {
+                    // reset position and limit which Java side may have changed
+                    jobject ret = env->CallObjectMethod(slot->buffer, iframecallback_fields.clear);
+                    env->ExceptionClear();
+                    if (ret) env->DeleteLocalRef(ret);
+                }
+                // frames dropped anywhere between libuvc and here since the last callback
+                int dropped = 0;
+                if (mLastCallbackSequence >= 0) {
+                    const int64_t diff = (int64_t) frame->sequence - mLastCallbackSequence - 1;
+                    dropped = diff > 0 ? (int) diff : 0;
+                }
+                mLastCallbackSequence = frame->sequence;
+                if (iframecallback_fields.onFrameWithInfo && slot->info) {
+                    env->CallVoidMethod(slot->info, iframecallback_fields.frameInfoSet,
+                                        (jint) frame->width, (jint) frame->height, (jint) mPixelFormat,
+                                        (jint) frame->sequence, (jint) dropped,
+                                        (jlong) frame->pts, (jlong) frame->scr,
+                                        timespec_to_ns(frame->capture_time_finished),
+                                        timespec_to_ns(frame->decode_time_finished));
+                    env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrameWithInfo,
+                                        slot->buffer, slot->info);
                 } else {
-                    LOGW("failed to allocate for callback frame");
-                    callback_frame = frame;
-                    goto SKIP;
+                    env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, slot->buffer);
+                }
+                add_stat(STAT_FRAMES_CALLBACK);
+                if (UNLIKELY(manual_release && env->ExceptionCheck())) {
+                    // Java side failed to take this buffer
+                    __atomic_store_n(&slot->inUse, 0, __ATOMIC_RELEASE);
                 }
+                env->ExceptionClear();
             }
-            jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
-            env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
-            env->ExceptionClear();
-            env->DeleteLocalRef(buf);
         }
-        SKIP:
-        recycle_frame(callback_frame);
+        do_subscriber_callbacks(env, frame);
+        recycle_frame(frame);
     }
 //    EXIT();
 }
+
+/**
+ * call IFrameCallbacks added by #addFrameCallback,
+ * the frame is converted only once for each pixel format and size and the result is shared by the callbacks.
+ * this should be called only from capture thread
+ */
+void UVCPreview::do_subscriber_callbacks(JNIEnv *env, uvc_frame_t *frame) {
+    if (LIKELY(!mSubscriberNum)) {
+        return;
+    }
+    if (UNLIKELY((frame->frame_format != UVC_FRAME_FORMAT_I420)
+        && (frame->frame_format != UVC_FRAME_FORMAT_YUYV)
+        && (frame->frame_format != UVC_FRAME_FORMAT_RGBX))) {
+        return;
+    }
+    int64_t captured = timespec_to_ns(frame->capture_time_finished);
+    if (UNLIKELY(!captured)) {
+        struct timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        captured = timespec_to_ns(now);
+    }
+    // take subscribers which should receive this frame, they may be removed while calling back
+    frame_subscriber_t due[MAX_FRAME_SUBSCRIBERS];
+    int n = 0;
+    pthread_mutex_lock(&subscriber_mutex);
+    {
+        for (int i = 0; i < mSubscriberNum; i++) {
+            frame_subscriber_t *subscriber = &mSubscribers[i];
+            if (subscriber->interval_ns > 0) {
+                // allow jitter of a quarter of the interval, otherwise e.g. 15fps from 30fps stream becomes 10fps
+                if (captured + subscriber->interval_ns / 4 < subscriber->next_time_ns) continue;
+                subscriber->next_time_ns = captured + subscriber->interval_ns;
+            }
+            due[n] = *subscriber;
+            due[n].callback = env->NewLocalRef(subscriber->callback);
+            if (LIKELY(due[n].callback)) {
+                n++;
+            }
+        }
+    }
+    pthread_mutex_unlock(&subscriber_mutex);
+    if (!n) {
+        return;
+    }
+
+    if (UNLIKELY(!++mSubscriberFrameCount)) {
+        // 0 means never converted
+        mSubscriberFrameCount = 1;
+    }
+    for (int i = 0; i < n; i++) {
+        const int width = due[i].width ? due[i].width : frame->width;
+        const int height = due[i].height ? due[i].height : frame->height;
+        subscriber_conversion_t *conv = get_conversion(env, frame, due[i].pixel_format, width, height);
+        if (LIKELY(conv && !conv->result && conv->buffer)) {
+            if (LIKELY(iframecallback_fields.clear)) {
+                // reset position and limit which other callback may have changed
+                jobject ret = env->CallObjectMethod(conv->buffer, iframecallback_fields.clear);
+                env->ExceptionClear();
+                if (ret) env->DeleteLocalRef(ret);
+            }
+            env->CallVoidMethod(due[i].callback, due[i].onFrame, conv->buffer);
+            env->ExceptionClear();
+            add_stat(STAT_FRAMES_CALLBACK);
+        } else {
+            add_stat(STAT_CALLBACK_DROPS);
+        }
+        env->DeleteLocalRef(due[i].callback);
+    }
+}
+
+/**
+ * conversion function from RGBX for the pixel format of IFrameCallback
+ * @param bytes number of bytes of converted frame, 0 if the pixel format is unknown
+ * @return NULL if the pixel format is unknown or same as RGBX
+ */
+static convFunc_t get_rgbx_conv_func(const int pixel_format, const int width, const int height, size_t *bytes) {
+    const size_t sz = width * height;
+    switch (pixel_format) {
+        case PIXEL_FORMAT_RAW:
+        case PIXEL_FORMAT_YUV:
+            *bytes = sz * 2;
+            return uvc_rgbx_to_yuyv;
+        case PIXEL_FORMAT_NV12:
+            *bytes = (sz * 3) / 2;
+            return uvc_rgbx_to_nv12;
+        case PIXEL_FORMAT_NV21:
+            *bytes = (sz * 3) / 2;
+            return uvc_rgbx_to_nv21;
+        case PIXEL_FORMAT_RGB:
+            *bytes = sz * 3;
+            return uvc_rgbx_to_rgb;
+        case PIXEL_FORMAT_RGB565:
+            *bytes = sz * 2;
+            return uvc_rgbx_to_rgb565;
+        case PIXEL_FORMAT_RGBX:
+            *bytes = sz * 4;
+            return NULL;
+        case PIXEL_FORMAT_BGR:
+            *bytes = sz * 3;
+            return uvc_rgbx_to_bgr;
+        default:
+            *bytes = 0;
+            return NULL;
+    }
+}
+
+/**
+ * conversion function from YUYV for the pixel format of IFrameCallback,
+ * RGB family is converted through I420 instead
+ * @param bytes number of bytes of converted frame, 0 if the pixel format can not be converted directly
+ * @return NULL if the pixel format can not be converted directly or same as YUYV
+ */
+static convFunc_t get_yuyv_conv_func(const int pixel_format, const int width, const int height, size_t *bytes) {
+    const size_t sz = width * height;
+    switch (pixel_format) {
+        case PIXEL_FORMAT_RAW:
+        case PIXEL_FORMAT_YUV:
+            *bytes = sz * 2;
+            return NULL;
+        case PIXEL_FORMAT_NV12:
+            *bytes = (sz * 3) / 2;
+            return uvc_yuyv_to_nv12;
+        case PIXEL_FORMAT_NV21:
+            *bytes = (sz * 3) / 2;
+            return uvc_yuyv_to_nv21;
+        default:
+            *bytes = 0;
+            return NULL;
+    }
+}
+
+/**
+ * get the frame converted to the pixel format and size for subscribers,
+ * the frame is converted only once and the result is reused until next frame comes.
+ * this should be called only from capture thread
+ * @param pixel_format PIXEL_FORMAT_XXX, PIXEL_FORMAT_SCALED_SOURCE to scale the frame without conversion
+ *                     or PIXEL_FORMAT_I420_SOURCE to convert YUYV frame into I420
+ * @return NULL if no conversion slot is available, check #result whether the conversion succeeded
+ */
+subscriber_conversion_t *UVCPreview::get_conversion(JNIEnv *env, uvc_frame_t *frame,
+    int pixel_format, int width, int height) {
+
+    if ((frame->frame_format == UVC_FRAME_FORMAT_YUYV) && (pixel_format != PIXEL_FORMAT_I420_SOURCE)) {
+        size_t bytes = 0;
+        get_yuyv_conv_func(pixel_format, width, height, &bytes);
+        if (!bytes || ((int) frame->width != width) || ((int) frame->height != height)) {
+            // scale and convert to RGB from I420 which is shared by all subscribers of this frame
+            subscriber_conversion_t *i420 = get_conversion(env, frame, PIXEL_FORMAT_I420_SOURCE,
+                                                           frame->width, frame->height);
+            if (UNLIKELY(!i420 || i420->result)) {
+                return i420;
+            }
+            frame = i420->frame;
+        }
+    }
+    subscriber_conversion_t *conv = NULL;
+    subscriber_conversion_t *unused = NULL;     // least recently used slot which is not used for this frame
+    for (int i = 0; i < MAX_SUBSCRIBER_CONVERSIONS; i++) {
+        subscriber_conversion_t *c = &mConversions[i];
+        if (c->frame && (c->pixel_format == pixel_format)
+            && (c->width == width) && (c->height == height)) {
+            conv = c;
+            break;
+        }
+        if ((c->converted != mSubscriberFrameCount)
+            && (!unused || (c->converted < unused->converted))) {
+            unused = c;
+        }
+    }
+    if (!conv) {
+        if (UNLIKELY(!unused)) {
+            return NULL;
+        }
+        conv = unused;
+        if (conv->buffer) {
+            env->DeleteGlobalRef(conv->buffer);
+        }
+        if (!conv->frame) {
+            conv->frame = get_frame(0, FRAME_BUCKET_CALLBACK);
+        }
+        conv->pixel_format = pixel_format;
+        conv->width = width;
+        conv->height = height;
+        conv->data = NULL;
+        conv->bytes = 0;
+        conv->buffer = NULL;
+        conv->converted = 0;
+        if (UNLIKELY(!conv->frame)) {
+            return NULL;
+        }
+    }
+    if (conv->converted == mSubscriberFrameCount) {
+        // already converted for this frame
+        return conv;
+    }
+    // mark before scaling below so that this slot is not taken for the scaled source
+    conv->converted = mSubscriberFrameCount;
+
+    int result;
+    if (pixel_format == PIXEL_FORMAT_I420_SOURCE) {
+        result = uvc_yuyv_to_i420(frame, conv->frame);
+    } else if (pixel_format == PIXEL_FORMAT_SCALED_SOURCE) {
+        result = frame->frame_format == UVC_FRAME_FORMAT_I420
+                 ? uvc_i420_scale(frame, conv->frame, width, height)
+                 : uvc_rgbx_scale(frame, conv->frame, width, height);
+    } else {
+        uvc_frame_t *src = frame;
+        if (((int) frame->width != width) || ((int) frame->height != height)) {
+            // scaled source frame is also shared by the subscribers of same size
+            subscriber_conversion_t *scaled = get_conversion(env, frame, PIXEL_FORMAT_SCALED_SOURCE, width, height);
+            src = scaled && !scaled->result ? scaled->frame : NULL;
+        }
+        size_t bytes = 0;
+        convFunc_t func = NULL;
+        if (LIKELY(src)) {
+            switch (src->frame_format) {
+                case UVC_FRAME_FORMAT_I420:
+                    func = get_i420_conv_func(pixel_format, width, height, &bytes);
+                    break;
+                case UVC_FRAME_FORMAT_YUYV:
+                    func = get_yuyv_conv_func(pixel_format, width, height, &bytes);
+                    break;
+                default:
+                    func = get_rgbx_conv_func(pixel_format, width, height, &bytes);
+                    break;
+            }
+        }
+        if (UNLIKELY(!bytes)) {
+            result = UVC_ERROR_INVALID_PARAM;
+        } else if (UNLIKELY(uvc_ensure_frame_size(conv->frame, bytes))) {
+            result = UVC_ERROR_NO_MEM;
+        } else {
+            if (UNLIKELY(!conv->buffer || (conv->bytes != bytes) || (conv->frame->data != conv->data))) {
+                // ByteBuffer should wrap current data of the frame
+                if (conv->buffer) {
+                    env->DeleteGlobalRef(conv->buffer);
+                    conv->buffer = NULL;
+                }
+                jobject buf = env->NewDirectByteBuffer(conv->frame->data, bytes);
+                if (LIKELY(buf)) {
+                    conv->buffer = env->NewGlobalRef(buf);
+                    env->DeleteLocalRef(buf);
+                }
+                env->ExceptionClear();
+                conv->data = conv->frame->data;
+                conv->bytes = bytes;
+            }
+            if (func) {
+                result = func(src, conv->frame);
+            } else {
+                // pixel format is same as the frame
+                memcpy(conv->frame->data, src->data, bytes);
+                result = 0;
+            }
+            if (UNLIKELY(!result && (conv->frame->data != conv->data))) {
+                // conversion function reallocated the frame, ByteBuffer is not valid anymore
+                result = UVC_ERROR_NO_MEM;
+            }
+        }
+    }
+    if (UNLIKELY(result)) {
+        LOGW("failed to convert frame for subscriber:err=%d", result);
+    }
+    conv->result = result;
+    return conv;
+}
+
+/**
+ * release frames and ByteBuffers for subscribers,
+ * this should be called only from capture thread
+ */
+void UVCPreview::release_conversions(JNIEnv *env) {
+    ENTER();
+
+    for (int i = 0; i < MAX_SUBSCRIBER_CONVERSIONS; i++) {
+        subscriber_conversion_t *conv = &mConversions[i];
+        if (conv->buffer) {
+            env->DeleteGlobalRef(conv->buffer);
+        }
+        if (conv->frame) {
+            recycle_frame(conv->frame);
+        }
+        memset(conv, 0, sizeof(subscriber_conversion_t));
+    }
+    mSubscriberFrameCount = 0;
+
+    EXIT();
+}
+
+/**
+ * get next callback buffer which is not held by Java side,
+ * (re)create frame and direct ByteBuffer if callback pixel format was changed.
+ * this should be called only from capture thread
+ * @return NULL if all buffers are held by Java side
+ */
+callback_buffer_t *UVCPreview::obtain_callback_buffer(JNIEnv *env) {
+    callback_buffer_t *result = NULL;
+    const int n = mCallbackBufferNum;
+    for (int i = 0; i < n; i++) {
+        const int ix = (mCallbackBufferIx + i) % n;
+        callback_buffer_t *slot = &mCallbackBuffers[ix];
+        if (__atomic_load_n(&slot->inUse, __ATOMIC_ACQUIRE)) continue;
+        if (UNLIKELY(!slot->buffer || (slot->bytes != callbackPixelBytes)
+            || (slot->frame->data != slot->data))) {
+
+            pthread_mutex_lock(&callback_buffer_mutex);
+            {
+                if (slot->buffer) {
+                    env->DeleteGlobalRef(slot->buffer);
+                    slot->buffer = NULL;
+                }
+                if (!slot->frame) {
+                    slot->frame = get_frame(callbackPixelBytes, FRAME_BUCKET_CALLBACK);
+                } else if (uvc_ensure_frame_size(slot->frame, callbackPixelBytes)) {
+                    recycle_frame(slot->frame);
+                    slot->frame = NULL;
+                }
+                if (LIKELY(slot->frame)) {
+                    jobject buf = env->NewDirectByteBuffer(slot->frame->data, callbackPixelBytes);
+                    if (LIKELY(buf)) {
+                        slot->buffer = env->NewGlobalRef(buf);
+                        env->DeleteLocalRef(buf);
+                    }
+                    env->ExceptionClear();
+                    slot->data = slot->frame->data;
+                    slot->bytes = callbackPixelBytes;
+                }
+            }
+            pthread_mutex_unlock(&callback_buffer_mutex);
+            if (UNLIKELY(!slot->buffer)) {
+                LOGW("failed to create callback buffer");
+                continue;
+            }
+        }
+        if (UNLIKELY(!slot->info && iframecallback_fields.frameInfoClass)) {
+            // FrameInfo is reused with the buffer, so it is also valid until the buffer is released
+            jobject info = env->NewObject(iframecallback_fields.frameInfoClass,
+                                          iframecallback_fields.frameInfoInit);
+            if (LIKELY(info)) {
+                slot->info = env->NewGlobalRef(info);
+                env->DeleteLocalRef(info);
+            }
+            env->ExceptionClear();
+        }
+        mCallbackBufferIx = (ix + 1) % n;
+        result = slot;
+        break;
+    }
+    return result;
+}
+
+/**
+ * release all callback buffers,
+ * buffers which Java side still holds are detached and kept until UVCCamera#releaseFrame
+ */
+void UVCPreview::release_callback_buffers(JNIEnv *env) {
+    ENTER();
+
+    pthread_mutex_lock(&callback_buffer_mutex);
+    {
+        for (int i = 0; i < MAX_CALLBACK_BUFFER_NUM; i++) {
+            callback_buffer_t *slot = &mCallbackBuffers[i];
+            if (__atomic_load_n(&slot->inUse, __ATOMIC_ACQUIRE)) {
+                callback_buffer_t *detached = (callback_buffer_t *) malloc(sizeof(callback_buffer_t));
+                if (LIKELY(detached)) {
+                    memcpy(detached, slot, sizeof(callback_buffer_t));
+                    detached->next = mDetachedCallbackBuffers;
+                    mDetachedCallbackBuffers = detached;
+                } else {
+                    // never reuse the memory which Java side may still read
+                    LOGE("failed to detach callback buffer, leaked");
+                }
+                memset(slot, 0, sizeof(callback_buffer_t));
+                continue;
+            }
+            if (slot->buffer) {
+                env->DeleteGlobalRef(slot->buffer);
+            }
+            if (slot->info) {
+                env->DeleteGlobalRef(slot->info);
+            }
+            if (slot->frame) {
+                recycle_frame(slot->frame);
+            }
+            memset(slot, 0, sizeof(callback_buffer_t));
+        }
+        mCallbackBufferIx = 0;
+        mLastCallbackSequence = -1;
+    }
+    pthread_mutex_unlock(&callback_buffer_mutex);
+
+    EXIT();
+}
+
+/**
+ * give back ByteBuffer that was passed to IFrameCallback#onFrame with manual release
+ * @return 0 if the buffer was released, otherwise the buffer is unknown or already released
+ */
+int UVCPreview::releaseFrame(JNIEnv *env, jobject frame) {
+    int result = -1;
+    pthread_mutex_lock(&callback_buffer_mutex);
+    {
+        for (int i = 0; i < MAX_CALLBACK_BUFFER_NUM; i++) {
+            callback_buffer_t *slot = &mCallbackBuffers[i];
+            if (slot->buffer && env->IsSameObject(slot->buffer, frame)) {
+                if (__atomic_exchange_n(&slot->inUse, 0, __ATOMIC_ACQ_REL)) {
+                    result = 0;
+                }
+                break;
+            }
+        }
+        if (result) {
+            // the buffer may have been detached when the capture thread finished
+            for (callback_buffer_t **p = &mDetachedCallbackBuffers; *p; p = &(*p)->next) {
+                callback_buffer_t *detached = *p;
+                if (env->IsSameObject(detached->buffer, frame)) {
+                    *p = detached->next;
+                    env->DeleteGlobalRef(detached->buffer);
+                    if (detached->info) {
+                        env->DeleteGlobalRef(detached->info);
+                    }
+                    recycle_frame(detached->frame);
+                    free(detached);
+                    result = 0;
+                    break;
+                }
+            }
+        }
+    }
+    pthread_mutex_unlock(&callback_buffer_mutex);
+    return result;
+}
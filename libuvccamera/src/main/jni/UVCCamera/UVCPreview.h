@@ -29,7 +29,10 @@
 #include <pthread.h>
 #include <android/native_window.h>
 #include "objectarray.h"
+#include "ringbuffer.h"
+#include "FramePool.h"
 #include "ConvertHelper.h"
+#include "PassthroughRecorder.h"
 
 #pragma interface
 
@@ -39,6 +42,9 @@
 #define DEFAULT_PREVIEW_FRAME_TYPE 0x07 //UVC_VS_FRAME_MJPEG
 #define DEFAULT_PREVIEW_FPS 30
 
+#define MAX_DECODE_THREADS 8
+#define MAX_DECODE_SLOTS (MAX_DECODE_THREADS * 2)
+
 typedef int (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
 
 #define PIXEL_FORMAT_RAW 0        // same as PIXEL_FORMAT_YUV
@@ -51,11 +57,118 @@ typedef int (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
 #define PIXEL_FORMAT_BGR 7
 
 
+/**
+ * indexes of pipeline statistics,
+ * these values should be same as UVCStatistics#XXX on Java side
+ */
+enum {
+    // counted by libuvc on the libusb event thread
+    STAT_FRAMES_RECEIVED = 0,       // frames received completely from USB
+    STAT_FRAMES_INCOMPLETE,         // frames without EOF(frame ID bit flipped)
+    STAT_FRAMES_NO_BUFFER,          // frames dropped because frame pool was exhausted
+    STAT_FRAMES_OVERWRITTEN,        // frames overwritten before handed over to preview thread
+    STAT_PAYLOAD_ERRORS,            // payloads with error bit or broken header
+    STAT_TRANSFER_ERRORS,           // failed isochronous packets/transfers
+    // preview queue between libuvc and the preview(decode) thread
+    STAT_PREVIEW_QUEUE_DEPTH,       // current number of queued frames
+    STAT_PREVIEW_QUEUE_MAX_DEPTH,   // max number of queued frames
+    STAT_PREVIEW_QUEUE_DROPS,       // frames dropped because the queue was full
+    // decoding/conversion for preview
+    STAT_FRAMES_DECODED,
+    STAT_DECODE_ERRORS,
+    STAT_DECODE_TIME_TOTAL_US,
+    STAT_DECODE_TIME_MAX_US,
+    // preview window
+    STAT_FRAMES_RENDERED,
+    STAT_RENDER_FAILURES,           // failed to lock the preview window
+    // capture thread(capture surface for encoder and IFrameCallback)
+    STAT_CAPTURE_QUEUE_DROPS,       // frames overwritten before the capture thread took them
+    STAT_FRAMES_CAPTURED,           // frames written to the capture surface
+    STAT_FRAMES_CALLBACK,           // frames passed to IFrameCallback
+    STAT_CALLBACK_DROPS,            // frames dropped because no callback buffer was available
+    // histogram of decode time, <1ms, <2ms, <4ms, ... , <64ms, >=64ms
+    STAT_DECODE_HISTOGRAM,
+    STAT_NUM = STAT_DECODE_HISTOGRAM + 8,
+};
+#define STAT_DECODE_HISTOGRAM_NUM (STAT_NUM - STAT_DECODE_HISTOGRAM)
+
 // for callback to Java object
 typedef struct {
     jmethodID onFrame;
+    // optional, IFrameInfoCallback#onFrame(ByteBuffer frame, FrameInfo info)
+    jmethodID onFrameWithInfo;
+    jmethodID clear;    // java.nio.Buffer#clear to reset position/limit of reused buffer
+    // FrameInfo class(global reference), constructor and FrameInfo#set, only available with onFrameWithInfo
+    jclass frameInfoClass;
+    jmethodID frameInfoInit;
+    jmethodID frameInfoSet;
 } Fields_iframecallback;
 
+// default number of direct ByteBuffers reused for IFrameCallback
+#define CALLBACK_BUFFER_NUM 4
+#define MAX_CALLBACK_BUFFER_NUM 16
+
+// frame and direct ByteBuffer wrapping it, reused for IFrameCallback
+typedef struct callback_buffer {
+    uvc_frame_t *frame;
+    void *data;                 // frame->data when the buffer was created
+    size_t bytes;               // capacity of the buffer
+    jobject buffer;             // global reference of direct ByteBuffer
+    jobject info;               // global reference of FrameInfo reused with the buffer, NULL if not needed
+    volatile int32_t inUse;     // 1 while Java side holds this buffer until UVCCamera#releaseFrame
+    struct callback_buffer *next;   // link of detached buffers
+} callback_buffer_t;
+
+// max number of IFrameCallbacks added by UVCPreview#addFrameCallback
+#define MAX_FRAME_SUBSCRIBERS 8
+// each subscriber may need a scaled source frame and a converted frame
+#define MAX_SUBSCRIBER_CONVERSIONS (MAX_FRAME_SUBSCRIBERS * 2)
+// pixel format of subscriber_conversion_t which keeps source frame scaled to the subscriber's size
+#define PIXEL_FORMAT_SCALED_SOURCE -1
+// pseudo pixel format of subscriber conversion, I420 converted from YUYV frame to scale and to convert to RGB
+#define PIXEL_FORMAT_I420_SOURCE -2
+
+// IFrameCallback added by UVCPreview#addFrameCallback with its own pixel format, size and frame rate
+typedef struct frame_subscriber {
+    jobject callback;           // global reference of IFrameCallback
+    jmethodID onFrame;
+    int pixel_format;
+    int width, height;          // 0 to use size of frames from camera
+    int64_t interval_ns;        // min interval of frames passed to the callback, 0 if not limited
+    int64_t next_time_ns;       // frames captured before this time are skipped, only accessed from capture thread
+} frame_subscriber_t;
+
+// frame converted for subscribers, shared by subscribers which request same pixel format and size.
+// these are kept while the capture thread is running to reuse frames and direct ByteBuffers
+typedef struct subscriber_conversion {
+    int pixel_format;           // PIXEL_FORMAT_XXX or PIXEL_FORMAT_SCALED_SOURCE
+    int width, height;
+    uvc_frame_t *frame;
+    void *data;                 // frame->data when the buffer was created
+    size_t bytes;
+    jobject buffer;             // global reference of direct ByteBuffer, NULL for scaled source
+    uint32_t converted;         // mSubscriberFrameCount when converted, 0 if never
+    int result;                 // result of the conversion
+} subscriber_conversion_t;
+
+#define STREAM_CTRL_CACHE_VERSION 1
+
+// last committed stream control and the request it was negotiated for,
+// saved and restored by Java side(UVCDescriptorCache) to skip probing on next open
+typedef struct stream_ctrl_cache {
+    int32_t version;        // STREAM_CTRL_CACHE_VERSION
+    int32_t bytes;          // sizeof(stream_ctrl_cache_t)
+    int32_t width, height, frameType, fps;
+    uvc_stream_ctrl_t ctrl;
+} stream_ctrl_cache_t;
+
+// entry of reorder buffer for parallel MJPEG decoding
+typedef struct decode_slot {
+    uvc_frame_t *in;        // MJPEG frame
+    uvc_frame_t *out;       // decoded frame, NULL if decoding failed
+    bool done;
+} decode_slot_t;
+
 class UVCPreview {
 private:
     uvc_device_handle_t *mDeviceHandle;
@@ -70,34 +183,99 @@ private:
     int frameWidth, frameHeight;
     int frameFormatType;
     size_t frameBytes;
+    // last committed stream control, guarded by preview_mutex
+    stream_ctrl_cache_t mCtrlCache;
+    bool mHasCtrlCache;
+    // whether the stream control was taken from mCtrlCache, only accessed from preview thread
+    bool mCtrlFromCache;
 
     pthread_t preview_thread;
     pthread_mutex_t preview_mutex;
-    pthread_cond_t preview_sync;
-    ObjectArray<uvc_frame_t *> previewFrames;
+    FutexSignal preview_sync;
+    SPSCRingBuffer<uvc_frame_t *> previewFrames;
     int previewFormat;
     size_t previewBytes;
+    // decoder for MJPEG frames, only accessed from preview thread
+    MJPEGDecoder *mMJPEGDecoder;
+    // parallel MJPEG decoding, frames are delivered in order of submission(sequence)
+    int mDecodeThreadNum;
+    int decodeWorkerNum;
+    pthread_t decode_threads[MAX_DECODE_THREADS];
+    pthread_mutex_t decode_mutex;
+    pthread_cond_t decode_sync;
+    decode_slot_t decodeSlots[MAX_DECODE_SLOTS];
+    int decodeSlotNum;
+    uint64_t decodeHead, decodeNext, decodeTail;
+    bool mDelivering;
 //
     volatile bool mIsCapturing;
     ANativeWindow *mCaptureWindow;
     pthread_t capture_thread;
     pthread_mutex_t capture_mutex;
     pthread_cond_t capture_sync;
-    uvc_frame_t *captureQueu;            // keep latest frame
+    FutexSignal capture_frame_sync;
+    uvc_frame_t *volatile captureQueu;            // keep latest frame, exchanged atomically
     jobject mFrameCallbackObj;
     convFunc_t mFrameCallbackFunc;
+    // conversion function for I420 frames decoded directly from MJPEG
+    convFunc_t mFrameCallbackI420Func;
+    convFunc_t mFrameCallbackYUYVFunc;          // NULL if the pixel format is YUYV or can not be converted from YUYV
     Fields_iframecallback iframecallback_fields;
     int mPixelFormat;
     size_t callbackPixelBytes;
+    // direct ByteBuffers for IFrameCallback, only (re)created on capture thread
+    pthread_mutex_t callback_buffer_mutex;
+    callback_buffer_t mCallbackBuffers[MAX_CALLBACK_BUFFER_NUM];
+    int mCallbackBufferNum;
+    int mCallbackBufferIx;
+    // buffers still held by Java side when the capture thread finished, kept until UVCCamera#releaseFrame
+    callback_buffer_t *mDetachedCallbackBuffers;
+    volatile bool mManualRelease;
+    // sequence of the last frame passed to IFrameCallback to count dropped frames, -1 if not yet
+    int64_t mLastCallbackSequence;
+// additional IFrameCallbacks, conversions are computed once per frame for each pixel format and size
+    pthread_mutex_t subscriber_mutex;
+    frame_subscriber_t mSubscribers[MAX_FRAME_SUBSCRIBERS];
+    volatile int mSubscriberNum;
+    // whether any subscriber requests YUV pixel format, guarded by subscriber_mutex
+    bool mHasYUVSubscriber;
+    bool mHasRGBSubscriber;
+    // only accessed from capture thread
+    subscriber_conversion_t mConversions[MAX_SUBSCRIBER_CONVERSIONS];
+    uint32_t mSubscriberFrameCount;
+// analysis stream, secondary IFrameCallback with reduced size which is decoded on its own thread
+    pthread_t analysis_thread;
+    pthread_mutex_t analysis_mutex;
+    FutexSignal analysis_sync;
+    uvc_frame_t *volatile analysisQueue;        // copy of latest frame from camera, exchanged atomically
+    jobject mAnalysisCallbackObj;
+    jmethodID mAnalysisOnFrame;
+    int mAnalysisWidth, mAnalysisHeight;
+    int mAnalysisPixelFormat;
+// writes MJPEG frames from camera into a file without decoding
+    PassthroughRecorder *mRecorder;
+// still capture, a copy of next MJPEG frame from camera is handed over to the waiting thread as is
+    pthread_mutex_t still_mutex;
+    pthread_cond_t still_sync;
+    int mStillRequests;                         // number of waiting threads, guarded by still_mutex
+    uvc_frame_t *stillFrame;
 // improve performance by reducing memory allocation
-    pthread_mutex_t pool_mutex;
-    ObjectArray<uvc_frame_t *> mFramePool;
+    FramePool mFramePool;
+// statistics, updated from several threads without lock
+    uvc_stream_stats_t mStreamStats;
+    volatile int64_t mStats[STAT_NUM];
+
+    inline void add_stat(const int ix, const int64_t value = 1);
+
+    inline void max_stat(const int ix, const int64_t value);
 
-    uvc_frame_t *get_frame(size_t data_bytes);
+    void add_decode_time(const struct timespec &start);
+
+    uvc_frame_t *get_frame(size_t data_bytes, const frame_bucket_t bucket);
 
     void recycle_frame(uvc_frame_t *frame);
 
-    void init_pool(size_t data_bytes);
+    void init_pool(size_t compressed_bytes, size_t decoded_bytes);
 
     void clear_pool();
 
@@ -106,6 +284,10 @@ private:
 
     static void uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args);
 
+    static uvc_frame_t *uvc_preview_acquire_frame(size_t data_bytes, void *vptr_args);
+
+    static void uvc_preview_release_frame(uvc_frame_t *frame, void *vptr_args);
+
     void addPreviewFrame(uvc_frame_t *frame);
 
     uvc_frame_t *waitPreviewFrame();
@@ -116,10 +298,37 @@ private:
 
     int prepare_preview(uvc_stream_ctrl_t *ctrl);
 
+    bool find_cached_ctrl(uvc_stream_ctrl_t *ctrl);
+
+    void update_cached_ctrl(const uvc_stream_ctrl_t *ctrl);
+
+    void invalidate_cached_ctrl();
+
+    int start_stream(uvc_stream_ctrl_t *ctrl, uvc_stream_handle_t **strmhp);
+
     void do_preview(uvc_stream_ctrl_t *ctrl);
 
     void draw_preview_one(uvc_frame_t *frame, ANativeWindow **window);
 
+    uvc_frame_t *decode_mjpeg_frame(MJPEGDecoder *decoder, uvc_frame_t *frame_mjpeg);
+
+    void deliver_frame(uvc_frame_t *frame);
+
+    bool canRenderDirect() const;
+
+    int render_mjpeg_direct(uvc_frame_t *frame_mjpeg);
+
+//
+    int start_decode_workers();
+
+    void stop_decode_workers();
+
+    void submit_decode_frame(uvc_frame_t *frame);
+
+    static void *decode_thread_func(void *vptr_args);
+
+    void do_decode();
+
 //
     bool addCaptureFrame(uvc_frame_t *frame);
 
@@ -137,8 +346,45 @@ private:
 
     void do_capture_callback(JNIEnv *env, uvc_frame_t *frame);
 
+    callback_buffer_t *obtain_callback_buffer(JNIEnv *env);
+
+    void release_callback_buffers(JNIEnv *env);
+
+    void release_frame_info_class(JNIEnv *env);
+
     void callbackPixelFormatChanged();
 
+    bool isYUVCallback() const;
+
+    bool hasRGBCallback() const;
+
+//
+    void do_subscriber_callbacks(JNIEnv *env, uvc_frame_t *frame);
+
+    subscriber_conversion_t *get_conversion(JNIEnv *env, uvc_frame_t *frame,
+        int pixel_format, int width, int height);
+
+    void release_conversions(JNIEnv *env);
+
+    void subscribersChanged();
+
+//
+    void addAnalysisFrame(uvc_frame_t *frame);
+
+    uvc_frame_t *waitAnalysisFrame();
+
+    void clearAnalysisFrame();
+
+    void addStillFrame(uvc_frame_t *frame);
+
+    void clearStillFrame();
+
+    void start_analysis_thread();
+
+    static void *analysis_thread_func(void *vptr_args);
+
+    void do_analysis(JNIEnv *env);
+
 public:
     UVCPreview(uvc_device_handle_t *devh);
 
@@ -150,7 +396,34 @@ public:
 
     int setPreviewDisplay(ANativeWindow *preview_window);
 
-    int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+    int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format,
+        bool manual_release, int buffer_num);
+
+    int releaseFrame(JNIEnv *env, jobject frame);
+
+    int setAnalysisFrameCallback(JNIEnv *env, jobject frame_callback_obj,
+        int width, int height, int pixel_format);
+
+    int addFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format,
+        int width, int height, int max_fps);
+
+    int removeFrameCallback(JNIEnv *env, jobject frame_callback_obj);
+
+    int setDecodeThreadNum(int thread_num);
+
+    int startPassthroughRecording(int fd);
+
+    int stopPassthroughRecording();
+
+    jbyteArray captureStillImage(JNIEnv *env, int timeout_ms);
+
+    int getFramePoolCounters(int *counters, const int num);
+
+    int getStatistics(int64_t *values, const int num);
+
+    int getStreamCtrl(uint8_t *buf, const size_t bytes);
+
+    int setStreamCtrl(const uint8_t *data, const size_t bytes);
 
     int startPreview();
 
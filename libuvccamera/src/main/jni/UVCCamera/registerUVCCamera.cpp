@@ -220,6 +220,26 @@ static jobject nativeGetSupportedFormats(JNIEnv *env, jobject thiz,
     RETURN(result, jobject);
 }
 
+static jintArray nativeGetSupportedFormatArray(JNIEnv *env, jobject thiz,
+                                               ID_TYPE id_camera) {
+
+    ENTER();
+    jintArray result = NULL;
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        int num;
+        int32_t *values = camera->getSupportedFormatArray(&num);
+        if (LIKELY(values)) {
+            result = env->NewIntArray(num);
+            if (result) {
+                env->SetIntArrayRegion(result, 0, num, (const jint *) values);
+            }
+            free(values);
+        }
+    }
+    RETURN(result, jintArray);
+}
+
 //======================================================================
 // set preview size
 static jint nativeSetPreviewSize(JNIEnv *env, jobject thiz,
@@ -272,14 +292,192 @@ static jint nativeSetPreviewDisplay(JNIEnv *env, jobject thiz,
 }
 
 static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
-                                   ID_TYPE id_camera, jobject jIFrameCallback, jint pixel_format) {
+                                   ID_TYPE id_camera, jobject jIFrameCallback, jint pixel_format,
+                                   jboolean manual_release, jint buffer_num) {
+
+    jint result = JNI_ERR;
+    ENTER();
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        jobject frame_callback_obj = env->NewGlobalRef(jIFrameCallback);
+        result = camera->setFrameCallback(env, frame_callback_obj, pixel_format, manual_release, buffer_num);
+    }
+    RETURN(result, jint);
+}
+
+static jint nativeSetAnalysisFrameCallback(JNIEnv *env, jobject thiz,
+                                           ID_TYPE id_camera, jobject jIFrameCallback,
+                                           jint width, jint height, jint pixel_format) {
 
     jint result = JNI_ERR;
     ENTER();
     UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
     if (LIKELY(camera)) {
+        jobject frame_callback_obj = jIFrameCallback ? env->NewGlobalRef(jIFrameCallback) : NULL;
+        result = camera->setAnalysisFrameCallback(env, frame_callback_obj, width, height, pixel_format);
+    }
+    RETURN(result, jint);
+}
+
+static jint nativeAddFrameCallback(JNIEnv *env, jobject thiz,
+                                   ID_TYPE id_camera, jobject jIFrameCallback,
+                                   jint pixel_format, jint width, jint height, jint max_fps) {
+
+    jint result = JNI_ERR;
+    ENTER();
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera && jIFrameCallback)) {
         jobject frame_callback_obj = env->NewGlobalRef(jIFrameCallback);
-        result = camera->setFrameCallback(env, frame_callback_obj, pixel_format);
+        result = camera->addFrameCallback(env, frame_callback_obj, pixel_format, width, height, max_fps);
+    }
+    RETURN(result, jint);
+}
+
+static jint nativeRemoveFrameCallback(JNIEnv *env, jobject thiz,
+                                      ID_TYPE id_camera, jobject jIFrameCallback) {
+
+    jint result = JNI_ERR;
+    ENTER();
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->removeFrameCallback(env, jIFrameCallback);
+    }
+    RETURN(result, jint);
+}
+
+static jint nativeReleaseFrame(JNIEnv *env, jobject thiz,
+                               ID_TYPE id_camera, jobject frame) {
+
+    jint result = JNI_ERR;
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera && frame)) {
+        result = camera->releaseFrame(env, frame);
+    }
+    return result;
+}
+
+static jint nativeStartPassthroughRecording(JNIEnv *env, jobject thiz,
+                                            ID_TYPE id_camera, jint fd) {
+
+    jint result = JNI_ERR;
+    ENTER();
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera && (fd >= 0))) {
+        result = camera->startPassthroughRecording(fd);
+    }
+    RETURN(result, jint);
+}
+
+static jint nativeStopPassthroughRecording(JNIEnv *env, jobject thiz,
+                                           ID_TYPE id_camera) {
+
+    jint result = JNI_ERR;
+    ENTER();
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->stopPassthroughRecording();
+    }
+    RETURN(result, jint);
+}
+
+static jbyteArray nativeCaptureStillImage(JNIEnv *env, jobject thiz,
+                                         ID_TYPE id_camera, jint timeout_ms) {
+
+    jbyteArray result = NULL;
+    ENTER();
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->captureStillImage(env, timeout_ms);
+    }
+    RETURN(result, jbyteArray);
+}
+
+static jint nativeSetDecodeThreadNum(JNIEnv *env, jobject thiz,
+                                     ID_TYPE id_camera, jint thread_num) {
+
+    jint result = JNI_ERR;
+    ENTER();
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->setDecodeThreadNum(thread_num);
+    }
+    RETURN(result, jint);
+}
+
+static jintArray nativeGetFramePoolCounters(JNIEnv *env, jobject thiz,
+                                            ID_TYPE id_camera) {
+
+    jintArray result = NULL;
+    ENTER();
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        int counters[FRAME_BUCKET_NUM * FRAME_POOL_COUNTER_NUM];
+        const int num = camera->getFramePoolCounters(counters, FRAME_BUCKET_NUM * FRAME_POOL_COUNTER_NUM);
+        if (num > 0) {
+            result = env->NewIntArray(num);
+            if (result) {
+                env->SetIntArrayRegion(result, 0, num, counters);
+            }
+        }
+    }
+    RETURN(result, jintArray);
+}
+
+static jlongArray nativeGetStatistics(JNIEnv *env, jobject thiz,
+                                      ID_TYPE id_camera) {
+
+    jlongArray result = NULL;
+    ENTER();
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        int64_t values[STAT_NUM];
+        const int num = camera->getStatistics(values, STAT_NUM);
+        if (num > 0) {
+            result = env->NewLongArray(num);
+            if (result) {
+                env->SetLongArrayRegion(result, 0, num, (const jlong *) values);
+            }
+        }
+    }
+    RETURN(result, jlongArray);
+}
+
+static jbyteArray nativeGetStreamCtrl(JNIEnv *env, jobject thiz,
+                                      ID_TYPE id_camera) {
+
+    jbyteArray result = NULL;
+    ENTER();
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        stream_ctrl_cache_t cache;
+        const int bytes = camera->getStreamCtrl((uint8_t *) &cache, sizeof(cache));
+        if (bytes > 0) {
+            result = env->NewByteArray(bytes);
+            if (result) {
+                env->SetByteArrayRegion(result, 0, bytes, (const jbyte *) &cache);
+            }
+        }
+    }
+    RETURN(result, jbyteArray);
+}
+
+static jint nativeSetStreamCtrl(JNIEnv *env, jobject thiz,
+                                ID_TYPE id_camera, jbyteArray ctrl) {
+
+    jint result = JNI_ERR;
+    ENTER();
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        if (ctrl) {
+            const jsize bytes = env->GetArrayLength(ctrl);
+            jbyte *data = env->GetByteArrayElements(ctrl, NULL);
+            if (LIKELY(data)) {
+                result = camera->setStreamCtrl((const uint8_t *) data, (size_t) bytes);
+                env->ReleaseByteArrayElements(ctrl, data, JNI_ABORT);
+            }
+        } else {
+            result = camera->setStreamCtrl(NULL, 0);
+        }
     }
     RETURN(result, jint);
 }
@@ -329,11 +527,24 @@ static JNINativeMethod methods[] = {
         {"nativeSetButtonCallback",   "(JLcom/serenegiant/usb/IButtonCallback;)I", (void *) nativeSetButtonCallback},
 
         {"nativeGetSupportedFormats", "(J)Ljava/lang/String;",                     (void *) nativeGetSupportedFormats},
+        {"nativeGetSupportedFormatArray", "(J)[I",                                 (void *) nativeGetSupportedFormatArray},
         {"nativeSetPreviewSize",      "(JIIII)I",                                  (void *) nativeSetPreviewSize},
         {"nativeStartPreview",        "(J)I",                                      (void *) nativeStartPreview},
         {"nativeStopPreview",         "(J)I",                                      (void *) nativeStopPreview},
         {"nativeSetPreviewDisplay",   "(JLandroid/view/Surface;)I",                (void *) nativeSetPreviewDisplay},
-        {"nativeSetFrameCallback",    "(JLcom/serenegiant/usb/IFrameCallback;I)I", (void *) nativeSetFrameCallback},
+        {"nativeSetFrameCallback",    "(JLcom/serenegiant/usb/IFrameCallback;IZI)I", (void *) nativeSetFrameCallback},
+        {"nativeReleaseFrame",        "(JLjava/nio/ByteBuffer;)I",                 (void *) nativeReleaseFrame},
+        {"nativeSetAnalysisFrameCallback", "(JLcom/serenegiant/usb/IFrameCallback;III)I", (void *) nativeSetAnalysisFrameCallback},
+        {"nativeAddFrameCallback",    "(JLcom/serenegiant/usb/IFrameCallback;IIII)I", (void *) nativeAddFrameCallback},
+        {"nativeRemoveFrameCallback", "(JLcom/serenegiant/usb/IFrameCallback;)I",  (void *) nativeRemoveFrameCallback},
+        {"nativeSetDecodeThreadNum",  "(JI)I",                                     (void *) nativeSetDecodeThreadNum},
+        {"nativeStartPassthroughRecording", "(JI)I",                               (void *) nativeStartPassthroughRecording},
+        {"nativeStopPassthroughRecording",  "(J)I",                                (void *) nativeStopPassthroughRecording},
+        {"nativeCaptureStillImage",    "(JI)[B",                                   (void *) nativeCaptureStillImage},
+        {"nativeGetFramePoolCounters", "(J)[I",                                    (void *) nativeGetFramePoolCounters},
+        {"nativeGetStatistics",        "(J)[J",                                    (void *) nativeGetStatistics},
+        {"nativeGetStreamCtrl",        "(J)[B",                                    (void *) nativeGetStreamCtrl},
+        {"nativeSetStreamCtrl",        "(J[B)I",                                   (void *) nativeSetStreamCtrl},
 
         {"nativeSetCaptureDisplay",   "(JLandroid/view/Surface;)I",                (void *) nativeSetCaptureDisplay},
 };
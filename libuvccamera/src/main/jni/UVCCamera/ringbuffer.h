@@ -0,0 +1,264 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: ringbuffer.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+#ifndef RINGBUFFER_H_
+#define RINGBUFFER_H_
+
+#include <stdint.h>
+#include <limits.h>
+#include <unistd.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+#include "utilbase.h"
+
+// atomic operations use compiler builtins because <atomic> is not available with the default STL
+
+static inline uint32_t ring_capacity(uint32_t capacity) {
+	uint32_t result = 2;
+	while (result < capacity) {
+		result <<= 1;
+	}
+	return result;
+}
+
+/**
+ * wake up signal for single consumer thread.
+ * signal never blocks and only issues futex syscall when the consumer is actually sleeping,
+ * signal while the consumer is running is kept and the next wait returns immediately.
+ */
+class FutexSignal {
+private:
+	enum {
+		STATE_IDLE = 0,
+		STATE_WAITING,
+		STATE_SIGNALED,
+		STATE_CLOSED,
+	};
+	volatile int m_state;
+
+	inline int *futex_addr() { return const_cast<int *>(&m_state); }
+
+	inline bool cas(int &expected, int desired) {
+		return __atomic_compare_exchange_n(&m_state, &expected, desired, true,
+										   __ATOMIC_SEQ_CST, __ATOMIC_RELAXED);
+	}
+public:
+	FutexSignal() : m_state(STATE_IDLE) {}
+
+	/**
+	 * clear closed state or pending signal
+	 */
+	inline void reset() { __atomic_store_n(&m_state, STATE_IDLE, __ATOMIC_SEQ_CST); }
+
+	/**
+	 * wake up the consumer and never block again until reset
+	 */
+	void close() {
+		__atomic_store_n(&m_state, STATE_CLOSED, __ATOMIC_SEQ_CST);
+		syscall(__NR_futex, futex_addr(), FUTEX_WAKE_PRIVATE, INT_MAX, NULL, NULL, 0);
+	}
+
+	/**
+	 * called from producer
+	 */
+	void signal() {
+		int state = __atomic_load_n(&m_state, __ATOMIC_RELAXED);
+		for (;;) {
+			if (state == STATE_WAITING) {
+				if (cas(state, STATE_IDLE)) {
+					syscall(__NR_futex, futex_addr(), FUTEX_WAKE_PRIVATE, 1, NULL, NULL, 0);
+					break;
+				}
+			} else if (state == STATE_IDLE) {
+				if (cas(state, STATE_SIGNALED)) {
+					break;
+				}
+			} else {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * called from consumer, block until signal or close
+	 */
+	void wait() {
+		int state = __atomic_load_n(&m_state, __ATOMIC_RELAXED);
+		for (;;) {
+			if (state == STATE_SIGNALED) {
+				if (cas(state, STATE_IDLE)) {
+					return;
+				}
+			} else if (state == STATE_IDLE) {
+				if (cas(state, STATE_WAITING)) {
+					break;
+				}
+			} else {
+				return;
+			}
+		}
+		while (__atomic_load_n(&m_state, __ATOMIC_SEQ_CST) == STATE_WAITING) {
+			syscall(__NR_futex, futex_addr(), FUTEX_WAIT_PRIVATE, STATE_WAITING, NULL, NULL, 0);
+		}
+	}
+};
+
+/**
+ * bounded lock free queue for single producer and single consumer
+ */
+template <class T>
+class SPSCRingBuffer {
+private:
+	T *m_elements;
+	const uint32_t m_capacity;
+	volatile uint32_t m_head;	// only written by consumer
+	volatile uint32_t m_tail;	// only written by producer
+public:
+	SPSCRingBuffer(uint32_t capacity)
+		: m_capacity(ring_capacity(capacity)),
+		  m_head(0),
+		  m_tail(0) {
+		m_elements = new T[m_capacity];
+	}
+
+	~SPSCRingBuffer() { SAFE_DELETE_ARRAY(m_elements); }
+
+	inline uint32_t capacity() const { return m_capacity; }
+	inline uint32_t size() const {
+		return __atomic_load_n(&m_tail, __ATOMIC_ACQUIRE) - __atomic_load_n(&m_head, __ATOMIC_ACQUIRE);
+	}
+	inline bool isEmpty() const { return size() == 0; }
+
+	/**
+	 * called from producer
+	 * @return false if the queue is full
+	 */
+	bool offer(T object) {
+		const uint32_t tail = __atomic_load_n(&m_tail, __ATOMIC_RELAXED);
+		if (UNLIKELY(tail - __atomic_load_n(&m_head, __ATOMIC_ACQUIRE) >= m_capacity)) {
+			return false;
+		}
+		m_elements[tail & (m_capacity - 1)] = object;
+		__atomic_store_n(&m_tail, tail + 1, __ATOMIC_RELEASE);
+		return true;
+	}
+
+	/**
+	 * called from consumer
+	 * @return NULL if the queue is empty
+	 */
+	T poll() {
+		const uint32_t head = __atomic_load_n(&m_head, __ATOMIC_RELAXED);
+		if (head == __atomic_load_n(&m_tail, __ATOMIC_ACQUIRE)) {
+			return NULL;
+		}
+		T object = m_elements[head & (m_capacity - 1)];
+		__atomic_store_n(&m_head, head + 1, __ATOMIC_RELEASE);
+		return object;
+	}
+};
+
+/**
+ * bounded lock free queue for multiple producers and multiple consumers
+ * each cell has its own sequence number so ABA problem never occurs
+ */
+template <class T>
+class MPMCRingBuffer {
+private:
+	typedef struct {
+		volatile uint32_t sequence;
+		T data;
+	} cell_t;
+	cell_t *m_cells;
+	const uint32_t m_capacity;
+	volatile uint32_t m_enqueue_pos;
+	volatile uint32_t m_dequeue_pos;
+public:
+	MPMCRingBuffer(uint32_t capacity)
+		: m_capacity(ring_capacity(capacity)),
+		  m_enqueue_pos(0),
+		  m_dequeue_pos(0) {
+		m_cells = new cell_t[m_capacity];
+		for (uint32_t i = 0; i < m_capacity; i++) {
+			m_cells[i].sequence = i;
+		}
+	}
+
+	~MPMCRingBuffer() { SAFE_DELETE_ARRAY(m_cells); }
+
+	inline uint32_t capacity() const { return m_capacity; }
+	/**
+	 * approximate number of elements
+	 */
+	inline uint32_t size() const {
+		return __atomic_load_n(&m_enqueue_pos, __ATOMIC_RELAXED) - __atomic_load_n(&m_dequeue_pos, __ATOMIC_RELAXED);
+	}
+
+	/**
+	 * @return false if the queue is full
+	 */
+	bool offer(T object) {
+		cell_t *cell;
+		uint32_t pos = __atomic_load_n(&m_enqueue_pos, __ATOMIC_RELAXED);
+		for (;;) {
+			cell = &m_cells[pos & (m_capacity - 1)];
+			const int32_t diff = (int32_t) (__atomic_load_n(&cell->sequence, __ATOMIC_ACQUIRE) - pos);
+			if (diff == 0) {
+				if (__atomic_compare_exchange_n(&m_enqueue_pos, &pos, pos + 1, true,
+												__ATOMIC_RELAXED, __ATOMIC_RELAXED)) {
+					break;
+				}
+			} else if (diff < 0) {
+				return false;
+			} else {
+				pos = __atomic_load_n(&m_enqueue_pos, __ATOMIC_RELAXED);
+			}
+		}
+		cell->data = object;
+		__atomic_store_n(&cell->sequence, pos + 1, __ATOMIC_RELEASE);
+		return true;
+	}
+
+	/**
+	 * @return NULL if the queue is empty
+	 */
+	T poll() {
+		cell_t *cell;
+		uint32_t pos = __atomic_load_n(&m_dequeue_pos, __ATOMIC_RELAXED);
+		for (;;) {
+			cell = &m_cells[pos & (m_capacity - 1)];
+			const int32_t diff = (int32_t) (__atomic_load_n(&cell->sequence, __ATOMIC_ACQUIRE) - (pos + 1));
+			if (diff == 0) {
+				if (__atomic_compare_exchange_n(&m_dequeue_pos, &pos, pos + 1, true,
+												__ATOMIC_RELAXED, __ATOMIC_RELAXED)) {
+					break;
+				}
+			} else if (diff < 0) {
+				return NULL;
+			} else {
+				pos = __atomic_load_n(&m_dequeue_pos, __ATOMIC_RELAXED);
+			}
+		}
+		T object = cell->data;
+		__atomic_store_n(&cell->sequence, pos + m_capacity, __ATOMIC_RELEASE);
+		return object;
+	}
+};
+
+#endif	// RINGBUFFER_H_
@@ -92,6 +92,8 @@ enum uvc_frame_format {
     UVC_FRAME_FORMAT_NV12,
     /** YUV420SP: NV21 */
     UVC_FRAME_FORMAT_NV21,
+    /** YUV420P: I420, Y plane followed by U and V planes */
+    UVC_FRAME_FORMAT_I420,
     /** Number of formats understood */
     UVC_FRAME_FORMAT_COUNT,
 };
@@ -485,6 +487,13 @@ typedef struct uvc_frame {
     struct timeval capture_time;
     /** Estimate of system time when the device finished receiving the image */
     struct timespec capture_time_finished;
+    /** Presentation time stamp of the payload header in device clock, zero if the device does not send it */
+    uint32_t pts;
+    /** Source time clock of the payload header in device clock, zero if the device does not send it */
+    uint32_t scr;
+    /** System time(CLOCK_MONOTONIC) when the application finished decoding/converting the image.
+     * This is cleared when the frame is populated and libuvc only copies it on conversion. */
+    struct timespec decode_time_finished;
     /** Handle on the device that produced the image.
      * @warning You must not call any uvc_* functions during a callback. */
     uvc_device_handle_t *source;
@@ -499,6 +508,9 @@ typedef struct uvc_frame {
     void *metadata;
     /** Size of metadata buffer */
     size_t metadata_bytes;
+    /** Tag for the owner of the frame (e.g. pool bucket the frame belongs to).
+     * This is cleared by uvc_allocate_frame and never touched by libuvc otherwise. */
+    uint8_t user_tag;
 } uvc_frame_t;
 
 /** A callback function to handle incoming assembled UVC frames
@@ -506,6 +518,36 @@ typedef struct uvc_frame {
  */
 typedef void(uvc_frame_callback_t)(struct uvc_frame *frame, void *user_ptr);
 
+/** A callback function to borrow a frame buffer for assembling incoming payloads
+ * this is called from the libusb event thread and should not block
+ * @ingroup streaming
+ */
+typedef struct uvc_frame *(uvc_frame_acquire_callback_t)(size_t data_bytes, void *user_ptr);
+
+/** A callback function to give back a borrowed frame that is not handed over to the user callback
+ * @ingroup streaming
+ */
+typedef void(uvc_frame_release_callback_t)(struct uvc_frame *frame, void *user_ptr);
+
+/** Counters of a stream, updated atomically only from the libusb event thread,
+ * read them with relaxed atomic loads from other threads
+ * @ingroup streaming
+ */
+typedef struct uvc_stream_stats {
+    /** Number of frames received completely */
+    uint32_t frames_received;
+    /** Number of frames published without EOF because the frame ID bit flipped */
+    uint32_t frames_incomplete;
+    /** Number of frames dropped because no frame could be borrowed from the user supplied pool */
+    uint32_t frames_no_buffer;
+    /** Number of frames overwritten by the next frame before the user callback thread took them */
+    uint32_t frames_overwritten;
+    /** Number of payloads dropped because the error bit was set or the header was broken */
+    uint32_t payload_errors;
+    /** Number of isochronous packets or transfers which failed */
+    uint32_t transfer_errors;
+} uvc_stream_stats_t;
+
 /** Streaming mode, includes all information needed to select stream
  * @ingroup streaming
  */
@@ -680,6 +722,13 @@ uvc_error_t uvc_stream_open_ctrl(uvc_device_handle_t *devh, uvc_stream_handle_t
 
 uvc_error_t uvc_stream_ctrl(uvc_stream_handle_t *strmh, uvc_stream_ctrl_t *ctrl);
 
+uvc_error_t uvc_stream_set_frame_pool(uvc_stream_handle_t *strmh,
+                                      uvc_frame_acquire_callback_t *acquire_cb,
+                                      uvc_frame_release_callback_t *release_cb,
+                                      void *pool_ptr);
+
+uvc_error_t uvc_stream_set_stats(uvc_stream_handle_t *strmh, uvc_stream_stats_t *stats);
+
 uvc_error_t uvc_stream_start(uvc_stream_handle_t *strmh,
                              uvc_frame_callback_t *cb,
                              void *user_ptr,
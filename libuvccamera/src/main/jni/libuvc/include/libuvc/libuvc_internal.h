@@ -329,6 +329,16 @@ struct uvc_stream_handle {
     /* raw metadata buffer if available */
     uint8_t *meta_outbuf, *meta_holdbuf;
     size_t meta_got_bytes, meta_hold_bytes;
+
+    /* frames borrowed from user supplied pool, payloads are assembled directly into out_frame
+     * and hold_frame is handed over to user callback without copying */
+    uvc_frame_acquire_callback_t *acquire_cb;
+    uvc_frame_release_callback_t *release_cb;
+    void *pool_ptr;
+    uvc_frame_t *out_frame, *hold_frame;
+
+    /* user supplied counters, NULL if not needed */
+    uvc_stream_stats_t *stats;
 };
 
 /** Handle on an open UVC device
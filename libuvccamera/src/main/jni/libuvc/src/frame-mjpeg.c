@@ -235,6 +235,9 @@ uvc_error_t uvc_mjpeg2rgb(uvc_frame_t *in, uvc_frame_t *out) {
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
     out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     return uvc_mjpeg_convert(in, out);
@@ -262,6 +265,9 @@ uvc_error_t uvc_mjpeg2gray(uvc_frame_t *in, uvc_frame_t *out) {
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
     out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     return uvc_mjpeg_convert(in, out);
@@ -289,6 +295,9 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out) {
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
     out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     return uvc_mjpeg_convert(in, out);
@@ -316,6 +325,9 @@ uvc_error_t uvc_mjpeg2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
     out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     return uvc_mjpeg_convert(in, out);
@@ -343,6 +355,9 @@ uvc_error_t uvc_mjpeg2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
     out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     return uvc_mjpeg_convert(in, out);
@@ -376,6 +391,10 @@ uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
     out->step = in->width * 2;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     struct jpeg_decompress_struct dinfo;
@@ -123,6 +123,9 @@ uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out) {
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
     out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     memcpy(out->data, in->data, in->data_bytes);
@@ -212,6 +215,10 @@ uvc_error_t uvc_rgb2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_RGBX;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *prgb = in->data;
@@ -292,6 +299,10 @@ uvc_error_t uvc_rgb2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_RGB565;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *prgb = in->data;
@@ -393,6 +404,10 @@ uvc_error_t uvc_yuyv2rgb(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_RGB;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -457,6 +472,10 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_RGB565;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -553,6 +572,10 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_RGBX;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -643,6 +666,10 @@ uvc_error_t uvc_yuyv2bgr(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_BGR;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -712,6 +739,9 @@ uvc_error_t uvc_yuyv2y(uvc_frame_t *in, uvc_frame_t *out) {
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
     out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -752,6 +782,9 @@ uvc_error_t uvc_yuyv2uv(uvc_frame_t *in, uvc_frame_t *out) {
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
     out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -812,6 +845,10 @@ uvc_error_t uvc_uyvy2rgb(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_RGB;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -876,6 +913,10 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_RGB565;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -972,6 +1013,10 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_RGBX;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -1061,6 +1106,10 @@ uvc_error_t uvc_uyvy2bgr(uvc_frame_t *in, uvc_frame_t *out) {
         out->step = in->width * PIXEL_BGR;
     out->sequence = in->sequence;
     out->capture_time = in->capture_time;
+    out->capture_time_finished = in->capture_time_finished;
+    out->pts = in->pts;
+    out->scr = in->scr;
+    out->decode_time_finished = in->decode_time_finished;
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
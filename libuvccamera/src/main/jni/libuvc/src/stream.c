@@ -71,6 +71,8 @@ void *_uvc_user_caller(void *arg);
 
 void _uvc_populate_frame(uvc_stream_handle_t *strmh);
 
+void _uvc_populate_frame_info(uvc_stream_handle_t *strmh, uvc_frame_t *frame);
+
 static uvc_streaming_interface_t *_uvc_get_stream_if(uvc_device_handle_t *devh, int interface_idx);
 
 static uvc_stream_handle_t *
@@ -825,15 +827,91 @@ uvc_error_t uvc_probe_still_ctrl(
     return res;
 }
 
+/** @internal
+ * @brief Increment a user supplied counter of the stream if set,
+ * counters are read from other threads, so they are updated atomically
+ */
+#define STREAM_STAT_INC(strmh, field) \
+    do { if (strmh->stats) __atomic_fetch_add(&strmh->stats->field, 1, __ATOMIC_RELAXED); } while (0)
+
+/** @internal
+ * @brief Borrow a frame from the user supplied pool to assemble next frame into
+ * if the pool is exhausted, payloads are assembled into the internal buffer and dropped on EOF
+ */
+static void _uvc_acquire_out_frame(uvc_stream_handle_t *strmh) {
+    const size_t bytes = strmh->cur_ctrl.dwMaxVideoFrameSize;
+    uvc_frame_t *frame = strmh->acquire_cb(bytes, strmh->pool_ptr);
+
+    if (frame && (!frame->data || frame->capacity_bytes < bytes)) {
+        UVC_DEBUG("borrowed frame is too small:%zd/%zd", frame->capacity_bytes, bytes);
+        strmh->release_cb(frame, strmh->pool_ptr);
+        frame = NULL;
+    }
+    strmh->out_frame = frame;
+}
+
+/** @internal
+ * @brief Hand over the borrowed working frame as the presented frame and notify consumers
+ */
+static void _uvc_hand_over_frame(uvc_stream_handle_t *strmh) {
+    uvc_frame_t *dropped = NULL;
+    uint8_t *tmp_buf;
+
+    pthread_mutex_lock(&strmh->cb_mutex);
+
+    if (LIKELY(strmh->out_frame)) {
+        (void) clock_gettime(CLOCK_MONOTONIC, &strmh->capture_time_finished);
+
+        STREAM_STAT_INC(strmh, frames_received);
+        /* the user callback thread has not taken the previous frame yet, keep only latest one */
+        dropped = strmh->hold_frame;
+        strmh->hold_frame = strmh->out_frame;
+        strmh->out_frame = NULL;
+        strmh->hold_bytes = strmh->got_bytes;
+        strmh->hold_last_scr = strmh->last_scr;
+        strmh->hold_pts = strmh->pts;
+        strmh->hold_seq = strmh->seq;
+
+        tmp_buf = strmh->meta_holdbuf;
+        strmh->meta_holdbuf = strmh->meta_outbuf;
+        strmh->meta_outbuf = tmp_buf;
+        strmh->meta_hold_bytes = strmh->meta_got_bytes;
+
+        pthread_cond_broadcast(&strmh->cb_cond);
+    } else {
+        /* payloads were assembled into the internal buffer because the pool was exhausted */
+        STREAM_STAT_INC(strmh, frames_no_buffer);
+    }
+
+    pthread_mutex_unlock(&strmh->cb_mutex);
+
+    if (dropped) {
+        STREAM_STAT_INC(strmh, frames_overwritten);
+        strmh->release_cb(dropped, strmh->pool_ptr);
+    }
+
+    strmh->seq++;
+    strmh->got_bytes = 0;
+    strmh->meta_got_bytes = 0;
+    strmh->last_scr = 0;
+    strmh->pts = 0;
+}
+
 /** @internal
  * @brief Swap the working buffer with the presented buffer and notify consumers
  */
 void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
     uint8_t *tmp_buf;
 
+    if (strmh->acquire_cb) {
+        _uvc_hand_over_frame(strmh);
+        return;
+    }
+
     pthread_mutex_lock(&strmh->cb_mutex);
 
     (void) clock_gettime(CLOCK_MONOTONIC, &strmh->capture_time_finished);
+    STREAM_STAT_INC(strmh, frames_received);
 
     /* swap the buffers */
     tmp_buf = strmh->holdbuf;
@@ -874,6 +952,7 @@ void _uvc_process_payload(uvc_stream_handle_t *strmh, uint8_t *payload, size_t p
     size_t header_len;
     uint8_t header_info;
     size_t data_len;
+    uint8_t *outbuf;
 
     /* magic numbers for identifying header packets from some iSight cameras */
     static uint8_t isight_tag[] = {
@@ -904,6 +983,7 @@ void _uvc_process_payload(uvc_stream_handle_t *strmh, uint8_t *payload, size_t p
 
         if (header_len > payload_len) {
             UVC_DEBUG("bogus packet: actual_len=%zd, header_len=%zd\n", payload_len, header_len);
+            STREAM_STAT_INC(strmh, payload_errors);
             return;
         }
 
@@ -923,6 +1003,7 @@ void _uvc_process_payload(uvc_stream_handle_t *strmh, uint8_t *payload, size_t p
 
         if (header_info & UVC_STREAM_ERR) {
             UVC_DEBUG("bad packet: error bit set");
+            STREAM_STAT_INC(strmh, payload_errors);
             return;
         }
 
@@ -930,6 +1011,7 @@ void _uvc_process_payload(uvc_stream_handle_t *strmh, uint8_t *payload, size_t p
             /* The frame ID bit was flipped, but we have image data sitting
                around from prior transfers. This means the camera didn't send
                an EOF for the last transfer of the previous frame. */
+            STREAM_STAT_INC(strmh, frames_incomplete);
             _uvc_swap_buffers(strmh);
         }
 
@@ -977,7 +1059,10 @@ void _uvc_process_payload(uvc_stream_handle_t *strmh, uint8_t *payload, size_t p
 //        }
         if (LIKELY(strmh->got_bytes + data_len > strmh->cur_ctrl.dwMaxVideoFrameSize))
             data_len = strmh->cur_ctrl.dwMaxVideoFrameSize - strmh->got_bytes; /* Avoid overflow. */
-        memcpy(strmh->outbuf + strmh->got_bytes, payload + header_len, data_len);
+        if (strmh->acquire_cb && !strmh->out_frame && !strmh->got_bytes)
+            _uvc_acquire_out_frame(strmh);
+        outbuf = strmh->out_frame ? strmh->out_frame->data : strmh->outbuf;
+        memcpy(outbuf + strmh->got_bytes, payload + header_len, data_len);
         strmh->got_bytes += data_len;
 
         if (header_info & UVC_STREAM_EOF ||
@@ -1018,6 +1103,7 @@ void LIBUSB_CALL _uvc_stream_callback(struct libusb_transfer *transfer) {
 
                     if (pkt->status != 0) {
                         UVC_DEBUG("bad packet (isochronous transfer); status: %d", pkt->status);
+                        STREAM_STAT_INC(strmh, transfer_errors);
                         continue;
                     }
 
@@ -1060,6 +1146,7 @@ void LIBUSB_CALL _uvc_stream_callback(struct libusb_transfer *transfer) {
         case LIBUSB_TRANSFER_STALL:
         case LIBUSB_TRANSFER_OVERFLOW:
             UVC_DEBUG("retrying transfer, status = %d", transfer->status);
+            STREAM_STAT_INC(strmh, transfer_errors);
             break;
     }
 
@@ -1259,6 +1346,51 @@ uvc_error_t uvc_stream_open_ctrl(uvc_device_handle_t *devh, uvc_stream_handle_t
     return ret;
 }
 
+/** Assemble frames directly into buffers borrowed from the caller instead of copying.
+ * @ingroup streaming
+ *
+ * When set, each frame is assembled into a frame obtained from acquire_cb and
+ * the frame itself is passed to the user callback on EOF. The user callback then owns
+ * the frame and is responsible for giving it back to its pool. Frames which are not
+ * handed over (dropped or remaining on stop) are passed to release_cb.
+ * This must be called before uvc_stream_start and requires a user callback.
+ *
+ * @param strmh UVC stream
+ * @param acquire_cb Callback function to borrow a frame, called from the libusb event thread
+ * @param release_cb Callback function to give back a borrowed frame
+ * @param pool_ptr User data passed to acquire_cb and release_cb
+ */
+uvc_error_t uvc_stream_set_frame_pool(uvc_stream_handle_t *strmh,
+                                      uvc_frame_acquire_callback_t *acquire_cb,
+                                      uvc_frame_release_callback_t *release_cb,
+                                      void *pool_ptr) {
+    if (strmh->running)
+        return UVC_ERROR_BUSY;
+    if ((acquire_cb && !release_cb) || (!acquire_cb && release_cb))
+        return UVC_ERROR_INVALID_PARAM;
+
+    strmh->acquire_cb = acquire_cb;
+    strmh->release_cb = release_cb;
+    strmh->pool_ptr = pool_ptr;
+
+    return UVC_SUCCESS;
+}
+
+/** Set counters of the stream
+ * @ingroup streaming
+ *
+ * Counters are only incremented from the libusb event thread and never cleared by libuvc,
+ * so the caller can keep them across streams. The counters must be valid until the stream is closed.
+ *
+ * @param strmh UVC stream
+ * @param stats Counters to update, NULL to stop counting
+ */
+uvc_error_t uvc_stream_set_stats(uvc_stream_handle_t *strmh, uvc_stream_stats_t *stats) {
+    strmh->stats = stats;
+
+    return UVC_SUCCESS;
+}
+
 /** Begin streaming video from the stream into the callback function.
  * @ingroup streaming
  *
@@ -1295,6 +1427,12 @@ uvc_error_t uvc_stream_start(
         return UVC_ERROR_BUSY;
     }
 
+    if (strmh->acquire_cb && !cb) {
+        /* borrowed frames can only be handed over through the user callback */
+        UVC_EXIT(UVC_ERROR_INVALID_PARAM);
+        return UVC_ERROR_INVALID_PARAM;
+    }
+
     strmh->running = 1;
     strmh->seq = 1;
     strmh->fid = 0;
@@ -1491,6 +1629,41 @@ void *_uvc_user_caller(void *arg) {
     uvc_stream_handle_t *strmh = (uvc_stream_handle_t *) arg;
 
     uint32_t last_seq = 0;
+    uvc_frame_t *frame;
+
+    if (strmh->acquire_cb) {
+        do {
+            pthread_mutex_lock(&strmh->cb_mutex);
+
+            while (strmh->running && !strmh->hold_frame) {
+                pthread_cond_wait(&strmh->cb_cond, &strmh->cb_mutex);
+            }
+
+            if (!strmh->running) {
+                pthread_mutex_unlock(&strmh->cb_mutex);
+                break;
+            }
+
+            /* take ownership of the presented frame */
+            frame = strmh->hold_frame;
+            strmh->hold_frame = NULL;
+            _uvc_populate_frame_info(strmh, frame);
+            frame->data_bytes = strmh->hold_bytes;
+            if (strmh->meta_hold_bytes > 0) {
+                if (frame->metadata_bytes < strmh->meta_hold_bytes) {
+                    frame->metadata = realloc(frame->metadata, strmh->meta_hold_bytes);
+                }
+                frame->metadata_bytes = strmh->meta_hold_bytes;
+                memcpy(frame->metadata, strmh->meta_holdbuf, frame->metadata_bytes);
+            }
+
+            pthread_mutex_unlock(&strmh->cb_mutex);
+
+            strmh->user_cb(frame, strmh->user_ptr);
+        } while (1);
+
+        return NULL; // return value ignored
+    }
 
     do {
         pthread_mutex_lock(&strmh->cb_mutex);
@@ -1521,6 +1694,31 @@ void *_uvc_user_caller(void *arg) {
  */
 void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
     uvc_frame_t *frame = &strmh->frame;
+
+    _uvc_populate_frame_info(strmh, frame);
+
+    /* copy the image data from the hold buffer to the frame (unnecessary extra buf?) */
+    if (frame->capacity_bytes < strmh->hold_bytes) {
+        frame->data = realloc(frame->data, strmh->hold_bytes);
+        frame->capacity_bytes = strmh->hold_bytes;
+    }
+    frame->data_bytes = strmh->hold_bytes;
+    memcpy(frame->data, strmh->holdbuf, frame->data_bytes);
+
+    if (strmh->meta_hold_bytes > 0) {
+        if (frame->metadata_bytes < strmh->meta_hold_bytes) {
+            frame->metadata = realloc(frame->metadata, strmh->meta_hold_bytes);
+        }
+        frame->metadata_bytes = strmh->meta_hold_bytes;
+        memcpy(frame->metadata, strmh->meta_holdbuf, frame->metadata_bytes);
+    }
+}
+
+/** @internal
+ * @brief Populate the format and sequence fields of a frame
+ * must be called with stream cb lock held!
+ */
+void _uvc_populate_frame_info(uvc_stream_handle_t *strmh, uvc_frame_t *frame) {
     uvc_frame_desc_t *frame_desc;
 
     /** @todo this stuff that hits the main config cache should really happen
@@ -1560,22 +1758,10 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 
     frame->sequence = strmh->hold_seq;
     frame->capture_time_finished = strmh->capture_time_finished;
-
-    /* copy the image data from the hold buffer to the frame (unnecessary extra buf?) */
-    if (frame->capacity_bytes < strmh->hold_bytes) {
-        frame->data = realloc(frame->data, strmh->hold_bytes);
-        frame->capacity_bytes = strmh->hold_bytes;
-    }
-    frame->data_bytes = strmh->hold_bytes;
-    memcpy(frame->data, strmh->holdbuf, frame->data_bytes);
-
-    if (strmh->meta_hold_bytes > 0) {
-        if (frame->metadata_bytes < strmh->meta_hold_bytes) {
-            frame->metadata = realloc(frame->metadata, strmh->meta_hold_bytes);
-        }
-        frame->metadata_bytes = strmh->meta_hold_bytes;
-        memcpy(frame->metadata, strmh->meta_holdbuf, frame->metadata_bytes);
-    }
+    frame->pts = strmh->hold_pts;
+    frame->scr = strmh->hold_last_scr;
+    frame->decode_time_finished.tv_sec = 0;
+    frame->decode_time_finished.tv_nsec = 0;
 }
 
 /** Poll for a frame
@@ -1731,6 +1917,17 @@ uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh) {
         pthread_join(strmh->cb_thread, NULL);
     }
 
+    /* give back borrowed frames, no transfer nor callback thread is running now */
+    if (strmh->out_frame) {
+        strmh->release_cb(strmh->out_frame, strmh->pool_ptr);
+        strmh->out_frame = NULL;
+    }
+    if (strmh->hold_frame) {
+        strmh->release_cb(strmh->hold_frame, strmh->pool_ptr);
+        strmh->hold_frame = NULL;
+    }
+    strmh->got_bytes = 0;
+
     return UVC_SUCCESS;
 }
 
@@ -0,0 +1,188 @@
+package com.herohan.uvcapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of writing MJPEG frames from camera as JPEG files without re-encoding
+ */
+public class CompressedImageCaptureTest {
+
+    private static final byte[] SOI = bytes(0xff, 0xd8);
+    private static final byte[] DQT = bytes(0xff, 0xdb, 0x00, 0x04, 0x00, 0x10);
+    private static final byte[] SOF = bytes(0xff, 0xc0, 0x00, 0x05, 0x08, 0x00, 0x10);
+    private static final byte[] DHT = bytes(0xff, 0xc4, 0x00, 0x05, 0x00, 0x00, 0x00);
+    private static final byte[] SOS = bytes(0xff, 0xda, 0x00, 0x03, 0x01, 0x12, 0x34, 0xff, 0x00, 0x56);
+    private static final byte[] EOI = bytes(0xff, 0xd9);
+
+    // 2 DC tables(1 + 16 + 12 bytes) and 2 AC tables(1 + 16 + 162 bytes)
+    private static final int DEFAULT_DHT_LENGTH = 2 + 2 * (1 + 16 + 12) + 2 * (1 + 16 + 162);
+
+    @Test
+    public void writeJpeg_insertsDefaultHuffmanTablesBeforeSOS() throws IOException {
+        final byte[] frame = concat(SOI, DQT, SOF, SOS, EOI);
+        final byte[] jpeg = write(frame, null);
+
+        final int sos = SOI.length + DQT.length + SOF.length;
+        assertEquals(frame.length + 2 + DEFAULT_DHT_LENGTH, jpeg.length);
+        assertArrayEquals(Arrays.copyOfRange(frame, 0, sos), Arrays.copyOfRange(jpeg, 0, sos));
+        assertArrayEquals(Arrays.copyOfRange(frame, sos, frame.length),
+                Arrays.copyOfRange(jpeg, jpeg.length - (frame.length - sos), jpeg.length));
+
+        // DHT segment which consists of 4 valid tables
+        final ByteBuffer buf = ByteBuffer.wrap(jpeg, sos, 2 + DEFAULT_DHT_LENGTH);
+        assertEquals(0xff, buf.get() & 0xff);
+        assertEquals(0xc4, buf.get() & 0xff);
+        assertEquals(DEFAULT_DHT_LENGTH, buf.getShort() & 0xffff);
+        final int[] classIds = {0x00, 0x10, 0x01, 0x11};
+        for (final int classId : classIds) {
+            assertEquals(classId, buf.get() & 0xff);
+            int num = 0;
+            for (int i = 0; i < 16; i++) {
+                num += buf.get() & 0xff;
+            }
+            assertEquals((classId & 0x10) != 0 ? 162 : 12, num);
+            buf.position(buf.position() + num);
+        }
+        assertEquals(sos + 2 + DEFAULT_DHT_LENGTH, buf.position());
+    }
+
+    @Test
+    public void writeJpeg_keepsFrameWithHuffmanTables() throws IOException {
+        final byte[] frame = concat(SOI, DQT, DHT, SOF, SOS, EOI);
+        assertArrayEquals(frame, write(frame, null));
+    }
+
+    @Test
+    public void writeJpeg_skipsFillBytes() throws IOException {
+        final byte[] frame = concat(SOI, bytes(0xff), DQT, DHT, SOF, SOS, EOI);
+        assertArrayEquals(frame, write(frame, null));
+    }
+
+    @Test
+    public void writeJpeg_keepsBrokenFrame() throws IOException {
+        // marker segments are broken, so nothing should be inserted
+        final byte[] frame = concat(SOI, bytes(0x12, 0x34, 0x56, 0x78), SOS, EOI);
+        assertArrayEquals(frame, write(frame, null));
+    }
+
+    @Test
+    public void writeJpeg_insertsExifAfterSOI() throws IOException {
+        final byte[] frame = concat(SOI, DQT, DHT, SOF, SOS, EOI);
+        final byte[] exif = CompressedImageCapture.createExifSegment(640, 480, 0);
+        assertArrayEquals(concat(SOI, exif, Arrays.copyOfRange(frame, 2, frame.length)), write(frame, exif));
+    }
+
+    @Test
+    public void writeJpeg_rejectsNonJpeg() {
+        final byte[][] frames = {
+                bytes(0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a),
+                bytes(0xff, 0xd9, 0xff, 0xd8),
+                bytes(0xff, 0xd8, 0xff),
+                new byte[0],
+        };
+        for (final byte[] frame : frames) {
+            try {
+                write(frame, null);
+                fail("IOException expected:" + Arrays.toString(frame));
+            } catch (final IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void createExifSegment_hasValidIfds() {
+        final long time = 1700000000000L;
+        final byte[] exif = CompressedImageCapture.createExifSegment(1280, 720, time);
+        final byte[] dateTime = (new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US)
+                .format(new Date(time)) + '\0').getBytes(StandardCharsets.US_ASCII);
+
+        final ByteBuffer buf = ByteBuffer.wrap(exif);
+        assertEquals(0xff, buf.get() & 0xff);
+        assertEquals(0xe1, buf.get() & 0xff);
+        assertEquals(exif.length - 2, buf.getShort() & 0xffff);
+        final byte[] header = new byte[6];
+        buf.get(header);
+        assertArrayEquals("Exif\0\0".getBytes(StandardCharsets.US_ASCII), header);
+
+        // offsets in IFDs are relative to the TIFF header
+        final ByteBuffer tiff = ByteBuffer.wrap(exif, 10, exif.length - 10).slice();
+        final int tiffLength = tiff.remaining();
+        assertEquals('M', tiff.get());
+        assertEquals('M', tiff.get());
+        assertEquals(0x2a, tiff.getShort());
+        final int ifd0 = tiff.getInt();
+        assertEquals(8, ifd0);
+
+        tiff.position(ifd0);
+        assertEquals(3, tiff.getShort());
+        assertIfdEntry(tiff, 0x0112, 3, 1);
+        assertEquals(1, tiff.getShort());                           // Orientation, normal
+        tiff.getShort();
+        assertIfdEntry(tiff, 0x0132, 2, dateTime.length);
+        assertString(tiff, tiff.getInt(), dateTime, tiffLength);     // DateTime
+        assertIfdEntry(tiff, 0x8769, 4, 1);
+        final int exifIfd = tiff.getInt();
+        assertEquals(0, tiff.getInt());                             // no next IFD
+        assertTrue(exifIfd + 2 + 3 * 12 + 4 <= tiffLength);
+
+        tiff.position(exifIfd);
+        assertEquals(3, tiff.getShort());
+        assertIfdEntry(tiff, 0x9003, 2, dateTime.length);
+        assertString(tiff, tiff.getInt(), dateTime, tiffLength);     // DateTimeOriginal
+        assertIfdEntry(tiff, 0xa002, 4, 1);
+        assertEquals(1280, tiff.getInt());                          // PixelXDimension
+        assertIfdEntry(tiff, 0xa003, 4, 1);
+        assertEquals(720, tiff.getInt());                           // PixelYDimension
+        assertEquals(0, tiff.getInt());                             // no next IFD
+    }
+
+    private static void assertIfdEntry(ByteBuffer buf, int tag, int type, int count) {
+        assertEquals(tag, buf.getShort() & 0xffff);
+        assertEquals(type, buf.getShort() & 0xffff);
+        assertEquals(count, buf.getInt());
+    }
+
+    private static void assertString(ByteBuffer buf, int offset, byte[] expected, int tiffLength) {
+        assertTrue(offset + expected.length <= tiffLength);
+        final byte[] actual = new byte[expected.length];
+        final int pos = buf.position();
+        buf.position(offset);
+        buf.get(actual);
+        buf.position(pos);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static byte[] write(byte[] frame, byte[] exif) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedImageCapture.writeJpeg(out, frame, exif);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,130 @@
+package com.serenegiant.usb;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of decoding the supported format array made by UVCDiags::getSupportedFormatArray,
+ * the array is also persisted by UVCDescriptorCache across app versions.
+ */
+public class SupportedFormatsTest {
+
+    private static final int FPS_30 = 333333;
+    private static final int FPS_15 = 666666;
+    private static final int FPS_10 = 1000000;
+    private static final int FPS_5 = 2000000;
+
+    /**
+     * MJPEG: 1280x720@30/15, 640x480@30, 1280x720@5(listed twice with other intervals)
+     * YUYV: 640x480@15/10
+     */
+    private static int[] buildArray() {
+        return new int[]{
+                SupportedFormats.VERSION,
+                2,  // number of formats
+                // format: index, type, number of frames
+                1, UVCCamera.UVC_VS_FORMAT_MJPEG, 3,
+                // frame: type, width, height, default interval, number of intervals, intervals...
+                UVCCamera.UVC_VS_FRAME_MJPEG, 1280, 720, FPS_30, 2, FPS_30, FPS_15,
+                UVCCamera.UVC_VS_FRAME_MJPEG, 640, 480, FPS_30, 1, FPS_30,
+                UVCCamera.UVC_VS_FRAME_MJPEG, 1280, 720, FPS_5, 1, FPS_5,
+                2, UVCCamera.UVC_VS_FORMAT_UNCOMPRESSED, 1,
+                UVCCamera.UVC_VS_FRAME_UNCOMPRESSED, 640, 480, FPS_15, 2, FPS_15, FPS_10,
+        };
+    }
+
+    @Test
+    public void fromArray_decodesFormatsAndSizes() {
+        final int[] array = buildArray();
+        final SupportedFormats formats = SupportedFormats.fromArray(array);
+        assertNotNull(formats);
+        assertFalse(formats.isEmpty());
+        assertSame(array, formats.getArray());
+
+        assertEquals(2, formats.getFormatList().size());
+        final Format mjpeg = formats.getFormatList().get(0);
+        assertEquals(1, mjpeg.index);
+        assertEquals(UVCCamera.UVC_VS_FORMAT_MJPEG, mjpeg.type);
+        assertEquals(3, mjpeg.frameDescriptors.size());
+        final Format.Descriptor descriptor = mjpeg.frameDescriptors.get(0);
+        assertEquals(1, descriptor.index);
+        assertEquals(UVCCamera.UVC_VS_FRAME_MJPEG, descriptor.type);
+        assertEquals(1280, descriptor.width);
+        assertEquals(720, descriptor.height);
+        // the fastest interval is the default
+        assertEquals(30, descriptor.fps);
+        assertEquals(FPS_30, descriptor.frameInterval);
+        assertEquals(2, descriptor.intervals.size());
+        assertEquals(FPS_15, descriptor.intervals.get(1).value);
+        assertEquals(15, descriptor.intervals.get(1).fps);
+
+        final Format yuyv = formats.getFormatList().get(1);
+        assertEquals(2, yuyv.index);
+        assertEquals(UVCCamera.UVC_VS_FORMAT_UNCOMPRESSED, yuyv.type);
+        assertEquals(1, yuyv.frameDescriptors.size());
+
+        assertEquals(4, formats.getSizeList().size());
+        final Size size = formats.getSizeList().get(3);
+        assertEquals(UVCCamera.UVC_VS_FRAME_UNCOMPRESSED, size.type);
+        assertEquals(640, size.width);
+        assertEquals(480, size.height);
+        assertEquals(15, size.fps);
+        assertEquals(Arrays.asList(15, 10), size.fpsList);
+    }
+
+    @Test
+    public void find_matchesTypeSizeAndFps() {
+        final SupportedFormats formats = SupportedFormats.fromArray(buildArray());
+        assertNotNull(formats);
+
+        final Size hd = formats.find(UVCCamera.UVC_VS_FRAME_MJPEG, 1280, 720, 30);
+        assertNotNull(hd);
+        assertSame(formats.getSizeList().get(0), hd);
+        // not the default fps but listed
+        assertSame(hd, formats.find(UVCCamera.UVC_VS_FRAME_MJPEG, 1280, 720, 15));
+        // same size listed again with other intervals
+        assertSame(formats.getSizeList().get(2), formats.find(UVCCamera.UVC_VS_FRAME_MJPEG, 1280, 720, 5));
+        assertSame(formats.getSizeList().get(1), formats.find(UVCCamera.UVC_VS_FRAME_MJPEG, 640, 480, 30));
+        assertSame(formats.getSizeList().get(3), formats.find(UVCCamera.UVC_VS_FRAME_UNCOMPRESSED, 640, 480, 10));
+
+        assertNull(formats.find(UVCCamera.UVC_VS_FRAME_MJPEG, 1280, 720, 60));
+        assertNull(formats.find(UVCCamera.UVC_VS_FRAME_MJPEG, 1920, 1080, 30));
+        assertNull(formats.find(UVCCamera.UVC_VS_FRAME_UNCOMPRESSED, 1280, 720, 30));
+        assertNull(formats.find(UVCCamera.UVC_VS_FRAME_UNCOMPRESSED, 480, 640, 15));
+    }
+
+    @Test
+    public void fromArray_emptyList() {
+        final SupportedFormats formats = SupportedFormats.fromArray(new int[]{SupportedFormats.VERSION, 0});
+        assertNotNull(formats);
+        assertTrue(formats.isEmpty());
+        assertTrue(formats.getSizeList().isEmpty());
+        assertNull(formats.find(UVCCamera.UVC_VS_FRAME_MJPEG, 1280, 720, 30));
+    }
+
+    @Test
+    public void fromArray_rejectsOtherVersion() {
+        final int[] array = buildArray();
+        array[0] = SupportedFormats.VERSION + 1;
+        assertNull(SupportedFormats.fromArray(array));
+        array[0] = 0;
+        assertNull(SupportedFormats.fromArray(array));
+    }
+
+    @Test
+    public void fromArray_rejectsShortArray() {
+        assertNull(SupportedFormats.fromArray(null));
+        assertNull(SupportedFormats.fromArray(new int[0]));
+        assertNull(SupportedFormats.fromArray(new int[]{SupportedFormats.VERSION}));
+        // number of formats without formats
+        assertNull(SupportedFormats.fromArray(new int[]{SupportedFormats.VERSION, 1}));
+        final int[] array = buildArray();
+        // truncated in the middle of intervals of the last frame
+        assertNull(SupportedFormats.fromArray(Arrays.copyOf(array, array.length - 1)));
+        // truncated in the middle of the first frame
+        assertNull(SupportedFormats.fromArray(Arrays.copyOf(array, 8)));
+    }
+}